@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Drops the near duplicates of a burst, keeping the sharpest picture of
+ * each run of pictures which look the same.
+ *
+ * <p>Each picture is given as a small luma image. Its sharpness is the mean
+ * squared gradient divided by the squared mean luma, and it is compared
+ * with the best picture of the current run on a copy averaged down to
+ * {@link #THUMB_SIZE} pixels on its longer side, with the change of
+ * brightness taken out. A picture which differs by less than
+ * {@link #DUPLICATE_DIFF} lumas on average joins the run; otherwise the run
+ * ends and its best picture is kept. So the decision on a picture comes at
+ * most one picture late.
+ *
+ * <p>Adding a picture does not allocate once the sizes are known. This
+ * class only uses plain Java so that it can be tested on a desktop JVM,
+ * and it is not thread safe.
+ */
+public class BurstFilter {
+    public static final int THUMB_SIZE = 32;
+    // Mean luma difference under which two pictures are duplicates.
+    public static final float DUPLICATE_DIFF = 8f;
+
+    public interface Listener {
+        public void onKeep(Object picture);
+        public void onDrop(Object picture);
+    }
+
+    private final Listener mListener;
+
+    // The best picture of the current run, if any, and its thumbnail.
+    private Object mBest;
+    private float mBestSharpness;
+    private int[] mBestThumb = new int[THUMB_SIZE * THUMB_SIZE];
+    private long mBestTotal;
+    private int mThumbWidth, mThumbHeight;
+
+    // The thumbnail of the picture being added.
+    private int[] mThumb = new int[THUMB_SIZE * THUMB_SIZE];
+    private long mTotal;
+
+    private float mLastSharpness;
+    private float mLastDifference;
+    private int mKept, mDropped;
+
+    public BurstFilter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds the next picture of the burst, given by the luma of a downscaled
+     * copy. The listener hears about this picture or an earlier one.
+     */
+    public void add(Object picture, byte[] luma, int width, int height) {
+        float sharpness = measureSharpness(luma, width, height);
+        // Fit the longer side, pictures may be rotated.
+        int w, h;
+        if (width >= height) {
+            w = Math.min(THUMB_SIZE, width);
+            h = Math.max(1, height * w / width);
+        } else {
+            h = Math.min(THUMB_SIZE, height);
+            w = Math.max(1, width * h / height);
+        }
+        makeThumb(luma, width, height, w, h);
+        mLastSharpness = sharpness;
+
+        if (mBest != null && w == mThumbWidth && h == mThumbHeight) {
+            mLastDifference = difference(w * h);
+        } else {
+            mLastDifference = Float.MAX_VALUE;
+        }
+        if (mLastDifference >= DUPLICATE_DIFF) {
+            // A new run starts with this picture.
+            flush();
+            setBest(picture, sharpness, w, h);
+        } else if (sharpness > mBestSharpness) {
+            drop(mBest);
+            setBest(picture, sharpness, w, h);
+        } else {
+            drop(picture);
+        }
+    }
+
+    // Ends the current run, at the end of the burst.
+    public void flush() {
+        if (mBest == null) return;
+        Object best = mBest;
+        mBest = null;
+        mKept++;
+        mListener.onKeep(best);
+    }
+
+    private void drop(Object picture) {
+        mDropped++;
+        mListener.onDrop(picture);
+    }
+
+    private void setBest(Object picture, float sharpness, int w, int h) {
+        mBest = picture;
+        mBestSharpness = sharpness;
+        mThumbWidth = w;
+        mThumbHeight = h;
+        int[] t = mBestThumb;
+        mBestThumb = mThumb;
+        mThumb = t;
+        mBestTotal = mTotal;
+    }
+
+    private static float measureSharpness(byte[] luma, int width, int height) {
+        if (width < 2 || height < 2) return 0;
+        long energy = 0;
+        long total = 0;
+        for (int y = 0; y < height - 1; y++) {
+            int p = y * width;
+            for (int x = 0; x < width - 1; x++, p++) {
+                int v = luma[p] & 0xff;
+                int dx = (luma[p + 1] & 0xff) - v;
+                int dy = (luma[p + width] & 0xff) - v;
+                energy += dx * dx + dy * dy;
+                total += v;
+            }
+        }
+        int count = (width - 1) * (height - 1);
+        float mean = (float) total / count;
+        return (float) energy / count / (mean * mean + 1);
+    }
+
+    // Averages the picture into w x h blocks.
+    private void makeThumb(byte[] luma, int width, int height, int w, int h) {
+        long total = 0;
+        for (int ty = 0; ty < h; ty++) {
+            int y0 = ty * height / h;
+            int y1 = (ty + 1) * height / h;
+            for (int tx = 0; tx < w; tx++) {
+                int x0 = tx * width / w;
+                int x1 = (tx + 1) * width / w;
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    int p = y * width;
+                    for (int x = x0; x < x1; x++) sum += luma[p + x] & 0xff;
+                }
+                int mean = sum / Math.max(1, (y1 - y0) * (x1 - x0));
+                mThumb[ty * w + tx] = mean;
+                total += mean;
+            }
+        }
+        mTotal = total;
+    }
+
+    // The mean absolute difference with the best thumbnail, without the
+    // change of brightness.
+    private float difference(int size) {
+        int change = Math.round((float) (mTotal - mBestTotal) / size);
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            int d = mThumb[i] - mBestThumb[i] - change;
+            sum += d < 0 ? -d : d;
+        }
+        return (float) sum / size;
+    }
+
+    // For logging and tests.
+    public float getLastSharpness() {
+        return mLastSharpness;
+    }
+
+    public float getLastDifference() {
+        return mLastDifference;
+    }
+
+    public int getKeptCount() {
+        return mKept;
+    }
+
+    public int getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Decides which pictures of a burst are worth saving, with a
+ * {@link BurstFilter}, so near duplicates never reach the
+ * {@link ImageSaver} and the media store.
+ *
+ * <p>Each JPEG is decoded at a fraction of its size on a worker thread, to
+ * at least {@link #MIN_DECODE_WIDTH} pixels wide. The decisions are handed
+ * to the listener on the main thread, in the order they are made.
+ */
+public class BurstSelector {
+    private static final String TAG = "CAM_BurstSelector";
+    private static final int MIN_DECODE_WIDTH = 256;
+    private static final int MAX_SAMPLE_SIZE = 8;
+
+    public interface Listener {
+        // All run in main thread, with the tag given to add().
+        public void onBurstPictureKept(Object tag);
+        public void onBurstPictureDropped(Object tag);
+    }
+
+    private static class Decision {
+        Object tag;
+        boolean keep;
+    }
+
+    private final Listener mListener;
+    private final Handler mMainHandler;
+    private final Handler mWorkerHandler;
+
+    // Decisions not handed to the listener yet.
+    private final ArrayList<Decision> mDecisions = new ArrayList<Decision>();
+    // Pictures added and not decided yet.
+    private int mPending;
+    private boolean mFinished;
+
+    // Only used in worker thread.
+    private final BurstFilter mFilter;
+    private int[] mPixels;
+    private byte[] mLuma;
+
+    public BurstSelector(Listener listener) {
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread t = new HandlerThread("Burst Selector",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        t.start();
+        mWorkerHandler = new Handler(t.getLooper());
+        mFilter = new BurstFilter(new BurstFilter.Listener() {
+            @Override
+            public void onKeep(Object picture) {
+                decide(picture, true);
+            }
+
+            @Override
+            public void onDrop(Object picture) {
+                decide(picture, false);
+            }
+        });
+    }
+
+    // Runs in main thread
+    public synchronized void add(final byte[] jpegData, final Object tag) {
+        if (mFinished) return;
+        mPending++;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                analyze(jpegData, tag);
+            }
+        });
+    }
+
+    // Runs in main thread. Keeps the best picture of the last run, at the
+    // end of the burst.
+    public void flush() {
+        mWorkerHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Decides on all the pictures added, hands the decisions to the listener
+     * and stops the worker. Runs in main thread, which it blocks meanwhile.
+     */
+    public void finish() {
+        synchronized (this) {
+            mFinished = true;
+            mWorkerHandler.post(mFlushRunnable);
+            while (mPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+        mWorkerHandler.getLooper().quit();
+        deliver();
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFilter.flush();
+        }
+    };
+
+    // Runs in worker thread
+    private void analyze(byte[] jpegData, Object tag) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+        int sampleSize = 1;
+        while (sampleSize < MAX_SAMPLE_SIZE
+                && options.outWidth / (sampleSize * 2) >= MIN_DECODE_WIDTH) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+        if (bitmap == null) {
+            // Not judged, so kept.
+            Log.w(TAG, "Cannot decode burst picture");
+            decide(tag, true);
+            return;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = width * height;
+        if (mPixels == null || mPixels.length < size) {
+            mPixels = new int[size];
+            mLuma = new byte[size];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        for (int i = 0; i < size; i++) {
+            int c = mPixels[i];
+            int r = (c >> 16) & 0xff;
+            int g = (c >> 8) & 0xff;
+            int b = c & 0xff;
+            mLuma[i] = (byte) ((r * 77 + g * 150 + b * 29) >> 8);
+        }
+        mFilter.add(tag, mLuma, width, height);
+        Log.v(TAG, "Burst picture sharpness " + mFilter.getLastSharpness()
+                + " difference " + mFilter.getLastDifference());
+    }
+
+    // Runs in worker thread
+    private void decide(Object tag, boolean keep) {
+        Decision d = new Decision();
+        d.tag = tag;
+        d.keep = keep;
+        synchronized (this) {
+            mDecisions.add(d);
+            mPending--;
+            notifyAll();
+        }
+        mMainHandler.post(mDeliverRunnable);
+    }
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    // Runs in main thread
+    private void deliver() {
+        while (true) {
+            Decision d;
+            synchronized (this) {
+                if (mDecisions.isEmpty()) return;
+                d = mDecisions.remove(0);
+            }
+            if (d.keep) {
+                mListener.onBurstPictureKept(d.tag);
+            } else {
+                mListener.onBurstPictureDropped(d.tag);
+            }
+        }
+    }
+}
@@ -468,6 +468,51 @@ public class CameraActivity extends ActivityBase
                 ((PhotoModule)mCurrentModule).mCaptureStartTime : -1;
     }
 
+    public long getSwitchCameraLatency() {
+        return (mCurrentModule instanceof PhotoModule) ?
+                ((PhotoModule)mCurrentModule).mSwitchCameraLatency : -1;
+    }
+
+    public int getBurstShotsTaken() {
+        return (mCurrentModule instanceof PhotoModule) ?
+                ((PhotoModule)mCurrentModule).mBurstShotsTaken : -1;
+    }
+
+    public long getBurstDuration() {
+        return (mCurrentModule instanceof PhotoModule) ?
+                ((PhotoModule)mCurrentModule).mBurstDuration : -1;
+    }
+
+    // Switches the photo module to the given camera, used in performance
+    // testing.
+    public void switchToCamera(int cameraId) {
+        if (mCurrentModule instanceof PhotoModule) {
+            ((PhotoModule) mCurrentModule).onCameraPickerClicked(cameraId);
+        }
+    }
+
+    // Takes a snapshot while recording, used in stress testing.
+    public void takeVideoSnapshot() {
+        if (mCurrentModule instanceof VideoModule) {
+            ((VideoModule) mCurrentModule).onSingleTapUp(null, 0, 0);
+        }
+    }
+
+    public int getVideoSnapshotsTaken() {
+        return (mCurrentModule instanceof VideoModule) ?
+                ((VideoModule) mCurrentModule).mVideoSnapshotsTaken : -1;
+    }
+
+    public long getVideoThumbnailLatency() {
+        return (mCurrentModule instanceof VideoModule) ?
+                ((VideoModule) mCurrentModule).mThumbnailLatency : -1;
+    }
+
+    public EffectsRecorder getEffectsRecorder() {
+        return (mCurrentModule instanceof VideoModule) ?
+                ((VideoModule) mCurrentModule).getEffectsRecorder() : null;
+    }
+
     public boolean isRecording() {
         return (mCurrentModule instanceof VideoModule) ?
                 ((VideoModule) mCurrentModule).isRecording() : false;
@@ -116,6 +116,12 @@ public class CameraHolder {
     // inadvertently.
     private Parameters mParameters;
 
+    // The flattened parameters of each camera as the driver reported them
+    // the first time it was opened. These are the capabilities of the
+    // device, so modules can read them without another round trip to the
+    // driver, e.g. when switching between the front and back camera.
+    private final String[] mCachedParameters;
+
     // Use a singleton.
     private static CameraHolder sHolder;
     public static synchronized CameraHolder instance() {
@@ -169,6 +175,7 @@ public class CameraHolder {
                 android.hardware.Camera.getCameraInfo(i, mInfo[i]);
             }
         }
+        mCachedParameters = new String[mNumberOfCameras];
 
         // get the first (smallest) back and first front camera id
         for (int i = 0; i < mNumberOfCameras; i++) {
@@ -188,6 +195,18 @@ public class CameraHolder {
         return mInfo;
     }
 
+    /**
+     * Fills {@code params} with the cached capabilities of the given camera.
+     * Returns {@code false} if the camera has not been opened yet, in which
+     * case {@code params} is left untouched.
+     */
+    public synchronized boolean getCachedParameters(int cameraId, Parameters params) {
+        String flattened = mCachedParameters[cameraId];
+        if (flattened == null) return false;
+        params.unflatten(flattened);
+        return true;
+    }
+
     public synchronized CameraProxy open(int cameraId)
             throws CameraHardwareException {
         if (DEBUG_OPEN_RELEASE) {
@@ -219,6 +238,9 @@ public class CameraHolder {
                 throw new CameraHardwareException(e);
             }
             mParameters = mCameraDevice.getParameters();
+            if (mCachedParameters[cameraId] == null) {
+                mCachedParameters[cameraId] = mParameters.flatten();
+            }
         } else {
             try {
                 mCameraDevice.reconnect();
@@ -76,12 +76,14 @@ public class CameraManager {
     private static final int SET_PREVIEW_DISPLAY_ASYNC = 23;
     private static final int SET_PREVIEW_CALLBACK = 24;
     private static final int ENABLE_SHUTTER_SOUND = 25;
+    private static final int ADD_CALLBACK_BUFFER_ASYNC = 26;
 
     private static final int ENABLE_SAMSUNG_ZSL_MODE = 30;
 
     private Handler mCameraHandler;
     private CameraProxy mCameraProxy;
     private android.hardware.Camera mCamera;
+    private PreviewBufferPool mPreviewBufferPool = new PreviewBufferPool();
 
     public static CameraManager instance() {
         return sCameraManager;
@@ -187,6 +189,10 @@ public class CameraManager {
                         mCamera.addCallbackBuffer((byte[]) msg.obj);
                         break;
 
+                    case ADD_CALLBACK_BUFFER_ASYNC:
+                        mCamera.addCallbackBuffer((byte[]) msg.obj);
+                        return;  // no need to call mSig.open()
+
                     case AUTO_FOCUS:
                         mCamera.autoFocus((AutoFocusCallback) msg.obj);
                         break;
@@ -307,6 +313,7 @@ public class CameraManager {
         }
 
         public void release() {
+            mPreviewBufferPool.stop();
             mSig.close();
             mCameraHandler.sendEmptyMessage(RELEASE);
             mSig.block();
@@ -370,6 +377,18 @@ public class CameraManager {
             mSig.block();
         }
 
+        // Preview callback consumers give buffers back on every frame, so
+        // they should not wait for the camera thread.
+        public void addCallbackBufferAsync(byte[] callbackBuffer) {
+            mCameraHandler.obtainMessage(ADD_CALLBACK_BUFFER_ASYNC, callbackBuffer).sendToTarget();
+        }
+
+        // The pool shared by all the setPreviewCallbackWithBuffer consumers
+        // of this camera.
+        public PreviewBufferPool getPreviewBufferPool() {
+            return mPreviewBufferPool;
+        }
+
         public void autoFocus(AutoFocusCallback cb) {
             mSig.close();
             mCameraHandler.obtainMessage(AUTO_FOCUS, cb).sendToTarget();
@@ -79,6 +79,8 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     private boolean mEnableAspectRatioClamping = false;
     private float mAlpha = 1f;
     private Runnable mOnFrameDrawnListener;
+    // Gets the arrival time of every preview frame, see setFrameMonitor().
+    private RecordingHealthMonitor mFrameMonitor;
 
     public interface Listener {
         void requestRender();
@@ -394,6 +396,7 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
                 return;
             }
             mFirstFrameArrived = true;
+            if (mFrameMonitor != null) mFrameMonitor.onFrame(System.nanoTime());
             if (mVisible) {
                 if (mAnimState == ANIM_SWITCH_WAITING_FIRST_FRAME) {
                     mAnimState = ANIM_SWITCH_START;
@@ -423,6 +426,14 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
         }
     }
 
+    // The frames are counted when they arrive, not when they are drawn,
+    // so the monitor sees the rate of the camera and not of the display.
+    public void setFrameMonitor(RecordingHealthMonitor monitor) {
+        synchronized (mLock) {
+            mFrameMonitor = monitor;
+        }
+    }
+
     public void setOnFrameDrawnOneShot(Runnable run) {
         synchronized (mLock) {
             mOnFrameDrawnListener = run;
@@ -656,10 +656,13 @@ public class CameraSettings {
     private void initVideoEffect(PreferenceGroup group, ListPreference videoEffect) {
         CharSequence[] values = videoEffect.getEntryValues();
 
+        // The effects run on the CPU without the filter framework.
         boolean goofyFaceSupported =
-                EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_GOOFY_FACE);
+                EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_GOOFY_FACE) ||
+                SoftwareEffects.isSupported(EffectsRecorder.EFFECT_GOOFY_FACE, mParameters);
         boolean backdropperSupported =
-                EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_BACKDROPPER) &&
+                (EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_BACKDROPPER) ||
+                SoftwareEffects.isSupported(EffectsRecorder.EFFECT_BACKDROPPER, mParameters)) &&
                 Util.isAutoExposureLockSupported(mParameters) &&
                 Util.isAutoWhiteBalanceLockSupported(mParameters);
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Measures how sharp the focus area of a preview frame is, and follows the
+ * sharpness while the driver focuses.
+ *
+ * <p>The focus area is averaged down to at most {@link #MAX_SIZE} pixels on
+ * each side and its sharpness is the Tenengrad measure: the mean squared
+ * Sobel gradient, divided by the squared mean luma so that a change of
+ * exposure does not look like a change of focus.
+ *
+ * <p>During an autofocus run, the focus has settled once the sharpness
+ * changed, stopped changing and is close to the sharpest value seen. The
+ * lens is hunting when the sharpness keeps going up and down.
+ *
+ * <p>Measuring does not allocate. This class only uses plain Java so that
+ * it can be tested on a desktop JVM, and it is not thread safe.
+ */
+public class ContrastFocus {
+    public static final int STATE_SEARCHING = 0;
+    public static final int STATE_SETTLED = 1;
+    public static final int STATE_HUNTING = 2;
+
+    // The focus area is downscaled to at most this size.
+    public static final int MAX_SIZE = 96;
+
+    // The sharpness must change this much for the lens to have moved.
+    private static final float MIN_RISE = 1.15f;
+    // Settled: the last frames are this close to each other, and to the
+    // sharpest frame.
+    private static final int SETTLE_FRAMES = 3;
+    private static final float SETTLE_TOLERANCE = 0.04f;
+    private static final float PEAK_RATIO = 0.9f;
+    // Hunting: the sharpness went up and down by this much this many times.
+    private static final float HUNT_CHANGE = 0.1f;
+    private static final int HUNT_REVERSALS = 5;
+
+    private final int[] mLuma = new int[MAX_SIZE * MAX_SIZE];
+    private int mLeft = -1000, mTop = -1000, mRight = 1000, mBottom = 1000;
+
+    private final float[] mRecent = new float[SETTLE_FRAMES];
+    private int mFrames;
+    private float mMin, mMax;
+    private float mExtreme;
+    private int mDirection;
+    private int mReversals;
+    private int mState;
+
+    /**
+     * Sets the focus area in driver coordinates, from -1000 to 1000. The
+     * default is the whole frame.
+     */
+    public void setArea(int left, int top, int right, int bottom) {
+        mLeft = Math.max(-1000, Math.min(left, 1000));
+        mTop = Math.max(-1000, Math.min(top, 1000));
+        mRight = Math.max(mLeft, Math.min(right, 1000));
+        mBottom = Math.max(mTop, Math.min(bottom, 1000));
+    }
+
+    /**
+     * Returns the sharpness of the focus area of a frame. Only the luma
+     * plane is read, so an NV21 frame or a gray image can be used.
+     */
+    public float measure(byte[] frame, int width, int height) {
+        int x0 = (mLeft + 1000) * width / 2000;
+        int y0 = (mTop + 1000) * height / 2000;
+        int x1 = (mRight + 1000) * width / 2000;
+        int y1 = (mBottom + 1000) * height / 2000;
+        int step = Math.max(1, (Math.max(x1 - x0, y1 - y0) + MAX_SIZE - 1) / MAX_SIZE);
+        int w = (x1 - x0) / step;
+        int h = (y1 - y0) / step;
+        if (w < 3 || h < 3) return 0;
+
+        // Average step x step blocks, one row of blocks at a time.
+        long total = 0;
+        for (int gy = 0; gy < h; gy++) {
+            int row = gy * w;
+            for (int gx = 0; gx < w; gx++) mLuma[row + gx] = 0;
+            for (int dy = 0; dy < step; dy++) {
+                int p = (y0 + gy * step + dy) * width + x0;
+                for (int gx = 0; gx < w; gx++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < step; dx++) sum += frame[p++] & 0xff;
+                    mLuma[row + gx] += sum;
+                }
+            }
+            for (int gx = 0; gx < w; gx++) total += mLuma[row + gx];
+        }
+        int area = step * step;
+        float mean = (float) total / (w * h * area);
+
+        long energy = 0;
+        for (int gy = 1; gy < h - 1; gy++) {
+            int p = gy * w + 1;
+            for (int gx = 1; gx < w - 1; gx++, p++) {
+                int a = mLuma[p - w - 1], b = mLuma[p - w], c = mLuma[p - w + 1];
+                int d = mLuma[p - 1], f = mLuma[p + 1];
+                int g = mLuma[p + w - 1], i = mLuma[p + w], j = mLuma[p + w + 1];
+                long sx = (c + 2 * f + j) - (a + 2 * d + g);
+                long sy = (g + 2 * i + j) - (a + 2 * b + c);
+                energy += sx * sx + sy * sy;
+            }
+        }
+        float gradient = (float) energy / ((long) area * area * (w - 2) * (h - 2));
+        return gradient / (mean * mean + 1);
+    }
+
+    // Starts following a new autofocus run.
+    public void start() {
+        mFrames = 0;
+        mState = STATE_SEARCHING;
+    }
+
+    /**
+     * Adds the sharpness of the next frame of the autofocus run and returns
+     * the state. The state does not change once settled or hunting.
+     */
+    public int onSharpness(float sharpness) {
+        if (mState != STATE_SEARCHING) return mState;
+        if (mFrames == 0) {
+            mMin = mMax = mExtreme = sharpness;
+            mDirection = 0;
+            mReversals = 0;
+        }
+        mRecent[mFrames % SETTLE_FRAMES] = sharpness;
+        mFrames++;
+        mMin = Math.min(mMin, sharpness);
+        mMax = Math.max(mMax, sharpness);
+
+        // Count the turns of the sharpness, ignoring the small ones.
+        if (mDirection >= 0 && sharpness > mExtreme) {
+            if (mDirection == 0 && sharpness < mExtreme * (1 + HUNT_CHANGE)) return mState;
+            mExtreme = sharpness;
+            mDirection = 1;
+        } else if (mDirection <= 0 && sharpness < mExtreme) {
+            if (mDirection == 0 && sharpness > mExtreme * (1 - HUNT_CHANGE)) return mState;
+            mExtreme = sharpness;
+            mDirection = -1;
+        } else if (mDirection > 0 && sharpness < mExtreme * (1 - HUNT_CHANGE)) {
+            mExtreme = sharpness;
+            mDirection = -1;
+            mReversals++;
+        } else if (mDirection < 0 && sharpness > mExtreme * (1 + HUNT_CHANGE)) {
+            mExtreme = sharpness;
+            mDirection = 1;
+            mReversals++;
+        }
+        if (mReversals >= HUNT_REVERSALS) {
+            mState = STATE_HUNTING;
+        } else if (isSettled(sharpness)) {
+            mState = STATE_SETTLED;
+        }
+        return mState;
+    }
+
+    private boolean isSettled(float sharpness) {
+        if (mFrames < SETTLE_FRAMES || mMax < mMin * MIN_RISE) return false;
+        if (sharpness < mMax * PEAK_RATIO) return false;
+        for (int i = 0; i < SETTLE_FRAMES; i++) {
+            if (Math.abs(mRecent[i] - sharpness) > sharpness * SETTLE_TOLERANCE) return false;
+        }
+        return true;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    // How close the last frame is to the sharpest one of the run, 0 to 1.
+    public float getLevel() {
+        if (mFrames == 0 || mMax <= 0) return 0;
+        return mRecent[(mFrames - 1) % SETTLE_FRAMES] / mMax;
+    }
+}
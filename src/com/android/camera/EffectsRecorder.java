@@ -24,6 +24,7 @@ import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.gallery3d.common.ApiHelper;
@@ -35,6 +36,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.HashMap;
 
 
 /**
@@ -96,6 +98,14 @@ public class EffectsRecorder {
     private static Method sOnRecordingDoneListenerOnRecordingDone;
     private static Method sSurfaceTextureSourceListenerOnSurfaceTextureSourceReady;
 
+    // Resolved once, instead of on every use.
+    private static Object sGraphEnvironmentModeAsynchronous;
+    private static int sGraphRunnerResultError;
+    // Recording regions, see setRecordingOrientation().
+    private static Object sQuadIdentity;
+    private static Object sQuadFlipLandscape;
+    private static Object sQuadFlipPortrait;
+
     private Object mLearningDoneListener;
     private Object mRunnerDoneCallback;
     private Object mSourceReadyCallback;
@@ -160,10 +170,24 @@ public class EffectsRecorder {
     private Object mEffectParameter;
 
     private Object mGraphEnv;
-    private int mGraphId;
     private Object mRunner = null;
     private Object mOldRunner = null;
 
+    // Runners of the graphs loaded into mGraphEnv, by effect. A graph stays
+    // loaded until the preview stops or the preview surface changes, so
+    // switching back to an effect does not parse and set up its graph again.
+    private final HashMap<Integer, Object> mGraphRunners = new HashMap<Integer, Object>();
+    // Start of the current effect switch, or 0 if there is none.
+    private long mSwitchStartTime;
+    private boolean mSwitchWarm;
+    private long mLastSwitchLatency = -1;
+
+    // Filters of mFilterCacheRunner by name. Looking a filter up takes two
+    // reflective calls, which added up on every orientation update.
+    private final HashMap<String, Object> mFilterCache = new HashMap<String, Object>();
+    private Object mFilterCacheRunner;
+    private boolean mFilterCacheEnabled = true;
+
     private SurfaceTexture mTextureSource;
 
     private static final int STATE_CONFIGURE              = 0;
@@ -283,6 +307,19 @@ public class EffectsRecorder {
                         sClsSurfaceTextureSourceListener.getMethod(
                                 "onSurfaceTextureSourceReady",
                                 new Class[] {SurfaceTexture.class});
+
+                sGraphEnvironmentModeAsynchronous =
+                        getConstant(sClsGraphEnvironment, "MODE_ASYNCHRONOUS");
+                sGraphRunnerResultError =
+                        (Integer) getConstant(sClsGraphRunner, "RESULT_ERROR");
+
+                Object bl = newInstance(sCtPoint, new Object[] {0, 0});
+                Object br = newInstance(sCtPoint, new Object[] {1, 0});
+                Object tl = newInstance(sCtPoint, new Object[] {0, 1});
+                Object tr = newInstance(sCtPoint, new Object[] {1, 1});
+                sQuadIdentity = newInstance(sCtQuad, new Object[] {bl, br, tl, tr});
+                sQuadFlipLandscape = newInstance(sCtQuad, new Object[] {br, bl, tr, tl});
+                sQuadFlipPortrait = newInstance(sCtQuad, new Object[] {tl, tr, bl, br});
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
@@ -493,23 +530,19 @@ public class EffectsRecorder {
 
     private void setRecordingOrientation() {
         if (mState != STATE_RECORD && mRunner != null) {
-            Object bl = newInstance(sCtPoint, new Object[] {0, 0});
-            Object br = newInstance(sCtPoint, new Object[] {1, 0});
-            Object tl = newInstance(sCtPoint, new Object[] {0, 1});
-            Object tr = newInstance(sCtPoint, new Object[] {1, 1});
             Object recordingRegion;
             if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
                 // The back camera is not mirrored, so use a identity transform
-                recordingRegion = newInstance(sCtQuad, new Object[] {bl, br, tl, tr});
+                recordingRegion = sQuadIdentity;
             } else {
                 // Recording region needs to be tweaked for front cameras, since they
                 // mirror their preview
                 if (mOrientationHint == 0 || mOrientationHint == 180) {
                     // Horizontal flip in landscape
-                    recordingRegion = newInstance(sCtQuad, new Object[] {br, bl, tr, tl});
+                    recordingRegion = sQuadFlipLandscape;
                 } else {
                     // Horizontal flip in portrait
-                    recordingRegion = newInstance(sCtQuad, new Object[] {tl, tr, bl, br});
+                    recordingRegion = sQuadFlipPortrait;
                 }
             }
             Object recorder = getGraphFilter(mRunner, "recorder");
@@ -597,14 +630,16 @@ public class EffectsRecorder {
                 "learningDoneListener", mLearningDoneListener,
                 "recordingDoneListener", mRecordingDoneListener}});
         mRunner = null;
-        mGraphId = -1;
+        mGraphRunners.clear();
         mCurrentEffect = EFFECT_NONE;
     }
 
     private synchronized void initializeEffect(boolean forceReset) {
-        if (forceReset ||
-            mCurrentEffect != mEffect ||
-            mCurrentEffect == EFFECT_BACKDROPPER) {
+        if (forceReset || mCurrentEffect != mEffect) {
+            if (forceReset) {
+                // The loaded graphs refer to the old preview surface.
+                discardGraphs();
+            }
 
             invoke(mGraphEnv, sGraphEnvironmentAddReferences,
                     new Object[] {new Object[] {
@@ -617,31 +652,41 @@ public class EffectsRecorder {
                 // Switching effects while running. Inform video camera.
                 sendMessage(mCurrentEffect, EFFECT_MSG_SWITCHING_EFFECT);
             }
-
-            switch (mEffect) {
-                case EFFECT_GOOFY_FACE:
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.goofy_face});
-                    break;
-                case EFFECT_BACKDROPPER:
-                    sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.backdropper});
-                    break;
-                default:
-                    throw new RuntimeException("Unknown effect ID" + mEffect + "!");
+            mSwitchStartTime = SystemClock.uptimeMillis();
+
+            Object runner = mGraphRunners.get(mEffect);
+            mSwitchWarm = runner != null;
+            if (runner == null) {
+                int graphId;
+                switch (mEffect) {
+                    case EFFECT_GOOFY_FACE:
+                        graphId = (Integer) invoke(mGraphEnv,
+                                sGraphEnvironmentLoadGraph,
+                                new Object[] {mContext, R.raw.goofy_face});
+                        break;
+                    case EFFECT_BACKDROPPER:
+                        sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
+                        graphId = (Integer) invoke(mGraphEnv,
+                                sGraphEnvironmentLoadGraph,
+                                new Object[] {mContext, R.raw.backdropper});
+                        break;
+                    default:
+                        throw new RuntimeException("Unknown effect ID" + mEffect + "!");
+                }
+                runner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
+                        new Object[] {graphId, sGraphEnvironmentModeAsynchronous});
+                invoke(runner, sGraphRunnerSetDoneCallback,
+                        new Object[] {mRunnerDoneCallback});
+                mGraphRunners.put(mEffect, runner);
             }
+            // A warm backdropper graph keeps the background it has learned,
+            // the same as when the graph is run again after recording.
             mCurrentEffect = mEffect;
 
             mOldRunner = mRunner;
-            mRunner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
-                    new Object[] {mGraphId,
-                    getConstant(sClsGraphEnvironment, "MODE_ASYNCHRONOUS")});
-            invoke(mRunner, sGraphRunnerSetDoneCallback, new Object[] {mRunnerDoneCallback});
+            mRunner = runner;
             if (mLogVerbose) {
-                Log.v(TAG, "New runner: " + mRunner
+                Log.v(TAG, "New runner: " + mRunner + (mSwitchWarm ? " (warm)" : "")
                       + ". Old runner: " + mOldRunner);
             }
             if (mState == STATE_PREVIEW ||
@@ -755,8 +800,7 @@ public class EffectsRecorder {
                       + ", mRunner " + mRunner
                       + ", mOldRunner " + mOldRunner + ")");
             }
-            if (runnerDoneResult ==
-                    (Integer) getConstant(sClsGraphRunner, "RESULT_ERROR")) {
+            if (runnerDoneResult == sGraphRunnerResultError) {
                 // Handle error case
                 Log.e(TAG, "Error running filter graph!");
                 Exception e = null;
@@ -767,17 +811,16 @@ public class EffectsRecorder {
                 }
                 raiseError(e);
             }
+            if (mState != STATE_PREVIEW && mState != STATE_STARTING_PREVIEW) {
+                // The graph environment is created again on the next start,
+                // so none of the loaded graphs can be reused.
+                discardGraphs();
+            }
             if (mOldRunner != null) {
-                // Tear down old graph if available
-                if (mLogVerbose) Log.v(TAG, "Tearing down old graph.");
-                Object glEnv = getContextGLEnvironment(mGraphEnv);
-                if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentActivate);
-                }
-                getGraphTearDown(mOldRunner,
-                        invoke(mGraphEnv, sGraphEnvironmentGetContext));
-                if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentDeactivate);
+                // Tear down old graph if it is not kept for reuse
+                if (mOldRunner != mRunner && !mGraphRunners.containsValue(mOldRunner)) {
+                    if (mLogVerbose) Log.v(TAG, "Tearing down old graph.");
+                    tearDownGraphs(new Object[] {mOldRunner});
                 }
                 mOldRunner = null;
             }
@@ -800,8 +843,7 @@ public class EffectsRecorder {
                 // the end of a normal recording session. In such a case, the graph
                 // does not restart and hence the learner does not re-learn. So we
                 // do not want to show the learning dialogue then.
-                if (runnerDoneResult == (Integer) getConstant(
-                        sClsGraphRunner, "RESULT_ERROR")
+                if (runnerDoneResult == sGraphRunnerResultError
                         && mCurrentEffect == EFFECT_BACKDROPPER) {
                     sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
                 }
@@ -872,6 +914,13 @@ public class EffectsRecorder {
 
             if (mLogVerbose) Log.v(TAG, "Start preview/effect switch complete");
 
+            if (mSwitchStartTime != 0) {
+                mLastSwitchLatency = SystemClock.uptimeMillis() - mSwitchStartTime;
+                mSwitchStartTime = 0;
+                Log.v(TAG, "Effect switch took " + mLastSwitchLatency + "ms"
+                        + (mSwitchWarm ? " (warm)" : " (cold)"));
+            }
+
             // Sending a message to listener that preview is complete
             sendMessage(mCurrentEffect, EFFECT_MSG_PREVIEW_RUNNING);
         }
@@ -1202,7 +1251,40 @@ public class EffectsRecorder {
         }
     }
 
+    // For the EffectsUpdateLatency stress test, which compares looking the
+    // filters up every time with the cache.
+    public void setFilterCacheEnabled(boolean enabled) {
+        synchronized (mFilterCache) {
+            mFilterCacheEnabled = enabled;
+            mFilterCache.clear();
+        }
+    }
+
+    // For the EffectsUpdateLatency stress test. Returns the time from the
+    // last effect switch to the new effect preview running in ms, or -1.
+    public synchronized long getLastEffectSwitchLatency() {
+        return mLastSwitchLatency;
+    }
+
     private Object getGraphFilter(Object receiver, String name) {
+        synchronized (mFilterCache) {
+            if (receiver != mRunner || !mFilterCacheEnabled) {
+                return lookupGraphFilter(receiver, name);
+            }
+            if (mFilterCacheRunner != receiver) {
+                mFilterCache.clear();
+                mFilterCacheRunner = receiver;
+            }
+            Object filter = mFilterCache.get(name);
+            if (filter == null) {
+                filter = lookupGraphFilter(receiver, name);
+                mFilterCache.put(name, filter);
+            }
+            return filter;
+        }
+    }
+
+    private Object lookupGraphFilter(Object receiver, String name) {
         try {
             return sFilterGraphGetFilter.invoke(sGraphRunnerGetGraph
                     .invoke(receiver), new Object[] {name});
@@ -1220,6 +1302,33 @@ public class EffectsRecorder {
         }
     }
 
+    // Tears down the loaded graphs that are not running. The running one is
+    // torn down when its runner is done.
+    private void discardGraphs() {
+        if (mGraphRunners.isEmpty()) return;
+        Object[] runners = mGraphRunners.values().toArray();
+        mGraphRunners.clear();
+        for (int i = 0; i < runners.length; i++) {
+            if (runners[i] == mRunner || runners[i] == mOldRunner) runners[i] = null;
+        }
+        if (mLogVerbose) Log.v(TAG, "Discarding loaded graphs.");
+        tearDownGraphs(runners);
+    }
+
+    private void tearDownGraphs(Object[] runners) {
+        Object glEnv = getContextGLEnvironment(mGraphEnv);
+        if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+            invoke(glEnv, sGLEnvironmentActivate);
+        }
+        Object filterContext = invoke(mGraphEnv, sGraphEnvironmentGetContext);
+        for (Object runner : runners) {
+            if (runner != null) getGraphTearDown(runner, filterContext);
+        }
+        if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+            invoke(glEnv, sGLEnvironmentDeactivate);
+        }
+    }
+
     private void getGraphTearDown(Object receiver, Object filterContext) {
         try {
             sFilterGraphTearDown.invoke(sGraphRunnerGetGraph.invoke(receiver),
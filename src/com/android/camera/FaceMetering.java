@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Turns the faces of a {@link FaceTracker} into focus and metering areas,
+ * so a picture is focused and exposed on the faces instead of the center
+ * of the frame.
+ *
+ * <p>Every face gets a weight from its size and its distance to the center,
+ * the largest weight being 1000. The focus areas are the face rects and the
+ * metering areas are half as large again, as exposure is easily thrown off
+ * by a small area. The faces are the ones predicted for the time the areas
+ * are set.
+ *
+ * <p>Drivers ignore the focus and metering areas while face detection runs,
+ * so the caller stops the detection before setting the areas, and runs an
+ * autofocus to know when the driver has converged on them. This class only
+ * uses plain Java so that it can be tested on a desktop JVM against a fake
+ * {@link Driver}.
+ */
+public class FaceMetering {
+    public static final int MAX_WEIGHT = 1000;
+
+    private static final float METERING_SCALE = 1.5f;
+    private static final int MAX_AREAS = 16;
+
+    public interface Driver {
+        /**
+         * Sets the areas, five values for each: left, top, right, bottom and
+         * weight, in driver coordinates. Either count can be 0 when the
+         * driver has no such areas.
+         */
+        public void setFaceAreas(int focusCount, int[] focusAreas,
+                int meteringCount, int[] meteringAreas);
+    }
+
+    private final Driver mDriver;
+    private int mMaxFocusAreas;
+    private int mMaxMeteringAreas;
+
+    // The faces sorted by weight, five values per face as in the areas.
+    private final int[] mFaces = new int[5 * MAX_AREAS];
+    private final float[] mScores = new float[MAX_AREAS];
+    private int mFaceCount;
+
+    private final int[] mFocusAreas = new int[5 * MAX_AREAS];
+    private final int[] mMeteringAreas = new int[5 * MAX_AREAS];
+    private final float[] mRect = new float[4];
+
+    public FaceMetering(Driver driver, int maxFocusAreas, int maxMeteringAreas) {
+        mDriver = driver;
+        setMaxAreas(maxFocusAreas, maxMeteringAreas);
+    }
+
+    // Either can be 0 when the driver has no such areas.
+    public void setMaxAreas(int maxFocusAreas, int maxMeteringAreas) {
+        mMaxFocusAreas = Math.min(maxFocusAreas, MAX_AREAS);
+        mMaxMeteringAreas = Math.min(maxMeteringAreas, MAX_AREAS);
+    }
+
+    public boolean isSupported() {
+        return mMaxFocusAreas > 0 || mMaxMeteringAreas > 0;
+    }
+
+    /**
+     * Gives the driver the areas of the faces at the given time. Returns
+     * false, and gives nothing, when the tracker has no confirmed face.
+     */
+    public boolean meter(long timeMs, FaceTracker tracker) {
+        if (!isSupported()) return false;
+        collectFaces(timeMs, tracker);
+        if (mFaceCount == 0) return false;
+        apply();
+        return true;
+    }
+
+    private void collectFaces(long timeMs, FaceTracker tracker) {
+        mFaceCount = 0;
+        int max = Math.max(mMaxFocusAreas, mMaxMeteringAreas);
+        for (int i = 0; i < tracker.getTrackCount(); i++) {
+            FaceTracker.Track track = tracker.getTrack(i);
+            if (!track.isConfirmed()) continue;
+            track.predict(timeMs, mRect, 0);
+            int left = clamp(Math.round(mRect[0]));
+            int top = clamp(Math.round(mRect[1]));
+            int right = clamp(Math.round(mRect[2]));
+            int bottom = clamp(Math.round(mRect[3]));
+            if (right <= left || bottom <= top) continue;
+            // Closer and more central faces matter more.
+            float cx = (left + right) / 2f, cy = (top + bottom) / 2f;
+            float distance = (float) Math.sqrt(cx * cx + cy * cy) / 1414f;
+            float score = (float) (right - left) * (bottom - top) * (1 - distance / 2);
+            // Insertion sort by score, keeping the best ones.
+            int pos = mFaceCount;
+            while (pos > 0 && score > mScores[pos - 1]) pos--;
+            if (pos >= max) continue;
+            int last = Math.min(mFaceCount, max - 1);
+            System.arraycopy(mFaces, 5 * pos, mFaces, 5 * (pos + 1), 5 * (last - pos));
+            System.arraycopy(mScores, pos, mScores, pos + 1, last - pos);
+            mFaces[5 * pos] = left;
+            mFaces[5 * pos + 1] = top;
+            mFaces[5 * pos + 2] = right;
+            mFaces[5 * pos + 3] = bottom;
+            mScores[pos] = score;
+            mFaceCount = last + 1;
+        }
+        for (int i = 0; i < mFaceCount; i++) {
+            mFaces[5 * i + 4] = Math.max(1, Math.round(MAX_WEIGHT * mScores[i] / mScores[0]));
+        }
+    }
+
+    private void apply() {
+        int focusCount = Math.min(mFaceCount, mMaxFocusAreas);
+        System.arraycopy(mFaces, 0, mFocusAreas, 0, 5 * focusCount);
+        int meteringCount = Math.min(mFaceCount, mMaxMeteringAreas);
+        for (int i = 0; i < meteringCount; i++) {
+            int p = 5 * i;
+            float cx = (mFaces[p] + mFaces[p + 2]) / 2f;
+            float cy = (mFaces[p + 1] + mFaces[p + 3]) / 2f;
+            float hw = (mFaces[p + 2] - mFaces[p]) * METERING_SCALE / 2;
+            float hh = (mFaces[p + 3] - mFaces[p + 1]) * METERING_SCALE / 2;
+            mMeteringAreas[p] = clamp(Math.round(cx - hw));
+            mMeteringAreas[p + 1] = clamp(Math.round(cy - hh));
+            mMeteringAreas[p + 2] = clamp(Math.round(cx + hw));
+            mMeteringAreas[p + 3] = clamp(Math.round(cy + hh));
+            mMeteringAreas[p + 4] = mFaces[p + 4];
+        }
+        mDriver.setFaceAreas(focusCount, mFocusAreas, meteringCount, mMeteringAreas);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(-1000, Math.min(1000, value));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Face detections recorded on a device, to be replayed into a
+ * {@link FaceTracker} later. The text form has one detection per line: the
+ * time in ms, the number of faces, then the id, score, left, top, right and
+ * bottom of every face.
+ */
+public class FaceTrace {
+    private static class Detection {
+        long timeMs;
+        int[] faceIds;
+        int[] scores;
+        float[] rects;
+    }
+
+    private final ArrayList<Detection> mDetections = new ArrayList<Detection>();
+
+    public synchronized void add(long timeMs, int count, int[] faceIds, int[] scores,
+            float[] rects) {
+        Detection d = new Detection();
+        d.timeMs = timeMs;
+        d.faceIds = new int[count];
+        d.scores = new int[count];
+        d.rects = new float[4 * count];
+        System.arraycopy(faceIds, 0, d.faceIds, 0, count);
+        System.arraycopy(scores, 0, d.scores, 0, count);
+        System.arraycopy(rects, 0, d.rects, 0, 4 * count);
+        mDetections.add(d);
+    }
+
+    public synchronized int size() {
+        return mDetections.size();
+    }
+
+    public synchronized long getTime(int i) {
+        return mDetections.get(i).timeMs;
+    }
+
+    public synchronized int getFaceCount(int i) {
+        return mDetections.get(i).scores.length;
+    }
+
+    // Sets rect to the left, top, right and bottom of a face.
+    public synchronized void getRect(int i, int face, float[] rect) {
+        System.arraycopy(mDetections.get(i).rects, 4 * face, rect, 0, 4);
+    }
+
+    public synchronized void replay(FaceTracker tracker) {
+        for (Detection d : mDetections) {
+            tracker.update(d.timeMs, d.scores.length, d.faceIds, d.scores, d.rects);
+        }
+    }
+
+    public synchronized void write(OutputStream out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        for (Detection d : mDetections) {
+            writer.print(d.timeMs);
+            writer.print(' ');
+            writer.print(d.scores.length);
+            for (int i = 0; i < d.scores.length; i++) {
+                writer.print(' ');
+                writer.print(d.faceIds[i]);
+                writer.print(' ');
+                writer.print(d.scores[i]);
+                for (int j = 0; j < 4; j++) {
+                    writer.print(' ');
+                    writer.print(d.rects[4 * i + j]);
+                }
+            }
+            writer.println();
+        }
+        writer.flush();
+        if (writer.checkError()) throw new IOException("Cannot write trace");
+    }
+
+    // Blank lines and lines starting with # are skipped.
+    public static FaceTrace read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        FaceTrace trace = new FaceTrace();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            String[] fields = line.split("\\s+");
+            try {
+                int count = Integer.parseInt(fields[1]);
+                if (fields.length != 2 + 6 * count) {
+                    throw new IOException("Bad detection: " + line);
+                }
+                int[] faceIds = new int[count];
+                int[] scores = new int[count];
+                float[] rects = new float[4 * count];
+                for (int i = 0; i < count; i++) {
+                    int p = 2 + 6 * i;
+                    faceIds[i] = Integer.parseInt(fields[p]);
+                    scores[i] = Integer.parseInt(fields[p + 1]);
+                    for (int j = 0; j < 4; j++) {
+                        rects[4 * i + j] = Float.parseFloat(fields[p + 2 + j]);
+                    }
+                }
+                trace.add(Long.parseLong(fields[0]), count, faceIds, scores, rects);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad detection: " + line);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Bad detection: " + line);
+            }
+        }
+        return trace;
+    }
+}
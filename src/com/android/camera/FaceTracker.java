@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Follows the faces found by the camera driver from one detection to the
+ * next, in driver coordinates from -1000 to 1000.
+ *
+ * <p>A detection is associated with a track by its face id when the driver
+ * reports ids, and otherwise by how much it overlaps the predicted rect of
+ * the track. The center and the size of every track are smoothed by a
+ * constant velocity (alpha-beta) filter, so the rects can be predicted
+ * between two detections. A track is shown from its second detection and
+ * kept for a few missed detections, which hides the faces the driver
+ * loses for a moment.
+ *
+ * <p>This class only uses plain Java. The detections can be recorded in a
+ * {@link FaceTrace} and replayed on a desktop JVM. It is not thread safe.
+ */
+public class FaceTracker {
+    // Detections with a lower score are false positives.
+    public static final int MIN_SCORE = 50;
+
+    // Weights of the measurement in the position and in the velocity.
+    private static final float ALPHA = 0.5f;
+    private static final float BETA = 0.15f;
+    // The least overlap of a detection with a track without face ids.
+    private static final float MIN_IOU = 0.3f;
+    private static final int MIN_HITS = 2;
+    private static final int MAX_MISSES = 3;
+    // Tracks are extrapolated this far past their last detection at most.
+    private static final long MAX_PREDICTION = 150;
+    private static final int MAX_TRACKS = 16;
+
+    public static class Track {
+        // Stable for the life of the track, unlike the index.
+        public int id;
+        public int score;
+        int faceId;
+        // The filtered center and size, and their change per ms.
+        float x, y, w, h;
+        float vx, vy, vw, vh;
+        long lastTime;
+        int hits;
+        int misses;
+        boolean matched;
+
+        public boolean isConfirmed() {
+            return hits >= MIN_HITS;
+        }
+
+        // Sets rect to left, top, right and bottom, predicted at timeMs.
+        public void predict(long timeMs, float[] rect, int offset) {
+            float dt = Math.max(0, Math.min(timeMs - lastTime, MAX_PREDICTION));
+            float cx = x + vx * dt;
+            float cy = y + vy * dt;
+            float hw = Math.max(w + vw * dt, 1) / 2;
+            float hh = Math.max(h + vh * dt, 1) / 2;
+            rect[offset] = cx - hw;
+            rect[offset + 1] = cy - hh;
+            rect[offset + 2] = cx + hw;
+            rect[offset + 3] = cy + hh;
+        }
+
+        // Whether the prediction still changes at timeMs.
+        public boolean isMoving(long timeMs) {
+            return (timeMs - lastTime < MAX_PREDICTION)
+                    && (vx != 0 || vy != 0 || vw != 0 || vh != 0);
+        }
+
+        void start(int id, int faceId, int score, float left, float top, float right,
+                float bottom, long timeMs) {
+            this.id = id;
+            this.faceId = faceId;
+            this.score = score;
+            x = (left + right) / 2;
+            y = (top + bottom) / 2;
+            w = right - left;
+            h = bottom - top;
+            vx = vy = vw = vh = 0;
+            lastTime = timeMs;
+            hits = 1;
+            misses = 0;
+        }
+
+        void correct(int score, float left, float top, float right, float bottom,
+                long timeMs) {
+            float dt = Math.max(timeMs - lastTime, 1);
+            this.score = score;
+            float px = x + vx * dt, py = y + vy * dt;
+            float pw = w + vw * dt, ph = h + vh * dt;
+            float rx = (left + right) / 2 - px;
+            float ry = (top + bottom) / 2 - py;
+            float rw = (right - left) - pw;
+            float rh = (bottom - top) - ph;
+            x = px + ALPHA * rx;
+            y = py + ALPHA * ry;
+            w = pw + ALPHA * rw;
+            h = ph + ALPHA * rh;
+            vx += BETA * rx / dt;
+            vy += BETA * ry / dt;
+            vw += BETA * rw / dt;
+            vh += BETA * rh / dt;
+            lastTime = timeMs;
+            hits++;
+            misses = 0;
+        }
+    }
+
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mCount;
+    private int mNextId;
+    private FaceTrace mTrace;
+    private final float[] mPredicted = new float[4];
+
+    public FaceTracker() {
+        for (int i = 0; i < MAX_TRACKS; i++) mTracks[i] = new Track();
+    }
+
+    // Records the detections in the trace as well, null to stop.
+    public void setTrace(FaceTrace trace) {
+        mTrace = trace;
+    }
+
+    public FaceTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Adds the faces of one detection. The rects are four values per face:
+     * left, top, right and bottom. A face id of -1 means the driver does
+     * not follow the faces itself.
+     */
+    public void update(long timeMs, int count, int[] faceIds, int[] scores, float[] rects) {
+        if (mTrace != null) mTrace.add(timeMs, count, faceIds, scores, rects);
+        for (int t = 0; t < mCount; t++) mTracks[t].matched = false;
+
+        for (int i = 0; i < count; i++) {
+            if (scores[i] < MIN_SCORE) continue;
+            float left = rects[4 * i], top = rects[4 * i + 1];
+            float right = rects[4 * i + 2], bottom = rects[4 * i + 3];
+            Track track = null;
+            if (faceIds[i] != -1) {
+                for (int t = 0; t < mCount; t++) {
+                    if (!mTracks[t].matched && mTracks[t].faceId == faceIds[i]) {
+                        track = mTracks[t];
+                        break;
+                    }
+                }
+            }
+            if (track == null) {
+                float best = MIN_IOU;
+                for (int t = 0; t < mCount; t++) {
+                    Track candidate = mTracks[t];
+                    if (candidate.matched) continue;
+                    // A driver id which changed is a different face.
+                    if (faceIds[i] != -1 && candidate.faceId != -1) continue;
+                    candidate.predict(timeMs, mPredicted, 0);
+                    float iou = iou(mPredicted, left, top, right, bottom);
+                    if (iou >= best) {
+                        best = iou;
+                        track = candidate;
+                    }
+                }
+            }
+            if (track != null) {
+                track.correct(scores[i], left, top, right, bottom, timeMs);
+                track.faceId = faceIds[i];
+            } else if (mCount < MAX_TRACKS) {
+                track = mTracks[mCount++];
+                track.start(mNextId++, faceIds[i], scores[i], left, top, right, bottom,
+                        timeMs);
+            } else {
+                continue;
+            }
+            track.matched = true;
+        }
+
+        // Drop the tracks missing for too long, keeping the order.
+        int kept = 0;
+        for (int t = 0; t < mCount; t++) {
+            Track track = mTracks[t];
+            if (!track.matched) {
+                track.misses++;
+                // A face seen once is not worth coasting.
+                if (track.misses > MAX_MISSES || !track.isConfirmed()) continue;
+            }
+            mTracks[t] = mTracks[kept];
+            mTracks[kept++] = track;
+        }
+        mCount = kept;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    // All the tracks, confirmed or not.
+    public int getTrackCount() {
+        return mCount;
+    }
+
+    public Track getTrack(int i) {
+        if (i >= mCount) throw new IndexOutOfBoundsException(i + " >= " + mCount);
+        return mTracks[i];
+    }
+
+    public boolean hasFaces() {
+        for (int t = 0; t < mCount; t++) {
+            if (mTracks[t].isConfirmed()) return true;
+        }
+        return false;
+    }
+
+    // Whether a confirmed track still moves at timeMs.
+    public boolean isMoving(long timeMs) {
+        for (int t = 0; t < mCount; t++) {
+            if (mTracks[t].isConfirmed() && mTracks[t].isMoving(timeMs)) return true;
+        }
+        return false;
+    }
+
+    static float iou(float[] a, float left, float top, float right, float bottom) {
+        float w = Math.min(a[2], right) - Math.max(a[0], left);
+        float h = Math.min(a[3], bottom) - Math.max(a[1], top);
+        if (w <= 0 || h <= 0) return 0;
+        float intersection = w * h;
+        float union = (a[2] - a[0]) * (a[3] - a[1]) + (right - left) * (bottom - top)
+                - intersection;
+        return intersection / union;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.camera.PreviewBufferPool.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Follows an autofocus run of the driver on the preview frames, with a
+ * {@link ContrastFocus}, for drivers whose autofocus callback is slow or
+ * never comes.
+ *
+ * <p>While started, the newest preview frame is retained from the
+ * {@link PreviewBufferPool} and measured on a worker thread; frames arriving
+ * meanwhile replace the waiting one. The listener hears on the main thread
+ * when the focus has settled or the lens is hunting. With verbose logging
+ * on, the focus area of the frames is written to a PGM file in the cache
+ * directory, to be replayed on a desktop JVM.
+ */
+public class FocusAssist implements PreviewBufferPool.Subscriber {
+    private static final String TAG = "CAM_FocusAssist";
+    private static final String TRACE_FILE = "focus.pgm";
+    // The most frames kept for the trace.
+    private static final int TRACE_FRAMES = 90;
+
+    public interface Listener {
+        // All run in main thread, for the run given to start().
+        public void onFocusSettled(int run);
+        public void onFocusHunting(int run);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler;
+    private final Handler mWorkerHandler;
+
+    private PreviewBufferPool mPool;
+    private int mRun;
+    // The focus area of the run, in driver coordinates.
+    private int mLeft, mTop, mRight, mBottom;
+
+    // The newest frame not measured yet, and whether the worker is busy.
+    private Frame mWaitingFrame;
+    private boolean mProcessing;
+
+    // Only used in worker thread.
+    private final ContrastFocus mFocus = new ContrastFocus();
+    private ByteArrayOutputStream mTrace;
+    private int mTraceFrames;
+
+    private volatile int mReportedRun;
+    private volatile float mLevel;
+
+    public FocusAssist(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread t = new HandlerThread("Focus Assist");
+        t.start();
+        mWorkerHandler = new Handler(t.getLooper());
+    }
+
+    /**
+     * Starts following an autofocus run on the frames of the given pool,
+     * which must already be started. The focus area is in driver
+     * coordinates, or null for the center of the frame. Returns false if
+     * the preview does not use NV21.
+     */
+    public synchronized boolean start(int run, PreviewBufferPool pool, Parameters params,
+            int[] area) {
+        stop();
+        if (params.getPreviewFormat() != ImageFormat.NV21 || pool.getFrameSize() == 0) {
+            return false;
+        }
+        mPool = pool;
+        mRun = run;
+        if (area != null) {
+            mLeft = area[0];
+            mTop = area[1];
+            mRight = area[2];
+            mBottom = area[3];
+        } else {
+            // Where drivers focus without an area.
+            mLeft = mTop = -250;
+            mRight = mBottom = 250;
+        }
+        mWorkerHandler.post(mStartRunnable);
+        // One frame is measured while the newest one waits.
+        pool.subscribe(this, 2);
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mPool == null) return;
+        mPool.unsubscribe(this);
+        mPool = null;
+        if (mWaitingFrame != null) {
+            mWaitingFrame.release();
+            mWaitingFrame = null;
+        }
+        mWorkerHandler.post(mStopRunnable);
+    }
+
+    public void release() {
+        stop();
+        mWorkerHandler.getLooper().quit();
+    }
+
+    // How close the last frame is to the sharpest one of the run, 0 to 1.
+    public float getLevel() {
+        return mLevel;
+    }
+
+    // Runs in main thread
+    @Override
+    public synchronized void onPreviewFrame(Frame frame) {
+        if (mPool == null) return;
+        if (mWaitingFrame != null) mWaitingFrame.release();
+        frame.retain();
+        mWaitingFrame = frame;
+        if (!mProcessing) {
+            mProcessing = true;
+            mWorkerHandler.post(mProcessRunnable);
+        }
+    }
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFocus.setArea(mLeft, mTop, mRight, mBottom);
+            mFocus.start();
+            mLevel = 0;
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                mTrace = new ByteArrayOutputStream();
+                mTraceFrames = 0;
+            }
+        }
+    };
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mTrace != null) writeTrace();
+            mTrace = null;
+        }
+    };
+
+    private final Runnable mProcessRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                int run;
+                synchronized (FocusAssist.this) {
+                    frame = mWaitingFrame;
+                    mWaitingFrame = null;
+                    run = mRun;
+                    if (frame == null) {
+                        mProcessing = false;
+                        return;
+                    }
+                }
+                int width = frame.getWidth();
+                int height = frame.getHeight();
+                int before = mFocus.getState();
+                int state = mFocus.onSharpness(mFocus.measure(frame.data, width, height));
+                mLevel = mFocus.getLevel();
+                if (mTrace != null && mTraceFrames < TRACE_FRAMES) traceFrame(frame);
+                frame.release();
+                if (state != before) {
+                    mReportedRun = run;
+                    mMainHandler.post(state == ContrastFocus.STATE_SETTLED
+                            ? mSettledRunnable : mHuntingRunnable);
+                }
+            }
+        }
+    };
+
+    private final Runnable mSettledRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onFocusSettled(mReportedRun);
+        }
+    };
+
+    private final Runnable mHuntingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onFocusHunting(mReportedRun);
+        }
+    };
+
+    // Runs in worker thread
+    private void traceFrame(Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int x0 = (mLeft + 1000) * width / 2000;
+        int y0 = (mTop + 1000) * height / 2000;
+        int x1 = (mRight + 1000) * width / 2000;
+        int y1 = (mBottom + 1000) * height / 2000;
+        try {
+            PgmFile.write(mTrace, frame.data, width, x0, y0, x1 - x0, y1 - y0);
+            mTraceFrames++;
+        } catch (IOException e) {
+            // Not possible with a ByteArrayOutputStream.
+        }
+    }
+
+    // Runs in worker thread
+    private void writeTrace() {
+        File dir = mContext.getExternalCacheDir();
+        if (dir == null) return;
+        File file = new File(dir, TRACE_FILE);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            mTrace.writeTo(out);
+            Log.v(TAG, "Wrote " + mTraceFrames + " focus frames to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.hardware.Camera.Parameters;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.camera.ui.FaceView;
@@ -56,6 +57,9 @@ import java.util.List;
  *     trigger autofocus. Wait until it times out.
  * (10) The camera has no autofocus and supports metering area. Touch the screen
  *     to change metering area.
+ * (11) The camera has face detection, autofocus and supports focus area.
+ *     Point the camera at a face away from the center. Single tap the shutter
+ *     to take a picture.
  */
 public class FocusOverlayManager {
     private static final String TAG = "CAM_FocusManager";
@@ -84,8 +88,11 @@ public class FocusOverlayManager {
     private boolean mMirror; // true if the camera is front-facing.
     private int mDisplayOrientation;
     private FaceView mFaceView;
+    // Focus and metering areas on the faces, when there is no tap area.
+    private FaceMetering mFaceMetering;
     private List<Object> mFocusArea; // focus area in driver format
     private List<Object> mMeteringArea; // metering area in driver format
+    private boolean mFaceFocus; // true if the areas are on the faces.
     private String mFocusMode;
     private String[] mDefaultFocusModes;
     private String mOverrideFocusMode;
@@ -150,6 +157,38 @@ public class FocusOverlayManager {
         mMeteringAreaSupported = Util.isMeteringAreaSupported(parameters);
         mLockAeAwbNeeded = (Util.isAutoExposureLockSupported(mParameters) ||
                 Util.isAutoWhiteBalanceLockSupported(mParameters));
+        initializeFaceMetering();
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void initializeFaceMetering() {
+        int maxFocusAreas = mFocusAreaSupported ? mParameters.getMaxNumFocusAreas() : 0;
+        int maxMeteringAreas = mMeteringAreaSupported
+                ? mParameters.getMaxNumMeteringAreas() : 0;
+        if (mFaceMetering == null) {
+            mFaceMetering = new FaceMetering(new FaceMetering.Driver() {
+                @Override
+                public void setFaceAreas(int focusCount, int[] focusAreas,
+                        int meteringCount, int[] meteringAreas) {
+                    mFocusArea = toAreas(focusCount, focusAreas);
+                    mMeteringArea = toAreas(meteringCount, meteringAreas);
+                }
+            }, maxFocusAreas, maxMeteringAreas);
+        } else {
+            mFaceMetering.setMaxAreas(maxFocusAreas, maxMeteringAreas);
+        }
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static List<Object> toAreas(int count, int[] areas) {
+        if (count == 0) return null;
+        List<Object> list = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            int p = 5 * i;
+            list.add(new Area(new Rect(areas[p], areas[p + 1], areas[p + 2], areas[p + 3]),
+                    areas[p + 4]));
+        }
+        return list;
     }
 
     public void setPreviewSize(int previewWidth, int previewHeight) {
@@ -205,7 +244,9 @@ public class FocusOverlayManager {
         if (!mInitialized) return;
 
         boolean autoFocusCalled = false;
-        if (needAutoFocusCall()) {
+        if (mState == STATE_IDLE && focusOnFaces()) {
+            autoFocusCalled = true;
+        } else if (needAutoFocusCall()) {
             // Do not focus if touch focus has been triggered.
             if (mState != STATE_SUCCESS && mState != STATE_FAIL) {
                 autoFocus();
@@ -223,7 +264,9 @@ public class FocusOverlayManager {
             // User releases half-pressed focus key.
             if (mState == STATE_FOCUSING || mState == STATE_SUCCESS
                     || mState == STATE_FAIL) {
+                boolean faceFocus = mFaceFocus;
                 cancelAutoFocus();
+                if (faceFocus) mListener.startFaceDetection();
             }
         }
 
@@ -254,6 +297,30 @@ public class FocusOverlayManager {
         }
     }
 
+    // Focuses and meters on the tracked faces before a picture. The driver
+    // ignores the areas while it detects faces, so the detection stops until
+    // the picture is taken, and the autofocus callback tells when the driver
+    // has converged on the faces. Without a focus area there is no such
+    // callback, and the driver meters the faces on its own.
+    private boolean focusOnFaces() {
+        if (mFaceView == null || mFaceMetering == null || mFocusArea != null
+                || mAeAwbLock || !mFocusAreaSupported || mOverrideFocusMode != null
+                || Util.noFocusModeChangeForTouch()
+                || !Util.isSupported(Parameters.FOCUS_MODE_AUTO,
+                        mParameters.getSupportedFocusModes())) {
+            return false;
+        }
+        if (!mFaceMetering.meter(SystemClock.uptimeMillis(), mFaceView.getFaceTracker())) {
+            return false;
+        }
+        Log.v(TAG, "Focus on " + mFocusArea.size() + " faces.");
+        mFaceFocus = true;
+        mListener.stopFaceDetection();
+        mListener.setFocusParameters();
+        autoFocus();
+        return true;
+    }
+
     // set touch-to-focus duration
     public void setFocusTime(int time) {
         mFocusTime = time;
@@ -283,7 +350,7 @@ public class FocusOverlayManager {
             updateFocusUI();
             // If this is triggered by touch focus, cancel focus after a
             // while.
-            if ((mFocusArea != null) && (mFocusTime != 0)) {
+            if ((mFocusArea != null) && !mFaceFocus && (mFocusTime != 0)) {
                 mHandler.sendEmptyMessageDelayed(RESET_TOUCH_FOCUS, mFocusTime);
             }
             if (shutterButtonPressed) {
@@ -296,6 +363,19 @@ public class FocusOverlayManager {
         }
     }
 
+    // The preview frames show the focus has settled, or the lens hunting,
+    // before the driver called back.
+    public void onFocusAssist(boolean focused) {
+        if (!mInitialized || mState != STATE_FOCUSING) return;
+        boolean faceExists = (mFaceView != null && mFaceView.faceExists());
+        FocusIndicator focusIndicator = (faceExists) ? mFaceView : mPieRenderer;
+        if (focused) {
+            focusIndicator.showSuccess(false);
+        } else {
+            focusIndicator.showFail(false);
+        }
+    }
+
     public void onAutoFocusMoving(boolean moving) {
         if (!mInitialized) return;
         // Ignore if the camera has detected some faces.
@@ -517,6 +597,7 @@ public class FocusOverlayManager {
 
         mFocusArea = null;
         mMeteringArea = null;
+        mFaceFocus = false;
     }
 
     private void calculateTapArea(int focusWidth, int focusHeight, float areaMultiple,
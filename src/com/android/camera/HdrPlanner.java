@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Plans the exposures of a software HDR shot from the luma histogram of
+ * the preview, see {@link SceneStats}.
+ *
+ * <p>Each end of the histogram which is clipped needs brackets that way:
+ * one stop, plus one per {@link #CLIP_PER_STOP} of the frame clipped, up
+ * to {@link #MAX_STOPS}. The brackets of a side are spread evenly, no more
+ * than {@link #MAX_SPACING} stops apart, and the unchanged exposure is
+ * always taken. A scene clipped at neither end needs a single shot, so
+ * HDR is skipped.
+ *
+ * <p>This class only uses plain Java so that it can be tested on a desktop
+ * JVM.
+ */
+public class HdrPlanner {
+    public static final int MAX_BRACKETS = 5;
+
+    // The fraction of the frame which may be clipped at either end without
+    // needing a bracket.
+    private static final float CLIP_FRACTION = 0.02f;
+    // Lumas below and above these are taken as clipped.
+    private static final int DARK_LUMA = 16;
+    private static final int BRIGHT_LUMA = 240;
+    private static final float CLIP_PER_STOP = 0.1f;
+    private static final float MAX_STOPS = 3f;
+    private static final float MAX_SPACING = 1.5f;
+
+    private HdrPlanner() {
+    }
+
+    /**
+     * Returns the exposure compensation indices to capture, lowest first,
+     * for a histogram of {@link SceneStats#HISTOGRAM_BINS} fractions. The
+     * indices are within {@code min} and {@code max}, and {@code step} is
+     * the stops of one index. A single index means HDR is not needed.
+     */
+    public static int[] plan(float[] histogram, int min, int max, float step) {
+        float dark = 0, bright = 0;
+        int bins = histogram.length;
+        for (int i = 0; i < bins; i++) {
+            // Where the bin starts and ends in lumas.
+            int from = i * 256 / bins;
+            int to = (i + 1) * 256 / bins;
+            if (to <= DARK_LUMA) dark += histogram[i];
+            if (from >= BRIGHT_LUMA) bright += histogram[i];
+        }
+        float down = stopsFor(bright);
+        float up = stopsFor(dark);
+        int lower = bracketsFor(down);
+        int upper = bracketsFor(up);
+        // Drop from the side that needs less when there are too many.
+        while (1 + lower + upper > MAX_BRACKETS) {
+            if (lower > upper || (lower == upper && down < up)) {
+                lower--;
+            } else {
+                upper--;
+            }
+        }
+
+        int[] indices = new int[1 + lower + upper];
+        int count = 0;
+        for (int k = lower; k >= 1; k--) {
+            count = add(indices, count, toIndex(-down * k / lower, min, max, step));
+        }
+        count = add(indices, count, Math.max(min, Math.min(0, max)));
+        for (int k = 1; k <= upper; k++) {
+            count = add(indices, count, toIndex(up * k / upper, min, max, step));
+        }
+        if (count == indices.length) return indices;
+        int[] result = new int[count];
+        System.arraycopy(indices, 0, result, 0, count);
+        return result;
+    }
+
+    // The plan used without a preview histogram: the extremes and the
+    // unchanged exposure.
+    public static int[] defaultPlan(int min, int max) {
+        int[] indices = new int[3];
+        int count = add(indices, 0, min);
+        count = add(indices, count, Math.max(min, Math.min(0, max)));
+        count = add(indices, count, max);
+        int[] result = new int[count];
+        System.arraycopy(indices, 0, result, 0, count);
+        return result;
+    }
+
+    private static float stopsFor(float clipped) {
+        if (clipped <= CLIP_FRACTION) return 0;
+        return Math.min(1 + (clipped - CLIP_FRACTION) / CLIP_PER_STOP, MAX_STOPS);
+    }
+
+    private static int bracketsFor(float stops) {
+        if (stops == 0) return 0;
+        return (int) Math.ceil(stops / MAX_SPACING);
+    }
+
+    private static int toIndex(float stops, int min, int max, float step) {
+        if (step <= 0) return Math.max(min, Math.min(0, max));
+        // Rounded the same way both sides of 0.
+        int index = Math.round(Math.abs(stops) / step);
+        if (stops < 0) index = -index;
+        return Math.max(min, Math.min(index, max));
+    }
+
+    // Adds an index which is not already the last one, as the clamping to
+    // the range of the device may repeat them.
+    private static int add(int[] indices, int count, int index) {
+        if (count > 0 && indices[count - 1] == index) return count;
+        indices[count] = index;
+        return count + 1;
+    }
+}
@@ -22,9 +22,13 @@
 rs_script gScript;
 
 rs_allocation gInIndex;
-const uchar4* gInputLow;
-const uchar4* gInputMid;
-const uchar4* gInputHi;
+// The inputs, from the lowest exposure to the highest.
+const uchar4* gInput0;
+const uchar4* gInput1;
+const uchar4* gInput2;
+const uchar4* gInput3;
+const uchar4* gInput4;
+int gInputCount;
 uchar4* gOutput;
 
 int gImageWidth;
@@ -37,24 +41,22 @@ void root(const int32_t* v_in, int32_t* v_out) {
 	// Get the row from the input
 	int32_t y = *v_in;
 
-	// Compute the average of each pixels from the 3 image samples
+	// Compute the average of each pixels from the image samples
 	float3 pxOut;
+	const float scale = 1.0f / gInputCount;
 
 	for (int x = 0; x < gImageWidth; x++) {
 		const int32_t index = y+x;
 
-		// Gather the pixels
-		float3 pxLow = rsUnpackColor8888(gInputLow[index]).rgb;
-		float3 pxMid = rsUnpackColor8888(gInputMid[index]).rgb;
-		float3 pxHi = rsUnpackColor8888(gInputHi[index]).rgb;
+		// Sum the pixels
+		pxOut = rsUnpackColor8888(gInput0[index]).rgb;
+		if (gInputCount > 1) pxOut += rsUnpackColor8888(gInput1[index]).rgb;
+		if (gInputCount > 2) pxOut += rsUnpackColor8888(gInput2[index]).rgb;
+		if (gInputCount > 3) pxOut += rsUnpackColor8888(gInput3[index]).rgb;
+		if (gInputCount > 4) pxOut += rsUnpackColor8888(gInput4[index]).rgb;
 
-		// Compute the average
-		pxOut.r = (pxLow.r + pxMid.r + pxHi.r)/3.0f;
-		pxOut.g = (pxLow.g + pxMid.g + pxHi.g)/3.0f;
-		pxOut.b = (pxLow.b + pxMid.b + pxHi.b)/3.0f;
-
-		// Copy the pixel to the output image
-		gOutput[index] = rsPackColorTo8888(pxOut);
+		// Copy the average to the output image
+		gOutput[index] = rsPackColorTo8888(pxOut * scale);
 	}
 
 	// Done computing this row in the output allocation
@@ -63,9 +65,9 @@ void root(const int32_t* v_in, int32_t* v_out) {
 
 
 void performHdrComputation() {
-	if (gInputLow == 0 || gInputMid == 0
-		|| gInputHi == 0 || gOutput == 0) {
-		// TODO: Compute if there are only 2 images
+	if (gInputCount < 1 || gInput0 == 0 || (gInputCount > 1 && gInput1 == 0)
+		|| (gInputCount > 2 && gInput2 == 0) || (gInputCount > 3 && gInput3 == 0)
+		|| (gInputCount > 4 && gInput4 == 0) || gOutput == 0) {
 		rsDebug("There are pointers missing, skipping rendering.", rsUptimeMillis());
 	}
 	else {
@@ -41,9 +41,8 @@ public class HdrSoftwareRS {
     private Allocation mOutBitmapAlloc;
     private Bitmap mOutBitmap;
 
-    public final static int BITMAP_LOW = 0;
-    public final static int BITMAP_MID = 1;
-    public final static int BITMAP_HI = 2;
+    // The most inputs, see HdrPlanner.MAX_BRACKETS.
+    public final static int MAX_INPUTS = 5;
     public final static String TAG = "HdrSoftwareRS";
 
     /**
@@ -55,7 +54,7 @@ public class HdrSoftwareRS {
     public HdrSoftwareRS(RenderScript rs, Resources res, int resId) {
         mRS = rs;
         mScript = new ScriptC_HdrSoftware(rs, res, resId);
-        mInBitmapAlloc = new Allocation[3];
+        mInBitmapAlloc = new Allocation[MAX_INPUTS];
     }
 
     /**
@@ -65,9 +64,13 @@ public class HdrSoftwareRS {
         // We make the output bitmap based on the inputs.
         // We don't really care about the content at this point, we just need the same size
         // and pixel depth.
-        mOutBitmapAlloc = Allocation.createTyped(mRS, mInBitmapAlloc[BITMAP_LOW].getType());
+        mOutBitmapAlloc = Allocation.createTyped(mRS, mInBitmapAlloc[0].getType());
         mScript.bind_gOutput(mOutBitmapAlloc);
 
+        int count = 0;
+        while (count < MAX_INPUTS && mInBitmapAlloc[count] != null) count++;
+        mScript.set_gInputCount(count);
+
         // We refer to the row of the images through an alloc to parallelize processing
         int num_rows = mOutBitmap.getHeight();
         int row_width = mOutBitmap.getWidth();
@@ -101,7 +104,7 @@ public class HdrSoftwareRS {
     /**
      * Set the input bitmaps for the processing.
      * @param input Bitmap to import
-     * @param input_image HdrSoftwareRS.BITMAP_LOW, BITMAP_MID, BITMAP_HI
+     * @param input_image Slot from 0 to MAX_INPUTS - 1, lowest exposure first
      */
     public void setBitmapInput(Bitmap input, int input_image) {
         if (input == null) {
@@ -109,7 +112,7 @@ public class HdrSoftwareRS {
             return;
 	}
 
-        if (input_image < BITMAP_LOW || input_image > BITMAP_HI) {
+        if (input_image < 0 || input_image >= MAX_INPUTS) {
             Log.e(TAG, "Invalid slot " + input_image + " for HDR input");
             return;
         }
@@ -119,16 +122,24 @@ public class HdrSoftwareRS {
 
         // Bind our allocations to our script
         switch (input_image) {
-        case BITMAP_LOW:
-            mScript.bind_gInputLow(mInBitmapAlloc[BITMAP_LOW]);
+        case 0:
+            mScript.bind_gInput0(mInBitmapAlloc[0]);
+            break;
+
+        case 1:
+            mScript.bind_gInput1(mInBitmapAlloc[1]);
+            break;
+
+        case 2:
+            mScript.bind_gInput2(mInBitmapAlloc[2]);
             break;
 
-        case BITMAP_MID:
-            mScript.bind_gInputMid(mInBitmapAlloc[BITMAP_MID]);
+        case 3:
+            mScript.bind_gInput3(mInBitmapAlloc[3]);
             break;
 
-        case BITMAP_HI:
-            mScript.bind_gInputHi(mInBitmapAlloc[BITMAP_HI]);
+        case 4:
+            mScript.bind_gInput4(mInBitmapAlloc[4]);
             break;
         }
 
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+
+// We use a queue to store the SaveRequests that have not been completed
+// yet. The main thread puts the request into the queue. The saver thread
+// gets it from the queue, does the work, and removes it from the queue.
+//
+// The main thread needs to wait for the saver thread to finish all the work
+// in the queue, when the activity's onPause() is called, we need to finish
+// all the work, so other programs (like Gallery) can see all the images.
+//
+// If the queue becomes too long, adding a new request will block the main
+// thread until the queue length drops below the threshold (QUEUE_LIMIT).
+// If we don't do this, we may face several problems: (1) We may OOM
+// because we are holding all the jpeg data in memory. (2) We may ANR
+// when we need to wait for saver thread finishing all the work (in
+// onPause() or gotoGallery()) because the time to finishing a long queue
+// of work may be too long.
+//
+// During a burst the queue is limited by memory instead, see
+// Util.getBurstMemoryLimit(). Pictures held on their way to the saver,
+// like the ones waiting for the burst selector, count too, see
+// holdBytes(). Callers which must not block, like bursts and video
+// snapshots taken while recording, check hasRoomFor() before taking the
+// picture.
+//
+// The saver runs at background priority so it does not compete with the
+// preview or a running MediaRecorder.
+public class ImageSaver extends Thread {
+    private static final int QUEUE_LIMIT = 3;
+
+    // Each SaveRequest remembers the data needed to save an image.
+    private static class SaveRequest {
+        byte[] data;
+        Uri uri;
+        String title;
+        long date;
+        Location loc;
+        int width, height;
+        int orientation;
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler;
+
+    private ArrayList<SaveRequest> mQueue;
+    private boolean mStop;
+    private long mQueuedBytes;
+    private long mHeldBytes;
+    private boolean mBurstMode;
+    // Posted to the main thread when there is room for mRoomWantedBytes.
+    private Runnable mRoomCallback;
+    private int mRoomWantedBytes;
+
+    // Runs in main thread
+    public ImageSaver(Context context, ContentResolver resolver) {
+        super("ImageSaver");
+        mContext = context;
+        mResolver = resolver;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mQueue = new ArrayList<SaveRequest>();
+        start();
+    }
+
+    // Runs in main thread. If uri is null, the image is inserted into the
+    // media store once saved, otherwise the row inserted by
+    // Storage.newImage() is updated. The location is kept as is, so it must
+    // not be changed afterwards; the ones of LocationManager never are.
+    public void addImage(final byte[] data, Uri uri, String title, long date,
+            Location loc, int width, int height, int orientation) {
+        SaveRequest r = new SaveRequest();
+        r.data = data;
+        r.uri = uri;
+        r.title = title;
+        r.date = date;
+        r.loc = loc;
+        r.width = width;
+        r.height = height;
+        r.orientation = orientation;
+        synchronized (this) {
+            while (isFull(data.length)) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+            mQueue.add(r);
+            mQueuedBytes += data.length;
+            notifyAll();  // Tell saver thread there is new work to do.
+        }
+    }
+
+    // Whether adding would block. It never does with an empty queue, as
+    // the held pictures may only be freed by adding them.
+    private boolean isFull(int bytes) {
+        if (mQueue.isEmpty()) return false;
+        return isOverBudget(bytes);
+    }
+
+    private boolean isOverBudget(int bytes) {
+        if (mBurstMode) {
+            return mQueuedBytes + mHeldBytes + bytes > Util.getBurstMemoryLimit();
+        }
+        return mQueue.size() >= QUEUE_LIMIT;
+    }
+
+    // Whether a picture should be taken. A single held picture may wait for
+    // the next one to be decided on, so it does not hold the next one back.
+    private boolean hasRoom(int bytes) {
+        if (mQueue.isEmpty() && mHeldBytes <= bytes) return true;
+        return !isOverBudget(bytes);
+    }
+
+    // Runs in main thread. Counts the bytes of pictures which will be added
+    // or dropped later in the memory budget.
+    public synchronized void holdBytes(int bytes) {
+        mHeldBytes += bytes;
+    }
+
+    // Runs in main thread, once the held pictures were added or dropped.
+    public synchronized void releaseBytes(int bytes) {
+        mHeldBytes -= bytes;
+        notifyAll();
+        postRoomCallback();
+    }
+
+    // Called with the lock held
+    private void postRoomCallback() {
+        if (mRoomCallback != null && hasRoom(mRoomWantedBytes)) {
+            mMainHandler.post(mRoomCallback);
+            mRoomCallback = null;
+        }
+    }
+
+    // Runs in main thread
+    public synchronized void setBurstMode(boolean burst) {
+        mBurstMode = burst;
+        if (!burst) mRoomCallback = null;
+    }
+
+    // Runs in main thread. Returns whether a picture of the given size can
+    // be added without blocking. If not and a callback is given, it is
+    // posted to the main thread once there is room.
+    public synchronized boolean hasRoomFor(int bytes, Runnable callback) {
+        if (hasRoom(bytes)) return true;
+        mRoomCallback = callback;
+        mRoomWantedBytes = bytes;
+        return false;
+    }
+
+    // Runs in saver thread
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            SaveRequest r;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    notifyAll();  // notify main thread in waitDone
+
+                    // Note that we can only stop after we saved all images
+                    // in the queue.
+                    if (mStop) break;
+
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                    continue;
+                }
+                r = mQueue.get(0);
+            }
+            storeImage(r);
+            synchronized (this) {
+                mQueue.remove(0);
+                mQueuedBytes -= r.data.length;
+                notifyAll();  // the main thread may wait in addImage
+                postRoomCallback();
+            }
+        }
+    }
+
+    // Runs in main thread
+    public void waitDone() {
+        synchronized (this) {
+            while (!mQueue.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+    }
+
+    // Runs in main thread
+    public void finish() {
+        waitDone();
+        synchronized (this) {
+            mStop = true;
+            mRoomCallback = null;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+    }
+
+    // Runs in saver thread
+    private void storeImage(SaveRequest r) {
+        Uri uri = r.uri;
+        if (uri == null) {
+            uri = Storage.getStorage().addImage(mResolver, r.title, r.date, r.loc,
+                    r.orientation, r.data, r.width, r.height);
+        } else if (!Storage.getStorage().updateImage(mResolver, uri, r.title, r.date,
+                r.loc, r.orientation, r.data, r.width, r.height)) {
+            uri = null;
+        }
+        if (uri != null) {
+            Util.broadcastNewPicture(mContext, uri);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Spots a spoken keyword in a stream of PCM samples by matching the
+ * {@link MfccExtractor} frames against templates of the keyword.
+ *
+ * <p>The templates are enrolled from the stream itself: while enrolling,
+ * every utterance between pauses becomes a template, and the threshold is
+ * set from how far the utterances are from each other. While spotting,
+ * every template is aligned with the end of the stream by a dynamic time
+ * warping which is updated one frame at a time, so the keyword is
+ * reported as soon as its last frame has been heard.
+ *
+ * <p>This class only uses plain Java so that it can be tested on a desktop
+ * JVM, with recordings read by {@link WavFile}.
+ */
+public class KeywordSpotter implements MfccExtractor.Listener {
+    private static final int TEMPLATES_VERSION = 1;
+
+    // A frame is speech this far above the noise floor.
+    private static final float SPEECH_DB = 12;
+    // How fast the noise floor follows louder frames, per frame.
+    private static final float NOISE_RISE_DB = 0.01f;
+    // Utterance lengths accepted while enrolling, and the pause ending
+    // one, in frames.
+    private static final int MIN_UTTERANCE = 20;
+    private static final int MAX_UTTERANCE = 150;
+    private static final int END_PAUSE = 25;
+    // Frames of silence kept around an utterance.
+    private static final int MARGIN = 3;
+    // Allowance over the distance between the enrolled utterances.
+    private static final float THRESHOLD_MARGIN = 1.25f;
+    // Frames after a keyword in which it is not reported again.
+    private static final int REFRACTORY = 100;
+
+    private static final float INFINITY = Float.MAX_VALUE / 4;
+
+    public interface Listener {
+        // Both are called on the thread feeding the samples.
+        public void onKeyword(int template, float distance);
+        public void onEnrollment(int done, int total);
+    }
+
+    /** The enrolled templates and the distance under which they match. */
+    public static class Templates {
+        public final float[][][] frames;
+        public final float threshold;
+
+        public Templates(float[][][] frames, float threshold) {
+            this.frames = frames;
+            this.threshold = threshold;
+        }
+
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(TEMPLATES_VERSION);
+            data.writeFloat(threshold);
+            data.writeInt(frames.length);
+            for (float[][] template : frames) {
+                data.writeInt(template.length);
+                for (float[] frame : template) {
+                    for (float c : frame) data.writeFloat(c);
+                }
+            }
+            data.flush();
+        }
+
+        public static Templates read(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != TEMPLATES_VERSION) {
+                throw new IOException("Unknown templates version");
+            }
+            float threshold = data.readFloat();
+            int count = data.readInt();
+            if (count <= 0 || count > 16) throw new IOException("Bad template count " + count);
+            float[][][] frames = new float[count][][];
+            for (int t = 0; t < count; t++) {
+                int length = data.readInt();
+                if (length <= 0 || length > MAX_UTTERANCE + 2 * MARGIN) {
+                    throw new IOException("Bad template length " + length);
+                }
+                frames[t] = new float[length][MfccExtractor.NUM_COEFFS];
+                for (float[] frame : frames[t]) {
+                    for (int i = 0; i < frame.length; i++) frame[i] = data.readFloat();
+                }
+            }
+            return new Templates(frames, threshold);
+        }
+    }
+
+    private final MfccExtractor mExtractor;
+    private Listener mListener;
+    private long mFrame;
+
+    // Noise floor tracking.
+    private boolean mHasFloor;
+    private float mNoiseFloor;
+    private long mLastSpeech = -1;
+
+    // Enrollment.
+    private int mEnrollTotal;
+    private final ArrayList<float[][]> mEnrolled = new ArrayList<float[][]>();
+    private final ArrayList<float[]> mUtterance = new ArrayList<float[]>();
+    private final float[][] mRecent = new float[MARGIN][];
+    private int mSpeechFrames;
+    private int mPause;
+
+    // Spotting: the cumulative costs of the alignments ending with the
+    // previous two frames, per template frame.
+    private Templates mTemplates;
+    private float[][] mCost1;
+    private float[][] mCost2;
+    private float[][] mCost;
+    private long mMuteUntil;
+    private float mBestDistance = INFINITY;
+
+    public KeywordSpotter(int sampleRate) {
+        mExtractor = new MfccExtractor(sampleRate, this);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void process(short[] pcm, int offset, int length) {
+        mExtractor.process(pcm, offset, length);
+    }
+
+    // The number of 10ms frames processed.
+    public long getFrameCount() {
+        return mFrame;
+    }
+
+    // Starts learning the keyword from the next utterances.
+    public void startEnrollment(int utterances) {
+        mEnrollTotal = utterances;
+        mEnrolled.clear();
+        resetUtterance();
+    }
+
+    public boolean isEnrolling() {
+        return mEnrollTotal > 0;
+    }
+
+    public void setTemplates(Templates templates) {
+        mTemplates = templates;
+        int count = templates.frames.length;
+        mCost = new float[count][];
+        mCost1 = new float[count][];
+        mCost2 = new float[count][];
+        for (int t = 0; t < count; t++) {
+            int length = templates.frames[t].length;
+            mCost[t] = new float[length];
+            mCost1[t] = new float[length];
+            mCost2[t] = new float[length];
+        }
+        resetAlignments();
+    }
+
+    public Templates getTemplates() {
+        return mTemplates;
+    }
+
+    // The smallest distance to a template seen so far, for tuning.
+    public float getBestDistance() {
+        return mBestDistance;
+    }
+
+    @Override
+    public void onFrame(float[] coeffs, float energyDb) {
+        boolean speech = updateNoiseFloor(energyDb);
+        if (speech) mLastSpeech = mFrame;
+        if (mEnrollTotal > 0) {
+            enroll(coeffs, speech);
+        } else if (mTemplates != null) {
+            spot(coeffs);
+        }
+        mFrame++;
+    }
+
+    private boolean updateNoiseFloor(float energyDb) {
+        if (!mHasFloor) {
+            mHasFloor = true;
+            mNoiseFloor = energyDb;
+        } else if (energyDb < mNoiseFloor) {
+            mNoiseFloor += (energyDb - mNoiseFloor) * 0.2f;
+        } else {
+            mNoiseFloor += NOISE_RISE_DB;
+        }
+        return energyDb > mNoiseFloor + SPEECH_DB;
+    }
+
+    private void enroll(float[] coeffs, boolean speech) {
+        float[] frame = coeffs.clone();
+        if (mUtterance.isEmpty()) {
+            if (!speech) {
+                // Remember the frames before the utterance starts.
+                System.arraycopy(mRecent, 1, mRecent, 0, MARGIN - 1);
+                mRecent[MARGIN - 1] = frame;
+                return;
+            }
+            for (float[] f : mRecent) {
+                if (f != null) mUtterance.add(f);
+            }
+        }
+        mUtterance.add(frame);
+        if (speech) {
+            mSpeechFrames++;
+            mPause = 0;
+            if (mUtterance.size() > MAX_UTTERANCE + END_PAUSE + MARGIN) resetUtterance();
+            return;
+        }
+        if (++mPause < END_PAUSE) return;
+
+        // Keep a few frames of the pause after the utterance.
+        int length = mUtterance.size() - END_PAUSE + MARGIN;
+        int speechLength = length - 2 * MARGIN;
+        if (speechLength >= MIN_UTTERANCE && speechLength <= MAX_UTTERANCE
+                && mSpeechFrames >= MIN_UTTERANCE / 2) {
+            mEnrolled.add(mUtterance.subList(0, length).toArray(new float[length][]));
+            if (mEnrolled.size() == mEnrollTotal) {
+                finishEnrollment();
+            } else if (mListener != null) {
+                mListener.onEnrollment(mEnrolled.size(), mEnrollTotal);
+            }
+        }
+        resetUtterance();
+    }
+
+    private void resetUtterance() {
+        mUtterance.clear();
+        for (int i = 0; i < MARGIN; i++) mRecent[i] = null;
+        mSpeechFrames = 0;
+        mPause = 0;
+    }
+
+    private void finishEnrollment() {
+        float[][][] frames = mEnrolled.toArray(new float[mEnrolled.size()][][]);
+        // The largest distance between two utterances of the keyword.
+        float spread = 0;
+        for (int i = 0; i < frames.length; i++) {
+            for (int j = 0; j < frames.length; j++) {
+                if (i != j) spread = Math.max(spread, align(frames[i], frames[j]));
+            }
+        }
+        int total = mEnrollTotal;
+        mEnrollTotal = 0;
+        mEnrolled.clear();
+        setTemplates(new Templates(frames, spread * THRESHOLD_MARGIN));
+        if (mListener != null) mListener.onEnrollment(total, total);
+    }
+
+    private void resetAlignments() {
+        for (int t = 0; t < mCost.length; t++) {
+            Arrays.fill(mCost1[t], INFINITY);
+            Arrays.fill(mCost2[t], INFINITY);
+        }
+    }
+
+    private void spot(float[] coeffs) {
+        float[][][] templates = mTemplates.frames;
+        int match = -1;
+        float matchDistance = INFINITY;
+        for (int t = 0; t < templates.length; t++) {
+            float[][] template = templates[t];
+            float[] cost = mCost[t], cost1 = mCost1[t], cost2 = mCost2[t];
+            // An alignment may start at any frame.
+            cost[0] = distance(template[0], coeffs);
+            for (int i = 1; i < template.length; i++) {
+                float d = distance(template[i], coeffs);
+                // The keyword may be said up to twice as slow or as fast.
+                float best = Math.min(cost1[i - 1], cost2[i - 1]) + d;
+                if (i > 1) best = Math.min(best, cost1[i - 2] + 2 * d);
+                cost[i] = best;
+            }
+            float distance = cost[template.length - 1] / template.length;
+            mBestDistance = Math.min(mBestDistance, distance);
+            if (distance < matchDistance) {
+                matchDistance = distance;
+                match = t;
+            }
+            // Rotate the columns.
+            mCost2[t] = cost1;
+            mCost1[t] = cost;
+            mCost[t] = cost2;
+        }
+
+        if (mFrame < mMuteUntil) return;
+        // Only a keyword which was just spoken counts, not the silence.
+        if (mFrame - mLastSpeech > 2 * MARGIN) return;
+        if (matchDistance < mTemplates.threshold) {
+            mMuteUntil = mFrame + REFRACTORY;
+            resetAlignments();
+            if (mListener != null) mListener.onKeyword(match, matchDistance);
+        }
+    }
+
+    // The distance of two utterances aligned from start to end.
+    static float align(float[][] a, float[][] b) {
+        float[] cost1 = new float[a.length];
+        float[] cost2 = new float[a.length];
+        float[] cost = new float[a.length];
+        Arrays.fill(cost1, INFINITY);
+        Arrays.fill(cost2, INFINITY);
+        for (int j = 0; j < b.length; j++) {
+            cost[0] = (j == 0) ? distance(a[0], b[0]) : INFINITY;
+            for (int i = 1; i < a.length; i++) {
+                float d = distance(a[i], b[j]);
+                float best = Math.min(cost1[i - 1], cost2[i - 1]) + d;
+                if (i > 1) best = Math.min(best, cost1[i - 2] + 2 * d);
+                cost[i] = best;
+            }
+            float[] temp = cost2;
+            cost2 = cost1;
+            cost1 = cost;
+            cost = temp;
+        }
+        return cost1[a.length - 1] / a.length;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            float d = a[i] - b[i];
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
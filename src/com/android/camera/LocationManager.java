@@ -20,10 +20,18 @@ import android.content.Context;
 import android.location.Location;
 import android.location.LocationProvider;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * A class that handles everything about location.
+ *
+ * <p>The fix to use and how often to ask for fixes are decided by a
+ * {@link LocationPolicy}. The location returned by
+ * {@link #getCurrentLocation()} is a snapshot which is never changed
+ * afterwards, and the same object is returned until a better fix arrives,
+ * so it can be shared by the pictures of a burst and handed to other
+ * threads without a copy.
  */
 public class LocationManager {
     private static final String TAG = "LocationManager";
@@ -33,11 +41,20 @@ public class LocationManager {
     private android.location.LocationManager mLocationManager;
     private boolean mRecordLocation;
 
+    // Indexed by LocationPolicy.GPS and LocationPolicy.NETWORK.
     LocationListener [] mLocationListeners = new LocationListener[] {
-            new LocationListener(android.location.LocationManager.GPS_PROVIDER),
-            new LocationListener(android.location.LocationManager.NETWORK_PROVIDER)
+            new LocationListener(android.location.LocationManager.GPS_PROVIDER,
+                    LocationPolicy.GPS),
+            new LocationListener(android.location.LocationManager.NETWORK_PROVIDER,
+                    LocationPolicy.NETWORK)
     };
 
+    // Used with the lock held, fixes may be asked for from other threads.
+    private final LocationPolicy mPolicy = new LocationPolicy();
+    private Location mSnapshot;
+    private int mSnapshotProvider = -1;
+    private int mSnapshotSequence;
+
     public interface Listener {
         public void showGpsOnScreenIndicator(boolean hasSignal);
         public void hideGpsOnScreenIndicator();
@@ -48,16 +65,22 @@ public class LocationManager {
         mListener = listener;
     }
 
-    public Location getCurrentLocation() {
+    public synchronized Location getCurrentLocation() {
         if (!mRecordLocation) return null;
 
-        // go in best to worst order
-        for (int i = 0; i < mLocationListeners.length; i++) {
-            Location l = mLocationListeners[i].current();
-            if (l != null) return l;
+        int provider = mPolicy.select(SystemClock.elapsedRealtime());
+        if (provider < 0) {
+            Log.d(TAG, "No recent location received.");
+            return null;
         }
-        Log.d(TAG, "No location received yet.");
-        return null;
+        int sequence = mPolicy.getSequence(provider);
+        if (mSnapshot == null || provider != mSnapshotProvider
+                || sequence != mSnapshotSequence) {
+            mSnapshot = new Location(mLocationListeners[provider].mLastLocation);
+            mSnapshotProvider = provider;
+            mSnapshotSequence = sequence;
+        }
+        return mSnapshot;
     }
 
     public void recordLocation(boolean recordLocation) {
@@ -77,33 +100,47 @@ public class LocationManager {
                     mContext.getSystemService(Context.LOCATION_SERVICE);
         }
         if (mLocationManager != null) {
-            try {
-                mLocationManager.requestLocationUpdates(
-                        android.location.LocationManager.NETWORK_PROVIDER,
-                        1000,
-                        0F,
-                        mLocationListeners[1]);
-            } catch (SecurityException ex) {
-                Log.i(TAG, "fail to request location update, ignore", ex);
-            } catch (IllegalArgumentException ex) {
-                Log.d(TAG, "provider does not exist " + ex.getMessage());
+            long interval;
+            synchronized (this) {
+                mPolicy.resetInterval();
+                interval = mPolicy.getInterval();
             }
-            try {
-                mLocationManager.requestLocationUpdates(
-                        android.location.LocationManager.GPS_PROVIDER,
-                        1000,
-                        0F,
-                        mLocationListeners[0]);
-                if (mListener != null) mListener.showGpsOnScreenIndicator(false);
-            } catch (SecurityException ex) {
-                Log.i(TAG, "fail to request location update, ignore", ex);
-            } catch (IllegalArgumentException ex) {
-                Log.d(TAG, "provider does not exist " + ex.getMessage());
+            if (requestLocationUpdates(interval) && mListener != null) {
+                mListener.showGpsOnScreenIndicator(false);
             }
             Log.d(TAG, "startReceivingLocationUpdates");
         }
     }
 
+    // Asking again for the same listener replaces the previous request.
+    // Returns whether GPS updates were requested.
+    private boolean requestLocationUpdates(long interval) {
+        try {
+            mLocationManager.requestLocationUpdates(
+                    android.location.LocationManager.NETWORK_PROVIDER,
+                    interval,
+                    0F,
+                    mLocationListeners[LocationPolicy.NETWORK]);
+        } catch (SecurityException ex) {
+            Log.i(TAG, "fail to request location update, ignore", ex);
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "provider does not exist " + ex.getMessage());
+        }
+        try {
+            mLocationManager.requestLocationUpdates(
+                    android.location.LocationManager.GPS_PROVIDER,
+                    interval,
+                    0F,
+                    mLocationListeners[LocationPolicy.GPS]);
+            return true;
+        } catch (SecurityException ex) {
+            Log.i(TAG, "fail to request location update, ignore", ex);
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "provider does not exist " + ex.getMessage());
+        }
+        return false;
+    }
+
     private void stopReceivingLocationUpdates() {
         if (mLocationManager != null) {
             for (int i = 0; i < mLocationListeners.length; i++) {
@@ -123,9 +160,11 @@ public class LocationManager {
         Location mLastLocation;
         boolean mValid = false;
         String mProvider;
+        int mIndex;
 
-        public LocationListener(String provider) {
+        public LocationListener(String provider, int index) {
             mProvider = provider;
+            mIndex = index;
             mLastLocation = new Location(mProvider);
         }
 
@@ -145,8 +184,21 @@ public class LocationManager {
             if (!mValid) {
                 Log.d(TAG, "Got first location.");
             }
-            mLastLocation.set(newLocation);
-            mValid = true;
+            long interval = 0;
+            synchronized (LocationManager.this) {
+                mLastLocation.set(newLocation);
+                mValid = true;
+                if (mPolicy.onFix(mIndex, SystemClock.elapsedRealtime(),
+                        newLocation.getLatitude(), newLocation.getLongitude(),
+                        newLocation.hasAccuracy() ? newLocation.getAccuracy() : 0,
+                        newLocation.hasSpeed() ? newLocation.getSpeed() : 0)) {
+                    interval = mPolicy.getInterval();
+                }
+            }
+            if (interval != 0 && mRecordLocation && mLocationManager != null) {
+                Log.d(TAG, "Location updates every " + interval + "ms");
+                requestLocationUpdates(interval);
+            }
         }
 
         @Override
@@ -155,7 +207,14 @@ public class LocationManager {
 
         @Override
         public void onProviderDisabled(String provider) {
+            invalidate();
+        }
+
+        private void invalidate() {
             mValid = false;
+            synchronized (LocationManager.this) {
+                mPolicy.onProviderLost(mIndex);
+            }
         }
 
         @Override
@@ -164,7 +223,7 @@ public class LocationManager {
             switch(status) {
                 case LocationProvider.OUT_OF_SERVICE:
                 case LocationProvider.TEMPORARILY_UNAVAILABLE: {
-                    mValid = false;
+                    invalidate();
                     if (mListener != null && mRecordLocation &&
                             android.location.LocationManager.GPS_PROVIDER.equals(provider)) {
                         mListener.showGpsOnScreenIndicator(false);
@@ -173,9 +232,5 @@ public class LocationManager {
                 }
             }
         }
-
-        public Location current() {
-            return mValid ? mLastLocation : null;
-        }
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Decides which location fix to tag pictures with, and how often the
+ * location providers are asked for fixes.
+ *
+ * <p>A fix is worth its accuracy plus how far the camera may have gone
+ * since: its age times its speed, or walking speed if slower. The fix worth
+ * the least wins, and fixes older than {@link #MAX_AGE} are not used.
+ *
+ * <p>Fixes are asked for every {@link #FAST_INTERVAL} ms, or every
+ * {@link #SLOW_INTERVAL} ms once {@link #STILL_FIXES} GPS fixes in a row
+ * did not move further than their accuracy. A GPS fix which moved asks for
+ * fast fixes again.
+ *
+ * <p>Times are in the {@link android.os.SystemClock#elapsedRealtime()} time
+ * base. This class only uses plain Java so that it can be tested on a
+ * desktop JVM, and it is not thread safe.
+ */
+public class LocationPolicy {
+    public static final int GPS = 0;
+    public static final int NETWORK = 1;
+
+    public static final long FAST_INTERVAL = 1000; // ms
+    public static final long SLOW_INTERVAL = 10000; // ms
+    public static final long MAX_AGE = 5 * 60 * 1000; // ms
+
+    public static final int STILL_FIXES = 3;
+    // Moves shorter than this are taken as noise, even from accurate fixes.
+    private static final float MIN_MOVE = 10f; // m
+    private static final float WALKING_SPEED = 1.5f; // m/s
+    // Used for fixes without an accuracy.
+    private static final float UNKNOWN_ACCURACY = 1000f; // m
+    private static final double EARTH_RADIUS = 6371000; // m
+
+    private static class Fix {
+        boolean valid;
+        long time;
+        double latitude, longitude;
+        float accuracy;
+        float speed;
+        // Counts the fixes of the provider.
+        int sequence;
+    }
+
+    private final Fix[] mFixes = new Fix[] { new Fix(), new Fix() };
+    private int mStillFixes;
+    private long mInterval = FAST_INTERVAL;
+
+    /**
+     * Adds a fix of a provider. An accuracy or speed of 0 is unknown.
+     * Returns whether the update interval changed.
+     */
+    public boolean onFix(int provider, long time, double latitude, double longitude,
+            float accuracy, float speed) {
+        Fix fix = mFixes[provider];
+        if (accuracy <= 0) accuracy = UNKNOWN_ACCURACY;
+        long interval = mInterval;
+        if (provider == GPS) {
+            boolean moved = !fix.valid || speed > WALKING_SPEED
+                    || distance(fix.latitude, fix.longitude, latitude, longitude)
+                    > Math.max(MIN_MOVE, Math.max(fix.accuracy, accuracy));
+            mStillFixes = moved ? 0 : mStillFixes + 1;
+            interval = (mStillFixes >= STILL_FIXES) ? SLOW_INTERVAL : FAST_INTERVAL;
+        }
+        fix.valid = true;
+        fix.time = time;
+        fix.latitude = latitude;
+        fix.longitude = longitude;
+        fix.accuracy = accuracy;
+        fix.speed = speed;
+        fix.sequence++;
+        if (interval == mInterval) return false;
+        mInterval = interval;
+        return true;
+    }
+
+    // The provider is disabled or out of service, its last fix is not used.
+    public void onProviderLost(int provider) {
+        mFixes[provider].valid = false;
+        if (provider == GPS) mStillFixes = 0;
+    }
+
+    // Back to fast updates, for when the updates are started again. Returns
+    // whether the interval changed.
+    public boolean resetInterval() {
+        mStillFixes = 0;
+        if (mInterval == FAST_INTERVAL) return false;
+        mInterval = FAST_INTERVAL;
+        return true;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Returns the provider whose fix is the best at the given time, or -1 if
+     * there is no fix recent enough.
+     */
+    public int select(long now) {
+        int best = -1;
+        float bestError = Float.MAX_VALUE;
+        for (int i = 0; i < mFixes.length; i++) {
+            float error = getError(i, now);
+            if (error < bestError) {
+                bestError = error;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // How far from the fix of the provider the camera may be at the given
+    // time, in m, or Float.MAX_VALUE if it is not used.
+    public float getError(int provider, long now) {
+        Fix fix = mFixes[provider];
+        long age = now - fix.time;
+        if (!fix.valid || age > MAX_AGE) return Float.MAX_VALUE;
+        return fix.accuracy + Math.max(fix.speed, WALKING_SPEED) * Math.max(age, 0) / 1000f;
+    }
+
+    // Changes with each fix of the provider, to tell whether a copy of the
+    // fix is still the latest.
+    public int getSequence(int provider) {
+        return mFixes[provider].sequence;
+    }
+
+    // The distance between two points in m, close enough for the short
+    // distances between fixes.
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Computes mel frequency cepstral coefficients from a stream of 16 bit PCM
+ * samples, one frame of 25ms every 10ms.
+ *
+ * <p>The first coefficient, which only follows the loudness, is left out
+ * and the frame energy is passed on separately. All the buffers are
+ * allocated up front; the coefficients passed to the listener are reused
+ * for the next frame.
+ */
+public class MfccExtractor {
+    public static final int NUM_COEFFS = 12;
+    public static final int FRAMES_PER_SECOND = 100;
+
+    private static final int NUM_FILTERS = 26;
+    private static final float LOW_FREQUENCY = 100;
+    private static final float HIGH_FREQUENCY = 8000;
+    private static final float PRE_EMPHASIS = 0.97f;
+    // Keeps the log of silent bands finite.
+    private static final float POWER_FLOOR = 1e-8f;
+
+    public interface Listener {
+        // The energy is in dB relative to a full scale square wave.
+        public void onFrame(float[] coeffs, float energyDb);
+    }
+
+    private final Listener mListener;
+    private final int mFrameLength;
+    private final int mHop;
+    private final int mFftSize;
+
+    private final float[] mWindow;
+    private final float[] mSamples;
+    private int mFill;
+    private float mLastSample;
+
+    private final float[] mReal;
+    private final float[] mImag;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mReversed;
+
+    // The triangular filters, as weights for the FFT bins from mFilterStart.
+    private final int[] mFilterStart;
+    private final float[][] mFilterWeights;
+    private final float[] mLogMel = new float[NUM_FILTERS];
+    private final float[][] mDct = new float[NUM_COEFFS][NUM_FILTERS];
+    private final float[] mCoeffs = new float[NUM_COEFFS];
+
+    public MfccExtractor(int sampleRate, Listener listener) {
+        mListener = listener;
+        mFrameLength = sampleRate / 40;
+        mHop = sampleRate / FRAMES_PER_SECOND;
+        int size = 1;
+        while (size < mFrameLength) size <<= 1;
+        mFftSize = size;
+
+        mSamples = new float[mFrameLength];
+        mWindow = new float[mFrameLength];
+        for (int i = 0; i < mFrameLength; i++) {
+            mWindow[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (mFrameLength - 1)));
+        }
+
+        mReal = new float[mFftSize];
+        mImag = new float[mFftSize];
+        mCos = new float[mFftSize / 2];
+        mSin = new float[mFftSize / 2];
+        for (int i = 0; i < mFftSize / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / mFftSize);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / mFftSize);
+        }
+        mReversed = new int[mFftSize];
+        int bits = Integer.numberOfTrailingZeros(mFftSize);
+        for (int i = 0; i < mFftSize; i++) {
+            mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        // Filter edges equally spaced on the mel scale.
+        float high = Math.min(HIGH_FREQUENCY, sampleRate / 2f);
+        float lowMel = toMel(LOW_FREQUENCY);
+        float highMel = toMel(high);
+        float[] edges = new float[NUM_FILTERS + 2];
+        for (int i = 0; i < edges.length; i++) {
+            float hz = fromMel(lowMel + (highMel - lowMel) * i / (NUM_FILTERS + 1));
+            edges[i] = hz * mFftSize / sampleRate;
+        }
+        mFilterStart = new int[NUM_FILTERS];
+        mFilterWeights = new float[NUM_FILTERS][];
+        for (int m = 0; m < NUM_FILTERS; m++) {
+            float left = edges[m], center = edges[m + 1], right = edges[m + 2];
+            int start = (int) Math.ceil(left);
+            int end = Math.min((int) Math.floor(right), mFftSize / 2);
+            float[] weights = new float[Math.max(end - start + 1, 0)];
+            for (int k = start; k <= end; k++) {
+                weights[k - start] = (k <= center)
+                        ? (k - left) / (center - left)
+                        : (right - k) / (right - center);
+            }
+            mFilterStart[m] = start;
+            mFilterWeights[m] = weights;
+        }
+
+        for (int n = 0; n < NUM_COEFFS; n++) {
+            for (int m = 0; m < NUM_FILTERS; m++) {
+                mDct[n][m] = (float) Math.cos(Math.PI * (n + 1) * (m + 0.5) / NUM_FILTERS);
+            }
+        }
+    }
+
+    public void process(short[] pcm, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            float sample = pcm[i] / 32768f;
+            mSamples[mFill++] = sample - PRE_EMPHASIS * mLastSample;
+            mLastSample = sample;
+            if (mFill == mFrameLength) {
+                computeFrame();
+                // Keep the overlap with the next frame.
+                System.arraycopy(mSamples, mHop, mSamples, 0, mFrameLength - mHop);
+                mFill = mFrameLength - mHop;
+            }
+        }
+    }
+
+    public void reset() {
+        mFill = 0;
+        mLastSample = 0;
+    }
+
+    private void computeFrame() {
+        float energy = 0;
+        for (int i = 0; i < mFrameLength; i++) {
+            energy += mSamples[i] * mSamples[i];
+            mReal[i] = mSamples[i] * mWindow[i];
+        }
+        for (int i = mFrameLength; i < mFftSize; i++) mReal[i] = 0;
+        for (int i = 0; i < mFftSize; i++) mImag[i] = 0;
+        fft();
+
+        for (int m = 0; m < NUM_FILTERS; m++) {
+            float[] weights = mFilterWeights[m];
+            int start = mFilterStart[m];
+            float sum = 0;
+            for (int k = 0; k < weights.length; k++) {
+                float re = mReal[start + k];
+                float im = mImag[start + k];
+                sum += weights[k] * (re * re + im * im);
+            }
+            mLogMel[m] = (float) Math.log(sum + POWER_FLOOR);
+        }
+        for (int n = 0; n < NUM_COEFFS; n++) {
+            float[] basis = mDct[n];
+            float sum = 0;
+            for (int m = 0; m < NUM_FILTERS; m++) sum += basis[m] * mLogMel[m];
+            mCoeffs[n] = sum;
+        }
+        float energyDb = (float) (10 * Math.log10(energy / mFrameLength + 1e-10));
+        mListener.onFrame(mCoeffs, energyDb);
+    }
+
+    // In place, iterative radix 2.
+    private void fft() {
+        float[] re = mReal, im = mImag;
+        for (int i = 0; i < mFftSize; i++) {
+            int j = mReversed[i];
+            if (j > i) {
+                float t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        for (int half = 1; half < mFftSize; half <<= 1) {
+            int step = mFftSize / (half << 1);
+            for (int start = 0; start < mFftSize; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    float c = mCos[k * step], s = mSin[k * step];
+                    int a = start + k, b = a + half;
+                    float tr = re[b] * c - im[b] * s;
+                    float ti = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    private static float toMel(float hz) {
+        return (float) (1127 * Math.log(1 + hz / 700));
+    }
+
+    private static float fromMel(float mel) {
+        return (float) (700 * (Math.exp(mel / 1127) - 1));
+    }
+}
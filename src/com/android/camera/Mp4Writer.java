@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Writes an MP4 file with one H.264 video track and optionally one AAC
+ * audio track, for platforms without MediaMuxer.
+ *
+ * <p>The video samples are written as they come, in Annex B format as the
+ * encoders output them, and converted to length prefixed NAL units. The
+ * movie header is written at the end, in {@link #finish()}. Every sample is
+ * its own chunk. The duration of a sample is the time until the next one
+ * of its track; a track starting after the other one begins with an empty
+ * edit.
+ */
+public class Mp4Writer implements PreRollBuffer.Sink {
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    // Samples in one AAC frame.
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    // Seconds from 1904 to 1970.
+    private static final long TIME_OFFSET = 2082844800L;
+
+    private static class Track {
+        final int timescale;
+        // The duration of the last sample, in the timescale.
+        final int lastDuration;
+        final IntArray sizes = new IntArray();
+        final IntArray syncSamples = new IntArray();
+        long[] offsets = new long[256];
+        long[] times = new long[256];
+
+        Track(int timescale, int lastDuration) {
+            this.timescale = timescale;
+            this.lastDuration = lastDuration;
+        }
+
+        int count() {
+            return sizes.size();
+        }
+
+        void add(long offset, int size, long timeUs) {
+            int count = sizes.size();
+            if (count == offsets.length) {
+                long[] o = new long[count * 2];
+                long[] t = new long[count * 2];
+                System.arraycopy(offsets, 0, o, 0, count);
+                System.arraycopy(times, 0, t, 0, count);
+                offsets = o;
+                times = t;
+            }
+            offsets[count] = offset;
+            times[count] = timeUs;
+            sizes.add(size);
+        }
+
+        // The durations of the samples in the timescale. The times are
+        // rounded from the start of the track so that errors do not add up.
+        int[] getDurations() {
+            int count = count();
+            int[] durations = new int[count];
+            long last = 0;
+            for (int i = 1; i < count; i++) {
+                long t = (times[i] - times[0]) * timescale / 1000000;
+                durations[i - 1] = (int) Math.max(1, t - last);
+                last += durations[i - 1];
+            }
+            if (count > 0) durations[count - 1] = lastDuration;
+            return durations;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mRotation;
+
+    private byte[] mSps;
+    private byte[] mPps;
+    private long mMdatStart;
+    // The bytes written so far, without the movie header.
+    private long mSize;
+    private final Track mVideo;
+    private Track mAudio;
+    private int mSampleRate;
+    private int mChannelCount;
+    private byte[] mAudioConfig;
+
+    public Mp4Writer(File file, int width, int height, int frameRate, int rotation)
+            throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mRotation = rotation;
+        mVideo = new Track(VIDEO_TIMESCALE, VIDEO_TIMESCALE / frameRate);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(24);
+        out.writeBytes("ftyp");
+        out.writeBytes("isom");
+        out.writeInt(0);
+        out.writeBytes("isom");
+        out.writeBytes("avc1");
+        // A large mdat header, the size is filled in at the end.
+        out.writeInt(1);
+        out.writeBytes("mdat");
+        out.writeLong(0);
+        mFile.write(bytes.toByteArray());
+        mMdatStart = 24;
+        mSize = mFile.getFilePointer();
+    }
+
+    /**
+     * Adds an AAC audio track. The audio specific config, the codec config
+     * buffer of the encoder, must be set before {@link #finish()}.
+     */
+    public void addAudioTrack(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mAudio = new Track(sampleRate, AAC_FRAME_SAMPLES);
+    }
+
+    public void setAudioConfig(byte[] data, int offset, int length) {
+        mAudioConfig = new byte[length];
+        System.arraycopy(data, offset, mAudioConfig, 0, length);
+    }
+
+    /**
+     * Sets the SPS and PPS from the codec config buffer of the encoder, in
+     * Annex B format.
+     */
+    public void setCodecConfig(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int start = nextNalStart(data, offset, end);
+        while (start < end) {
+            int next = nextNalStart(data, start, end);
+            int nalEnd = trimStartCode(data, start, next);
+            int type = data[start] & 0x1f;
+            byte[] nal = new byte[nalEnd - start];
+            System.arraycopy(data, start, nal, 0, nal.length);
+            if (type == 7) {
+                mSps = nal;
+            } else if (type == 8) {
+                mPps = nal;
+            }
+            start = next;
+        }
+    }
+
+    // Writes one access unit in Annex B format, at the frame rate.
+    public void writeSample(byte[] data, int offset, int length, boolean sync)
+            throws IOException {
+        writeSample(data, offset, length, sync, mVideo.count() * 1000000L / mFrameRate);
+    }
+
+    // Writes one access unit in Annex B format.
+    @Override
+    public void writeSample(byte[] data, int offset, int length, boolean sync, long timeUs)
+            throws IOException {
+        long position = mFile.getFilePointer();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int end = offset + length;
+        int start = nextNalStart(data, offset, end);
+        if (start == end) {
+            // No start codes, a single NAL unit.
+            start = offset;
+        }
+        while (start < end) {
+            int next = nextNalStart(data, start, end);
+            int nalEnd = trimStartCode(data, start, next);
+            out.writeInt(nalEnd - start);
+            out.write(data, start, nalEnd - start);
+            start = next;
+        }
+        mFile.write(bytes.toByteArray());
+        mSize = position + bytes.size();
+        if (sync) mVideo.syncSamples.add(mVideo.count() + 1);
+        mVideo.add(position, bytes.size(), timeUs);
+    }
+
+    // Writes one raw AAC frame.
+    public void writeAudioSample(byte[] data, int offset, int length, long timeUs)
+            throws IOException {
+        long position = mFile.getFilePointer();
+        mFile.write(data, offset, length);
+        mSize = position + length;
+        mAudio.add(position, length, timeUs);
+    }
+
+    // Writes audio samples from a pre-roll buffer.
+    public PreRollBuffer.Sink getAudioSink() {
+        return new PreRollBuffer.Sink() {
+            @Override
+            public void writeSample(byte[] data, int offset, int length, boolean sync,
+                    long timeUs) throws IOException {
+                writeAudioSample(data, offset, length, timeUs);
+            }
+        };
+    }
+
+    public int getSampleCount() {
+        return mVideo.count();
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    // The time from the first to the last video sample, in us.
+    public long getDurationUs() {
+        int count = mVideo.count();
+        return (count == 0) ? 0 : mVideo.times[count - 1] - mVideo.times[0];
+    }
+
+    // Writes the movie header and closes the file.
+    public void finish() throws IOException {
+        try {
+            if (mSps == null || mPps == null) throw new IOException("No codec config");
+            if (mAudio != null && mAudio.count() > 0 && mAudioConfig == null) {
+                throw new IOException("No audio config");
+            }
+            long mdatEnd = mFile.getFilePointer();
+            mFile.seek(mMdatStart + 8);
+            mFile.writeLong(mdatEnd - mMdatStart);
+            mFile.seek(mdatEnd);
+            mFile.write(createMoov());
+        } finally {
+            mFile.close();
+        }
+    }
+
+    public void abort() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // ignore.
+        }
+    }
+
+    // Returns the offset of the first byte after the next start code from
+    // offset, or end if there is none.
+    private static int nextNalStart(byte[] data, int offset, int end) {
+        for (int i = offset; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) return i + 3;
+        }
+        return end;
+    }
+
+    // Returns the end of the NAL unit starting at start, without the start
+    // code of the next one.
+    private static int trimStartCode(byte[] data, int start, int next) {
+        int end = next;
+        if (end - 3 >= start && data[end - 1] == 1 && data[end - 2] == 0 && data[end - 3] == 0) {
+            end -= 3;
+            if (end > start && data[end - 1] == 0) end--;
+        }
+        return end;
+    }
+
+    private byte[] createMoov() throws IOException {
+        boolean hasAudio = mAudio != null && mAudio.count() > 0;
+        long start = mVideo.count() > 0 ? mVideo.times[0] : 0;
+        if (hasAudio) start = Math.min(start, mAudio.times[0]);
+        long now = System.currentTimeMillis() / 1000 + TIME_OFFSET;
+
+        int[] videoDurations = mVideo.getDurations();
+        long videoDelay = (mVideo.count() > 0 ? mVideo.times[0] - start : 0)
+                * MOVIE_TIMESCALE / 1000000;
+        long movieDuration = videoDelay + toMovieTime(mVideo, sum(videoDurations));
+        int[] audioDurations = null;
+        long audioDelay = 0;
+        if (hasAudio) {
+            audioDurations = mAudio.getDurations();
+            audioDelay = (mAudio.times[0] - start) * MOVIE_TIMESCALE / 1000000;
+            movieDuration = Math.max(movieDuration,
+                    audioDelay + toMovieTime(mAudio, sum(audioDurations)));
+        }
+
+        Box moov = new Box("moov");
+
+        Box mvhd = moov.child("mvhd");
+        mvhd.out.writeInt(0);
+        mvhd.out.writeInt((int) now);
+        mvhd.out.writeInt((int) now);
+        mvhd.out.writeInt(MOVIE_TIMESCALE);
+        mvhd.out.writeInt((int) movieDuration);
+        mvhd.out.writeInt(0x00010000);
+        mvhd.out.writeShort(0x0100);
+        mvhd.out.write(new byte[10]);
+        writeMatrix(mvhd.out, 0);
+        mvhd.out.write(new byte[24]);
+        mvhd.out.writeInt(hasAudio ? 3 : 2);
+
+        Box videoStbl = addTrack(moov, mVideo, 1, videoDurations, videoDelay, now);
+        Box stsd = videoStbl.child("stsd");
+        stsd.out.writeInt(0);
+        stsd.out.writeInt(1);
+        Box avc1 = stsd.child("avc1");
+        avc1.out.write(new byte[6]);
+        avc1.out.writeShort(1);
+        avc1.out.write(new byte[16]);
+        avc1.out.writeShort(mWidth);
+        avc1.out.writeShort(mHeight);
+        avc1.out.writeInt(0x00480000);
+        avc1.out.writeInt(0x00480000);
+        avc1.out.writeInt(0);
+        avc1.out.writeShort(1);
+        avc1.out.write(new byte[32]);
+        avc1.out.writeShort(0x0018);
+        avc1.out.writeShort(-1);
+        Box avcC = avc1.child("avcC");
+        avcC.out.writeByte(1);
+        avcC.out.writeByte(mSps[1]);
+        avcC.out.writeByte(mSps[2]);
+        avcC.out.writeByte(mSps[3]);
+        avcC.out.writeByte(0xff);
+        avcC.out.writeByte(0xe1);
+        avcC.out.writeShort(mSps.length);
+        avcC.out.write(mSps);
+        avcC.out.writeByte(1);
+        avcC.out.writeShort(mPps.length);
+        avcC.out.write(mPps);
+        addSampleTables(videoStbl, mVideo, videoDurations);
+
+        if (hasAudio) {
+            Box audioStbl = addTrack(moov, mAudio, 2, audioDurations, audioDelay, now);
+            stsd = audioStbl.child("stsd");
+            stsd.out.writeInt(0);
+            stsd.out.writeInt(1);
+            Box mp4a = stsd.child("mp4a");
+            mp4a.out.write(new byte[6]);
+            mp4a.out.writeShort(1);
+            mp4a.out.write(new byte[8]);
+            mp4a.out.writeShort(mChannelCount);
+            mp4a.out.writeShort(16);
+            mp4a.out.writeInt(0);
+            mp4a.out.writeInt(mSampleRate << 16);
+            Box esds = mp4a.child("esds");
+            esds.out.writeInt(0);
+            // ES descriptor, decoder config descriptor with the audio
+            // specific config, SL config descriptor.
+            int configLength = 13 + 2 + mAudioConfig.length;
+            esds.out.writeByte(0x03);
+            esds.out.writeByte(3 + 2 + configLength + 3);
+            esds.out.writeShort(0);
+            esds.out.writeByte(0);
+            esds.out.writeByte(0x04);
+            esds.out.writeByte(configLength);
+            esds.out.writeByte(0x40);  // MPEG-4 audio
+            esds.out.writeByte(0x15);  // Audio stream
+            esds.out.write(new byte[3]);
+            esds.out.writeInt(0);
+            esds.out.writeInt(0);
+            esds.out.writeByte(0x05);
+            esds.out.writeByte(mAudioConfig.length);
+            esds.out.write(mAudioConfig);
+            esds.out.writeByte(0x06);
+            esds.out.writeByte(1);
+            esds.out.writeByte(0x02);
+            addSampleTables(audioStbl, mAudio, audioDurations);
+        }
+
+        return moov.toByteArray();
+    }
+
+    // Adds the boxes of a track up to its sample table, which is returned
+    // for the sample description and sample tables to be added.
+    private Box addTrack(Box moov, Track track, int id, int[] durations, long delay,
+            long now) throws IOException {
+        boolean video = (track == mVideo);
+        long trackDuration = sum(durations);
+        long movieDuration = toMovieTime(track, trackDuration);
+
+        Box trak = moov.child("trak");
+        Box tkhd = trak.child("tkhd");
+        tkhd.out.writeInt(0x00000007);
+        tkhd.out.writeInt((int) now);
+        tkhd.out.writeInt((int) now);
+        tkhd.out.writeInt(id);
+        tkhd.out.writeInt(0);
+        tkhd.out.writeInt((int) (delay + movieDuration));
+        tkhd.out.write(new byte[8]);
+        tkhd.out.writeShort(0);
+        tkhd.out.writeShort(video ? 0 : 1);
+        tkhd.out.writeShort(video ? 0 : 0x0100);
+        tkhd.out.writeShort(0);
+        writeMatrix(tkhd.out, video ? mRotation : 0);
+        tkhd.out.writeInt(video ? mWidth << 16 : 0);
+        tkhd.out.writeInt(video ? mHeight << 16 : 0);
+
+        if (delay > 0) {
+            Box elst = trak.child("edts").child("elst");
+            elst.out.writeInt(0);
+            elst.out.writeInt(2);
+            elst.out.writeInt((int) delay);
+            elst.out.writeInt(-1);
+            elst.out.writeInt(0x00010000);
+            elst.out.writeInt((int) movieDuration);
+            elst.out.writeInt(0);
+            elst.out.writeInt(0x00010000);
+        }
+
+        Box mdia = trak.child("mdia");
+        Box mdhd = mdia.child("mdhd");
+        mdhd.out.writeInt(0);
+        mdhd.out.writeInt((int) now);
+        mdhd.out.writeInt((int) now);
+        mdhd.out.writeInt(track.timescale);
+        mdhd.out.writeInt((int) trackDuration);
+        mdhd.out.writeShort(0x55c4);  // "und"
+        mdhd.out.writeShort(0);
+
+        Box hdlr = mdia.child("hdlr");
+        hdlr.out.writeInt(0);
+        hdlr.out.writeInt(0);
+        hdlr.out.writeBytes(video ? "vide" : "soun");
+        hdlr.out.write(new byte[12]);
+        hdlr.out.writeBytes(video ? "VideoHandle" : "SoundHandle");
+        hdlr.out.writeByte(0);
+
+        Box minf = mdia.child("minf");
+        if (video) {
+            Box vmhd = minf.child("vmhd");
+            vmhd.out.writeInt(0x00000001);
+            vmhd.out.write(new byte[8]);
+        } else {
+            Box smhd = minf.child("smhd");
+            smhd.out.writeInt(0);
+            smhd.out.writeInt(0);
+        }
+
+        Box dref = minf.child("dinf").child("dref");
+        dref.out.writeInt(0);
+        dref.out.writeInt(1);
+        Box url = dref.child("url ");
+        url.out.writeInt(0x00000001);
+
+        return minf.child("stbl");
+    }
+
+    private static void addSampleTables(Box stbl, Track track, int[] durations)
+            throws IOException {
+        int count = track.count();
+
+        Box stts = stbl.child("stts");
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int entryCount = 0;
+        for (int i = 0; i < count; ) {
+            int run = 1;
+            while (i + run < count && durations[i + run] == durations[i]) run++;
+            out.writeInt(run);
+            out.writeInt(durations[i]);
+            entryCount++;
+            i += run;
+        }
+        stts.out.writeInt(0);
+        stts.out.writeInt(entryCount);
+        entries.writeTo(stts.out);
+
+        // Without a sync sample table all samples are sync samples.
+        int syncCount = track.syncSamples.size();
+        if (syncCount > 0) {
+            int[] syncSamples = track.syncSamples.toArray(null);
+            Box stss = stbl.child("stss");
+            stss.out.writeInt(0);
+            stss.out.writeInt(syncCount);
+            for (int i = 0; i < syncCount; i++) {
+                stss.out.writeInt(syncSamples[i]);
+            }
+        }
+
+        int[] sizes = track.sizes.toArray(null);
+        Box stsz = stbl.child("stsz");
+        stsz.out.writeInt(0);
+        stsz.out.writeInt(0);
+        stsz.out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            stsz.out.writeInt(sizes[i]);
+        }
+
+        Box stsc = stbl.child("stsc");
+        stsc.out.writeInt(0);
+        stsc.out.writeInt(1);
+        stsc.out.writeInt(1);
+        stsc.out.writeInt(1);
+        stsc.out.writeInt(1);
+
+        Box co64 = stbl.child("co64");
+        co64.out.writeInt(0);
+        co64.out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            co64.out.writeLong(track.offsets[i]);
+        }
+    }
+
+    private static long sum(int[] values) {
+        long sum = 0;
+        for (int v : values) sum += v;
+        return sum;
+    }
+
+    private static long toMovieTime(Track track, long duration) {
+        return duration * MOVIE_TIMESCALE / track.timescale;
+    }
+
+    // The transformation matrix of the movie and track headers, the same
+    // as the one MediaRecorder writes for the orientation hint.
+    private static void writeMatrix(DataOutputStream out, int rotation) throws IOException {
+        int a = 0x10000, b = 0, c = 0, d = 0x10000;
+        switch (rotation) {
+            case 90:
+                a = 0;
+                b = 0x10000;
+                c = -0x10000;
+                d = 0;
+                break;
+            case 180:
+                a = -0x10000;
+                d = -0x10000;
+                break;
+            case 270:
+                a = 0;
+                b = -0x10000;
+                c = 0x10000;
+                d = 0;
+                break;
+            default:
+                break;
+        }
+        out.writeInt(a);
+        out.writeInt(b);
+        out.writeInt(0);
+        out.writeInt(c);
+        out.writeInt(d);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0x40000000);
+    }
+
+    // A box whose size is known once its content and children are written.
+    private static class Box {
+        final String type;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final ArrayList<Box> children = new ArrayList<Box>();
+
+        Box(String type) {
+            this.type = type;
+        }
+
+        Box child(String childType) {
+            Box box = new Box(childType);
+            children.add(box);
+            return box;
+        }
+
+        byte[] toByteArray() throws IOException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            content.write(bytes.toByteArray());
+            for (Box child : children) {
+                content.write(child.toByteArray());
+            }
+            ByteArrayOutputStream result = new ByteArrayOutputStream(content.size() + 8);
+            DataOutputStream out = new DataOutputStream(result);
+            out.writeInt(content.size() + 8);
+            out.writeBytes(type);
+            content.writeTo(out);
+            return result.toByteArray();
+        }
+    }
+}
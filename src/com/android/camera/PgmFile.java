@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An 8 bit gray image in the binary PGM format, used for preview frames
+ * recorded on a device to be replayed into a {@link ContrastFocus} later.
+ * Several images can follow each other in one file.
+ */
+public class PgmFile {
+    public final int width;
+    public final int height;
+    public final byte[] pixels;
+
+    public PgmFile(int width, int height, byte[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        write(out, pixels, width, 0, 0, width, height);
+    }
+
+    // Writes a part of a larger image, like the luma plane of an NV21 frame.
+    public static void write(OutputStream out, byte[] image, int stride, int left, int top,
+            int width, int height) throws IOException {
+        out.write(("P5\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+        for (int y = 0; y < height; y++) {
+            out.write(image, (top + y) * stride + left, width);
+        }
+        out.flush();
+    }
+
+    // Returns the next image of the stream, or null at its end.
+    public static PgmFile read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int c = skipSpace(data);
+        if (c == -1) return null;
+        if (c != 'P' || data.read() != '5') throw new IOException("Not a binary PGM file");
+        int width = readNumber(data);
+        int height = readNumber(data);
+        int max = readNumber(data);
+        if (width <= 0 || height <= 0 || max <= 0 || max > 255) {
+            throw new IOException("Only 8 bit PGM files are supported");
+        }
+        byte[] pixels = new byte[width * height];
+        try {
+            data.readFully(pixels);
+        } catch (EOFException e) {
+            throw new IOException("Truncated PGM file");
+        }
+        return new PgmFile(width, height, pixels);
+    }
+
+    // Returns the first character which is not white space or a comment.
+    private static int skipSpace(DataInputStream data) throws IOException {
+        int c = data.read();
+        while (c != -1) {
+            if (c == '#') {
+                while (c != -1 && c != '\n') c = data.read();
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+            c = data.read();
+        }
+        return c;
+    }
+
+    // Reads a number and the single white space after it.
+    private static int readNumber(DataInputStream data) throws IOException {
+        int c = skipSpace(data);
+        if (c < '0' || c > '9') throw new IOException("Bad PGM header");
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = data.read();
+        }
+        return value;
+    }
+}
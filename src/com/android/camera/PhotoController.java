@@ -200,9 +200,11 @@ public class PhotoController extends PieController
             setPreference(CameraSettings.KEY_CAMERA_HDR, mSettingOff);
         } else if (pref.getKey().equals(CameraSettings.KEY_NOHANDS_MODE)) {
             if (pref.getValue().equals(mActivity.getString(R.string.pref_camera_nohands_voice))) {
-                Util.enableSpeechRecognition(true, mModule);
+                // Picking voice again while listening learns the trigger
+                // word again, in case it was learned badly.
+                if (!Util.relearnVoiceShutter()) Util.enableVoiceShutter(true, mModule);
             } else {
-                Util.enableSpeechRecognition(false, null);
+                Util.enableVoiceShutter(false, null);
             }
         }
         super.onSettingChanged(pref);
@@ -230,20 +232,20 @@ public class PhotoController extends PieController
         ListPreference pref = mPreferenceGroup.findPreference(CameraSettings.KEY_NOHANDS_MODE);
 
         if (persist.getValue().equals(mActivity.getString(R.string.setting_on_value))) {
-            Util.enableSpeechRecognition( (pref.getValue().equals(mActivity.getString(R.string.pref_camera_nohands_voice)) && 
+            Util.enableVoiceShutter( (pref.getValue().equals(mActivity.getString(R.string.pref_camera_nohands_voice)) && 
                                            !force),
                                           null);
             return;
         }
         pref.setValue(mActivity.getString(R.string.pref_camera_nohands_default));
-        Util.enableSpeechRecognition(false, null);
+        Util.enableVoiceShutter(false, null);
         super.reloadPreferences();
         super.onSettingChanged(pref);
     }
 
     public void restoreNoHandsShutter() {
         ListPreference pref = mPreferenceGroup.findPreference(CameraSettings.KEY_NOHANDS_MODE);
-        Util.enableSpeechRecognition(pref.getValue().equals(mActivity.getString(R.string.pref_camera_nohands_voice)), mModule);
+        Util.enableVoiceShutter(pref.getValue().equals(mActivity.getString(R.string.pref_camera_nohands_voice)), mModule);
     }
 
 }
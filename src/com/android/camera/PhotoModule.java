@@ -27,7 +27,9 @@ import android.content.Intent;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.hardware.Camera.Area;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Face;
 import android.hardware.Camera.FaceDetectionListener;
@@ -82,6 +84,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
@@ -89,6 +92,8 @@ import java.util.List;
 public class PhotoModule
     implements CameraModule,
     FocusOverlayManager.Listener,
+    FocusAssist.Listener,
+    BurstSelector.Listener,
     CameraPreference.OnPreferenceChangedListener,
     LocationManager.Listener,
     PreviewFrameLayout.OnSizeChangedListener,
@@ -117,6 +122,7 @@ public class PhotoModule
     private static final int OPEN_CAMERA_FAIL = 11;
     private static final int CAMERA_DISABLED = 12;
     private static final int CAMERA_TIMER = 13;
+    private static final int UPDATE_PREVIEW_BUFFER_STATS = 14;
 
     // The subset of parameters we need to update in setCameraParameters().
     private static final int UPDATE_PARAM_INITIALIZE = 1;
@@ -205,6 +211,7 @@ public class PhotoModule
     // Corner indicator for no-hands shot activities
     private ImageView mNoHandsIndicator;
     private TextView mTimerCountdown;
+    private TextView mPreviewBufferStats;
 
     // We use a thread in ImageSaver to do the work of saving images. This
     // reduces the shot-to-shot time.
@@ -212,11 +219,19 @@ public class PhotoModule
     // Similarly, we use a thread to generate the name of the picture and insert
     // it into MediaStore while picture taking is still in progress.
     private ImageNamer mImageNamer;
+    // Drops the near duplicates of a burst before they are saved, if enabled.
+    private BurstSelector mBurstSelector;
+    // Takes pictures from recent preview frames on devices without HAL ZSL.
+    private SoftwareZsl mSoftwareZsl;
+    // When the shutter button went down, used to pick the ZSL frame.
+    private long mShutterDownTime;
+    // A shutter press older than this belongs to an earlier shot.
+    private static final int SHUTTER_DOWN_TIMEOUT = 500; // ms
 
     private Runnable mDoSnapRunnable = new Runnable() {
         @Override
         public void run() {
-            onShutterButtonClick();
+            takeShot();
         }
     };
 
@@ -274,6 +289,14 @@ public class PhotoModule
     private final CameraErrorCallback mErrorCallback = new CameraErrorCallback();
 
     private long mFocusStartTime;
+    // Follows the autofocus runs on the preview frames, if enabled.
+    private FocusAssist mFocusAssist;
+    private int mFocusRun;
+    // The focus assist finished the run, so its driver callback is ignored.
+    private boolean mFocusRunAssisted;
+    // Statistics of the preview frames, if enabled.
+    private SceneAnalyzer mSceneAnalyzer;
+    private final float[] mHistogram = new float[SceneStats.HISTOGRAM_BINS];
     private long mShutterCallbackTime;
     private long mPostViewPictureCallbackTime;
     private long mRawPictureCallbackTime;
@@ -288,6 +311,9 @@ public class PhotoModule
     public long mPictureDisplayedToJpegCallbackTime;
     public long mJpegCallbackFinishTime;
     public long mCaptureStartTime;
+    // This is for the SwitchPreview test.
+    public long mSwitchCameraLatency;
+    private long mSwitchCameraStartTime;
 
     // This handles everything about focus.
     private FocusOverlayManager mFocusManager;
@@ -306,11 +332,29 @@ public class PhotoModule
     // Burst mode
     private int mBurstShotsDone = 0;
     private boolean mBurstShotInProgress = false;
+    // Burst mode value for shooting as long as the shutter is held.
+    private static final int BURST_CONTINUOUS = 0;
+    private boolean mContinuousBurstActive = false;
+    // Rows are inserted this many shots ahead in a burst, so the picture
+    // callbacks do not wait for the media provider.
+    private static final int BURST_NAMES_AHEAD = 3;
+    // Captures issued whose picture has not arrived yet.
+    private int mCapturesInFlight = 0;
+    // Size of the last picture, to check the saver has room for the next.
+    private int mLastJpegSize = 0;
+    // These are for the ShotToShotLatency burst test.
+    public int mBurstShotsTaken;
+    public long mBurstDuration;
+    private long mBurstFirstPictureTime;
 
     // Software HDR mode
     private boolean mHDRShotInProgress = false;
     private boolean mHDRExposureSet = false;
     private boolean mHDRRendering = false;
+    // The exposure compensation of each capture of the HDR shot, and the
+    // one being taken.
+    private int[] mHDRPlan;
+    private int mHDRBracket;
     private ProgressDialog mHdrProgressDialog = null;
     private static ArrayList<Uri> sHDRShotsPaths = new ArrayList<Uri>();
 
@@ -326,8 +370,24 @@ public class PhotoModule
     private PreviewGestures mGestures;
 
     // The purpose is not to block the main thread in onCreate and onResume.
+    // It is also used to switch cameras, in which case it releases the old
+    // device first so the main thread never waits for the driver.
     private class CameraStartUpThread extends Thread {
         private volatile boolean mCancelled;
+        private final boolean mSwitching;
+        // The parameters object of the previous camera. It is no longer
+        // needed, so it is refilled with the cached capabilities of the new
+        // camera instead of asking the driver for another copy.
+        private final Parameters mRecycledParams;
+
+        public CameraStartUpThread() {
+            this(false, null);
+        }
+
+        public CameraStartUpThread(boolean switching, Parameters recycledParams) {
+            mSwitching = switching;
+            mRecycledParams = recycledParams;
+        }
 
         public void cancel() {
             mCancelled = true;
@@ -336,6 +396,9 @@ public class PhotoModule
         @Override
         public void run() {
             try {
+                if (mSwitching) {
+                    CameraHolder.instance().release();
+                }
                 // We need to check whether the activity is paused before long
                 // operations to ensure that onPause() can be done ASAP.
                 if (mCancelled) return;
@@ -345,14 +408,22 @@ public class PhotoModule
                 // done.
                 mStartPreviewPrerequisiteReady.block();
 
-                initializeCapabilities();
-                if (mFocusManager == null) initializeFocusManager();
+                initializeCapabilities(mRecycledParams);
+                if (mFocusManager == null) {
+                    initializeFocusManager();
+                } else if (mSwitching) {
+                    CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
+                    mFocusManager.setMirror(info.facing == CameraInfo.CAMERA_FACING_FRONT);
+                    mFocusManager.setParameters(mInitialParams);
+                }
                 if (mCancelled) return;
                 setCameraParameters(UPDATE_PARAM_ALL);
-                mHandler.sendEmptyMessage(CAMERA_OPEN_DONE);
+                mHandler.obtainMessage(CAMERA_OPEN_DONE, mSwitching ? 1 : 0, 0)
+                        .sendToTarget();
                 if (mCancelled) return;
                 startPreview();
-                mHandler.sendEmptyMessage(START_PREVIEW_DONE);
+                mHandler.obtainMessage(START_PREVIEW_DONE, mSwitching ? 1 : 0, 0)
+                        .sendToTarget();
                 mOnResumeTime = SystemClock.uptimeMillis();
                 mHandler.sendEmptyMessage(CHECK_DISPLAY_ROTATION);
             } catch (CameraHardwareException e) {
@@ -423,7 +494,11 @@ public class PhotoModule
                 }
 
                 case CAMERA_OPEN_DONE: {
-                    initializeAfterCameraOpen();
+                    if (msg.arg1 == 1) {
+                        initializeAfterCameraSwitch();
+                    } else {
+                        initializeAfterCameraOpen();
+                    }
                     break;
                 }
 
@@ -435,7 +510,20 @@ public class PhotoModule
                         mCameraDevice.setPreviewDisplayAsync(mCameraSurfaceHolder);
                     }
                     startFaceDetection();
-                    locationFirstRun();
+                    if (msg.arg1 == 1) {
+                        // The preview of the new camera has started.
+                        mSwitchCameraLatency = SystemClock.uptimeMillis()
+                                - mSwitchCameraStartTime;
+                        Log.v(TAG, "mSwitchCameraLatency = " + mSwitchCameraLatency + "ms");
+                        if (ApiHelper.HAS_SURFACE_TEXTURE) {
+                            // Start switch camera animation. Post a message
+                            // because onFrameAvailable from the old camera
+                            // may already exist.
+                            mHandler.sendEmptyMessage(SWITCH_CAMERA_START_ANIMATION);
+                        }
+                    } else {
+                        locationFirstRun();
+                    }
                     break;
                 }
 
@@ -460,6 +548,11 @@ public class PhotoModule
                     break;
                 }
 
+                case UPDATE_PREVIEW_BUFFER_STATS: {
+                    updatePreviewBufferStats();
+                    break;
+                }
+
             }
         }
     }
@@ -474,6 +567,10 @@ public class PhotoModule
 
         mContentResolver = mActivity.getContentResolver();
 
+        if (Util.enableSoftwareZSL()) {
+            mSoftwareZsl = new SoftwareZsl();
+        }
+
         // To reduce startup time, open the camera and start the preview in
         // another thread.
         mCameraStartUpThread = new CameraStartUpThread();
@@ -611,6 +708,21 @@ public class PhotoModule
         onFullScreenChanged(mActivity.isInCameraApp());
     }
 
+    // The render overlay and gestures are already set up when switching
+    // cameras, only the parts depending on the new camera are updated.
+    private void initializeAfterCameraSwitch() {
+        loadCameraPreferences();
+        if (Util.enableAspectRatioFixes()) {
+            setPreviewFrameLayoutAspectRatio();
+        }
+        initializePhotoControl();
+
+        // from initializeFirstTime
+        initializeZoom();
+        updateOnScreenIndicators();
+        showTapToFocusToastIfNeeded();
+    }
+
     private void initializePhotoControl() {
         loadCameraPreferences();
         if (mPhotoControl != null) {
@@ -659,8 +771,9 @@ public class PhotoModule
         mShutterButton.setOnShutterButtonListener(this);
         mShutterButton.setVisibility(View.VISIBLE);
 
-        mImageSaver = new ImageSaver();
-        mImageNamer = new ImageNamer();
+        mImageSaver = new ImageSaver(mActivity, mContentResolver);
+        mImageNamer = new ImageNamer(mContentResolver);
+        if (Util.enableBurstSelection()) mBurstSelector = new BurstSelector(this);
 
         mFirstTimeInitialized = true;
         addIdleHandler();
@@ -697,8 +810,9 @@ public class PhotoModule
                 mPreferences, mContentResolver);
         mLocationManager.recordLocation(recordLocation);
 
-        mImageSaver = new ImageSaver();
-        mImageNamer = new ImageNamer();
+        mImageSaver = new ImageSaver(mActivity, mContentResolver);
+        mImageNamer = new ImageNamer(mContentResolver);
+        if (Util.enableBurstSelection()) mBurstSelector = new BurstSelector(this);
         initializeZoom();
         keepMediaProviderInstance();
         hidePostCaptureAlert();
@@ -790,6 +904,11 @@ public class PhotoModule
             CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
             mFaceView.setMirror(info.facing == CameraInfo.CAMERA_FACING_FRONT);
             mFaceView.resume();
+            // setprop log.tag.CAM_PhotoModule VERBOSE keeps the detections
+            // for replaying them later.
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                mFaceView.getFaceTracker().setTrace(new FaceTrace());
+            }
             mFocusManager.setFaceView(mFaceView);
             mCameraDevice.setFaceDetectionListener(new FaceDetectionListener() {
                 @Override
@@ -810,7 +929,28 @@ public class PhotoModule
             mFaceDetectionStarted = false;
             mCameraDevice.setFaceDetectionListener(null);
             mCameraDevice.stopFaceDetection();
-            if (mFaceView != null) mFaceView.clear();
+            if (mFaceView != null) {
+                mFaceView.clear();
+                writeFaceTrace(mFaceView.getFaceTracker());
+            }
+        }
+    }
+
+    private void writeFaceTrace(FaceTracker tracker) {
+        FaceTrace trace = tracker.getTrace();
+        tracker.setTrace(null);
+        File dir = mActivity.getExternalCacheDir();
+        if (trace == null || dir == null) return;
+        File file = new File(dir, "faces.trace");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            trace.write(out);
+            Log.v(TAG, "Wrote " + trace.size() + " face detections to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+        } finally {
+            Util.closeSilently(out);
         }
     }
 
@@ -833,6 +973,18 @@ public class PhotoModule
         mHdrIndicator = (ImageView) mOnScreenIndicators.findViewById(R.id.menu_hdr_indicator);
         mNoHandsIndicator = (ImageView) mRootView.findViewById(R.id.indicator_nohandsshot);
         mTimerCountdown = (TextView) mRootView.findViewById(R.id.timer_countdown);
+        mPreviewBufferStats = (TextView) mRootView.findViewById(R.id.preview_buffer_stats);
+    }
+
+    private void updatePreviewBufferStats() {
+        if (mPreviewBufferStats == null) return;
+        if (mCameraDevice != null) {
+            String stats = mCameraDevice.getPreviewBufferPool().getStats();
+            if (mSceneAnalyzer != null) stats += "\n" + mSceneAnalyzer.getStats();
+            mPreviewBufferStats.setText(stats);
+        }
+        mPreviewBufferStats.setVisibility(View.VISIBLE);
+        mHandler.sendEmptyMessageDelayed(UPDATE_PREVIEW_BUFFER_STATS, 1000);
     }
 
     @Override
@@ -999,6 +1151,7 @@ public class PhotoModule
             if (mPaused) {
                 return;
             }
+            mCapturesInFlight--;
             if (mSceneMode == Util.SCENE_MODE_HDR) {
                 mActivity.showSwitcher();
                 mActivity.setSwipingEnabled(true);
@@ -1028,7 +1181,7 @@ public class PhotoModule
             if (ApiHelper.HAS_SURFACE_TEXTURE && !mIsImageCaptureIntent
                     && mActivity.mShowCameraAppView
                     && !mBurstShotInProgress
-                    && !(mHDRShotInProgress && mBurstShotsDone < 3)) {
+                    && !(mHDRShotInProgress && mBurstShotsDone < mHDRPlan.length)) {
                 // Finish capture animation
                 ((CameraScreenNail) mActivity.mCameraScreenNail).animateSlide();
             }
@@ -1060,10 +1213,9 @@ public class PhotoModule
                     height = s.width;
                 }
                 Uri uri = mImageNamer.getUri();
-                mActivity.addSecureAlbumItemIfNeeded(false, uri);
-                String title = mImageNamer.getTitle();
-                mImageSaver.addImage(jpegData, uri, title, mLocation,
-                        width, height, orientation);
+                savePicture(jpegData, uri, mImageNamer.getTitle(), mImageNamer.getDateTaken(),
+                        mLocation, width, height, orientation);
+                onPictureQueued(jpegData.length);
             } else {
                 mJpegImageData = jpegData;
                 if (!mQuickCapture) {
@@ -1097,6 +1249,12 @@ public class PhotoModule
         public void onAutoFocus(
                 boolean focused, android.hardware.Camera camera) {
             if (mPaused) return;
+            if (mFocusAssist != null) mFocusAssist.stop();
+            if (mFocusRunAssisted) {
+                mFocusRunAssisted = false;
+                Log.v(TAG, "Late autofocus callback, focused=" + focused);
+                return;
+            }
 
             mAutoFocusTime = System.currentTimeMillis() - mFocusStartTime;
             Log.v(TAG, "mAutoFocusTime = " + mAutoFocusTime + "ms");
@@ -1115,170 +1273,131 @@ public class PhotoModule
         }
     }
 
-    // Each SaveRequest remembers the data needed to save an image.
-    private static class SaveRequest {
-        byte[] data;
-        Uri uri;
-        String title;
-        Location loc;
-        int width, height;
-        int orientation;
-    }
-
-    // We use a queue to store the SaveRequests that have not been completed
-    // yet. The main thread puts the request into the queue. The saver thread
-    // gets it from the queue, does the work, and removes it from the queue.
-    //
-    // The main thread needs to wait for the saver thread to finish all the work
-    // in the queue, when the activity's onPause() is called, we need to finish
-    // all the work, so other programs (like Gallery) can see all the images.
-    //
-    // If the queue becomes too long, adding a new request will block the main
-    // thread until the queue length drops below the threshold (QUEUE_LIMIT).
-    // If we don't do this, we may face several problems: (1) We may OOM
-    // because we are holding all the jpeg data in memory. (2) We may ANR
-    // when we need to wait for saver thread finishing all the work (in
-    // onPause() or gotoGallery()) because the time to finishing a long queue
-    // of work may be too long.
-    private class ImageSaver extends Thread {
-        private static final int QUEUE_LIMIT = 3;
-
-        private ArrayList<SaveRequest> mQueue;
-        private boolean mStop;
-
-        // Runs in main thread
-        public ImageSaver() {
-            mQueue = new ArrayList<SaveRequest>();
-            start();
-        }
+    private final class ZslPictureCallback implements SoftwareZsl.Listener {
+        Location mLocation;
+        int mRotation;
 
-        // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int orientation) {
-            SaveRequest r = new SaveRequest();
-            r.data = data;
-            r.uri = uri;
-            r.title = title;
-            r.loc = (loc == null) ? null : new Location(loc);  // make a copy
-            r.width = width;
-            r.height = height;
-            r.orientation = orientation;
-            synchronized (this) {
-                while (mQueue.size() >= QUEUE_LIMIT) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-                mQueue.add(r);
-                notifyAll();  // Tell saver thread there is new work to do.
-            }
+        public ZslPictureCallback(Location loc, int rotation) {
+            mLocation = loc;
+            mRotation = rotation;
         }
 
-        // Runs in saver thread
         @Override
-        public void run() {
-            while (true) {
-                SaveRequest r;
-                synchronized (this) {
-                    if (mQueue.isEmpty()) {
-                        notifyAll();  // notify main thread in waitDone
-
-                        // Note that we can only stop after we saved all images
-                        // in the queue.
-                        if (mStop) break;
-
-                        try {
-                            wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
-                        }
-                        continue;
-                    }
-                    r = mQueue.get(0);
-                }
-                storeImage(r.data, r.uri, r.title, r.loc, r.width, r.height,
-                        r.orientation);
-                synchronized (this) {
-                    mQueue.remove(0);
-                    notifyAll();  // the main thread may wait in addImage
-                }
-            }
-        }
-
-        // Runs in main thread
-        public void waitDone() {
-            synchronized (this) {
-                while (!mQueue.isEmpty()) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
+        public void onZslPictureTaken(byte[] jpegData, int width, int height) {
+            if (mPaused) {
+                return;
             }
-        }
+            mCapturesInFlight--;
+            mJpegCallbackFinishTime = System.currentTimeMillis() - mCaptureStartTime;
+            Log.v(TAG, "ZSL capture took " + mJpegCallbackFinishTime + "ms");
 
-        // Runs in main thread
-        public void finish() {
-            waitDone();
-            synchronized (this) {
-                mStop = true;
-                notifyAll();
-            }
-            try {
-                join();
-            } catch (InterruptedException ex) {
-                // ignore.
+            // The frame is not rotated, the rotation is only stored in the
+            // media store.
+            if (mRotation % 180 != 0) {
+                int tmp = width;
+                width = height;
+                height = tmp;
             }
-        }
+            Uri uri = mImageNamer.getUri();
+            savePicture(jpegData, uri, mImageNamer.getTitle(), mImageNamer.getDateTaken(),
+                    mLocation, width, height, mRotation);
+            onPictureQueued(jpegData.length);
+            mActivity.updateStorageSpaceAndHint();
 
-        // Runs in saver thread
-        private void storeImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int orientation) {
-            boolean ok = Storage.getStorage().updateImage(mContentResolver, uri, title, loc,
-                    orientation, data, width, height);
-            if (ok) {
-                Util.broadcastNewPicture(mActivity, uri);
+            // The preview was never stopped, so the next shot can be taken
+            // right away.
+            setCameraState(IDLE);
+            if (mSnapshotOnIdle) {
+                mHandler.post(mDoSnapRunnable);
             }
         }
     }
 
+    // Names the pictures before they arrive. Requests are named in order and
+    // getUri() returns them in the same order.
+    //
+    // When a capture is likely, see prepareSpares(), the namer also keeps a
+    // few placeholder rows inserted ahead. prepareUri() then takes one and
+    // only gives it the title of the picture, so getUri() does not wait for
+    // the media provider. Spares not taken are deleted after a while, as
+    // the gallery shows them like any other picture being saved.
     private static class ImageNamer extends Thread {
-        private boolean mRequestPending;
-        private ContentResolver mResolver;
-        private long mDateTaken;
-        private int mWidth, mHeight;
+        private static final long SPARE_LIFETIME = 5000; // ms
+        // Orphaned rows can only be left by an earlier process, so they are
+        // looked for by the first namer only.
+        private static boolean sOrphansDeleted;
+
+        private static class Request {
+            long dateTaken;
+            int width, height;
+            boolean named;
+            Uri uri;
+            String title;
+        }
+
+        private final ContentResolver mResolver;
+        // Requests not taken by getUri() yet, oldest first.
+        private ArrayList<Request> mQueue = new ArrayList<Request>();
+        // Named requests which will never be taken.
+        private ArrayList<Request> mCancelled = new ArrayList<Request>();
+        // Placeholder rows ready to be taken by prepareUri().
+        private ArrayList<Request> mSpares = new ArrayList<Request>();
+        private int mSparesWanted;
+        private long mSparesExpireTime;
+        private int mLastWidth, mLastHeight;
+        private int mSpareCount;
         private boolean mStop;
-        private Uri mUri;
         private String mTitle;
+        private long mDateTaken;
 
         // Runs in main thread
-        public ImageNamer() {
+        public ImageNamer(ContentResolver resolver) {
+            mResolver = resolver;
             start();
         }
 
         // Runs in main thread
-        public synchronized void prepareUri(ContentResolver resolver,
-                long dateTaken, int width, int height, int rotation) {
+        public synchronized void prepareUri(long dateTaken, int width, int height,
+                int rotation) {
             if (rotation % 180 != 0) {
                 int tmp = width;
                 width = height;
                 height = tmp;
             }
-            mRequestPending = true;
-            mResolver = resolver;
-            mDateTaken = dateTaken;
-            mWidth = width;
-            mHeight = height;
+            Request r = new Request();
+            r.dateTaken = dateTaken;
+            r.width = width;
+            r.height = height;
+            if (!mSpares.isEmpty()) {
+                r.uri = mSpares.remove(0).uri;
+                r.title = Util.createJpegName(dateTaken);
+                r.named = true;
+                sHDRShotsPaths.add(r.uri);
+                if (mSparesWanted > 0) mSparesWanted--;
+            }
+            mLastWidth = width;
+            mLastHeight = height;
+            mQueue.add(r);
+            notifyAll();
+        }
+
+        // Runs in main thread. Keeps the given number of spare rows for a
+        // while.
+        public synchronized void prepareSpares(int count) {
+            mSparesWanted = count;
+            mSparesExpireTime = SystemClock.uptimeMillis() + SPARE_LIFETIME;
             notifyAll();
         }
 
         // Runs in main thread
         public synchronized Uri getUri() {
-            // wait until the request is done.
-            while (mRequestPending) {
+            if (mQueue.isEmpty()) {
+                mTitle = null;
+                return null;
+            }
+
+            // wait until the oldest request is done.
+            while (!mQueue.get(0).named) {
                 try {
                     wait();
                 } catch (InterruptedException ex) {
@@ -1287,9 +1406,10 @@ public class PhotoModule
             }
 
             // return the uri generated
-            Uri uri = mUri;
-            mUri = null;
-            return uri;
+            Request r = mQueue.remove(0);
+            mTitle = r.title;
+            mDateTaken = r.dateTaken;
+            return r.uri;
         }
 
         // Runs in main thread, should be called after getUri().
@@ -1297,25 +1417,125 @@ public class PhotoModule
             return mTitle;
         }
 
+        // Runs in main thread, should be called after getUri().
+        public synchronized long getDateTaken() {
+            return mDateTaken;
+        }
+
+        // Runs in main thread. Deletes the image inserted for a picture
+        // which is not saved after all.
+        public synchronized void discard(Uri uri) {
+            if (uri == null) return;
+            Request r = new Request();
+            r.uri = uri;
+            mCancelled.add(r);
+            notifyAll();
+        }
+
+        // Runs in main thread. Drops the requests not taken by getUri(), the
+        // images already inserted for them are deleted.
+        public synchronized void cancelPending() {
+            if (mQueue.isEmpty()) return;
+            mCancelled.addAll(mQueue);
+            mQueue.clear();
+            notifyAll();
+        }
+
         // Runs in namer thread
         @Override
-        public synchronized void run() {
+        public void run() {
+            // Rows of a previous process which died while saving.
+            boolean deleteOrphans;
+            synchronized (ImageNamer.class) {
+                deleteOrphans = !sOrphansDeleted;
+                sOrphansDeleted = true;
+            }
+            if (deleteOrphans) Storage.getStorage().deleteOrphanedImages(mResolver);
+            serveRequests();
+        }
+
+        // Runs in namer thread. The media provider is called without the
+        // lock, so the main thread does not wait for it in prepareUri() and
+        // the other calls. Only the namer thread changes a request until it
+        // is named, and only it deletes the cancelled ones, so a request
+        // cancelled while its image is inserted is deleted in the next round.
+        private void serveRequests() {
             while (true) {
-                if (mStop) break;
-                if (!mRequestPending) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
+                ArrayList<Request> cancelled = null;
+                Request r = null;
+                int spareWidth, spareHeight;
+                synchronized (this) {
+                    if (mStop) break;
+                    if (!mCancelled.isEmpty()) {
+                        cancelled = mCancelled;
+                        mCancelled = new ArrayList<Request>();
+                    } else {
+                        for (Request q : mQueue) {
+                            if (!q.named) {
+                                r = q;
+                                break;
+                            }
+                        }
+                    }
+                    if (cancelled == null && r == null) {
+                        long now = SystemClock.uptimeMillis();
+                        int wanted = (now < mSparesExpireTime) ? mSparesWanted : 0;
+                        if (mSpares.size() > wanted) {
+                            mCancelled.add(mSpares.remove(mSpares.size() - 1));
+                            continue;
+                        } else if (mSpares.size() == wanted) {
+                            waitForWork((wanted > 0) ? mSparesExpireTime - now : 0);
+                            continue;
+                        }
+                    } else if (r != null) {
+                        r.title = Util.createJpegName(r.dateTaken);
+                    }
+                    spareWidth = mLastWidth;
+                    spareHeight = mLastHeight;
+                }
+
+                if (cancelled != null) {
+                    cleanCancelled(cancelled);
+                } else if (r != null) {
+                    Uri uri = Storage.getStorage().newImage(mResolver, r.title,
+                            r.dateTaken, r.width, r.height);
+                    synchronized (this) {
+                        r.uri = uri;
+                        sHDRShotsPaths.add(uri);
+                        r.named = true;
+                        notifyAll();
+                    }
+                } else {
+                    Request spare = generateSpare(spareWidth, spareHeight);
+                    synchronized (this) {
+                        if (spare.uri != null) {
+                            mSpares.add(spare);
+                        } else {
+                            // Do not retry until the next prepareSpares().
+                            mSparesExpireTime = 0;
+                        }
                     }
-                    continue;
                 }
-                cleanOldUri();
-                generateUri();
-                mRequestPending = false;
-                notifyAll();
             }
-            cleanOldUri();
+            ArrayList<Request> cancelled;
+            synchronized (this) {
+                cancelled = mCancelled;
+                mCancelled = new ArrayList<Request>();
+                cancelled.addAll(mQueue);
+                mQueue.clear();
+                cancelled.addAll(mSpares);
+                mSpares.clear();
+            }
+            cleanCancelled(cancelled);
+        }
+
+        // Called with the lock held
+        private void waitForWork(long timeout) {
+            try {
+                wait(timeout);
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
         }
 
         // Runs in main thread
@@ -1325,17 +1545,25 @@ public class PhotoModule
         }
 
         // Runs in namer thread
-        private void generateUri() {
-            mTitle = Util.createJpegName(mDateTaken);
-            mUri = Storage.getStorage().newImage(mResolver, mTitle, mDateTaken, mWidth, mHeight);
-            sHDRShotsPaths.add(mUri);
+        private Request generateSpare(int width, int height) {
+            Request r = new Request();
+            r.dateTaken = System.currentTimeMillis();
+            // Not a real image name, which would make the next picture taken
+            // in the same second get a suffix.
+            r.title = "pending_" + r.dateTaken + "_" + mSpareCount++;
+            r.uri = Storage.getStorage().newImage(mResolver, r.title, r.dateTaken,
+                    width, height);
+            r.named = true;
+            return r;
         }
 
         // Runs in namer thread
-        private void cleanOldUri() {
-            if (mUri == null) return;
-            Storage.getStorage().deleteImage(mResolver, mUri);
-            mUri = null;
+        private void cleanCancelled(ArrayList<Request> cancelled) {
+            for (Request r : cancelled) {
+                if (r.uri != null) {
+                    Storage.getStorage().deleteImage(mResolver, r.uri);
+                }
+            }
         }
     }
 
@@ -1375,6 +1603,11 @@ public class PhotoModule
                 || mCameraState == SWITCHING_CAMERA) {
             return false;
         }
+        // When the ring has no frame, or is still compressing the last one,
+        // the driver takes the picture, so a shutter press is never lost.
+        if (canCaptureFromZslRing() && captureFromZslRing()) {
+            return true;
+        }
         mCaptureStartTime = System.currentTimeMillis();
         mPostViewPictureCallbackTime = 0;
         mJpegImageData = null;
@@ -1385,12 +1618,17 @@ public class PhotoModule
             animateFlash();
         }
 
-        // Set rotation and gps data.
-        mJpegRotation = Util.getJpegRotation(mCameraId, mOrientation);
-        mParameters.setRotation(mJpegRotation);
+        // Set rotation and gps data. Later shots of a burst keep the ones of
+        // the first shot unless the device was turned, which saves a
+        // parameters round trip per shot.
+        int rotation = Util.getJpegRotation(mCameraId, mOrientation);
         Location loc = mLocationManager.getCurrentLocation();
-        Util.setGpsParameters(mParameters, loc);
-        mCameraDevice.setParameters(mParameters);
+        if (!mBurstShotInProgress || rotation != mJpegRotation) {
+            mJpegRotation = rotation;
+            mParameters.setRotation(mJpegRotation);
+            Util.setGpsParameters(mParameters, loc);
+            mCameraDevice.setParameters(mParameters);
+        }
 
         mCameraDevice.takePicture2(mShutterCallback, mRawPictureCallback,
                 mPostViewPictureCallback, new JpegPictureCallback(loc),
@@ -1405,14 +1643,150 @@ public class PhotoModule
         }
 
         Size size = mParameters.getPictureSize();
-        mImageNamer.prepareUri(mContentResolver, mCaptureStartTime,
-                size.width, size.height, mJpegRotation);
+        prepareImageName(size.width, size.height);
+        mCapturesInFlight++;
 
         mFaceDetectionStarted = false;
         setCameraState(SNAPSHOT_IN_PROGRESS);
         return true;
     }
 
+    private boolean canCaptureFromZslRing() {
+        if (mSoftwareZsl == null || !mSoftwareZsl.isRunning()) return false;
+        // Software HDR needs a capture per exposure, and the preview frames
+        // are not lit by the flash.
+        if (Util.getDoSoftwareHDRShot()) return false;
+        String flashMode = mParameters.getFlashMode();
+        return flashMode == null || Parameters.FLASH_MODE_OFF.equals(flashMode)
+                || Parameters.FLASH_MODE_TORCH.equals(flashMode);
+    }
+
+    private boolean captureFromZslRing() {
+        long now = SystemClock.uptimeMillis();
+        long shutterTime = (now - mShutterDownTime < SHUTTER_DOWN_TIMEOUT)
+                ? mShutterDownTime : now;
+        mJpegRotation = Util.getJpegRotation(mCameraId, mOrientation);
+        Location loc = mLocationManager.getCurrentLocation();
+        if (!mSoftwareZsl.capture(shutterTime, mParameters.getJpegQuality(),
+                new ZslPictureCallback(loc, mJpegRotation))) {
+            return false;
+        }
+        mShutterDownTime = 0;
+        mCaptureStartTime = System.currentTimeMillis();
+        mJpegImageData = null;
+        mPhotoControl.resetNoHandsShutter(false);
+        animateFlash();
+
+        Size size = mParameters.getPreviewSize();
+        prepareImageName(size.width, size.height);
+        mCapturesInFlight++;
+        setCameraState(SNAPSHOT_IN_PROGRESS);
+        return true;
+    }
+
+    // Names the picture of the shot being taken. In a burst, rows for the
+    // next shots are inserted ahead too.
+    private void prepareImageName(int width, int height) {
+        if (mBurstShotInProgress) {
+            mImageNamer.prepareSpares(BURST_NAMES_AHEAD);
+        } else {
+            // A name left by a capture that never delivered its picture
+            // would go to the wrong picture.
+            mImageNamer.cancelPending();
+            mCapturesInFlight = 0;
+        }
+        mImageNamer.prepareUri(mCaptureStartTime, width, height, mJpegRotation);
+    }
+
+    // A burst picture waiting for the burst selector.
+    private static class BurstPicture {
+        byte[] jpegData;
+        Uri uri;
+        String title;
+        long dateTaken;
+        Location location;
+        int width, height;
+        int orientation;
+    }
+
+    // Hands a picture to the saver, or to the burst selector during a burst.
+    private void savePicture(byte[] jpegData, Uri uri, String title, long dateTaken,
+            Location loc, int width, int height, int orientation) {
+        if (mBurstSelector != null && !mHDRShotInProgress
+                && (mBurstShotInProgress || mBurstFirstPictureTime != 0)) {
+            BurstPicture p = new BurstPicture();
+            p.jpegData = jpegData;
+            p.uri = uri;
+            p.title = title;
+            p.dateTaken = dateTaken;
+            p.location = loc;
+            p.width = width;
+            p.height = height;
+            p.orientation = orientation;
+            // The selector may fall behind, its pictures pace the burst
+            // like the ones of the saver.
+            mImageSaver.holdBytes(jpegData.length);
+            mBurstSelector.add(jpegData, p);
+            return;
+        }
+        mActivity.addSecureAlbumItemIfNeeded(false, uri);
+        mImageSaver.addImage(jpegData, uri, title, dateTaken, loc, width, height, orientation);
+    }
+
+    @Override
+    public void onBurstPictureKept(Object tag) {
+        BurstPicture p = (BurstPicture) tag;
+        if (mImageSaver == null) return;
+        mImageSaver.releaseBytes(p.jpegData.length);
+        mActivity.addSecureAlbumItemIfNeeded(false, p.uri);
+        mImageSaver.addImage(p.jpegData, p.uri, p.title, p.dateTaken, p.location,
+                p.width, p.height, p.orientation);
+    }
+
+    @Override
+    public void onBurstPictureDropped(Object tag) {
+        BurstPicture p = (BurstPicture) tag;
+        Log.v(TAG, "Dropped burst picture " + p.title);
+        if (mImageSaver != null) mImageSaver.releaseBytes(p.jpegData.length);
+        if (mImageNamer != null) mImageNamer.discard(p.uri);
+    }
+
+    // Runs after a picture is handed to the saver.
+    private void onPictureQueued(int jpegSize) {
+        mLastJpegSize = jpegSize;
+        if (mBurstFirstPictureTime != 0) {
+            mBurstShotsTaken++;
+            mBurstDuration = System.currentTimeMillis() - mBurstFirstPictureTime;
+        } else if (mBurstShotInProgress) {
+            mBurstFirstPictureTime = System.currentTimeMillis();
+            mBurstShotsTaken = 1;
+            mBurstDuration = 0;
+        }
+        endBurstIfIdle();
+    }
+
+    // Once the last picture of a burst has arrived, drops the names left
+    // and lets the saver go back to its normal queue limit.
+    private void endBurstIfIdle() {
+        if (mBurstShotInProgress || mCapturesInFlight > 0) return;
+        mImageNamer.cancelPending();
+        mImageNamer.prepareSpares(0);
+        mImageSaver.setBurstMode(false);
+        if (mBurstSelector != null) mBurstSelector.flush();
+        if (mBurstFirstPictureTime != 0) {
+            Log.v(TAG, "Burst of " + mBurstShotsTaken + " shots in "
+                    + mBurstDuration + "ms");
+            mBurstFirstPictureTime = 0;
+        }
+    }
+
+    private void finishBurst() {
+        mBurstShotsDone = 0;
+        mBurstShotInProgress = false;
+        mSnapshotOnIdle = false;
+        endBurstIfIdle();
+    }
+
     @Override
     public void setFocusParameters() {
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
@@ -1681,6 +2055,9 @@ public class PhotoModule
 
     @Override
     public void onShutterButtonFocus(boolean pressed) {
+        if (pressed) mShutterDownTime = SystemClock.uptimeMillis();
+        // Ends a continuous burst after the shot in progress.
+        if (!pressed) mContinuousBurstActive = false;
         if ((mTimerMode && pressed) || mPaused || collapseCameraControls()
                 || (mCameraState == SNAPSHOT_IN_PROGRESS)
                 || (mCameraState == PREVIEW_STOPPED)) return;
@@ -1694,6 +2071,14 @@ public class PhotoModule
                 mActivity.setSwipingEnabled(false);
             }
             mFocusManager.onShutterDown();
+            // A picture is likely to follow, have its row ready.
+            if (mImageNamer != null) mImageNamer.prepareSpares(1);
+            if (getBurstShots() == BURST_CONTINUOUS && !mIsImageCaptureIntent
+                    && mCaptureMode <= 0 && !Util.getDoSoftwareHDRShot()
+                    && !mContinuousBurstActive) {
+                mContinuousBurstActive = true;
+                takeShot();
+            }
         } else {
             mFocusManager.onShutterUp();
         }
@@ -1721,7 +2106,35 @@ public class PhotoModule
 
     @Override
     public void onShutterButtonClick() {
-        int nbBurstShots = Integer.valueOf(mPreferences.getString(CameraSettings.KEY_BURST_MODE, "1"));
+        // A continuous burst takes its shots while the shutter is held, see
+        // onShutterButtonFocus().
+        if (mContinuousBurstActive) return;
+        takeShot();
+    }
+
+    // Plans the exposures of a software HDR shot from the preview, or the
+    // extremes without a scene analysis. Returns false if the scene needs a
+    // single shot, which is then taken as a normal picture.
+    private boolean planHdrShot() {
+        int min = mParameters.getMinExposureCompensation();
+        int max = mParameters.getMaxExposureCompensation();
+        if (mSceneAnalyzer != null && mSceneAnalyzer.isValid()) {
+            mSceneAnalyzer.getHistogram(mHistogram);
+            mHDRPlan = HdrPlanner.plan(mHistogram, min, max,
+                    mParameters.getExposureCompensationStep());
+        } else {
+            mHDRPlan = HdrPlanner.defaultPlan(min, max);
+        }
+        Log.v(TAG, "HDR plan " + Arrays.toString(mHDRPlan));
+        return mHDRPlan.length > 1;
+    }
+
+    private int getBurstShots() {
+        return Integer.valueOf(mPreferences.getString(CameraSettings.KEY_BURST_MODE, "1"));
+    }
+
+    private void takeShot() {
+        int nbBurstShots = getBurstShots();
 
         if (!mTimerMode) {
             if (mCaptureMode > 0) {
@@ -1735,10 +2148,12 @@ public class PhotoModule
             return;
         }
 
-        if (Util.getDoSoftwareHDRShot() && !mHDRShotInProgress && !mHDRRendering) {
-            Log.d(TAG, "Starting HDR shot - set min exposure");
-            mParameters.setExposureCompensation(mParameters.getMinExposureCompensation());
+        if (Util.getDoSoftwareHDRShot() && !mHDRShotInProgress && !mHDRRendering
+                && planHdrShot()) {
+            Log.d(TAG, "Starting HDR shot - set exposure to " + mHDRPlan[0]);
+            mParameters.setExposureCompensation(mHDRPlan[0]);
             mCameraDevice.setParameters(mParameters);
+            mHDRBracket = 0;
             mHDRShotInProgress = true;
             sHDRShotsPaths.clear();
 
@@ -1757,24 +2172,17 @@ public class PhotoModule
             return;
         }
         else if (Util.getDoSoftwareHDRShot() && mHDRShotInProgress && !mHDRExposureSet) {
-            // We do min, 0, max exposure shots
-            int value = mParameters.getExposureCompensation();
-            int max = mParameters.getMaxExposureCompensation();
+            // We do a shot per exposure of the plan
 
             // Non-ZSL devices hates setting parameters while shot is being taken. We
             // use SnapshotOnIdle as a callback when a shot is ready to be taken, and
             // we manually queue another shot.
             boolean queueShot = false;
 
-            if (mParameters.getMinExposureCompensation() == value) {
-                mParameters.setExposureCompensation(0);
-                Log.d(TAG, "HDR - Set exposure to 0");
-                mCameraDevice.setParameters(mParameters);
-                queueShot = true;
-                mHDRExposureSet = true;
-            } else if (value == 0) {
-                mParameters.setExposureCompensation(mParameters.getMaxExposureCompensation());
-                Log.d(TAG, "HDR - Set exposure to max");
+            if (mHDRBracket + 1 < mHDRPlan.length) {
+                mHDRBracket++;
+                mParameters.setExposureCompensation(mHDRPlan[mHDRBracket]);
+                Log.d(TAG, "HDR - Set exposure to " + mHDRPlan[mHDRBracket]);
                 mCameraDevice.setParameters(mParameters);
                 queueShot = true;
                 mHDRExposureSet = true;
@@ -1805,7 +2213,7 @@ public class PhotoModule
 
                                 try {
                                     Size s = mParameters.getPictureSize();
-                                    mImageNamer.prepareUri(mContentResolver, mCaptureStartTime, s.width, s.height, mJpegRotation);
+                                    mImageNamer.prepareUri(mCaptureStartTime, s.width, s.height, mJpegRotation);
                                     hdr.prepare(mActivity, strArray);
 
                                     byte[] jpegData = hdr.computeHDR(mActivity);
@@ -1813,7 +2221,8 @@ public class PhotoModule
                                     Uri uri = mImageNamer.getUri();
                                     mActivity.addSecureAlbumItemIfNeeded(false, uri);
                                     String title = mImageNamer.getTitle();
-                                    mImageSaver.addImage(jpegData, uri, title, mLocationManager.getCurrentLocation(),
+                                    mImageSaver.addImage(jpegData, uri, title, mImageNamer.getDateTaken(),
+                                        mLocationManager.getCurrentLocation(),
                                         s.width, s.height, 0);
 
                                 } catch (Exception e) {
@@ -1873,6 +2282,18 @@ public class PhotoModule
             return;
         }
 
+        boolean continuous = (nbBurstShots == BURST_CONTINUOUS);
+        if (mBurstShotInProgress) {
+            if (continuous && !mContinuousBurstActive) {
+                // The shutter was released.
+                finishBurst();
+                return;
+            }
+            // Wait for the saver to free memory rather than blocking the
+            // main thread in addImage(). The saver posts the next shot.
+            if (!mImageSaver.hasRoomFor(mLastJpegSize, mDoSnapRunnable)) return;
+        }
+
         mFocusManager.doSnap();
         mBurstShotsDone++;
 
@@ -1881,16 +2302,15 @@ public class PhotoModule
             mSnapshotOnIdle = true;
         }
 
-        if (mBurstShotsDone >= nbBurstShots) {
+        if (continuous ? !mContinuousBurstActive : mBurstShotsDone >= nbBurstShots) {
             if (!mHDRShotInProgress) {
-                mBurstShotsDone = 0;
-                mBurstShotInProgress = false;
-                mSnapshotOnIdle = false;
+                finishBurst();
             }
         } else if (mSnapshotOnIdle == false) {
             // queue a new shot until we done all our shots
             mSnapshotOnIdle = true;
             mBurstShotInProgress = true;
+            mImageSaver.setBurstMode(true);
         }
     }
 
@@ -1923,6 +2343,15 @@ public class PhotoModule
 
         // Start the preview if it is not started.
         if (mCameraState == PREVIEW_STOPPED && mCameraStartUpThread == null) {
+            if (Util.enableSoftwareZSL() && mSoftwareZsl == null) {
+                mSoftwareZsl = new SoftwareZsl();
+            }
+            if (Util.enableFocusAssist() && mFocusAssist == null) {
+                mFocusAssist = new FocusAssist(mActivity, this);
+            }
+            if (Util.getSceneAnalysisInterval() > 0 && mSceneAnalyzer == null) {
+                mSceneAnalyzer = new SceneAnalyzer();
+            }
             resetExposureCompensation();
             mCameraStartUpThread = new CameraStartUpThread();
             mCameraStartUpThread.start();
@@ -1938,6 +2367,10 @@ public class PhotoModule
         keepScreenOnAwhile();
         // Dismiss open menu if exists.
         PopupManager.getInstance(mActivity).notifyShowPopup(null);
+
+        if (Util.showPreviewBufferStats()) {
+            mHandler.sendEmptyMessage(UPDATE_PREVIEW_BUFFER_STATS);
+        }
     }
 
     void waitCameraStartUpThread() {
@@ -1985,6 +2418,18 @@ public class PhotoModule
         stopPreview();
         // Close the camera now because other activities may need to use it.
         closeCamera();
+        if (mSoftwareZsl != null) {
+            mSoftwareZsl.release();
+            mSoftwareZsl = null;
+        }
+        if (mFocusAssist != null) {
+            mFocusAssist.release();
+            mFocusAssist = null;
+        }
+        if (mSceneAnalyzer != null) {
+            mSceneAnalyzer.release();
+            mSceneAnalyzer = null;
+        }
         if (mSurfaceTexture != null) {
             ((CameraScreenNail) mActivity.mCameraScreenNail).releaseSurfaceTexture();
             mSurfaceTexture = null;
@@ -2000,6 +2445,11 @@ public class PhotoModule
 
         if (mFirstTimeInitialized) {
             if (mImageSaver != null) {
+                // The pictures kept from a burst go to the saver first.
+                if (mBurstSelector != null) {
+                    mBurstSelector.finish();
+                    mBurstSelector = null;
+                }
                 mImageSaver.finish();
                 mImageSaver = null;
                 mImageNamer.finish();
@@ -2013,6 +2463,11 @@ public class PhotoModule
         // a picture, we just clear it in onPause.
         mJpegImageData = null;
 
+        // Pictures still in flight are lost with the camera.
+        mContinuousBurstActive = false;
+        mCapturesInFlight = 0;
+        mBurstFirstPictureTime = 0;
+
         // Remove the messages in the event queue.
         mHandler.removeMessages(SETUP_PREVIEW);
         mHandler.removeMessages(FIRST_TIME_INIT);
@@ -2023,6 +2478,7 @@ public class PhotoModule
         mHandler.removeMessages(START_PREVIEW_DONE);
         mHandler.removeMessages(OPEN_CAMERA_FAIL);
         mHandler.removeMessages(CAMERA_DISABLED);
+        mHandler.removeMessages(UPDATE_PREVIEW_BUFFER_STATS);
 
         mPendingSwitchCameraId = -1;
         if (mFocusManager != null) mFocusManager.removeMessages();
@@ -2204,11 +2660,53 @@ public class PhotoModule
             mFocusStartTime = System.currentTimeMillis();
             mCameraDevice.autoFocus(mAutoFocusCallback);
             setCameraState(FOCUSING);
+            startFocusAssist();
+        }
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void startFocusAssist() {
+        if (mFocusAssist == null) return;
+        mFocusRun++;
+        mFocusRunAssisted = false;
+        int[] area = null;
+        List<?> areas = mFocusManager.getFocusAreas();
+        if (areas != null && !areas.isEmpty()) {
+            Rect rect = ((Area) areas.get(0)).rect;
+            area = new int[] { rect.left, rect.top, rect.right, rect.bottom };
         }
+        mFocusAssist.start(mFocusRun, mCameraDevice.getPreviewBufferPool(), mParameters, area);
+    }
+
+    // The preview frames are sharp before the driver called back. A picture
+    // waiting for focus is taken now, otherwise only the indicator changes.
+    @Override
+    public void onFocusSettled(int run) {
+        finishAssistedFocus(run, true);
+    }
+
+    @Override
+    public void onFocusHunting(int run) {
+        finishAssistedFocus(run, false);
+    }
+
+    private void finishAssistedFocus(int run, boolean focused) {
+        if (mPaused || run != mFocusRun || mCameraState != FOCUSING) return;
+        if (!mFocusManager.isFocusingSnapOnFinish()) {
+            mFocusManager.onFocusAssist(focused);
+            return;
+        }
+        Log.v(TAG, (focused ? "Focus settled" : "Focus hunting") + " on the preview after "
+                + (System.currentTimeMillis() - mFocusStartTime) + "ms");
+        mFocusAssist.stop();
+        mFocusRunAssisted = true;
+        setCameraState(IDLE);
+        mFocusManager.onAutoFocus(focused, false);
     }
 
     @Override
     public void cancelAutoFocus() {
+        if (mFocusAssist != null) mFocusAssist.stop();
         mCameraDevice.cancelAutoFocus();
         setCameraState(IDLE);
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
@@ -2334,15 +2832,23 @@ public class PhotoModule
         return false;
     }
 
-    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void closeCamera() {
+        if (mCameraDevice != null) {
+            detachCamera();
+            CameraHolder.instance().release();
+        }
+    }
+
+    // Clears our listeners from the device and forgets it, without
+    // releasing it from CameraHolder.
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void detachCamera() {
         if (mCameraDevice != null) {
             mCameraDevice.setZoomChangeListener(null);
             if(ApiHelper.HAS_FACE_DETECTION) {
                 mCameraDevice.setFaceDetectionListener(null);
             }
             mCameraDevice.setErrorCallback(null);
-            CameraHolder.instance().release();
             mFaceDetectionStarted = false;
             mCameraDevice = null;
             setCameraState(PREVIEW_STOPPED);
@@ -2443,6 +2949,15 @@ public class PhotoModule
         Log.v(TAG, "startPreview");
         mCameraDevice.startPreviewAsync();
 
+        PreviewBufferPool pool = mCameraDevice.getPreviewBufferPool();
+        pool.start(mCameraDevice, mParameters);
+        if (mSoftwareZsl != null && !mIsImageCaptureIntent) {
+            mSoftwareZsl.start(pool, mParameters);
+        }
+        if (mSceneAnalyzer != null) {
+            mSceneAnalyzer.start(pool, mParameters, Util.getSceneAnalysisInterval());
+        }
+
         mFocusManager.onPreviewStarted();
 
         // Set camera mode
@@ -2457,6 +2972,10 @@ public class PhotoModule
     private void stopPreview() {
         if (mCameraDevice != null && mCameraState != PREVIEW_STOPPED) {
             Log.v(TAG, "stopPreview");
+            if (mSoftwareZsl != null) mSoftwareZsl.stop();
+            if (mFocusAssist != null) mFocusAssist.stop();
+            if (mSceneAnalyzer != null) mSceneAnalyzer.stop();
+            mCameraDevice.getPreviewBufferPool().stop();
             mCameraDevice.stopPreview();
             mFaceDetectionStarted = false;
         }
@@ -2835,9 +3354,12 @@ public class PhotoModule
 
     @Override
     public void onCameraPickerClicked(int cameraId) {
-        if (mPaused || mPendingSwitchCameraId != -1) return;
+        // Until the start up thread is done, a previous switch is still
+        // releasing or opening the device.
+        if (mPaused || mPendingSwitchCameraId != -1 || mCameraStartUpThread != null) return;
 
         mPendingSwitchCameraId = cameraId;
+        mSwitchCameraStartTime = SystemClock.uptimeMillis();
         if (ApiHelper.HAS_SURFACE_TEXTURE) {
             Log.v(TAG, "Start to copy texture. cameraId=" + cameraId);
             // We need to keep a preview frame for the animation before
@@ -2858,8 +3380,13 @@ public class PhotoModule
         mPendingSwitchCameraId = -1;
         mPhotoControl.setCameraId(mCameraId);
 
-        // from onPause
-        closeCamera();
+        // from onPause. Stop the preview and detach the listeners here, but
+        // leave releasing the device to the start up thread, which opens the
+        // new camera right after it. The surface texture is kept and reused
+        // by the new camera.
+        stopPreview();
+        Parameters oldParams = mParameters;
+        detachCamera();
         collapseCameraControls();
         if (mFaceView != null) mFaceView.clear();
         if (mFocusManager != null) mFocusManager.removeMessages();
@@ -2867,38 +3394,11 @@ public class PhotoModule
         // Restart the camera and initialize the UI. From onCreate.
         mPreferences.setLocalId(mActivity, mCameraId);
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
-        try {
-            mCameraDevice = Util.openCamera(mActivity, mCameraId);
-            mParameters = mCameraDevice.getParameters();
-        } catch (CameraHardwareException e) {
-            Util.showErrorAndFinish(mActivity, R.string.cannot_connect_camera);
-            return;
-        } catch (CameraDisabledException e) {
-            Util.showErrorAndFinish(mActivity, R.string.camera_disabled);
-            return;
-        }
-        initializeCapabilities();
-        CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
-        boolean mirror = (info.facing == CameraInfo.CAMERA_FACING_FRONT);
-        mFocusManager.setMirror(mirror);
-        mFocusManager.setParameters(mInitialParams);
-        setupPreview();
-        loadCameraPreferences();
-        if (Util.enableAspectRatioFixes()) {
-            setPreviewFrameLayoutAspectRatio();
-        }
-        initializePhotoControl();
 
-        // from initializeFirstTime
-        initializeZoom();
-        updateOnScreenIndicators();
-        showTapToFocusToastIfNeeded();
-
-        if (ApiHelper.HAS_SURFACE_TEXTURE) {
-            // Start switch camera animation. Post a message because
-            // onFrameAvailable from the old camera may already exist.
-            mHandler.sendEmptyMessage(SWITCH_CAMERA_START_ANIMATION);
-        }
+        // The rest of the UI is initialized in initializeAfterCameraOpen()
+        // and the animation is started once the preview is running.
+        mCameraStartUpThread = new CameraStartUpThread(true, oldParams);
+        mCameraStartUpThread.start();
     }
 
     @Override
@@ -2978,8 +3478,26 @@ public class PhotoModule
         editor.apply();
     }
 
-    private void initializeCapabilities() {
-        mInitialParams = mCameraDevice.getParameters();
+    // Called while the trigger word of the voice shutter is learned.
+    public void onVoiceShutterEnrollment(int done, int total) {
+        if (mPaused) return;
+        if (done == 0) {
+            new RotateTextToast(mActivity, R.string.voice_enroll_hint, 0).show();
+        } else if (done == total) {
+            new RotateTextToast(mActivity, R.string.voice_enroll_done, 0).show();
+        }
+    }
+
+    // recycledParams may be a parameters object that is no longer in use. If
+    // the capabilities of the camera are cached, they are copied into it
+    // instead of reading another copy from the driver.
+    private void initializeCapabilities(Parameters recycledParams) {
+        if (recycledParams != null && CameraHolder.instance().getCachedParameters(
+                mCameraId, recycledParams)) {
+            mInitialParams = recycledParams;
+        } else {
+            mInitialParams = mCameraDevice.getParameters();
+        }
         mFocusAreaSupported = Util.isFocusAreaSupported(mInitialParams);
         mMeteringAreaSupported = Util.isMeteringAreaSupported(mInitialParams);
         mAeLockSupported = Util.isAutoExposureLockSupported(mInitialParams);
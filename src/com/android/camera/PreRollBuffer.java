@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+
+/**
+ * Keeps the most recent encoded samples of a stream in a fixed amount of
+ * memory.
+ *
+ * <p>The sample data is stored in one array allocated up front, used as a
+ * ring; every sample is kept in one piece. Old samples are dropped a whole
+ * group of pictures at a time, so the buffer always starts with a sync
+ * sample, when the memory is full or when the samples after the group still
+ * cover the requested duration.
+ *
+ * <p>This class only uses plain Java so that it can be tested on a desktop
+ * JVM.
+ */
+public class PreRollBuffer {
+    private static final int INIT_SAMPLES = 64;
+
+    public interface Sink {
+        public void writeSample(byte[] data, int offset, int length, boolean sync,
+                long timeUs) throws IOException;
+    }
+
+    private final byte[] mData;
+    private final long mDurationUs;
+
+    // The samples, oldest first starting at mFirst.
+    private int[] mOffsets = new int[INIT_SAMPLES];
+    private int[] mSizes = new int[INIT_SAMPLES];
+    private long[] mTimes = new long[INIT_SAMPLES];
+    private boolean[] mSync = new boolean[INIT_SAMPLES];
+    private int mFirst;
+    private int mCount;
+    // The data of the samples runs from mHead to mTail, wrapping around.
+    private int mHead;
+    private int mTail;
+    private int mUsed;
+
+    private int mDropped;
+    private int mPeakUsed;
+
+    public PreRollBuffer(int capacity, long durationUs) {
+        mData = new byte[capacity];
+        mDurationUs = durationUs;
+    }
+
+    /**
+     * Adds a sample, dropping the oldest ones as needed. A sample which is
+     * not a sync sample is dropped when the buffer is empty, as it could not
+     * be decoded.
+     */
+    public void add(byte[] data, int offset, int length, boolean sync, long timeUs) {
+        if (length == 0) return;
+        if (length > mData.length) {
+            mDropped += mCount + 1;
+            clear();
+            return;
+        }
+        // Keep at least the requested duration before the new sample.
+        long next;
+        while ((next = nextGroupTime()) != -1 && timeUs - next >= mDurationUs) {
+            dropGroup();
+        }
+        int position;
+        while ((position = findSpace(length)) == -1) {
+            dropGroup();
+        }
+        if (mCount == 0 && !sync) {
+            mDropped++;
+            return;
+        }
+
+        if (mCount == mOffsets.length) grow();
+        int i = (mFirst + mCount) % mOffsets.length;
+        System.arraycopy(data, offset, mData, position, length);
+        mOffsets[i] = position;
+        mSizes[i] = length;
+        mTimes[i] = timeUs;
+        mSync[i] = sync;
+        if (mCount == 0) mHead = position;
+        mCount++;
+        mTail = position + length;
+        mUsed += length;
+        mPeakUsed = Math.max(mPeakUsed, mUsed);
+    }
+
+    /**
+     * Writes the samples to the sink, oldest first, and empties the buffer.
+     * Samples before {@code minTimeUs} are skipped.
+     */
+    public void drainTo(Sink sink, long minTimeUs) throws IOException {
+        try {
+            for (int n = 0; n < mCount; n++) {
+                int i = (mFirst + n) % mOffsets.length;
+                if (mTimes[i] < minTimeUs) continue;
+                sink.writeSample(mData, mOffsets[i], mSizes[i], mSync[i], mTimes[i]);
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    public void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mHead = 0;
+        mTail = 0;
+        mUsed = 0;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    // The time of the oldest sample, or -1 if there is none.
+    public long getFirstTime() {
+        return (mCount == 0) ? -1 : mTimes[mFirst];
+    }
+
+    public long getDurationUs() {
+        if (mCount == 0) return 0;
+        return mTimes[(mFirst + mCount - 1) % mOffsets.length] - mTimes[mFirst];
+    }
+
+    public int getCapacity() {
+        return mData.length;
+    }
+
+    // The bytes of sample data held.
+    public int getUsed() {
+        return mUsed;
+    }
+
+    public int getPeakUsed() {
+        return mPeakUsed;
+    }
+
+    // The samples dropped to make room, or because they could not start
+    // the buffer.
+    public int getDroppedSamples() {
+        return mDropped;
+    }
+
+    // Returns where a sample of the given length can be stored, or -1.
+    private int findSpace(int length) {
+        if (mCount == 0) return 0;
+        if (mTail > mHead) {
+            if (mTail + length <= mData.length) return mTail;
+            return (length <= mHead) ? 0 : -1;
+        }
+        // Wrapped around, the free space is between the tail and the head.
+        return (mTail + length <= mHead) ? mTail : -1;
+    }
+
+    // The time of the second sync sample, or -1 if there is none.
+    private long nextGroupTime() {
+        for (int n = 1; n < mCount; n++) {
+            int i = (mFirst + n) % mOffsets.length;
+            if (mSync[i]) return mTimes[i];
+        }
+        return -1;
+    }
+
+    // Drops the oldest sample and the ones depending on it.
+    private void dropGroup() {
+        do {
+            mUsed -= mSizes[mFirst];
+            mFirst = (mFirst + 1) % mOffsets.length;
+            mCount--;
+            mDropped++;
+        } while (mCount > 0 && !mSync[mFirst]);
+        if (mCount == 0) {
+            clear();
+        } else {
+            mHead = mOffsets[mFirst];
+        }
+    }
+
+    private void grow() {
+        int length = mOffsets.length;
+        int[] offsets = new int[length * 2];
+        int[] sizes = new int[length * 2];
+        long[] times = new long[length * 2];
+        boolean[] sync = new boolean[length * 2];
+        for (int n = 0; n < mCount; n++) {
+            int i = (mFirst + n) % length;
+            offsets[n] = mOffsets[i];
+            sizes[n] = mSizes[i];
+            times[n] = mTimes[i];
+            sync[n] = mSync[i];
+        }
+        mOffsets = offsets;
+        mSizes = sizes;
+        mTimes = times;
+        mSync = sync;
+        mFirst = 0;
+    }
+}
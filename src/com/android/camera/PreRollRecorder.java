@@ -0,0 +1,784 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.CamcorderProfile;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.PreviewBufferPool.Frame;
+import com.android.gallery3d.common.ApiHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records video while previewing, keeping the last seconds in memory, so a
+ * recording can start with what happened before record was pressed.
+ *
+ * <p>The preview frames of the {@link PreviewBufferPool} and the microphone
+ * are encoded all the time into two {@link PreRollBuffer}s. When recording
+ * starts, the buffers are written to an {@link Mp4Writer} followed by the
+ * samples encoded from then on, with the same encoders, so there is no gap
+ * at the start either. The frames are encoded at the preview size, after
+ * the {@link FrameFilter} if there is one.
+ *
+ * <p>Like {@link MediaRecorder}, a recording stops writing at its file size
+ * or duration limit and tells the listener. The limits are checked at sync
+ * frames, and the samples from then on are kept in memory again, so a
+ * recording started right after continues without a gap. Finishing the
+ * file is left to the caller, see {@link Recording#finish()}.
+ */
+@TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+public class PreRollRecorder implements PreviewBufferPool.Subscriber {
+    private static final String TAG = "CAM_PreRollRecorder";
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    private static final long TIMEOUT_US = 10000;
+    // The pre-roll is cut a group of pictures at a time.
+    private static final int KEY_FRAME_INTERVAL = 1;
+    // Frames waiting for the encoder before new ones are dropped.
+    private static final int MAX_WAITING_FRAMES = 2;
+    // Samples in one AAC frame.
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    public interface Listener {
+        // Runs in main thread. what is
+        // MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED or
+        // MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED.
+        public void onLimitReached(int what);
+    }
+
+    /**
+     * Changes the frames before they are encoded, see
+     * {@link #setFrameFilter}.
+     */
+    public interface FrameFilter {
+        // Runs in encoder thread. Returns the NV21 frame to encode, which
+        // may be the given one. It must stay valid until the next call.
+        public byte[] filterFrame(byte[] nv21, int width, int height);
+    }
+
+    /**
+     * A file written by the recorder. Once recording stopped, the file is
+     * finished by {@link #finish()}, which may take long on large files and
+     * is meant for a background thread.
+     */
+    public static class Recording {
+        // Set by the encoder thread when the recording is stopped.
+        private boolean mDetached;
+        private Mp4Writer mWriter;
+        private boolean mFailed;
+
+        private synchronized void detach(Mp4Writer writer, boolean failed) {
+            mWriter = writer;
+            mFailed = failed;
+            mDetached = true;
+            notifyAll();
+        }
+
+        private synchronized void waitDetached() {
+            while (!mDetached) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore.
+                }
+            }
+        }
+
+        private synchronized Mp4Writer waitForWriter() {
+            waitDetached();
+            Mp4Writer writer = mWriter;
+            mWriter = null;
+            return writer;
+        }
+
+        /**
+         * Finishes the file. Returns the length of the video in ms, or -1 if
+         * it could not be written.
+         */
+        public long finish() {
+            Mp4Writer writer = waitForWriter();
+            if (writer == null) return -1;
+            long start = SystemClock.uptimeMillis();
+            try {
+                if (mFailed || writer.getSampleCount() == 0) throw new IOException("No video");
+                writer.finish();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot finish the recording", e);
+                writer.abort();
+                return -1;
+            }
+            Log.v(TAG, "Wrote " + writer.getSampleCount() + " frames, " + writer.getSize()
+                    + " bytes in " + (SystemClock.uptimeMillis() - start) + "ms");
+            return writer.getDurationUs() / 1000;
+        }
+
+        // Closes the file without finishing it.
+        private void abort() {
+            Mp4Writer writer = waitForWriter();
+            if (writer != null) writer.abort();
+        }
+    }
+
+    private final Listener mListener;
+    private final Handler mMainHandler;
+    private volatile FrameFilter mFrameFilter;
+
+    private PreviewBufferPool mPool;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameRate;
+    private TimeLapseEncoder.Encoder mEncoder;
+
+    private HandlerThread mEncodeThread;
+    private Handler mEncodeHandler;
+    private MediaCodec mVideoCodec;
+    private Thread mAudioThread;
+    private volatile boolean mAudioRunning;
+    private AudioRecord mAudioRecord;
+    private MediaCodec mAudioCodec;
+    private int mSampleRate;
+    private int mChannelCount;
+    // Room kept under the file size limit for the rest of a group of
+    // pictures, in bytes.
+    private long mSizeReserve;
+
+    // The recording being written, and the one stopped last, which may not
+    // be handed over by the encoder thread yet.
+    private Recording mRecording;
+    private Recording mStopping;
+
+    // Guards the buffers, the configs and the writer, which are used by the
+    // encoder and audio threads.
+    private final Object mLock = new Object();
+    private PreRollBuffer mVideoBuffer;
+    private PreRollBuffer mAudioBuffer;
+    private byte[] mVideoConfig;
+    private byte[] mAudioConfig;
+    private Mp4Writer mWriter;
+    // The writer is set but the buffers are not written yet.
+    private boolean mDrainPending;
+    private boolean mWriteFailed;
+    private Recording mWriterRecording;
+    private long mMaxFileSize;
+    private long mMaxDurationUs;
+    // The limit reached by the writer, or 0.
+    private int mLimitReached;
+
+    // Frames retained and not encoded yet, guarded by mLock.
+    private int mWaitingFrames;
+
+    // Statistics since start(), only used in encoder thread except for
+    // mFramesDropped, which is guarded by mLock.
+    private int mFramesEncoded;
+    private int mFramesDropped;
+    private long mConvertTime;
+    private long mEncoderCpuTime;
+    private long mEncodedBytes;
+    private long mStartTime;
+
+    public PreRollRecorder(Listener listener) {
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Whether preview frames of the given size can be encoded.
+    public static boolean isSupported(int width, int height) {
+        return TimeLapseEncoder.isSupported(width, height);
+    }
+
+    /**
+     * Starts encoding the frames of the given pool, which must already be
+     * started, and the microphone. Up to {@code durationMs} of encoded
+     * samples are kept, in at most {@code memoryLimit} bytes. Returns false
+     * if the encoders cannot be started.
+     */
+    public synchronized boolean start(PreviewBufferPool pool, Parameters params,
+            CamcorderProfile profile, int durationMs, int memoryLimit) {
+        stop();
+        if (params.getPreviewFormat() != ImageFormat.NV21 || pool.getFrameSize() == 0) {
+            return false;
+        }
+        mWidth = params.getPreviewSize().width;
+        mHeight = params.getPreviewSize().height;
+        int[] fpsRange = new int[2];
+        params.getPreviewFpsRange(fpsRange);
+        mFrameRate = Math.max(1, fpsRange[Parameters.PREVIEW_FPS_MAX_INDEX] / 1000);
+        if (!isSupported(mWidth, mHeight)) return false;
+        mEncoder = TimeLapseEncoder.Encoder.find(mWidth, mHeight);
+
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, mWidth, mHeight);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, profile.videoBitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoder.colorFormat);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL);
+            mVideoCodec = mEncoder.create();
+            mVideoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mVideoCodec.start();
+            // The input buffers do not change while the codec runs.
+            for (ByteBuffer buffer : mVideoCodec.getInputBuffers()) {
+                mEncoder.checkCapacity(buffer);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot start the video encoder", e);
+            releaseVideoCodec();
+            return false;
+        }
+        // Most of the memory goes to the video.
+        long durationUs = durationMs * 1000L;
+        int audioCapacity = (int) Math.min(memoryLimit / 8,
+                (long) profile.audioBitRate * durationMs / 8000 * 2);
+        mSizeReserve = (long) (profile.videoBitRate + profile.audioBitRate) / 8
+                * KEY_FRAME_INTERVAL * 2;
+        mVideoBuffer = new PreRollBuffer(memoryLimit - audioCapacity, durationUs);
+        mAudioBuffer = new PreRollBuffer(audioCapacity, durationUs);
+        mVideoConfig = null;
+        mAudioConfig = null;
+        mFramesEncoded = 0;
+        mFramesDropped = 0;
+        mConvertTime = 0;
+        mEncoderCpuTime = 0;
+        mEncodedBytes = 0;
+        mStartTime = SystemClock.uptimeMillis();
+
+        mEncodeThread = new HandlerThread("Pre-Roll Encoder");
+        mEncodeThread.start();
+        mEncodeHandler = new Handler(mEncodeThread.getLooper());
+        startAudio(profile);
+
+        mPool = pool;
+        pool.subscribe(this, MAX_WAITING_FRAMES);
+        Log.v(TAG, "Started " + mWidth + "x" + mHeight + " at " + mFrameRate + " fps, "
+                + durationMs + "ms in " + memoryLimit / 1024 + "KB");
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mPool == null) return;
+        mPool.unsubscribe(this);
+        mPool = null;
+        // A recording not handed over is not finished.
+        Recording recording = stopRecording();
+
+        stopAudio();
+        // The frames waiting are released before the encoder goes.
+        mEncodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, getStats());
+                releaseVideoCodec();
+                mEncodeThread.quit();
+            }
+        });
+        try {
+            mEncodeThread.join();
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+        mEncodeThread = null;
+        mEncodeHandler = null;
+        if (recording != null) recording.abort();
+        mStopping = null;
+        synchronized (mLock) {
+            mVideoBuffer = null;
+            mAudioBuffer = null;
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return mPool != null;
+    }
+
+    // Sets the filter of the frames encoded from now on, or null.
+    public void setFrameFilter(FrameFilter filter) {
+        mFrameFilter = filter;
+    }
+
+    /**
+     * Starts writing to the given file, beginning with the samples kept in
+     * memory, until the file reaches {@code maxFileSize} bytes or the video
+     * lasts {@code maxDurationMs}, if greater than 0. Returns false if
+     * nothing was encoded yet or the file cannot be created.
+     */
+    public synchronized boolean startRecording(File file, int rotation, long maxFileSize,
+            int maxDurationMs) {
+        if (mPool == null || mRecording != null) return false;
+        if (mStopping != null) {
+            // The samples must not go to the last file any more.
+            mStopping.waitDetached();
+            mStopping = null;
+        }
+        Recording recording = new Recording();
+        synchronized (mLock) {
+            if (mVideoConfig == null) return false;
+            try {
+                mWriter = new Mp4Writer(file, mWidth, mHeight, mFrameRate, rotation);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot create " + file, e);
+                return false;
+            }
+            mWriter.setCodecConfig(mVideoConfig, 0, mVideoConfig.length);
+            if (mAudioRunning) {
+                mWriter.addAudioTrack(mSampleRate, mChannelCount);
+                if (mAudioConfig != null) {
+                    mWriter.setAudioConfig(mAudioConfig, 0, mAudioConfig.length);
+                }
+            }
+            mDrainPending = true;
+            mWriteFailed = false;
+            mWriterRecording = recording;
+            mMaxFileSize = maxFileSize;
+            mMaxDurationUs = maxDurationMs * 1000L;
+            mLimitReached = 0;
+        }
+        mRecording = recording;
+        // Writing megabytes of samples is kept off the main thread.
+        mEncodeHandler.post(mDrainRunnable);
+        return true;
+    }
+
+    /**
+     * Stops writing. Returns the recording, to be finished by the caller,
+     * or null if there is none.
+     */
+    public synchronized Recording stopRecording() {
+        final Recording recording = mRecording;
+        if (recording == null) return null;
+        mRecording = null;
+        mStopping = recording;
+        // The pre-roll of a very short recording may not be written yet,
+        // the encoder thread does it first.
+        mEncodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                detach(recording);
+            }
+        });
+        return recording;
+    }
+
+    // Runs in encoder thread
+    private void detach(Recording recording) {
+        Mp4Writer writer;
+        boolean failed;
+        synchronized (mLock) {
+            writer = mWriter;
+            failed = mWriteFailed;
+            mWriter = null;
+            mWriterRecording = null;
+        }
+        recording.detach(writer, failed);
+    }
+
+    // Called with mLock held. Whether the samples go to the file.
+    private boolean isWriting() {
+        return mWriter != null && !mDrainPending && mLimitReached == 0;
+    }
+
+    // Called with mLock held, before a sample is written. The limits are
+    // checked at sync frames so the next file can start right there, or
+    // anywhere if the file is full.
+    private void checkLimits(boolean sync) {
+        long size = mWriter.getSize();
+        int what = 0;
+        if (mMaxFileSize > 0 && (size >= mMaxFileSize
+                || (sync && size + mSizeReserve >= mMaxFileSize))) {
+            what = MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED;
+        } else if (sync && mMaxDurationUs > 0 && mWriter.getDurationUs() >= mMaxDurationUs) {
+            what = MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED;
+        }
+        if (what == 0) return;
+        mLimitReached = what;
+        final Recording recording = mWriterRecording;
+        final int limit = what;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PreRollRecorder.this) {
+                    if (recording != mRecording) return;
+                }
+                mListener.onLimitReached(limit);
+            }
+        });
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mWriter == null || !mDrainPending) return;
+                mDrainPending = false;
+                long start = SystemClock.uptimeMillis();
+                long preRoll = mVideoBuffer.getDurationUs();
+                long firstVideo = mVideoBuffer.getFirstTime();
+                try {
+                    mVideoBuffer.drainTo(mWriter, 0);
+                    mAudioBuffer.drainTo(mWriter.getAudioSink(), Math.max(0, firstVideo));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot write the pre-roll", e);
+                    mWriteFailed = true;
+                }
+                Log.v(TAG, "Pre-roll of " + preRoll / 1000 + "ms written in "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+        }
+    };
+
+    // Runs in main thread
+    @Override
+    public synchronized void onPreviewFrame(final Frame frame) {
+        if (mPool == null) return;
+        synchronized (mLock) {
+            if (mWaitingFrames == MAX_WAITING_FRAMES) {
+                mFramesDropped++;
+                return;
+            }
+            mWaitingFrames++;
+        }
+        frame.retain();
+        mEncodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                encodeFrame(frame);
+            }
+        });
+    }
+
+    // Runs in encoder thread
+    private void encodeFrame(Frame frame) {
+        long cpuStart = SystemClock.currentThreadTimeMillis();
+        long start = System.nanoTime();
+        try {
+            byte[] data = frame.data;
+            FrameFilter filter = mFrameFilter;
+            if (filter != null) data = filter.filterFrame(data, mWidth, mHeight);
+            ByteBuffer[] inputs = mVideoCodec.getInputBuffers();
+            int index = mVideoCodec.dequeueInputBuffer(TIMEOUT_US);
+            if (index >= 0) {
+                ByteBuffer buffer = inputs[index];
+                buffer.clear();
+                convertFrame(data, buffer);
+                // uptimeMillis() and System.nanoTime() share their clock, so
+                // the audio can be lined up with the video.
+                mVideoCodec.queueInputBuffer(index, 0, mEncoder.frameSize,
+                        frame.timestamp * 1000, 0);
+                mFramesEncoded++;
+            } else {
+                synchronized (mLock) {
+                    mFramesDropped++;
+                }
+            }
+            mConvertTime += System.nanoTime() - start;
+            drainVideo();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Video encoder failed", e);
+        } finally {
+            frame.release();
+            synchronized (mLock) {
+                mWaitingFrames--;
+            }
+        }
+        mEncoderCpuTime += SystemClock.currentThreadTimeMillis() - cpuStart;
+    }
+
+    // Converts NV21 to the input format of the encoder, YUV 4:2:0 with the
+    // U and V planes separate or interleaved, U first, in the layout of the
+    // encoder. The padding is left as it is.
+    private void convertFrame(byte[] nv21, ByteBuffer out) {
+        TimeLapseEncoder.Encoder encoder = mEncoder;
+        int frameSize = mWidth * mHeight;
+        if (encoder.stride == mWidth) {
+            out.put(nv21, 0, frameSize);
+        } else {
+            for (int row = 0; row < mHeight; row++) {
+                out.position(row * encoder.stride);
+                out.put(nv21, row * mWidth, mWidth);
+            }
+        }
+        int chromaWidth = mWidth / 2;
+        for (int row = 0; row < mHeight / 2; row++) {
+            int in = frameSize + row * mWidth;
+            int u = encoder.uOffset + row * encoder.chromaStride;
+            int v = encoder.vOffset + row * encoder.chromaStride;
+            for (int x = 0; x < chromaWidth; x++) {
+                out.put(u, nv21[in + 1]);
+                out.put(v, nv21[in]);
+                in += 2;
+                u += encoder.chromaStep;
+                v += encoder.chromaStep;
+            }
+        }
+    }
+
+    private byte[] mVideoOutput;
+
+    // Runs in encoder thread
+    private void drainVideo() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] outputs = mVideoCodec.getOutputBuffers();
+        while (true) {
+            int index = mVideoCodec.dequeueOutputBuffer(info, 0);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputs = mVideoCodec.getOutputBuffers();
+                continue;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Some encoders only give the SPS and PPS here.
+                MediaFormat format = mVideoCodec.getOutputFormat();
+                byte[] sps = getCodecData(format, "csd-0");
+                byte[] pps = getCodecData(format, "csd-1");
+                if (sps != null && pps != null) {
+                    byte[] config = new byte[sps.length + pps.length];
+                    System.arraycopy(sps, 0, config, 0, sps.length);
+                    System.arraycopy(pps, 0, config, sps.length, pps.length);
+                    synchronized (mLock) {
+                        mVideoConfig = config;
+                    }
+                }
+                continue;
+            } else if (index < 0) {
+                return;
+            }
+
+            if (mVideoOutput == null || mVideoOutput.length < info.size) {
+                mVideoOutput = new byte[info.size];
+            }
+            ByteBuffer buffer = outputs[index];
+            buffer.position(info.offset);
+            buffer.get(mVideoOutput, 0, info.size);
+            mVideoCodec.releaseOutputBuffer(index, false);
+            boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            synchronized (mLock) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mVideoConfig = new byte[info.size];
+                    System.arraycopy(mVideoOutput, 0, mVideoConfig, 0, info.size);
+                } else if (info.size > 0) {
+                    mEncodedBytes += info.size;
+                    if (isWriting()) checkLimits(sync);
+                    if (isWriting()) {
+                        writeVideo(mVideoOutput, info.size, sync, info.presentationTimeUs);
+                    } else {
+                        mVideoBuffer.add(mVideoOutput, 0, info.size, sync,
+                                info.presentationTimeUs);
+                    }
+                }
+            }
+        }
+    }
+
+    // Called with mLock held
+    private void writeVideo(byte[] data, int size, boolean sync, long timeUs) {
+        // The buffer was empty, so the video must start with a sync frame.
+        if (mWriter.getSampleCount() == 0 && !sync) return;
+        try {
+            mWriter.writeSample(data, 0, size, sync, timeUs);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write video", e);
+            mWriteFailed = true;
+        }
+    }
+
+    private static byte[] getCodecData(MediaFormat format, String key) {
+        if (!format.containsKey(key)) return null;
+        ByteBuffer buffer = format.getByteBuffer(key);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    private void releaseVideoCodec() {
+        if (mVideoCodec == null) return;
+        try {
+            mVideoCodec.stop();
+        } catch (RuntimeException e) {
+            // The codec may not have started.
+        }
+        mVideoCodec.release();
+        mVideoCodec = null;
+    }
+
+    // The video is kept even if there is no microphone.
+    private void startAudio(CamcorderProfile profile) {
+        mSampleRate = profile.audioSampleRate;
+        mChannelCount = profile.audioChannels;
+        int channelConfig = (mChannelCount == 2) ? AudioFormat.CHANNEL_IN_STEREO
+                : AudioFormat.CHANNEL_IN_MONO;
+        try {
+            int minSize = AudioRecord.getMinBufferSize(mSampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, mSampleRate,
+                    channelConfig, AudioFormat.ENCODING_PCM_16BIT, minSize * 4);
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IllegalStateException("AudioRecord not initialized");
+            }
+            MediaFormat format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, mSampleRate,
+                    mChannelCount);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, profile.audioBitRate);
+            mAudioCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+            mAudioCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mAudioCodec.start();
+            mAudioRecord.startRecording();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot start audio, recording video only", e);
+            releaseAudio();
+            return;
+        }
+        mAudioRunning = true;
+        mAudioThread = new Thread("Pre-Roll Audio") {
+            @Override
+            public void run() {
+                encodeAudio();
+            }
+        };
+        mAudioThread.start();
+    }
+
+    private void stopAudio() {
+        if (mAudioThread == null) return;
+        mAudioRunning = false;
+        try {
+            mAudioThread.join();
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+        mAudioThread = null;
+        releaseAudio();
+    }
+
+    private void releaseAudio() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mAudioCodec != null) {
+            try {
+                mAudioCodec.stop();
+            } catch (RuntimeException e) {
+                // The codec may not have started.
+            }
+            mAudioCodec.release();
+            mAudioCodec = null;
+        }
+    }
+
+    // Runs in audio thread
+    private void encodeAudio() {
+        int frameBytes = AAC_FRAME_SAMPLES * mChannelCount * 2;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        byte[] output = null;
+        try {
+            ByteBuffer[] inputs = mAudioCodec.getInputBuffers();
+            ByteBuffer[] outputs = mAudioCodec.getOutputBuffers();
+            while (mAudioRunning) {
+                int index = mAudioCodec.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer buffer = inputs[index];
+                    buffer.clear();
+                    int read = mAudioRecord.read(buffer, Math.min(frameBytes, buffer.capacity()));
+                    // The samples read were recorded before now.
+                    long timeUs = System.nanoTime() / 1000 - (long) Math.max(read, 0)
+                            / (2 * mChannelCount) * 1000000 / mSampleRate;
+                    mAudioCodec.queueInputBuffer(index, 0, Math.max(read, 0), timeUs, 0);
+                }
+
+                while (true) {
+                    index = mAudioCodec.dequeueOutputBuffer(info, 0);
+                    if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        outputs = mAudioCodec.getOutputBuffers();
+                        continue;
+                    } else if (index < 0) {
+                        break;
+                    }
+                    if (output == null || output.length < info.size) output = new byte[info.size];
+                    ByteBuffer buffer = outputs[index];
+                    buffer.position(info.offset);
+                    buffer.get(output, 0, info.size);
+                    mAudioCodec.releaseOutputBuffer(index, false);
+                    writeAudio(output, info);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Audio encoder failed", e);
+        }
+    }
+
+    // Runs in audio thread
+    private void writeAudio(byte[] data, MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                mAudioConfig = new byte[info.size];
+                System.arraycopy(data, 0, mAudioConfig, 0, info.size);
+                if (mWriter != null) mWriter.setAudioConfig(data, 0, info.size);
+            } else if (info.size > 0) {
+                if (isWriting()) checkLimits(false);
+                if (isWriting()) {
+                    try {
+                        mWriter.writeAudioSample(data, 0, info.size, info.presentationTimeUs);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot write audio", e);
+                        mWriteFailed = true;
+                    }
+                } else if (mAudioBuffer != null) {
+                    mAudioBuffer.add(data, 0, info.size, true, info.presentationTimeUs);
+                }
+            }
+        }
+    }
+
+    // Runs in encoder thread. How much the pre-roll costs: the time to
+    // convert and queue a frame, the CPU time of the encoder thread per
+    // second, the bit rate and the memory used.
+    private String getStats() {
+        long elapsed = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+        StringBuilder sb = new StringBuilder("Pre-roll: ");
+        sb.append(mFramesEncoded).append(" frames, ").append(mFramesDropped)
+                .append(" dropped, ");
+        if (mFramesEncoded > 0) {
+            sb.append(mConvertTime / mFramesEncoded / 1000).append("us to queue a frame, ");
+        }
+        sb.append(mEncoderCpuTime * 1000 / elapsed).append("ms CPU/s, ")
+                .append(mEncodedBytes * 8 / elapsed).append("kbps");
+        synchronized (mLock) {
+            if (mVideoBuffer != null) {
+                sb.append(", video buffer peak ").append(mVideoBuffer.getPeakUsed() / 1024)
+                        .append(" of ").append(mVideoBuffer.getCapacity() / 1024).append("KB");
+            }
+            if (mAudioBuffer != null) {
+                sb.append(", audio buffer peak ").append(mAudioBuffer.getPeakUsed() / 1024)
+                        .append(" of ").append(mAudioBuffer.getCapacity() / 1024).append("KB");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.util.ArrayList;
+
+/**
+ * Owns the buffers used with {@code setPreviewCallbackWithBuffer} and fans
+ * the preview frames out to several subscribers.
+ *
+ * <p>Every frame is reference counted. A subscriber that wants to keep a
+ * frame after {@link Subscriber#onPreviewFrame} returns calls
+ * {@link Frame#retain()} and later {@link Frame#release()}. The buffer goes
+ * back to the driver when the last reference is released.
+ *
+ * <p>The pool allocates {@link #DRIVER_BUFFERS} buffers plus the number of
+ * frames each subscriber says it may hold, so the driver does not run out
+ * of buffers as long as the subscribers keep their promise. Frames the
+ * driver had to drop anyway are counted, see {@link #getStats()}.
+ *
+ * <p>The pool is used on the main thread, where the preview callbacks of
+ * the camera are delivered, but it may be started from the camera start up
+ * thread.
+ */
+public class PreviewBufferPool implements PreviewCallback {
+    private static final String TAG = "CAM_PreviewBufferPool";
+
+    // Buffers kept queued in the driver, on top of the frames held by the
+    // subscribers.
+    public static final int DRIVER_BUFFERS = 2;
+
+    public interface Subscriber {
+        // Runs in main thread. The frame is only valid during this call
+        // unless it is retained.
+        public void onPreviewFrame(Frame frame);
+    }
+
+    public class Frame {
+        public final byte[] data;
+        // SystemClock.uptimeMillis() when the frame was delivered.
+        public long timestamp;
+        private int mRefCount;
+        // Which start() of the pool the buffer belongs to.
+        private final int mGeneration;
+
+        private Frame(byte[] data, int generation) {
+            this.data = data;
+            mGeneration = generation;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public void retain() {
+            synchronized (PreviewBufferPool.this) {
+                mRefCount++;
+            }
+        }
+
+        public void release() {
+            synchronized (PreviewBufferPool.this) {
+                if (--mRefCount == 0) recycle(this);
+            }
+        }
+    }
+
+    private static class Subscription {
+        Subscriber subscriber;
+        int maxRetained;
+    }
+
+    private final ArrayList<Subscription> mSubscriptions = new ArrayList<Subscription>();
+    private final ArrayList<Frame> mFrames = new ArrayList<Frame>();
+
+    private CameraProxy mCameraDevice;
+    private int mGeneration;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameSize;
+    private int mFrameInterval;  // Expected time between frames, in ms.
+
+    // Buffers currently owned by the driver.
+    private int mQueued;
+
+    // Statistics since the last start().
+    private int mFramesReceived;
+    private int mFramesDropped;
+    private int mDriverStarved;
+    private long mHoldTimeTotal;
+    private long mHoldTimeMax;
+    private long mLastTimestamp;
+
+    /**
+     * Starts delivering the preview frames of the camera. The preview must
+     * use the NV21 format.
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized void start(CameraProxy camera, Parameters params) {
+        stop();
+        Size size = params.getPreviewSize();
+        mCameraDevice = camera;
+        mGeneration++;
+        mWidth = size.width;
+        mHeight = size.height;
+        mFrameSize = size.width * size.height
+                * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
+        int[] fpsRange = new int[2];
+        params.getPreviewFpsRange(fpsRange);
+        int maxFps = fpsRange[Parameters.PREVIEW_FPS_MAX_INDEX];
+        mFrameInterval = (maxFps > 0) ? 1000 * 1000 / maxFps : 1000 / 30;
+
+        mFramesReceived = 0;
+        mFramesDropped = 0;
+        mDriverStarved = 0;
+        mHoldTimeTotal = 0;
+        mHoldTimeMax = 0;
+        mLastTimestamp = 0;
+
+        if (!mSubscriptions.isEmpty()) {
+            mCameraDevice.setPreviewCallbackWithBuffer(this);
+            allocateBuffers();
+        }
+    }
+
+    public synchronized void stop() {
+        if (mCameraDevice == null) return;
+        if (!mSubscriptions.isEmpty()) {
+            mCameraDevice.setPreviewCallbackWithBuffer(null);
+        }
+        Log.v(TAG, getStats());
+        mCameraDevice = null;
+        // Frames still held by subscribers are dropped when released.
+        mFrames.clear();
+        mQueued = 0;
+    }
+
+    public synchronized boolean isStarted() {
+        return mCameraDevice != null;
+    }
+
+    // The size in bytes of one frame, or 0 if the pool is not started.
+    public synchronized int getFrameSize() {
+        return (mCameraDevice == null) ? 0 : mFrameSize;
+    }
+
+    /**
+     * Adds a subscriber which may retain up to {@code maxRetained} frames at
+     * the same time.
+     */
+    public synchronized void subscribe(Subscriber subscriber, int maxRetained) {
+        Subscription s = new Subscription();
+        s.subscriber = subscriber;
+        s.maxRetained = maxRetained;
+        mSubscriptions.add(s);
+        if (mCameraDevice != null) {
+            if (mSubscriptions.size() == 1) {
+                mCameraDevice.setPreviewCallbackWithBuffer(this);
+            }
+            allocateBuffers();
+        }
+    }
+
+    public synchronized void unsubscribe(Subscriber subscriber) {
+        for (int i = 0; i < mSubscriptions.size(); i++) {
+            if (mSubscriptions.get(i).subscriber == subscriber) {
+                mSubscriptions.remove(i);
+                break;
+            }
+        }
+        if (mSubscriptions.isEmpty() && mCameraDevice != null) {
+            // Without subscribers the preview runs without callbacks.
+            mCameraDevice.setPreviewCallbackWithBuffer(null);
+            mFrames.clear();
+            mQueued = 0;
+            mGeneration++;
+        }
+    }
+
+    private int getTargetBufferCount() {
+        int count = DRIVER_BUFFERS;
+        for (Subscription s : mSubscriptions) {
+            count += s.maxRetained;
+        }
+        return count;
+    }
+
+    // Allocates the missing buffers. Extra buffers are not queued again when
+    // they come back, see recycle().
+    private void allocateBuffers() {
+        int target = getTargetBufferCount();
+        while (mFrames.size() < target) {
+            Frame frame = new Frame(new byte[mFrameSize], mGeneration);
+            mFrames.add(frame);
+            mCameraDevice.addCallbackBufferAsync(frame.data);
+            mQueued++;
+        }
+    }
+
+    // Runs in main thread
+    @Override
+    public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+        Frame frame;
+        Subscription[] subscriptions;
+        synchronized (this) {
+            frame = findFrame(data);
+            if (frame == null) return;
+            mQueued--;
+
+            long now = SystemClock.uptimeMillis();
+            mFramesReceived++;
+            if (mQueued == 0) mDriverStarved++;
+            if (mLastTimestamp != 0) {
+                // A longer gap than one and a half frames means the driver
+                // dropped frames.
+                long gap = now - mLastTimestamp;
+                if (gap * 2 > mFrameInterval * 3) {
+                    mFramesDropped += (int) ((gap + mFrameInterval / 2) / mFrameInterval) - 1;
+                }
+            }
+            mLastTimestamp = now;
+
+            frame.timestamp = now;
+            frame.mRefCount = 1;  // Our own reference during the delivery.
+            subscriptions = mSubscriptions.toArray(new Subscription[mSubscriptions.size()]);
+        }
+        for (Subscription s : subscriptions) {
+            s.subscriber.onPreviewFrame(frame);
+        }
+        frame.release();
+    }
+
+    private Frame findFrame(byte[] data) {
+        for (int i = 0, n = mFrames.size(); i < n; i++) {
+            Frame frame = mFrames.get(i);
+            if (frame.data == data) return frame;
+        }
+        return null;
+    }
+
+    private void recycle(Frame frame) {
+        long holdTime = SystemClock.uptimeMillis() - frame.timestamp;
+        mHoldTimeTotal += holdTime;
+        if (holdTime > mHoldTimeMax) mHoldTimeMax = holdTime;
+
+        if (mCameraDevice == null || frame.mGeneration != mGeneration) return;
+        if (mFrames.size() > getTargetBufferCount()) {
+            // A subscriber has gone, let this buffer go too.
+            mFrames.remove(frame);
+            return;
+        }
+        mCameraDevice.addCallbackBufferAsync(frame.data);
+        mQueued++;
+    }
+
+    /**
+     * Returns a one line summary of the buffer usage since the last start.
+     */
+    public synchronized String getStats() {
+        long averageHold = (mFramesReceived == 0) ? 0 : mHoldTimeTotal / mFramesReceived;
+        return mWidth + "x" + mHeight
+                + " buffers " + mFrames.size() + " (queued " + mQueued + ")"
+                + " frames " + mFramesReceived
+                + " dropped " + mFramesDropped
+                + " starved " + mDriverStarved
+                + " hold avg " + averageHold + "ms max " + mHoldTimeMax + "ms";
+    }
+}
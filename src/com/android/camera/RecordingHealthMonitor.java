@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Measures whether the frame rate of a recording is achieved, from the
+ * timestamps of the preview frames delivered while recording.
+ *
+ * <p>Every interval between two frames is compared with the interval of
+ * the expected frame rate and counted in a gap histogram: on time, one,
+ * two, or three and more frames missing. The effective frame rate, the
+ * jitter of the intervals and the dropped frames are reported when the
+ * monitor is stopped.
+ *
+ * <p>This class only uses plain Java. The timestamps can be recorded in a
+ * {@link TimestampTrace} and replayed on a desktop JVM.
+ */
+public class RecordingHealthMonitor {
+    // On time, 1, 2 and 3 or more frames missing.
+    public static final int GAP_BUCKETS = 4;
+
+    public interface Listener {
+        public void onRecordingHealth(Report report);
+    }
+
+    public static class Report {
+        public int expectedFps;
+        public int frames;
+        public long durationMs;
+        public float effectiveFps;
+        public float meanIntervalMs;
+        // The standard deviation of the intervals.
+        public float jitterMs;
+        public float maxIntervalMs;
+        public int droppedFrames;
+        public final int[] gaps = new int[GAP_BUCKETS];
+
+        public String dump() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Recording health: ").append(frames).append(" frames in ")
+                    .append(durationMs).append("ms, ")
+                    .append(String.format("%.2f", effectiveFps)).append(" of ")
+                    .append(expectedFps).append(" fps, interval ")
+                    .append(String.format("%.2f", meanIntervalMs)).append("ms +- ")
+                    .append(String.format("%.2f", jitterMs)).append("ms, max ")
+                    .append(String.format("%.2f", maxIntervalMs)).append("ms, dropped ")
+                    .append(droppedFrames).append(", gaps");
+            for (int i = 0; i < GAP_BUCKETS; i++) {
+                sb.append(i == 0 ? " " : "/").append(gaps[i]);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return dump();
+        }
+    }
+
+    private final int mExpectedFps;
+    private final long mExpectedIntervalNs;
+    private Listener mListener;
+    private TimestampTrace mTrace;
+
+    private int mFrames;
+    private long mFirstTimestamp;
+    private long mLastTimestamp;
+    // Sums of the intervals and their squares, in ms to keep the squares
+    // in range.
+    private double mIntervalSum;
+    private double mIntervalSquareSum;
+    private long mMaxInterval;
+    private int mDropped;
+    private final int[] mGaps = new int[GAP_BUCKETS];
+
+    public RecordingHealthMonitor(int expectedFps) {
+        mExpectedFps = expectedFps;
+        mExpectedIntervalNs = 1000000000L / expectedFps;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // Records the timestamps in the trace as well, null to stop.
+    public synchronized void setTrace(TimestampTrace trace) {
+        mTrace = trace;
+    }
+
+    public synchronized TimestampTrace getTrace() {
+        return mTrace;
+    }
+
+    // Timestamps are in ns, from any clock which does not jump.
+    public synchronized void onFrame(long timestampNs) {
+        if (mTrace != null) mTrace.add(timestampNs);
+        if (mFrames++ == 0) {
+            mFirstTimestamp = timestampNs;
+            mLastTimestamp = timestampNs;
+            return;
+        }
+        long interval = timestampNs - mLastTimestamp;
+        mLastTimestamp = timestampNs;
+        if (interval <= 0) return;
+
+        double ms = interval / 1000000.0;
+        mIntervalSum += ms;
+        mIntervalSquareSum += ms * ms;
+        mMaxInterval = Math.max(mMaxInterval, interval);
+        // The number of frame intervals this one spans, rounded.
+        int missing = (int) ((interval + mExpectedIntervalNs / 2) / mExpectedIntervalNs) - 1;
+        if (missing > 0) mDropped += missing;
+        mGaps[Math.min(Math.max(missing, 0), GAP_BUCKETS - 1)]++;
+    }
+
+    public synchronized Report getReport() {
+        Report r = new Report();
+        r.expectedFps = mExpectedFps;
+        r.frames = mFrames;
+        int intervals = 0;
+        for (int gap : mGaps) intervals += gap;
+        if (intervals > 0) {
+            long duration = mLastTimestamp - mFirstTimestamp;
+            r.durationMs = duration / 1000000;
+            r.effectiveFps = (float) (intervals * 1000000000.0 / duration);
+            double mean = mIntervalSum / intervals;
+            r.meanIntervalMs = (float) mean;
+            r.jitterMs = (float) Math.sqrt(Math.max(0,
+                    mIntervalSquareSum / intervals - mean * mean));
+            r.maxIntervalMs = mMaxInterval / 1000000f;
+        }
+        r.droppedFrames = mDropped;
+        System.arraycopy(mGaps, 0, r.gaps, 0, GAP_BUCKETS);
+        return r;
+    }
+
+    // Reports to the listener, if any, and returns the report.
+    public Report stop() {
+        Report r = getReport();
+        if (mListener != null) mListener.onRecordingHealth(r);
+        return r;
+    }
+}
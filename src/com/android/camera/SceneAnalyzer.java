@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.android.camera.PreviewBufferPool.Frame;
+
+import java.util.ArrayList;
+
+/**
+ * Analyzes the preview frames with a {@link SceneStats} for the modules
+ * which want to know about the scene, like software HDR and burst.
+ *
+ * <p>While started, a preview frame is retained from the
+ * {@link PreviewBufferPool} every {@link Util#getSceneAnalysisInterval()}
+ * ms at most, and only when the previous one is done, then analyzed on a
+ * worker thread. The results are copied for the main thread, where the
+ * listeners hear about them and the getters may be called.
+ */
+public class SceneAnalyzer implements PreviewBufferPool.Subscriber {
+    public interface Listener {
+        // Runs in main thread, after each analyzed frame.
+        public void onSceneAnalyzed(SceneAnalyzer analyzer);
+    }
+
+    private final Handler mMainHandler;
+    private final Handler mWorkerHandler;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private PreviewBufferPool mPool;
+    private int mInterval;
+    // The frame being analyzed, and when the last one was taken.
+    private Frame mFrame;
+    private long mLastTime;
+
+    // Only used in worker thread while a frame is analyzed.
+    private final SceneStats mStats = new SceneStats();
+    private boolean mReset;
+
+    // Results for the main thread.
+    private boolean mValid;
+    private long mTimestamp;
+    private float mMeanLuma;
+    private float mDarkClip, mBrightClip;
+    private int mMotionX, mMotionY;
+    private float mLocalMotion;
+    private boolean mStable;
+    private final float[] mHistogram = new float[SceneStats.HISTOGRAM_BINS];
+
+    public SceneAnalyzer() {
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread t = new HandlerThread("Scene Analyzer");
+        t.start();
+        mWorkerHandler = new Handler(t.getLooper());
+    }
+
+    // Runs in main thread
+    public void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts analyzing the frames of the given pool, which must already be
+     * started. Returns false if the preview does not use NV21.
+     */
+    public synchronized boolean start(PreviewBufferPool pool, Parameters params, int interval) {
+        stop();
+        if (params.getPreviewFormat() != ImageFormat.NV21 || pool.getFrameSize() == 0) {
+            return false;
+        }
+        mPool = pool;
+        mInterval = interval;
+        mLastTime = 0;
+        // The statistics of the previous preview are dropped.
+        mReset = true;
+        mValid = false;
+        pool.subscribe(this, 1);
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mPool == null) return;
+        mPool.unsubscribe(this);
+        mPool = null;
+        mValid = false;
+        // A frame being analyzed is released by the worker.
+    }
+
+    public void release() {
+        stop();
+        mWorkerHandler.getLooper().quit();
+    }
+
+    // Runs in main thread
+    @Override
+    public synchronized void onPreviewFrame(Frame frame) {
+        if (mPool == null || mFrame != null) return;
+        if (frame.timestamp - mLastTime < mInterval) return;
+        mLastTime = frame.timestamp;
+        frame.retain();
+        mFrame = frame;
+        mWorkerHandler.post(mAnalyzeRunnable);
+    }
+
+    private final Runnable mAnalyzeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Frame frame;
+            synchronized (SceneAnalyzer.this) {
+                frame = mFrame;
+                if (mReset) {
+                    mStats.reset();
+                    mReset = false;
+                }
+            }
+            mStats.analyze(frame.data, frame.getWidth(), frame.getHeight());
+            frame.release();
+            mMainHandler.post(mPublishRunnable);
+        }
+    };
+
+    // No frame is analyzed until this ran, so the statistics are not
+    // changing while they are copied.
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SceneAnalyzer.this) {
+                mFrame = null;
+                // Not for a stopped preview, or one restarted meanwhile.
+                if (mPool == null || mReset) return;
+                mValid = true;
+                mTimestamp = mLastTime;
+                mMeanLuma = mStats.getMeanLuma();
+                mDarkClip = mStats.getDarkClip();
+                mBrightClip = mStats.getBrightClip();
+                mMotionX = mStats.getMotionX();
+                mMotionY = mStats.getMotionY();
+                mLocalMotion = mStats.getLocalMotion();
+                mStable = mStats.isStable();
+                mStats.getHistogram(mHistogram);
+            }
+            for (int i = 0; i < mListeners.size(); i++) {
+                mListeners.get(i).onSceneAnalyzed(SceneAnalyzer.this);
+            }
+        }
+    };
+
+    // The getters below run in main thread. Whether a frame of the current
+    // preview was analyzed yet.
+    public boolean isValid() {
+        return mValid;
+    }
+
+    // SystemClock.uptimeMillis() of the last analyzed frame.
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public float getMeanLuma() {
+        return mMeanLuma;
+    }
+
+    // Copies the rolling histogram, see SceneStats.getHistogram().
+    public void getHistogram(float[] out) {
+        System.arraycopy(mHistogram, 0, out, 0, SceneStats.HISTOGRAM_BINS);
+    }
+
+    public int getLumaPercentile(float fraction) {
+        return SceneStats.percentile(mHistogram, fraction);
+    }
+
+    public float getDarkClip() {
+        return mDarkClip;
+    }
+
+    public float getBrightClip() {
+        return mBrightClip;
+    }
+
+    public int getMotionX() {
+        return mMotionX;
+    }
+
+    public int getMotionY() {
+        return mMotionY;
+    }
+
+    public float getLocalMotion() {
+        return mLocalMotion;
+    }
+
+    public boolean isStable() {
+        return mStable;
+    }
+
+    // A summary of the scene for debugging.
+    public String getStats() {
+        if (!mValid) return "scene not analyzed";
+        return "luma " + Math.round(mMeanLuma)
+                + " (" + getLumaPercentile(0.02f) + "-" + getLumaPercentile(0.98f) + ")"
+                + " clip " + Math.round(mDarkClip * 100) + "%/"
+                + Math.round(mBrightClip * 100) + "%"
+                + " motion " + mMotionX + "," + mMotionY
+                + " local " + Math.round(mLocalMotion)
+                + (mStable ? " stable" : "");
+    }
+}
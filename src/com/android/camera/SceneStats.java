@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Statistics of the scene seen by the preview: the luma histogram, how much
+ * of the frame is clipped, how the camera moves and whether the scene is
+ * stable.
+ *
+ * <p>Each frame is point sampled down to at most {@link #THUMB_SIZE} pixels
+ * on each side. The histogram of the samples is averaged over the last
+ * frames. The global motion is the shift of the samples against the
+ * previous frame which matches best, up to {@link #MAX_SHIFT} samples each
+ * way, and what is left different after the shift is the local motion.
+ *
+ * <p>Analyzing does not allocate. This class only uses plain Java so that
+ * it can be tested on a desktop JVM, and it is not thread safe.
+ */
+public class SceneStats {
+    public static final int THUMB_SIZE = 64;
+    public static final int HISTOGRAM_BINS = 64;
+    public static final int MAX_SHIFT = 3;
+
+    // Lumas at or below and at or above these are clipped.
+    public static final int DARK_CLIP = 8;
+    public static final int BRIGHT_CLIP = 247;
+
+    // Weight of the newest frame in the rolling histogram.
+    private static final float HISTOGRAM_ALPHA = 0.25f;
+    // Stable: this many frames in a row moved less than these.
+    private static final int STABLE_FRAMES = 4;
+    private static final int STABLE_SHIFT = 1;
+    private static final float STABLE_RESIDUAL = 4f;
+    private static final float STABLE_LUMA = 3f;
+
+    private final int[] mThumb = new int[THUMB_SIZE * THUMB_SIZE];
+    private final int[] mPrevious = new int[THUMB_SIZE * THUMB_SIZE];
+    private int mThumbWidth, mThumbHeight, mStep;
+    private final int[] mCounts = new int[HISTOGRAM_BINS];
+    private final float[] mHistogram = new float[HISTOGRAM_BINS];
+
+    private int mFrames;
+    private float mMeanLuma;
+    private float mDarkClip, mBrightClip;
+    private int mShiftX, mShiftY;
+    private float mResidual;
+    private int mStableFrames;
+
+    // Forgets the previous frames, for a new preview.
+    public void reset() {
+        mFrames = 0;
+        mStableFrames = 0;
+        mShiftX = mShiftY = 0;
+        mResidual = 0;
+    }
+
+    /**
+     * Adds a frame. Only the luma plane is read, so an NV21 frame or a gray
+     * image can be used.
+     */
+    public void analyze(byte[] frame, int width, int height) {
+        int step = Math.max((width + THUMB_SIZE - 1) / THUMB_SIZE,
+                (height + THUMB_SIZE - 1) / THUMB_SIZE);
+        int w = width / step;
+        int h = height / step;
+        // The previous frame cannot be compared with another size.
+        if (step != mStep || w != mThumbWidth || h != mThumbHeight) reset();
+        mStep = step;
+        mThumbWidth = w;
+        mThumbHeight = h;
+
+        System.arraycopy(mThumb, 0, mPrevious, 0, w * h);
+        for (int i = 0; i < HISTOGRAM_BINS; i++) mCounts[i] = 0;
+        long total = 0;
+        int dark = 0, bright = 0;
+        for (int y = 0; y < h; y++) {
+            int p = (y * step + step / 2) * width + step / 2;
+            int q = y * w;
+            for (int x = 0; x < w; x++, p += step) {
+                int luma = frame[p] & 0xff;
+                mThumb[q + x] = luma;
+                mCounts[luma * HISTOGRAM_BINS / 256]++;
+                total += luma;
+                if (luma <= DARK_CLIP) dark++;
+                if (luma >= BRIGHT_CLIP) bright++;
+            }
+        }
+        int samples = w * h;
+        float previousMean = mMeanLuma;
+        mMeanLuma = (float) total / samples;
+        mDarkClip = (float) dark / samples;
+        mBrightClip = (float) bright / samples;
+
+        float alpha = mFrames == 0 ? 1 : HISTOGRAM_ALPHA;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            mHistogram[i] += alpha * ((float) mCounts[i] / samples - mHistogram[i]);
+        }
+
+        if (mFrames > 0) {
+            estimateMotion(Math.round(mMeanLuma - previousMean));
+            boolean still = Math.abs(mShiftX) <= STABLE_SHIFT
+                    && Math.abs(mShiftY) <= STABLE_SHIFT
+                    && mResidual < STABLE_RESIDUAL
+                    && Math.abs(mMeanLuma - previousMean) < STABLE_LUMA;
+            mStableFrames = still ? mStableFrames + 1 : 0;
+        }
+        mFrames++;
+    }
+
+    // Finds the shift of the previous frame which matches this one best,
+    // with the change of brightness taken out.
+    private void estimateMotion(int lumaChange) {
+        int w = mThumbWidth;
+        int h = mThumbHeight;
+        int r = Math.min(MAX_SHIFT, Math.min(w, h) / 4);
+        int area = (w - 2 * r) * (h - 2 * r);
+        if (area <= 0) return;
+        long best = Long.MAX_VALUE;
+        int bestX = 0, bestY = 0;
+        for (int dy = -r; dy <= r; dy++) {
+            for (int dx = -r; dx <= r; dx++) {
+                long sum = 0;
+                for (int y = r; y < h - r && sum <= best; y++) {
+                    int p = y * w + r;
+                    int q = (y - dy) * w + r - dx;
+                    for (int x = r; x < w - r; x++, p++, q++) {
+                        int d = mThumb[p] - mPrevious[q] - lumaChange;
+                        sum += d < 0 ? -d : d;
+                    }
+                }
+                // Prefer the smaller shift when equal.
+                if (sum < best || (sum == best
+                        && Math.abs(dx) + Math.abs(dy) < Math.abs(bestX) + Math.abs(bestY))) {
+                    best = sum;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        mShiftX = bestX;
+        mShiftY = bestY;
+        mResidual = (float) best / area;
+    }
+
+    // The number of frames analyzed since the last reset.
+    public int getFrames() {
+        return mFrames;
+    }
+
+    public float getMeanLuma() {
+        return mMeanLuma;
+    }
+
+    /**
+     * Copies the rolling histogram into {@code out}, which has
+     * {@link #HISTOGRAM_BINS} fractions of the frame adding up to 1.
+     */
+    public void getHistogram(float[] out) {
+        System.arraycopy(mHistogram, 0, out, 0, HISTOGRAM_BINS);
+    }
+
+    /**
+     * Returns the luma, 0 to 255, below which the given fraction of the
+     * rolling histogram is.
+     */
+    public int getLumaPercentile(float fraction) {
+        return percentile(mHistogram, fraction);
+    }
+
+    // The same for a histogram given by getHistogram().
+    public static int percentile(float[] histogram, float fraction) {
+        float sum = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            float next = sum + histogram[i];
+            if (next >= fraction && histogram[i] > 0) {
+                float within = (fraction - sum) / histogram[i];
+                return Math.min(255, Math.round((i + within) * 256 / HISTOGRAM_BINS));
+            }
+            sum = next;
+        }
+        return 255;
+    }
+
+    // The fractions of the last frame which are clipped to black or white.
+    public float getDarkClip() {
+        return mDarkClip;
+    }
+
+    public float getBrightClip() {
+        return mBrightClip;
+    }
+
+    // How far the last frame moved against the previous one, in pixels of
+    // the frame.
+    public int getMotionX() {
+        return mShiftX * mStep;
+    }
+
+    public int getMotionY() {
+        return mShiftY * mStep;
+    }
+
+    // The mean luma difference left after the global motion, which is how
+    // much moves in the scene.
+    public float getLocalMotion() {
+        return mResidual;
+    }
+
+    // Whether the last frames neither moved nor changed brightness.
+    public boolean isStable() {
+        return mStableFrames >= STABLE_FRAMES;
+    }
+}
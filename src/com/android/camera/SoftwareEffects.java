@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Face;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.camera.effects.BackgroundSubstitution;
+import com.android.camera.effects.FaceWarp;
+import com.android.camera.effects.FramePipeline;
+import com.android.gallery3d.common.ApiHelper;
+
+import java.util.List;
+
+/**
+ * Video effects on the CPU, for devices without the filter framework
+ * filters {@link EffectsRecorder} needs.
+ *
+ * <p>The effects are the frame filter of a {@link PreRollRecorder}: every
+ * preview frame it encodes first runs through a {@link FramePipeline} on
+ * the encoder thread, so the recording gets the processed frames. The
+ * newest processed frame is also converted to a bitmap on a worker thread
+ * and handed to the listener on the main thread for display; frames
+ * arriving while the worker is busy are not shown. The effects and their
+ * parameters are the ones of {@link EffectsRecorder}.
+ */
+public class SoftwareEffects implements PreRollRecorder.FrameFilter,
+        BackgroundSubstitution.Listener {
+    private static final String TAG = "CAM_SoftwareEffects";
+
+    public interface Listener {
+        // Runs in main thread. The bitmap is reused after the next frame.
+        public void onEffectFrame(Bitmap frame);
+        // Runs in main thread.
+        public void onLearningDone();
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler;
+    private final Handler mEffectsHandler;
+
+    private final FramePipeline mPipeline;
+    private final FaceWarp mFaceWarp = new FaceWarp();
+    private final BackgroundSubstitution mBackdropper = new BackgroundSubstitution(
+            BackgroundSubstitution.DEFAULT_LEARNING_FRAMES);
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mFaceRects = new int[FaceWarp.MAX_FACES * 4];
+
+    // The copy of the last processed frame being shown, and whether the
+    // worker is converting it.
+    private byte[] mDisplayFrame;
+    private boolean mDisplaying;
+
+    // Only used in effects thread. Two bitmaps, so the listener can draw one
+    // while the other is filled.
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mNextBitmap;
+    private int[] mPixels;
+
+    public SoftwareEffects(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread t = new HandlerThread("Software Effects",
+                Process.THREAD_PRIORITY_DISPLAY);
+        t.start();
+        mEffectsHandler = new Handler(t.getLooper());
+        mPipeline = new FramePipeline(FramePipeline.getDefaultThreads());
+        mBackdropper.setListener(this);
+    }
+
+    /**
+     * Whether the effect can be done on the preview frames of a camera with
+     * the given parameters. The goofy faces need the face detection of the
+     * driver.
+     */
+    public static boolean isSupported(int effect, Parameters params) {
+        List<Integer> formats = params.getSupportedPreviewFormats();
+        Size size = params.getPreviewSize();
+        if (!PreRollRecorder.isSupported(size.width, size.height) || formats == null
+                || !formats.contains(ImageFormat.NV21)) {
+            return false;
+        }
+        switch (effect) {
+            case EffectsRecorder.EFFECT_GOOFY_FACE:
+                return ApiHelper.HAS_FACE_DETECTION && params.getMaxNumDetectedFaces() > 0;
+            case EffectsRecorder.EFFECT_BACKDROPPER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The preview size of the frames to come.
+    public synchronized void setPreviewSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Sets one of the effects of {@link EffectsRecorder} with its parameter:
+     * the goofy face constant, or the background video for the backdropper.
+     */
+    public synchronized void setEffect(int effect, Object parameter) {
+        mPipeline.clearStages();
+        switch (effect) {
+            case EffectsRecorder.EFFECT_GOOFY_FACE:
+                mFaceWarp.setMode((Integer) parameter);
+                mPipeline.addStage(mFaceWarp);
+                break;
+            case EffectsRecorder.EFFECT_BACKDROPPER:
+                mBackdropper.setBackground(null);
+                mBackdropper.relearn();
+                mPipeline.addStage(mBackdropper);
+                loadBackground((String) parameter);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The rotation which makes the frames upright, in degrees.
+    public void setRotation(int degrees) {
+        mFaceWarp.setRotation(degrees);
+    }
+
+    // Runs in main thread. The faces are in the driver coordinates, from
+    // -1000 to 1000.
+    public synchronized void setFaces(Face[] faces) {
+        int count = (faces == null) ? 0 : Math.min(faces.length, FaceWarp.MAX_FACES);
+        for (int i = 0; i < count; i++) {
+            mFaceRects[i * 4] = (faces[i].rect.left + 1000) * mWidth / 2000;
+            mFaceRects[i * 4 + 1] = (faces[i].rect.top + 1000) * mHeight / 2000;
+            mFaceRects[i * 4 + 2] = (faces[i].rect.right + 1000) * mWidth / 2000;
+            mFaceRects[i * 4 + 3] = (faces[i].rect.bottom + 1000) * mHeight / 2000;
+        }
+        mFaceWarp.setFaces(mFaceRects, count);
+    }
+
+    // Runs in encoder thread
+    @Override
+    public byte[] filterFrame(byte[] nv21, int width, int height) {
+        byte[] result = mPipeline.process(nv21, width, height);
+        synchronized (this) {
+            if (mDisplaying) return result;
+            if (mDisplayFrame == null || mDisplayFrame.length != result.length) {
+                mDisplayFrame = new byte[result.length];
+            }
+            System.arraycopy(result, 0, mDisplayFrame, 0, result.length);
+            mDisplaying = true;
+        }
+        final int w = width;
+        final int h = height;
+        mEffectsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = toBitmap(mDisplayFrame, w, h);
+                synchronized (SoftwareEffects.this) {
+                    mDisplaying = false;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onEffectFrame(bitmap);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    // Runs in effects thread
+    private Bitmap toBitmap(byte[] nv21, int width, int height) {
+        if (mPixels == null || mPixels.length != width * height) {
+            mPixels = new int[width * height];
+            mBitmaps[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBitmaps[1] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        int[] pixels = mPixels;
+        int frameSize = width * height;
+        for (int row = 0; row < height; row++) {
+            int p = row * width;
+            int c = frameSize + (row >> 1) * width;
+            for (int x = 0; x < width; x++, p++) {
+                int y = Math.max(0, (nv21[p] & 0xff) - 16) * 1192;
+                int v = (nv21[c + (x & ~1)] & 0xff) - 128;
+                int u = (nv21[c + (x & ~1) + 1] & 0xff) - 128;
+                int r = Math.min(262143, Math.max(0, y + 1634 * v));
+                int g = Math.min(262143, Math.max(0, y - 833 * v - 400 * u));
+                int b = Math.min(262143, Math.max(0, y + 2066 * u));
+                pixels[p] = 0xff000000 | ((r << 6) & 0xff0000)
+                        | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+        Bitmap bitmap = mBitmaps[mNextBitmap];
+        mNextBitmap = 1 - mNextBitmap;
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    // Shows the first frame of the video as the background. A still frame
+    // keeps the cost of the effect down. Without a video the background is
+    // grey.
+    private void loadBackground(final String url) {
+        if (url == null) return;
+        final int width = mWidth;
+        final int height = mHeight;
+        mEffectsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+                Bitmap frame = null;
+                try {
+                    retriever.setDataSource(mContext, Uri.parse(url));
+                    frame = retriever.getFrameAtTime();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Cannot read background " + url, e);
+                } finally {
+                    retriever.release();
+                }
+                if (frame == null || width == 0 || height == 0) return;
+                Bitmap scaled = Bitmap.createScaledBitmap(frame, width, height, true);
+                mBackdropper.setBackground(toNv21(scaled));
+            }
+        });
+    }
+
+    private static byte[] toNv21(Bitmap bitmap) {
+        int width = bitmap.getWidth() & ~1;
+        int height = bitmap.getHeight() & ~1;
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        int frameSize = width * height;
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int argb = pixels[row * width + x];
+                int r = (argb >> 16) & 0xff;
+                int g = (argb >> 8) & 0xff;
+                int b = argb & 0xff;
+                nv21[row * width + x] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                if ((row & 1) == 0 && (x & 1) == 0) {
+                    int c = frameSize + (row >> 1) * width + x;
+                    nv21[c] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                    nv21[c + 1] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                }
+            }
+        }
+        return nv21;
+    }
+
+    // Runs in encoder thread
+    @Override
+    public void onLearningDone() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onLearningDone();
+            }
+        });
+    }
+
+    // The recorder must not use the effects any more.
+    public void release() {
+        Log.v(TAG, mPipeline.getStats());
+        // The frame being shown finishes before the threads go.
+        mEffectsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.release();
+                Looper.myLooper().quit();
+            }
+        });
+    }
+}
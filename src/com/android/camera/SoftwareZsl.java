@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.PreviewBufferPool.Frame;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Zero shutter lag for devices whose camera HAL does not have a ZSL mode.
+ *
+ * <p>The last few preview frames are kept in a ring, retained from the
+ * {@link PreviewBufferPool} of the camera. When a new frame arrives the
+ * oldest one is released. On capture, the frame closest to the shutter time
+ * is taken out of the ring and compressed to JPEG on a worker thread, so the
+ * preview never has to stop.
+ *
+ * <p>The number of frames in the ring is limited by both a frame count and
+ * a memory budget, see {@link Util#getSoftwareZSLFrames()} and
+ * {@link Util#getSoftwareZSLMemoryLimit()}.
+ */
+public class SoftwareZsl implements PreviewBufferPool.Subscriber {
+    private static final String TAG = "CAM_SoftwareZsl";
+
+    public interface Listener {
+        // Called on the main thread with the compressed frame. The width and
+        // height are the ones of the preview frame, before rotation.
+        public void onZslPictureTaken(byte[] jpegData, int width, int height);
+    }
+
+    private final Handler mMainHandler;
+    private final Handler mEncodeHandler;
+
+    private PreviewBufferPool mPool;
+
+    // The ring of retained frames, oldest first starting at mStart.
+    private Frame[] mFrames;
+    private int mStart;
+    private int mCount;
+
+    // The frame being compressed, if any. It is released when compressing
+    // is done.
+    private Frame mEncodingFrame;
+
+    public SoftwareZsl() {
+        mMainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread t = new HandlerThread("ZSL Encoder");
+        t.start();
+        mEncodeHandler = new Handler(t.getLooper());
+    }
+
+    /**
+     * Starts filling the ring from the given pool, which must already be
+     * started. The preview must use the NV21 format. Returns false if not
+     * even one frame fits in the memory budget.
+     */
+    public synchronized boolean start(PreviewBufferPool pool, Parameters params) {
+        stop();
+        int frameSize = pool.getFrameSize();
+        if (params.getPreviewFormat() != ImageFormat.NV21 || frameSize == 0) return false;
+
+        int ringSize = Math.min(Util.getSoftwareZSLFrames(),
+                Util.getSoftwareZSLMemoryLimit() / frameSize
+                - PreviewBufferPool.DRIVER_BUFFERS - 1);
+        if (ringSize < 1) {
+            Log.w(TAG, "Preview frames of " + frameSize
+                    + " bytes do not fit in the ZSL memory limit");
+            return false;
+        }
+
+        mPool = pool;
+        mFrames = new Frame[ringSize];
+        mStart = 0;
+        mCount = 0;
+        // One more frame may be held while it is compressed.
+        pool.subscribe(this, ringSize + 1);
+        Log.v(TAG, "Started with " + ringSize + " frames");
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mPool == null) return;
+        mPool.unsubscribe(this);
+        mPool = null;
+        for (int i = 0; i < mCount; i++) {
+            mFrames[(mStart + i) % mFrames.length].release();
+        }
+        mFrames = null;
+        mCount = 0;
+    }
+
+    public synchronized boolean isRunning() {
+        return mPool != null;
+    }
+
+    // Runs in main thread
+    @Override
+    public synchronized void onPreviewFrame(Frame frame) {
+        if (mPool == null) return;
+
+        int capacity = mFrames.length;
+        if (mCount == capacity) {
+            // Let the oldest frame go.
+            mFrames[mStart].release();
+            mFrames[mStart] = null;
+            mStart = (mStart + 1) % capacity;
+            mCount--;
+        }
+        frame.retain();
+        mFrames[(mStart + mCount) % capacity] = frame;
+        mCount++;
+    }
+
+    /**
+     * Compresses the frame closest to {@code timestamp} (in the
+     * {@link SystemClock#uptimeMillis()} time base) and reports it to the
+     * listener. Returns false if no frame is available or the previous
+     * capture is still being compressed.
+     */
+    public synchronized boolean capture(long timestamp, final int jpegQuality,
+            final Listener listener) {
+        if (mPool == null || mCount == 0 || mEncodingFrame != null) return false;
+
+        int capacity = mFrames.length;
+        int best = 0;
+        long bestDiff = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            long diff = Math.abs(mFrames[(mStart + i) % capacity].timestamp - timestamp);
+            if (diff < bestDiff) {
+                bestDiff = diff;
+                best = i;
+            }
+        }
+
+        // Take the frame out of the ring and close the gap, so it is not
+        // released while it is compressed.
+        final Frame frame = mFrames[(mStart + best) % capacity];
+        for (int i = best; i < mCount - 1; i++) {
+            int to = (mStart + i) % capacity;
+            int from = (mStart + i + 1) % capacity;
+            mFrames[to] = mFrames[from];
+        }
+        mCount--;
+        mFrames[(mStart + mCount) % capacity] = null;
+        mEncodingFrame = frame;
+
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        mEncodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                YuvImage image = new YuvImage(frame.data, ImageFormat.NV21, width, height, null);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(frame.data.length / 4);
+                image.compressToJpeg(new Rect(0, 0, width, height), jpegQuality, out);
+                final byte[] jpegData = out.toByteArray();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onEncodeDone(frame);
+                        listener.onZslPictureTaken(jpegData, width, height);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    // Runs in main thread
+    private synchronized void onEncodeDone(Frame frame) {
+        mEncodingFrame = null;
+        // The pool drops the buffer if the preview was restarted meanwhile.
+        frame.release();
+    }
+
+    public void release() {
+        stop();
+        mEncodeHandler.getLooper().quit();
+    }
+}
@@ -18,7 +18,9 @@ package com.android.camera;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
@@ -163,13 +165,15 @@ public class Storage {
     }
 
     // This is the second step. It completes the partial data added by
-    // newImage. All columns other than DATE_TAKEN and DATA are inserted
-    // here. This method also save the image data into the file.
+    // newImage. This method also save the image data into the file.
+    //
+    // DATE_TAKEN and DATA are updated too, as the row may have been inserted
+    // ahead of the capture with another title.
     //
     // Returns true if the update is successful.
     public boolean updateImage(ContentResolver resolver, Uri uri,
-            String title, Location location, int orientation, byte[] jpeg,
-            int width, int height) {
+            String title, long date, Location location, int orientation,
+            byte[] jpeg, int width, int height) {
         // Save the image.
         String path = generateFilepath(title);
         String tmpPath = path + ".tmp";
@@ -192,8 +196,10 @@ public class Storage {
         }
 
         // Insert into MediaStore.
-        ContentValues values = new ContentValues(9);
+        ContentValues values = new ContentValues(11);
         values.put(ImageColumns.TITLE, title);
+        values.put(ImageColumns.DATE_TAKEN, date);
+        values.put(ImageColumns.DATA, path);
         values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
         values.put(ImageColumns.MIME_TYPE, "image/jpeg");
         // Clockwise rotation in degrees. 0, 90, 180, or 270.
@@ -225,6 +231,32 @@ public class Storage {
         }
     }
 
+    // Deletes the rows inserted by newImage() which never got their image,
+    // because the process died in between. They have no mime type and no
+    // file.
+    public void deleteOrphanedImages(ContentResolver resolver) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI,
+                    new String[] {ImageColumns._ID, ImageColumns.DATA},
+                    ImageColumns.BUCKET_ID + "=? AND "
+                    + ImageColumns.MIME_TYPE + " IS NULL",
+                    new String[] {generateBucketId()}, null);
+            if (cursor == null) return;
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(1);
+                if (path != null && new File(path).exists()) continue;
+                Log.v(TAG, "Deleting orphaned image " + path);
+                deleteImage(resolver, ContentUris.withAppendedId(
+                        Images.Media.EXTERNAL_CONTENT_URI, cursor.getLong(0)));
+            }
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to look for orphaned images" + th);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
     private String generateDCIM() {
         return new File(mRoot, Environment.DIRECTORY_DCIM).toString();
     }
@@ -65,4 +65,40 @@ public class Thumbnail {
         }
         return bitmap;
     }
+
+    // Makes a thumbnail from an NV21 preview frame, rotated by the given
+    // degrees like the frames MediaMetadataRetriever returns. The frame is
+    // subsampled to about targetWidth, which is much cheaper than decoding
+    // the recorded video.
+    public static Bitmap createBitmapFromNV21(byte[] data, int width, int height,
+            int rotation, int targetWidth) {
+        int outputWidth = (rotation % 180 == 0) ? width : height;
+        int step = Math.max(1, outputWidth / Math.max(1, targetWidth));
+        int w = width / step;
+        int h = height / step;
+        if (w == 0 || h == 0 || data.length < width * height * 3 / 2) return null;
+
+        int[] pixels = new int[w * h];
+        int frameSize = width * height;
+        for (int j = 0; j < h; j++) {
+            int row = j * step;
+            int uvRow = frameSize + (row >> 1) * width;
+            for (int i = 0; i < w; i++) {
+                int col = i * step;
+                int y = data[row * width + col] & 0xff;
+                int uv = uvRow + (col & ~1);
+                int v = (data[uv] & 0xff) - 128;
+                int u = (data[uv + 1] & 0xff) - 128;
+                int r = y + ((1436 * v) >> 10);
+                int g = y - ((352 * u + 731 * v) >> 10);
+                int b = y + ((1815 * u) >> 10);
+                r = (r < 0) ? 0 : (r > 255 ? 255 : r);
+                g = (g < 0) ? 0 : (g > 255 ? 255 : g);
+                b = (b < 0) ? 0 : (b > 255 ? 255 : b);
+                pixels[j * w + i] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, w, h, Bitmap.Config.ARGB_8888);
+        return Util.rotate(bitmap, rotation);
+    }
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Captures a time lapse as single preview frames instead of running the
+ * recorder all the time.
+ *
+ * <p>At every interval one preview frame is taken, compressed to JPEG and
+ * appended to a frames file, each frame preceded by its length. When the
+ * interval is long enough the preview is stopped between frames and
+ * started again a little before the next one, so exposure and white
+ * balance can settle. The frames are encoded into a video afterwards by
+ * {@link TimeLapseEncoder}, while the frames file still exists, so the
+ * size limit counts both.
+ */
+public class TimeLapseCapture implements PreviewCallback {
+    private static final String TAG = "CAM_TimeLapseCapture";
+
+    // Time the preview runs before a frame is taken.
+    private static final int WARM_UP_TIME = 1500;
+    // Intervals shorter than this keep the preview running.
+    private static final int MIN_SUSPEND_INTERVAL = WARM_UP_TIME * 3;
+    private static final int JPEG_QUALITY = 90;
+
+    public interface Listener {
+        // Runs in main thread. what is
+        // MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED or
+        // MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED.
+        public void onLimitReached(int what);
+    }
+
+    private final CameraProxy mCameraDevice;
+    private final int mInterval;
+    private final int mWidth;
+    private final int mHeight;
+    private final File mFramesFile;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final HandlerThread mWriteThread;
+    private final Handler mWriteHandler;
+
+    private DataOutputStream mOut;
+    private boolean mRunning;
+    private boolean mWaitingForFrame;
+    private boolean mPreviewSuspended;
+    private long mNextFrameTime;
+    private int mFramesTaken;
+    // Frames written to the file, guarded by this.
+    private int mFramesWritten;
+    private long mSuspendedTime;
+    private long mSuspendStart;
+
+    // The limits, and the bytes the frames take with their encoded video.
+    // Only used in writer thread.
+    private long mMaxFileSize;
+    private int mEncodedFrameSize;
+    private long mSize;
+    private volatile boolean mLimitReached;
+
+    // Runs in main thread
+    public TimeLapseCapture(CameraProxy camera, Parameters params, int interval,
+            File framesFile, Listener listener) {
+        mCameraDevice = camera;
+        mInterval = interval;
+        Size size = params.getPreviewSize();
+        mWidth = size.width;
+        mHeight = size.height;
+        mFramesFile = framesFile;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+        mWriteThread = new HandlerThread("Time Lapse Writer");
+        mWriteThread.start();
+        mWriteHandler = new Handler(mWriteThread.getLooper());
+    }
+
+    /**
+     * Starts taking frames. The listener is told when maxDuration ms have
+     * passed, or when the next frame and its video would not fit in
+     * maxFileSize bytes, each frame becoming encodedFrameSize bytes of
+     * video. A limit of 0 is no limit. The preview must be running and use
+     * the NV21 format.
+     */
+    public boolean start(long maxFileSize, int maxDuration, int encodedFrameSize) {
+        try {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFramesFile)));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create " + mFramesFile, e);
+            mWriteThread.quit();
+            return false;
+        }
+        mMaxFileSize = maxFileSize;
+        mEncodedFrameSize = encodedFrameSize;
+        mRunning = true;
+        mNextFrameTime = SystemClock.uptimeMillis();
+        if (maxDuration > 0) {
+            mHandler.postAtTime(mDurationLimitRunnable, mNextFrameTime + maxDuration);
+        }
+        takeFrame();
+        return true;
+    }
+
+    /**
+     * Stops capturing and starts the preview again if it was stopped. Waits
+     * until the frames taken are written.
+     */
+    public void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mHandler.removeCallbacks(mWakeUpRunnable);
+        mHandler.removeCallbacks(mTakeFrameRunnable);
+        mHandler.removeCallbacks(mDurationLimitRunnable);
+        if (mWaitingForFrame) {
+            mWaitingForFrame = false;
+            mCameraDevice.setPreviewCallback(null);
+        }
+        resumePreview();
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Util.closeSilently(mOut);
+                mWriteThread.quit();
+            }
+        });
+        try {
+            mWriteThread.join();
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+        Log.v(TAG, "Stopped after " + mFramesTaken + " frames (" + getFrameCount()
+                + " written), preview suspended " + mSuspendedTime / 1000 + "s");
+    }
+
+    public File getFramesFile() {
+        return mFramesFile;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFramesWritten;
+    }
+
+    public boolean isPreviewSuspended() {
+        return mPreviewSuspended;
+    }
+
+    private final Runnable mWakeUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            resumePreview();
+        }
+    };
+
+    private final Runnable mTakeFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            takeFrame();
+        }
+    };
+
+    private final Runnable mDurationLimitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onLimitReached(MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED);
+        }
+    };
+
+    // Runs in main thread
+    private void onLimitReached(int what) {
+        if (!mRunning) return;
+        mListener.onLimitReached(what);
+    }
+
+    // Runs in main thread
+    private void takeFrame() {
+        if (!mRunning) return;
+        resumePreview();
+        mWaitingForFrame = true;
+        mCameraDevice.setPreviewCallback(this);
+    }
+
+    // Runs in main thread
+    @Override
+    public void onPreviewFrame(final byte[] data, android.hardware.Camera camera) {
+        if (!mWaitingForFrame) return;
+        mWaitingForFrame = false;
+        mCameraDevice.setPreviewCallback(null);
+        mFramesTaken++;
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeFrame(data);
+            }
+        });
+
+        // Skip the frames missed if the device was too slow.
+        long now = SystemClock.uptimeMillis();
+        do {
+            mNextFrameTime += mInterval;
+        } while (mNextFrameTime <= now);
+
+        if (mInterval >= MIN_SUSPEND_INTERVAL) {
+            mCameraDevice.stopPreview();
+            mPreviewSuspended = true;
+            mSuspendStart = now;
+            mHandler.postAtTime(mWakeUpRunnable, mNextFrameTime - WARM_UP_TIME);
+        }
+        mHandler.postAtTime(mTakeFrameRunnable, mNextFrameTime);
+    }
+
+    // Runs in main thread
+    private void resumePreview() {
+        if (!mPreviewSuspended) return;
+        mPreviewSuspended = false;
+        mSuspendedTime += SystemClock.uptimeMillis() - mSuspendStart;
+        mCameraDevice.startPreviewAsync();
+    }
+
+    // Runs in writer thread
+    private void writeFrame(byte[] data) {
+        if (mLimitReached) return;
+        YuvImage image = new YuvImage(data, ImageFormat.NV21, mWidth, mHeight, null);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(data.length / 8);
+        image.compressToJpeg(new Rect(0, 0, mWidth, mHeight), JPEG_QUALITY, jpeg);
+        try {
+            mOut.writeInt(jpeg.size());
+            jpeg.writeTo(mOut);
+            // Keep what is written so far if the capture is killed.
+            mOut.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write frame to " + mFramesFile, e);
+            return;
+        }
+        synchronized (this) {
+            mFramesWritten++;
+        }
+        checkSize(4 + jpeg.size() + mEncodedFrameSize);
+    }
+
+    // Runs in writer thread. Stops before a frame like the last one no
+    // longer fits.
+    private void checkSize(int frameSize) {
+        mSize += frameSize;
+        if (mMaxFileSize <= 0 || mSize + frameSize < mMaxFileSize) return;
+        mLimitReached = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onLimitReached(MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED);
+            }
+        });
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.gallery3d.common.ApiHelper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the frames stored by {@link TimeLapseCapture} into an MP4 video,
+ * one frame of the video per stored frame.
+ */
+@TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+public class TimeLapseEncoder {
+    private static final String TAG = "CAM_TimeLapseEncoder";
+    private static final String MIME_TYPE = "video/avc";
+    private static final long TIMEOUT_US = 10000;
+    // Key frames are cheap in a time lapse, and make seeking quick.
+    private static final int KEY_FRAME_INTERVAL = 1;
+
+    private final File mFramesFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mBitRate;
+    private final int mRotation;
+
+    private Encoder mEncoder;
+    private byte[] mYuv;
+    private int[] mPixels;
+
+    public TimeLapseEncoder(File framesFile, int width, int height, int frameRate,
+            int bitRate, int rotation) {
+        mFramesFile = framesFile;
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mBitRate = bitRate;
+        mRotation = rotation;
+    }
+
+    // Frames are subsampled by 2 in both directions, so the size must be
+    // even.
+    public static boolean isSupported(int width, int height) {
+        return Build.VERSION.SDK_INT >= ApiHelper.VERSION_CODES.JELLY_BEAN
+                && width > 0 && height > 0 && width % 2 == 0 && height % 2 == 0
+                && Encoder.find(width, height) != null;
+    }
+
+    /**
+     * An H.264 encoder with a YUV 4:2:0 input format, and where the planes
+     * of a frame of the given size go in its input buffers. Encoders of this
+     * API level cannot tell the layout. They are known to want the rows and
+     * the planes padded to 16, and the Qualcomm ones the interleaved chroma
+     * plane at a multiple of 2048 bytes.
+     */
+    static class Encoder {
+        private static final int ALIGNMENT = 16;
+        private static final int QCOM_CHROMA_ALIGNMENT = 2048;
+
+        final String name;
+        final int colorFormat;
+        final boolean semiPlanar;
+        // The luma rows, the chroma rows and their bytes between two pixels.
+        final int stride;
+        final int chromaStride;
+        final int chromaStep;
+        final int uOffset;
+        final int vOffset;
+        // The bytes a frame takes in an input buffer.
+        final int frameSize;
+
+        private Encoder(String name, int colorFormat, int width, int height) {
+            this.name = name;
+            this.colorFormat = colorFormat;
+            semiPlanar = (colorFormat
+                    == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+            stride = align(width, ALIGNMENT);
+            int sliceHeight = align(height, ALIGNMENT);
+            int lumaSize = stride * sliceHeight;
+            if (semiPlanar) {
+                chromaStride = stride;
+                chromaStep = 2;
+                uOffset = name.startsWith("OMX.qcom.")
+                        ? align(lumaSize, QCOM_CHROMA_ALIGNMENT) : lumaSize;
+                vOffset = uOffset + 1;
+                frameSize = uOffset + lumaSize / 2;
+            } else {
+                chromaStride = stride / 2;
+                chromaStep = 1;
+                uOffset = lumaSize;
+                vOffset = uOffset + lumaSize / 4;
+                frameSize = vOffset + lumaSize / 4;
+            }
+        }
+
+        private static int align(int value, int alignment) {
+            return (value + alignment - 1) / alignment * alignment;
+        }
+
+        // Returns the first H.264 encoder with a YUV 4:2:0 input format, or
+        // null.
+        static Encoder find(int width, int height) {
+            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+                MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+                if (!info.isEncoder()) continue;
+                for (String type : info.getSupportedTypes()) {
+                    if (!type.equalsIgnoreCase(MIME_TYPE)) continue;
+                    int[] formats = info.getCapabilitiesForType(type).colorFormats;
+                    for (int format : formats) {
+                        if (format == MediaCodecInfo.CodecCapabilities
+                                        .COLOR_FormatYUV420SemiPlanar
+                                || format == MediaCodecInfo.CodecCapabilities
+                                        .COLOR_FormatYUV420Planar) {
+                            return new Encoder(info.getName(), format, width, height);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        // The codec the layout was found for, not just any encoder of the
+        // type.
+        MediaCodec create() {
+            return MediaCodec.createByCodecName(name);
+        }
+
+        // Throws if the frames do not fit the input buffers of the codec.
+        void checkCapacity(ByteBuffer buffer) {
+            if (buffer.capacity() < frameSize) {
+                throw new IllegalStateException("Input buffer of " + buffer.capacity()
+                        + " bytes for frames of " + frameSize + " bytes in " + name);
+            }
+        }
+    }
+
+    /**
+     * Encodes the frames into the file at path. Returns false if there are
+     * no frames or the encoding failed.
+     */
+    public boolean encode(String path) {
+        mEncoder = Encoder.find(mWidth, mHeight);
+        if (mEncoder == null) return false;
+
+        DataInputStream in = null;
+        MediaCodec codec = null;
+        Mp4Writer writer = null;
+        boolean success = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFramesFile)));
+            writer = new Mp4Writer(new File(path), mWidth, mHeight, mFrameRate, mRotation);
+
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoder.colorFormat);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL);
+            codec = mEncoder.create();
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            encodeFrames(in, codec, writer);
+            if (writer.getSampleCount() > 0) {
+                writer.finish();
+                success = true;
+            }
+            Log.v(TAG, "Encoded " + writer.getSampleCount() + " frames to " + path);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot encode " + mFramesFile, e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot encode " + mFramesFile, e);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (RuntimeException e) {
+                    // The codec may not have started.
+                }
+                codec.release();
+            }
+            if (writer != null && !success) writer.abort();
+            Util.closeSilently(in);
+        }
+        if (!success) new File(path).delete();
+        return success;
+    }
+
+    private void encodeFrames(DataInputStream in, MediaCodec codec, Mp4Writer writer)
+            throws IOException {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        byte[] output = null;
+        long frameTimeUs = 1000000L / mFrameRate;
+        int frames = 0;
+        boolean inputDone = false;
+        boolean outputDone = false;
+
+        while (!outputDone) {
+            if (!inputDone) {
+                int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    byte[] yuv = readFrame(in);
+                    if (yuv == null) {
+                        codec.queueInputBuffer(index, 0, 0, frames * frameTimeUs,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        ByteBuffer buffer = inputBuffers[index];
+                        mEncoder.checkCapacity(buffer);
+                        buffer.clear();
+                        buffer.put(yuv);
+                        codec.queueInputBuffer(index, 0, yuv.length, frames * frameTimeUs, 0);
+                        frames++;
+                    }
+                }
+            }
+
+            int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Some encoders only give the SPS and PPS here.
+                MediaFormat format = codec.getOutputFormat();
+                setCodecConfig(writer, format, "csd-0");
+                setCodecConfig(writer, format, "csd-1");
+            } else if (index >= 0) {
+                ByteBuffer buffer = outputBuffers[index];
+                if (output == null || output.length < info.size) output = new byte[info.size];
+                buffer.position(info.offset);
+                buffer.get(output, 0, info.size);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    writer.setCodecConfig(output, 0, info.size);
+                } else if (info.size > 0) {
+                    writer.writeSample(output, 0, info.size,
+                            (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                }
+                codec.releaseOutputBuffer(index, false);
+                outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            }
+        }
+    }
+
+    private static void setCodecConfig(Mp4Writer writer, MediaFormat format, String key) {
+        if (!format.containsKey(key)) return;
+        ByteBuffer buffer = format.getByteBuffer(key);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        writer.setCodecConfig(data, 0, data.length);
+    }
+
+    public void deleteFrames() {
+        if (!mFramesFile.delete()) Log.w(TAG, "Could not delete " + mFramesFile);
+    }
+
+    // Reads the next frame and converts it to the input format of the
+    // encoder, or returns null at the end of the frames.
+    private byte[] readFrame(DataInputStream in) throws IOException {
+        Bitmap bitmap = null;
+        while (bitmap == null) {
+            byte[] jpeg;
+            try {
+                jpeg = new byte[in.readInt()];
+                in.readFully(jpeg);
+            } catch (EOFException e) {
+                // The last frame may be cut short if the capture was killed.
+                return null;
+            }
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            if (bitmap == null) Log.w(TAG, "Skipping a frame which cannot be decoded");
+        }
+        if (bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, mWidth, mHeight, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        if (mPixels == null) {
+            mPixels = new int[mWidth * mHeight];
+            mYuv = new byte[mEncoder.frameSize];
+        }
+        bitmap.getPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        bitmap.recycle();
+        toYuv(mPixels, mYuv, mWidth, mHeight, mEncoder);
+        return mYuv;
+    }
+
+    // Converts to YUV 4:2:0 in the layout of the encoder, with the U and V
+    // planes separate or interleaved, U first. The padding is left as it is.
+    private static void toYuv(int[] argb, byte[] yuv, int width, int height,
+            Encoder encoder) {
+        for (int row = 0; row < height; row++) {
+            int p = row * width;
+            int y = row * encoder.stride;
+            int c = (row >> 1) * encoder.chromaStride;
+            for (int x = 0; x < width; x++, p++, y++) {
+                int r = (argb[p] >> 16) & 0xff;
+                int g = (argb[p] >> 8) & 0xff;
+                int b = argb[p] & 0xff;
+                yuv[y] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                if ((row & 1) == 0 && (x & 1) == 0) {
+                    yuv[encoder.uOffset + c] =
+                            (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                    yuv[encoder.vOffset + c] =
+                            (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                    c += encoder.chromaStep;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Frame timestamps recorded on a device, to be replayed into a
+ * {@link RecordingHealthMonitor} later. The text form has one timestamp in
+ * ns per line.
+ */
+public class TimestampTrace {
+    private static final int INIT_CAPACITY = 256;
+
+    private long[] mData = new long[INIT_CAPACITY];
+    private int mSize;
+
+    public synchronized void add(long timestampNs) {
+        if (mData.length == mSize) {
+            long[] temp = new long[mSize + mSize];
+            System.arraycopy(mData, 0, temp, 0, mSize);
+            mData = temp;
+        }
+        mData[mSize++] = timestampNs;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long get(int i) {
+        if (i >= mSize) throw new IndexOutOfBoundsException(i + " >= " + mSize);
+        return mData[i];
+    }
+
+    public synchronized void replay(RecordingHealthMonitor monitor) {
+        for (int i = 0; i < mSize; i++) {
+            monitor.onFrame(mData[i]);
+        }
+    }
+
+    public synchronized void write(OutputStream out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        for (int i = 0; i < mSize; i++) {
+            writer.println(mData[i]);
+        }
+        writer.flush();
+        if (writer.checkError()) throw new IOException("Cannot write trace");
+    }
+
+    // Blank lines and lines starting with # are skipped.
+    public static TimestampTrace read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        TimestampTrace trace = new TimestampTrace();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            try {
+                trace.add(Long.parseLong(line));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad timestamp: " + line);
+            }
+        }
+        return trace;
+    }
+}
@@ -36,15 +36,9 @@ import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
 import android.location.Location;
-import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.os.ParcelFileDescriptor;
-import android.speech.RecognitionListener;
-import android.speech.RecognizerIntent;
-import android.speech.SpeechRecognizer;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.util.FloatMath;
@@ -64,7 +58,6 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -174,14 +167,38 @@ public class Util {
     // Send magic command to hardware for Samsung ZSL
     private static boolean sSendMagicSamsungZSLCommand;
 
-    private static SpeechRecognizer mSpeechRecognizer;
-    private static Intent mSpeechRecognizerIntent;
-    private static String[] mShutterWords;
+    // ZSL from preview frames for HALs without ZSL
+    private static boolean sEnableSoftwareZSL;
+    private static int sSoftwareZSLFrames;
+    private static int sSoftwareZSLMemoryLimit;
+
+    // Memory for the pictures queued for saving in a burst
+    private static int sBurstMemoryLimit;
+
+    // Debug overlay with the preview buffer pool counters
+    private static boolean sShowPreviewBufferStats;
+
+    // Size at which video recordings continue in a new file
+    private static long sVideoSegmentSize;
+
+    // Shortest time lapse interval captured as single frames
+    private static int sSparseTimeLapseInterval;
+
+    // Video kept encoded while previewing, see PreRollRecorder
+    private static int sVideoPreRollTime;
+    private static int sVideoPreRollMemoryLimit;
+
+    // Contrast autofocus on the preview frames, see FocusAssist
+    private static boolean sEnableFocusAssist;
+
+    // Preview frame statistics, see SceneAnalyzer
+    private static int sSceneAnalysisInterval;
+
+    // Near duplicates of a burst are not saved, see BurstSelector
+    private static boolean sEnableBurstSelection;
+
+    private static VoiceShutter sVoiceShutter;
     private static PhotoModule mPhotoModule;
-    private static boolean mSpeechActive = false;
-    private static boolean mIsCountDownOn;
-    private static AudioManager mAudioManager;
-    private static boolean mIsMuted = false;
 
     private Util() {
     }
@@ -217,23 +234,32 @@ public class Util {
         sSendMagicSamsungZSLCommand = context.getResources().getBoolean(
                 R.bool.sendMagicSamsungZSLCommand);
 
-        /* Voice Shutter */
-        mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(context);
-        mSpeechRecognizer.setRecognitionListener(new ShutterVoice());
-
-        mSpeechRecognizerIntent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
-        mSpeechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL,
-                                         RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
-        mSpeechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE,
-                                         "com.cyanogenmod.voiceshutter");
-        mSpeechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 10);
-        mSpeechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
-
-
-        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        sEnableSoftwareZSL = context.getResources().getBoolean(R.bool.enableSoftwareZSL);
+        sSoftwareZSLFrames = context.getResources().getInteger(R.integer.softwareZSLFrames);
+        sSoftwareZSLMemoryLimit = context.getResources().getInteger(
+                R.integer.softwareZSLMemoryLimit) * 1024;
+
+        sBurstMemoryLimit = context.getResources().getInteger(
+                R.integer.burstMemoryLimit) * 1024;
+
+        sShowPreviewBufferStats = context.getResources().getBoolean(
+                R.bool.showPreviewBufferStats);
+
+        sVideoSegmentSize = context.getResources().getInteger(
+                R.integer.videoSegmentSize) * 1024L * 1024L;
+        sSparseTimeLapseInterval = context.getResources().getInteger(
+                R.integer.sparseTimeLapseInterval);
+        sVideoPreRollTime = context.getResources().getInteger(R.integer.videoPreRollTime);
+        sVideoPreRollMemoryLimit = context.getResources().getInteger(
+                R.integer.videoPreRollMemoryLimit) * 1024;
+        sEnableFocusAssist = context.getResources().getBoolean(R.bool.enableFocusAssist);
+        sSceneAnalysisInterval = context.getResources().getInteger(
+                R.integer.sceneAnalysisInterval);
+        sEnableBurstSelection = context.getResources().getBoolean(
+                R.bool.enableBurstSelection);
 
-        mShutterWords = context.getResources().getStringArray(
-                    R.array.pref_camera_voiceshutter_triggerwords);
+        /* Voice Shutter */
+        sVoiceShutter = new VoiceShutter(context);
     }
 
     public static int dpToPixel(int dp) {
@@ -260,6 +286,60 @@ public class Util {
         return sEnableZSL;
     }
 
+    public static boolean enableSoftwareZSL() {
+        return sEnableSoftwareZSL && !sEnableZSL;
+    }
+
+    public static int getSoftwareZSLFrames() {
+        return sSoftwareZSLFrames;
+    }
+
+    // In bytes
+    public static int getSoftwareZSLMemoryLimit() {
+        return sSoftwareZSLMemoryLimit;
+    }
+
+    // In bytes
+    public static int getBurstMemoryLimit() {
+        return sBurstMemoryLimit;
+    }
+
+    public static boolean showPreviewBufferStats() {
+        return sShowPreviewBufferStats;
+    }
+
+    // In bytes, 0 if recordings are not segmented
+    public static long getVideoSegmentSize() {
+        return sVideoSegmentSize;
+    }
+
+    // In ms, 0 if time lapses always use the recorder
+    public static int getSparseTimeLapseInterval() {
+        return sSparseTimeLapseInterval;
+    }
+
+    // In ms, 0 if recordings start when record is pressed
+    public static int getVideoPreRollTime() {
+        return sVideoPreRollTime;
+    }
+
+    // In bytes
+    public static int getVideoPreRollMemoryLimit() {
+        return sVideoPreRollMemoryLimit;
+    }
+
+    public static boolean enableFocusAssist() {
+        return sEnableFocusAssist;
+    }
+
+    public static int getSceneAnalysisInterval() {
+        return sSceneAnalysisInterval;
+    }
+
+    public static boolean enableBurstSelection() {
+        return sEnableBurstSelection;
+    }
+
     public static boolean useSoftwareHDR() {
         return sEnableSoftwareHDR;
     }
@@ -292,13 +372,9 @@ public class Util {
         return sEnableAspectRatioFixes;
     }
 
-    public static void enableSpeechRecognition(boolean enable, PhotoModule module) {
+    public static void enableVoiceShutter(boolean enable, PhotoModule module) {
         if (module != null) {
             mPhotoModule = module;
-        } else if (enable && !mIsMuted) {
-            /* Avoid beeps when re-arming the listener */
-            mIsMuted = true;
-            mAudioManager.setStreamMute(AudioManager.STREAM_SYSTEM, true);
         }
         if (mPhotoModule == null) {
             /* if no photomodule ever got passed, it wasn't activated. Ignore
@@ -306,22 +382,37 @@ public class Util {
             return; 
         }
         mPhotoModule.updateNoHandsIndicator();
-        /* Always make sure there are no pending listeners */
-        mSpeechRecognizer.cancel();
-        if (!enable) {
-            //Log.d(TAG,"Stopping speach recog - " + mSpeechActive + "/" + enable);
-            mSpeechActive = false;
-            if (mIsMuted) {
-                mAudioManager.setStreamMute(AudioManager.STREAM_SYSTEM, false);
-                mIsMuted = false;
-            }
+        if (enable) {
+            sVoiceShutter.start(sVoiceShutterListener);
         } else {
-            //Log.d(TAG,"Starting speach recog");
-            mSpeechActive = true;
-            mSpeechRecognizer.startListening(mSpeechRecognizerIntent);
+            sVoiceShutter.stop();
         }
     }
 
+    // Learns the trigger word again, if the voice shutter is listening.
+    // Returns whether it was.
+    public static boolean relearnVoiceShutter() {
+        if (mPhotoModule == null || !sVoiceShutter.isStarted()) return false;
+        sVoiceShutter.relearn();
+        return true;
+    }
+
+    private static final VoiceShutter.Listener sVoiceShutterListener =
+            new VoiceShutter.Listener() {
+        @Override
+        public void onVoiceShutter() {
+            Log.d(TAG, "matched to trigger word! FIRE SHUTTER!");
+            mPhotoModule.onShutterButtonFocus(true);
+            mPhotoModule.onShutterButtonClick();
+            enableVoiceShutter(false, null);
+        }
+
+        @Override
+        public void onEnrollment(int done, int total) {
+            mPhotoModule.onVoiceShutterEnrollment(done, total);
+        }
+    };
+
     // Rotates the bitmap by the specified degree.
     // If a new bitmap is created, the original bitmap is recycled.
     public static Bitmap rotate(Bitmap b, int degrees) {
@@ -560,9 +651,9 @@ public class Util {
 
     public static int getDisplayOrientation(int degrees, int cameraId) {
         // See android.hardware.Camera.setDisplayOrientation for
-        // documentation.
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(cameraId, info);
+        // documentation. CameraHolder caches the camera info, so this does
+        // not need a call into the camera service on every preview start.
+        CameraInfo info = CameraHolder.instance().getCameraInfo()[cameraId];
         int result;
         if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
             result = (info.orientation + degrees) % 360;
@@ -574,9 +665,7 @@ public class Util {
     }
 
     public static int getCameraOrientation(int cameraId) {
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(cameraId, info);
-        return info.orientation;
+        return CameraHolder.instance().getCameraInfo()[cameraId].orientation;
     }
 
     public static int roundOrientation(int orientation, int orientationHistory) {
@@ -945,102 +1034,4 @@ public class Util {
             return result;
         }
     }
-
-    static class ShutterVoice implements RecognitionListener
-    {
-        public void onReadyForSpeech(Bundle params)
-        {
-            mIsCountDownOn = true;
-            mNoSpeechCountDown.start();
-            if (mIsMuted) {
-                mAudioManager.setStreamMute(AudioManager.STREAM_SYSTEM, false);
-                mIsMuted = false;
-            }
-        }
-        public void onBeginningOfSpeech()
-        {
-            if (mIsCountDownOn)
-            {
-                mIsCountDownOn = false;
-                mNoSpeechCountDown.cancel();
-            }
-        }
-        public void onBufferReceived(byte[] buffer)
-        {
-        }
-        public void onEndOfSpeech()
-        {
-        }
-        public void onRmsChanged(float rms)
-        {
-        }
-        public void onError(int error)
-        {
-            Log.d(TAG,  "error " +  error);
-            if (mIsCountDownOn)
-            {
-                mIsCountDownOn = false;
-                mNoSpeechCountDown.cancel();
-            }
-            enableSpeechRecognition(true, null);
-        }
-        public void onResults(Bundle results)
-        {
-            //Log.d(TAG, "got full results - ");
-            onPartialResults(results);
-            /* If after processing the full results there's still no answer, re-arm */
-            if (mSpeechActive) {
-                enableSpeechRecognition(true, null);
-            }
-        }
-        public void onPartialResults(Bundle partialResults)
-        {
-            //Log.d(TAG, "got partials!");
-            if (!mSpeechActive) { return; }
-            String str = new String();
-            ArrayList data = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
-            for (int i = 0; i < data.size(); i++)
-            {
-                //Log.d(TAG, "result " + data.get(i));
-                for (int f = 0; f < mShutterWords.length; f++) {
-                    String[] resultWords = data.get(i).toString().split(" ");
-                    for (int g = 0; g < resultWords.length; g++) {
-                        if (mShutterWords[f].equalsIgnoreCase(resultWords[g])) {
-                            Log.d(TAG, "matched to hotword! FIRE SHUTTER!");
-                            mPhotoModule.onShutterButtonFocus(true);
-                            mPhotoModule.onShutterButtonClick();
-                            mSpeechActive = false;
-                            enableSpeechRecognition(false, null);
-                        }
-                    }
-                }
-                str += data.get(i);
-            }
-        }
-        public void onEvent(int eventType, Bundle params)
-        {
-        }
-    }
-
-    protected static CountDownTimer mNoSpeechCountDown = new CountDownTimer(5000, 5000)
-    {
-
-        @Override
-        public void onTick(long millisUntilFinished)
-        {
-        }
-
-        @Override
-        public void onFinish()
-        {
-            mIsCountDownOn = false;
-            /* Timed out, but still enabled. Re-arm */
-            if (mSpeechActive) {
-                enableSpeechRecognition(false, null);
-                enableSpeechRecognition(true, null);
-            }
-        }
-    };
-
-
 }
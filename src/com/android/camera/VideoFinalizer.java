@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.MediaRecorder;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+
+/**
+ * Finishes recordings off the main thread. For every request the recorder is
+ * stopped and released, the time lapse frames are encoded or the pre-roll
+ * recording is finished, the file is renamed to its final name, the media
+ * store row is updated and, if asked for, a thumbnail is made, in this
+ * order.
+ *
+ * <p>The listener is told on the main thread when the recorder has released
+ * the camera, so the camera can be locked again, and when the request is
+ * done. The main thread may also wait for either, in which case the
+ * listener is called before the wait returns. After {@link #quitSafely()}
+ * the remaining requests are done without telling the listener.
+ */
+public class VideoFinalizer extends Thread {
+    private static final String TAG = "CAM_VideoFinalizer";
+
+    public interface Listener {
+        // Runs in main thread
+        public void onRecorderReleased(Request r);
+        // Runs in main thread
+        public void onVideoFinalized(Request r);
+    }
+
+    public static class Request {
+        // Set by the caller. The recorder is owned by the finalizer from
+        // now on.
+        public MediaRecorder recorder;
+        // Whether the recorder was handed the camera, which must be locked
+        // again once the recorder is released.
+        public boolean cameraUnlocked;
+        // Set instead of the recorder for a time lapse of single frames,
+        // which is encoded to path once the camera is free.
+        public TimeLapseEncoder timeLapse;
+        // Set instead of the recorder for a pre-roll recording, whose file
+        // is finished once the encoder has handed it over.
+        public PreRollRecorder.Recording preRoll;
+        // The file recorded to, or null when recording to fd.
+        public String path;
+        public FileDescriptor fd;
+        // The row inserted when the recording started and the values to
+        // update it with, or null if the video is not added to the media
+        // store.
+        public Uri uri;
+        public ContentValues values;
+        // Width of the thumbnail to make, or 0 for none.
+        public int thumbnailWidth;
+        // An NV21 preview frame grabbed when the recording started. The
+        // thumbnail is made from it if given, else from the video.
+        public byte[] previewFrame;
+        public int previewWidth;
+        public int previewHeight;
+        public int previewRotation;
+
+        // Set by the finalizer, or before if the video could not be written.
+        public boolean failed;
+        public Bitmap thumbnail;
+
+        // Guarded by the finalizer.
+        private boolean mReleased;
+        private boolean mDone;
+        // Only used in main thread.
+        private boolean mReleaseDelivered;
+        private boolean mDoneDelivered;
+
+        // Time spent in each phase, in ms.
+        private long mStopTime;
+        private long mReleaseTime;
+        private long mEncodeTime;
+        private long mStoreTime;
+        private long mThumbnailTime;
+
+        public long getThumbnailTime() {
+            return mThumbnailTime;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    private final Handler mMainHandler;
+
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    // Requests not delivered to the listener yet. Only used in main thread.
+    private final ArrayList<Request> mPending = new ArrayList<Request>();
+    private boolean mStop;
+    // Only used in main thread.
+    private boolean mQuit;
+
+    // Runs in main thread
+    public VideoFinalizer(Context context, ContentResolver resolver, Listener listener) {
+        super("VideoFinalizer");
+        mContext = context;
+        mResolver = resolver;
+        mListener = listener;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        start();
+    }
+
+    // Runs in main thread
+    public void addRequest(Request r) {
+        mPending.add(r);
+        synchronized (this) {
+            mQueue.add(r);
+            notifyAll();
+        }
+    }
+
+    // Runs in main thread. Waits until the recorder of the request is
+    // released.
+    public void waitForRelease(Request r) {
+        synchronized (this) {
+            while (!r.mReleased) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+        deliverReleased(r);
+    }
+
+    // Runs in main thread. Waits until the request is done.
+    public void waitDone(Request r) {
+        synchronized (this) {
+            while (!r.mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+        deliverDone(r);
+    }
+
+    // Runs in main thread. Finishes all the requests and stops the thread.
+    public void finish() {
+        while (!mPending.isEmpty()) {
+            waitDone(mPending.get(0));
+        }
+        synchronized (this) {
+            mStop = true;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+    }
+
+    /**
+     * Waits until every recorder is released and the files written to
+     * descriptors are done, then lets the thread finish the other requests
+     * on its own, such as a long time lapse encode, and stop. The listener
+     * is not called after this returns. Runs in main thread.
+     */
+    public void quitSafely() {
+        for (Request r : new ArrayList<Request>(mPending)) {
+            // The caller closes the descriptor once this returns.
+            if (r.fd != null) {
+                waitDone(r);
+            } else {
+                waitForRelease(r);
+            }
+        }
+        mQuit = true;
+        mPending.clear();
+        synchronized (this) {
+            mStop = true;
+            notifyAll();
+        }
+    }
+
+    // Runs in finalizer thread
+    @Override
+    public void run() {
+        while (true) {
+            Request r;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    if (mStop) break;
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                    continue;
+                }
+                r = mQueue.get(0);
+            }
+
+            stopRecorder(r);
+            synchronized (this) {
+                r.mReleased = true;
+                notifyAll();
+            }
+            postReleased(r);
+
+            encodeTimeLapse(r);
+            finishPreRoll(r);
+            storeVideo(r);
+            createThumbnail(r);
+            synchronized (this) {
+                mQueue.remove(0);
+                r.mDone = true;
+                notifyAll();
+            }
+            postDone(r);
+
+            Log.v(TAG, "Finalized " + r.path + (r.failed ? " (failed)" : "")
+                    + ": stop " + r.mStopTime + "ms, release " + r.mReleaseTime
+                    + "ms, encode " + r.mEncodeTime + "ms, store " + r.mStoreTime
+                    + "ms, thumbnail " + r.mThumbnailTime + "ms");
+        }
+    }
+
+    // Runs in finalizer thread
+    private void stopRecorder(Request r) {
+        if (r.recorder == null) return;
+        long start = SystemClock.uptimeMillis();
+        try {
+            r.recorder.stop();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "stop fail", e);
+            r.failed = true;
+        }
+        long stopped = SystemClock.uptimeMillis();
+        r.mStopTime = stopped - start;
+
+        r.recorder.reset();
+        r.recorder.release();
+        r.recorder = null;
+        if (r.path != null) {
+            File f = new File(r.path);
+            if (r.failed) {
+                if (!f.delete()) Log.v(TAG, "Could not delete " + r.path);
+            } else if (f.length() == 0 && f.delete()) {
+                Log.v(TAG, "Empty video file deleted: " + r.path);
+            }
+        }
+        r.mReleaseTime = SystemClock.uptimeMillis() - stopped;
+    }
+
+    // Runs in finalizer thread
+    private void encodeTimeLapse(Request r) {
+        if (r.timeLapse == null) return;
+        long start = SystemClock.uptimeMillis();
+        if (!r.timeLapse.encode(r.path)) r.failed = true;
+        r.timeLapse.deleteFrames();
+        r.timeLapse = null;
+        r.mEncodeTime = SystemClock.uptimeMillis() - start;
+    }
+
+    // Runs in finalizer thread
+    private void finishPreRoll(Request r) {
+        if (r.preRoll == null) return;
+        long start = SystemClock.uptimeMillis();
+        long duration = r.preRoll.finish();
+        r.preRoll = null;
+        if (duration < 0) {
+            r.failed = true;
+            if (r.path != null && !new File(r.path).delete()) {
+                Log.v(TAG, "Could not delete " + r.path);
+            }
+        } else if (r.values != null) {
+            r.values.put(Video.Media.DURATION, duration);
+        }
+        r.mEncodeTime = SystemClock.uptimeMillis() - start;
+    }
+
+    // Runs in finalizer thread
+    private void storeVideo(Request r) {
+        if (r.failed || r.values == null) return;
+        long start = SystemClock.uptimeMillis();
+        try {
+            r.values.put(Video.Media.SIZE, new File(r.path).length());
+
+            // Rename the video file to the final name. This avoids other
+            // apps reading incomplete data.
+            String finalName = r.values.getAsString(Video.Media.DATA);
+            if (new File(r.path).renameTo(new File(finalName))) {
+                r.path = finalName;
+            }
+
+            mResolver.update(r.uri, r.values, null, null);
+            mContext.sendBroadcast(new Intent(Util.ACTION_NEW_VIDEO, r.uri));
+        } catch (Exception e) {
+            // We failed to insert into the database. This can happen if
+            // the SD card is unmounted.
+            Log.e(TAG, "failed to add video to media store", e);
+            r.uri = null;
+            r.path = null;
+            r.failed = true;
+        }
+        r.mStoreTime = SystemClock.uptimeMillis() - start;
+    }
+
+    // Runs in finalizer thread
+    private void createThumbnail(Request r) {
+        if (r.failed || r.thumbnailWidth <= 0) return;
+        long start = SystemClock.uptimeMillis();
+        if (r.previewFrame != null) {
+            r.thumbnail = Thumbnail.createBitmapFromNV21(r.previewFrame,
+                    r.previewWidth, r.previewHeight, r.previewRotation, r.thumbnailWidth);
+            r.previewFrame = null;
+        }
+        if (r.thumbnail == null) {
+            // Fall back to decoding the video.
+            if (r.fd != null) {
+                r.thumbnail = Thumbnail.createVideoThumbnailBitmap(r.fd, r.thumbnailWidth);
+            } else if (r.path != null) {
+                r.thumbnail = Thumbnail.createVideoThumbnailBitmap(r.path, r.thumbnailWidth);
+            }
+        }
+        r.mThumbnailTime = SystemClock.uptimeMillis() - start;
+    }
+
+    private void postReleased(final Request r) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverReleased(r);
+            }
+        });
+    }
+
+    private void postDone(final Request r) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverDone(r);
+            }
+        });
+    }
+
+    // Runs in main thread
+    private void deliverReleased(Request r) {
+        if (mQuit || r.mReleaseDelivered) return;
+        r.mReleaseDelivered = true;
+        mListener.onRecorderReleased(r);
+    }
+
+    // Runs in main thread
+    private void deliverDone(Request r) {
+        if (mQuit) return;
+        deliverReleased(r);
+        if (r.mDoneDelivered) return;
+        r.mDoneDelivered = true;
+        mPending.remove(r);
+        mListener.onVideoFinalized(r);
+    }
+}
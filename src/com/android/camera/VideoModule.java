@@ -32,9 +32,14 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
 import android.hardware.Camera.CameraInfo;
+import android.hardware.Camera.Face;
+import android.hardware.Camera.FaceDetectionListener;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
 import android.location.Location;
 import android.media.CamcorderProfile;
@@ -81,6 +86,7 @@ import com.android.camera.ui.ZoomRenderer;
 import com.android.gallery3d.common.ApiHelper;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -93,6 +99,8 @@ public class VideoModule implements CameraModule,
     MediaRecorder.OnErrorListener,
     MediaRecorder.OnInfoListener,
     EffectsRecorder.EffectsListener,
+    VideoFinalizer.Listener,
+    RecordingHealthMonitor.Listener,
     PieRenderer.PieListener {
 
     private static final String TAG = "CAM_VideoModule";
@@ -130,6 +138,12 @@ public class VideoModule implements CameraModule,
     private Parameters mParameters;
 
     private boolean mSnapshotInProgress = false;
+    // Saves the video snapshots, so the recording is not disturbed by file
+    // writes on the main thread.
+    private ImageSaver mImageSaver;
+    private int mLastSnapshotSize = 0;
+    // This is for the VideoSnapshot stress test.
+    public int mVideoSnapshotsTaken;
 
     private static final String EFFECT_BG_FROM_GALLERY = "gallery";
 
@@ -162,7 +176,9 @@ public class VideoModule implements CameraModule,
 
     private MediaRecorder mMediaRecorder;
     private EffectsRecorder mEffectsRecorder;
-    private boolean mEffectsDisplayResult;
+    // Whether to show the result of the recording being stopped, see
+    // onStopVideoRecording().
+    private boolean mDisplayResult;
 
     private int mEffectType = EffectsRecorder.EFFECT_NONE;
     private Object mEffectParameter = null;
@@ -173,6 +189,15 @@ public class VideoModule implements CameraModule,
     private boolean mSwitchingCamera;
     private boolean mMediaRecorderRecording = false;
     private long mRecordingStartTime;
+    // Segmented recordings continue in a new file when the segment size is
+    // reached, see rolloverSegment().
+    private boolean mSegmentLimited;
+    private long mSegmentStartTime;
+    private int mSegmentCount;
+    // The request stopping the last segment, while the next one waits for
+    // the camera.
+    private VideoFinalizer.Request mRolloverRequest;
+    private long mRolloverStartTime;
     private boolean mRecordingTimeCountsDown = false;
     private RotateLayout mRecordingTimeRect;
     private long mOnResumeTime;
@@ -187,6 +212,32 @@ public class VideoModule implements CameraModule,
     private Uri mCurrentVideoUri;
     private ContentValues mCurrentVideoValues;
 
+    // Stops the recorder and adds the video to the media store off the
+    // main thread. The last request handed to it, until its recorder is
+    // released and until it is done.
+    private VideoFinalizer mVideoFinalizer;
+    private VideoFinalizer.Request mStoppingRequest;
+    private VideoFinalizer.Request mFinalizingRequest;
+
+    // A preview frame grabbed when the shutter button is pressed, which
+    // the review thumbnail of the recording it starts is made from. This
+    // avoids decoding the recorded video, see requestThumbnailFrame().
+    private static final int THUMBNAIL_FRAME_MAX_AGE = 1000;
+    private final ThumbnailFrameCallback mThumbnailFrameCallback =
+            new ThumbnailFrameCallback();
+    private boolean mThumbnailFrameRequested;
+    private byte[] mThumbnailFrame;
+    private long mThumbnailFrameTime;
+    private int mThumbnailFrameWidth;
+    private int mThumbnailFrameHeight;
+    // The orientation hint of the current recording.
+    private int mRecordingRotation;
+    // Checks the frame rate while recording, see startHealthMonitor().
+    private RecordingHealthMonitor mHealthMonitor;
+    private RecordingHealthMonitor.Report mLastRecordingHealth;
+    // This is for the VideoThumbnail stress test.
+    public long mThumbnailLatency = -1;
+
     private CamcorderProfile mProfile;
 
     // The video duration limit. 0 menas no limit.
@@ -197,6 +248,21 @@ public class VideoModule implements CameraModule,
     // Default 0. If it is larger than 0, the camcorder is in time lapse mode.
     private int mTimeBetweenTimeLapseFrameCaptureMs = 0;
     private View mTimeLapseLabel;
+    // Takes the frames of long interval time lapses instead of the
+    // recorder, see useSparseTimeLapse().
+    private TimeLapseCapture mTimeLapseCapture;
+    // Keeps the last seconds encoded while previewing and records instead
+    // of the recorder, see usePreRoll().
+    private PreRollRecorder mPreRollRecorder;
+    private boolean mPreRollRecording;
+    // Effects the filter framework cannot do run on the frames of the
+    // pre-roll recorder instead, see softwareEffectsActive().
+    private SoftwareEffects mSoftwareEffects;
+    private boolean mSoftwareEffectsRunning;
+    private ImageView mEffectPreview;
+    private final Matrix mEffectMatrix = new Matrix();
+    private boolean mFaceDetectionStarted;
+    private boolean mBackdropperLocked;
 
     private int mDesiredPreviewWidth;
     private int mDesiredPreviewHeight;
@@ -270,7 +336,8 @@ public class VideoModule implements CameraModule,
             switch (msg.what) {
 
                 case ENABLE_SHUTTER_BUTTON:
-                    mShutterButton.setEnabled(true);
+                    // Otherwise it is enabled in onRecorderReleased().
+                    if (mStoppingRequest == null) mShutterButton.setEnabled(true);
                     break;
 
                 case CLEAR_SCREEN_DELAY: {
@@ -561,7 +628,7 @@ public class VideoModule implements CameraModule,
     private void initializeVideoControl() {
         loadCameraPreferences();
         mVideoControl.initialize(mPreferenceGroup);
-        if (effectsActive()) {
+        if (mEffectType != EffectsRecorder.EFFECT_NONE) {
             mVideoControl.overrideSettings(
                     CameraSettings.KEY_VIDEO_QUALITY,
                     Integer.toString(getLowVideoQuality()));
@@ -606,6 +673,9 @@ public class VideoModule implements CameraModule,
             if (effectsActive()) {
                 mEffectsRecorder.setOrientationHint(mOrientation);
             }
+            if (mSoftwareEffects != null) {
+                mSoftwareEffects.setRotation(getRecordingRotation());
+            }
         }
 
         // Show the toast after getting the first orientation changed.
@@ -673,26 +743,40 @@ public class VideoModule implements CameraModule,
     }
 
     private void onStopVideoRecording() {
-        mEffectsDisplayResult = true;
+        mDisplayResult = true;
         boolean recordFail = stopVideoRecording();
+        // The result of a recording handed to the finalizer is shown in
+        // onVideoFinalized(), the one of an effects recording in
+        // onEffectsUpdate().
+        if (mFinalizingRequest != null || !mDisplayResult) return;
+        if (effectsActive()) {
+            if (!mIsVideoCaptureIntent && !recordFail) animateCapture();
+            return;
+        }
+        mDisplayResult = false;
+        showRecordingResult(recordFail, null);
+    }
+
+    private void showRecordingResult(boolean recordFail, Bitmap thumbnail) {
         if (mIsVideoCaptureIntent) {
-            if (!effectsActive()) {
-                if (mQuickCapture) {
-                    doReturnToCaller(!recordFail);
-                } else if (!recordFail) {
-                    showAlert();
-                }
-            }
-        } else if (!recordFail){
-            // Start capture animation.
-            if (!mPaused && ApiHelper.HAS_SURFACE_TEXTURE_RECORDING) {
-                // The capture animation is disabled on ICS because we use SurfaceView
-                // for preview during recording. When the recording is done, we switch
-                // back to use SurfaceTexture for preview and we need to stop then start
-                // the preview. This will cause the preview flicker since the preview
-                // will not be continuous for a short period of time.
-                ((CameraScreenNail) mActivity.mCameraScreenNail).animateCapture(mDisplayRotation);
+            if (mQuickCapture) {
+                doReturnToCaller(!recordFail);
+            } else if (!recordFail) {
+                showAlert(thumbnail);
             }
+        } else if (!recordFail) {
+            animateCapture();
+        }
+    }
+
+    private void animateCapture() {
+        if (!mPaused && ApiHelper.HAS_SURFACE_TEXTURE_RECORDING) {
+            // The capture animation is disabled on ICS because we use SurfaceView
+            // for preview during recording. When the recording is done, we switch
+            // back to use SurfaceTexture for preview and we need to stop then start
+            // the preview. This will cause the preview flicker since the preview
+            // will not be continuous for a short period of time.
+            ((CameraScreenNail) mActivity.mCameraScreenNail).animateCapture(mDisplayRotation);
         }
     }
 
@@ -724,7 +808,42 @@ public class VideoModule implements CameraModule,
 
     @Override
     public void onShutterButtonFocus(boolean pressed) {
-        // Do nothing (everything happens in onShutterButtonClick).
+        // Everything else happens in onShutterButtonClick.
+        if (pressed && !mMediaRecorderRecording) requestThumbnailFrame();
+    }
+
+    // Grabs the next preview frame for the review thumbnail. The camera is
+    // unlocked once the recording starts, so this is done when the shutter
+    // button is pressed rather than when it is clicked. If no frame is
+    // grabbed in time, the thumbnail is decoded from the video.
+    private void requestThumbnailFrame() {
+        if (!mIsVideoCaptureIntent || mQuickCapture || effectsActive()
+                || !mPreviewing || mThumbnailFrameRequested
+                || mParameters.getPreviewFormat() != ImageFormat.NV21) {
+            return;
+        }
+        Size size = mParameters.getPreviewSize();
+        mThumbnailFrameWidth = size.width;
+        mThumbnailFrameHeight = size.height;
+        mThumbnailFrame = null;
+        mThumbnailFrameRequested = true;
+        mActivity.mCameraDevice.setPreviewCallback(mThumbnailFrameCallback);
+    }
+
+    private void stopThumbnailFrame() {
+        if (!mThumbnailFrameRequested) return;
+        mThumbnailFrameRequested = false;
+        mActivity.mCameraDevice.setPreviewCallback(null);
+    }
+
+    private class ThumbnailFrameCallback implements PreviewCallback {
+        @Override
+        public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+            if (!mThumbnailFrameRequested) return;
+            mThumbnailFrame = data;
+            mThumbnailFrameTime = SystemClock.uptimeMillis();
+            stopThumbnailFrame();
+        }
     }
 
     private void readVideoPreferences() {
@@ -796,7 +915,7 @@ public class VideoModule implements CameraModule,
     private void getDesiredPreviewSize() {
         mParameters = mActivity.mCameraDevice.getParameters();
         if (ApiHelper.HAS_GET_SUPPORTED_VIDEO_SIZE) {
-            if (mParameters.getSupportedVideoSizes() == null || (!mActivity.getResources().getBoolean(R.bool.usePreferredPreviewSizeForEffects) && effectsActive()) || Util.useProfileVideoSize()) {
+            if (mParameters.getSupportedVideoSizes() == null || (!mActivity.getResources().getBoolean(R.bool.usePreferredPreviewSizeForEffects) && effectsActive()) || softwareEffectsActive() || Util.useProfileVideoSize()) {
                 mDesiredPreviewWidth = mProfile.videoFrameWidth;
                 mDesiredPreviewHeight = mProfile.videoFrameHeight;
             } else {  // Driver supports separates outputs for preview and video.
@@ -873,6 +992,12 @@ public class VideoModule implements CameraModule,
         mZoomValue = 0;
 
         showVideoSnapshotUI(false);
+        if (mImageSaver == null) {
+            mImageSaver = new ImageSaver(mActivity, mContentResolver);
+        }
+        if (mVideoFinalizer == null) {
+            mVideoFinalizer = new VideoFinalizer(mActivity, mContentResolver, this);
+        }
 
 
         if (!mPreviewing) {
@@ -952,6 +1077,7 @@ public class VideoModule implements CameraModule,
                     mActivity.mCameraDevice.setPreviewDisplayAsync(mPreviewSurfaceView.getHolder());
                 }
                 mActivity.mCameraDevice.startPreviewAsync();
+                startPreRoll();
             } else {
                 initializeEffectsPreview();
                 mEffectsRecorder.startPreview();
@@ -965,6 +1091,7 @@ public class VideoModule implements CameraModule,
     }
 
     private void stopPreview() {
+        stopPreRoll();
         mActivity.mCameraDevice.stopPreview();
         mPreviewing = false;
     }
@@ -1005,6 +1132,10 @@ public class VideoModule implements CameraModule,
             Log.d(TAG, "already stopped.");
             return;
         }
+        // A recorder still being stopped holds the camera.
+        if (mStoppingRequest != null) mVideoFinalizer.waitForRelease(mStoppingRequest);
+        stopThumbnailFrame();
+        stopPreRoll();
 
         if (mEffectsRecorder != null) {
             // Disconnect the camera from effects so that camera is ready to
@@ -1044,6 +1175,24 @@ public class VideoModule implements CameraModule,
             closeCamera();
             if (!effectsActive()) releaseMediaRecorder();
         }
+        if (mVideoFinalizer != null) {
+            // The file descriptor may still be in use. A capture intent also
+            // waits for its result. Otherwise only the camera is waited for,
+            // and a long time lapse encode goes on after the pause.
+            if (mIsVideoCaptureIntent) {
+                mVideoFinalizer.finish();
+            } else {
+                mVideoFinalizer.quitSafely();
+            }
+            mVideoFinalizer = null;
+            mStoppingRequest = null;
+            mFinalizingRequest = null;
+        }
+        if (mSoftwareEffects != null) {
+            // The pre-roll recorder was stopped with the camera.
+            mSoftwareEffects.release();
+            mSoftwareEffects = null;
+        }
         if (effectsActive()) {
             // If the effects are active, make sure we tell the graph that the
             // surfacetexture is not valid anymore. Disconnect the graph from
@@ -1064,6 +1213,11 @@ public class VideoModule implements CameraModule,
 
         releasePreviewResources();
 
+        if (mImageSaver != null) {
+            mImageSaver.finish();
+            mImageSaver = null;
+        }
+
         if (mReceiver != null) {
             mActivity.unregisterReceiver(mReceiver);
             mReceiver = null;
@@ -1194,6 +1348,32 @@ public class VideoModule implements CameraModule,
         }
     }
 
+    // The duration limit of the next file, what is left of the limit of the
+    // recording.
+    private int getMaxDuration() {
+        int maxDuration = mMaxVideoDurationInMs;
+        if (mMediaRecorderRecording && maxDuration > 0) {
+            long elapsed = SystemClock.uptimeMillis() - mRecordingStartTime;
+            maxDuration = (int) Math.max(1, maxDuration - elapsed);
+        }
+        return maxDuration;
+    }
+
+    // The size limit of the next file. Unless the storage or the caller
+    // sets the limit, the recording continues in a new file at the segment
+    // size instead of stopping, see rolloverSegment().
+    private long getMaxFileSize(long requestedSizeLimit) {
+        long maxFileSize = mActivity.getStorageSpace() - Storage.LOW_STORAGE_THRESHOLD;
+        if (requestedSizeLimit > 0 && requestedSizeLimit < maxFileSize) {
+            maxFileSize = requestedSizeLimit;
+        }
+        long segmentSize = Util.getVideoSegmentSize();
+        mSegmentLimited = !mIsVideoCaptureIntent && segmentSize > 0
+                && segmentSize < maxFileSize;
+        if (mSegmentLimited) maxFileSize = segmentSize;
+        return maxFileSize;
+    }
+
     private void setupMediaRecorderPreviewDisplay() {
         // Nothing to do here if using SurfaceTexture.
         if (!ApiHelper.HAS_SURFACE_TEXTURE) {
@@ -1266,7 +1446,7 @@ public class VideoModule implements CameraModule,
         }
         mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
         mMediaRecorder.setProfile(mProfile);
-        mMediaRecorder.setMaxDuration(mMaxVideoDurationInMs);
+        mMediaRecorder.setMaxDuration(getMaxDuration());
         if (mCaptureTimeLapse) {
             double fps = 1000 / (double) mTimeBetweenTimeLapseFrameCaptureMs;
             setCaptureRate(mMediaRecorder, fps);
@@ -1285,11 +1465,7 @@ public class VideoModule implements CameraModule,
         }
 
         // Set maximum file size.
-        long maxFileSize = mActivity.getStorageSpace() - Storage.LOW_STORAGE_THRESHOLD;
-        if (requestedSizeLimit > 0 && requestedSizeLimit < maxFileSize) {
-            maxFileSize = requestedSizeLimit;
-        }
-
+        long maxFileSize = getMaxFileSize(requestedSizeLimit);
         try {
             mMediaRecorder.setMaxFileSize(maxFileSize);
         } catch (RuntimeException exception) {
@@ -1299,21 +1475,9 @@ public class VideoModule implements CameraModule,
             // on the size restriction.
         }
 
-        // See android.hardware.Camera.Parameters.setRotation for
-        // documentation.
-        // Note that mOrientation here is the device orientation, which is the opposite of
-        // what activity.getWindowManager().getDefaultDisplay().getRotation() would return,
-        // which is the orientation the graphics need to rotate in order to render correctly.
-        int rotation = 0;
-        if (mOrientation != OrientationEventListener.ORIENTATION_UNKNOWN) {
-            CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
-            if (info.facing == CameraInfo.CAMERA_FACING_FRONT) {
-                rotation = (info.orientation - mOrientation + 360) % 360;
-            } else {  // back-facing camera
-                rotation = (info.orientation + mOrientation) % 360;
-            }
-        }
+        int rotation = getRecordingRotation();
         mMediaRecorder.setOrientationHint(rotation);
+        mRecordingRotation = rotation;
 
         try {
             mMediaRecorder.prepare();
@@ -1353,7 +1517,7 @@ public class VideoModule implements CameraModule,
 
         CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
 
-        mEffectsDisplayResult = false;
+        mDisplayResult = false;
         mEffectsRecorder = new EffectsRecorder(mActivity);
 
         // TODO: Confirm none of the following need to go to initializeEffectsRecording()
@@ -1588,6 +1752,10 @@ public class VideoModule implements CameraModule,
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
             if (mMediaRecorderRecording) onStopVideoRecording();
         } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            if (mMediaRecorderRecording && mSegmentLimited && !mPaused) {
+                rolloverSegment();
+                return;
+            }
             if (mMediaRecorderRecording) onStopVideoRecording();
 
             // Show the toast.
@@ -1614,6 +1782,295 @@ public class VideoModule implements CameraModule,
         return mMediaRecorderRecording;
     }
 
+    // For testing.
+    public EffectsRecorder getEffectsRecorder() {
+        return effectsActive() ? mEffectsRecorder : null;
+    }
+
+    // For testing.
+    public RecordingHealthMonitor.Report getLastRecordingHealth() {
+        return mLastRecordingHealth;
+    }
+
+    // The preview frames keep arriving on the SurfaceTexture while the
+    // recorder runs, at the rate the sensor delivers them. Time lapses and
+    // effects do not record every preview frame, so they are not checked.
+    private void startHealthMonitor() {
+        if (!ApiHelper.HAS_SURFACE_TEXTURE_RECORDING || mCaptureTimeLapse
+                || effectsActive()) {
+            return;
+        }
+        mHealthMonitor = new RecordingHealthMonitor(mProfile.videoFrameRate);
+        // setprop log.tag.CAM_VideoModule VERBOSE keeps the timestamps for
+        // replaying them later.
+        if (Log.isLoggable(TAG, Log.VERBOSE)) mHealthMonitor.setTrace(new TimestampTrace());
+        mHealthMonitor.setListener(this);
+        ((CameraScreenNail) mActivity.mCameraScreenNail).setFrameMonitor(mHealthMonitor);
+    }
+
+    private void stopHealthMonitor() {
+        if (mHealthMonitor == null) return;
+        ((CameraScreenNail) mActivity.mCameraScreenNail).setFrameMonitor(null);
+        mHealthMonitor.stop();
+        TimestampTrace trace = mHealthMonitor.getTrace();
+        File dir = mActivity.getExternalCacheDir();
+        if (trace != null && dir != null) {
+            File file = new File(dir, "recording.trace");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                trace.write(out);
+                Log.v(TAG, "Wrote " + trace.size() + " frame timestamps to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write " + file, e);
+            } finally {
+                Util.closeSilently(out);
+            }
+        }
+        mHealthMonitor = null;
+    }
+
+    @Override
+    public void onRecordingHealth(RecordingHealthMonitor.Report report) {
+        mLastRecordingHealth = report;
+        Log.v(TAG, report.dump());
+    }
+
+    // See android.hardware.Camera.Parameters.setRotation for
+    // documentation.
+    // Note that mOrientation here is the device orientation, which is the opposite of
+    // what activity.getWindowManager().getDefaultDisplay().getRotation() would return,
+    // which is the orientation the graphics need to rotate in order to render correctly.
+    private int getRecordingRotation() {
+        int rotation = 0;
+        if (mOrientation != OrientationEventListener.ORIENTATION_UNKNOWN) {
+            CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
+            if (info.facing == CameraInfo.CAMERA_FACING_FRONT) {
+                rotation = (info.orientation - mOrientation + 360) % 360;
+            } else {  // back-facing camera
+                rotation = (info.orientation + mOrientation) % 360;
+            }
+        }
+        return rotation;
+    }
+
+    // Time lapses with long intervals take single preview frames and encode
+    // them when the recording stops, instead of keeping the recorder and the
+    // sensor running for frames that are mostly dropped.
+    private boolean useSparseTimeLapse() {
+        int minInterval = Util.getSparseTimeLapseInterval();
+        return mCaptureTimeLapse && !mIsVideoCaptureIntent && !effectsActive()
+                && minInterval > 0 && mTimeBetweenTimeLapseFrameCaptureMs >= minInterval
+                && mParameters.getPreviewFormat() == ImageFormat.NV21
+                && TimeLapseEncoder.isSupported(mProfile.videoFrameWidth,
+                        mProfile.videoFrameHeight);
+    }
+
+    // Recordings can start with what happened before record was pressed,
+    // encoded from the preview frames. The software effects are recorded
+    // this way too. Time lapses and the filter framework effects cannot use
+    // the preview frames as they are, and capture intents may want the
+    // video in their own file.
+    private boolean usePreRoll() {
+        return (Util.getVideoPreRollTime() > 0 || softwareEffectsActive())
+                && !mIsVideoCaptureIntent && !effectsActive() && !mCaptureTimeLapse
+                && mParameters.getPreviewFormat() == ImageFormat.NV21
+                && PreRollRecorder.isSupported(mDesiredPreviewWidth, mDesiredPreviewHeight);
+    }
+
+    private void startPreRoll() {
+        if (!usePreRoll() || (mPreRollRecorder != null && mPreRollRecorder.isStarted())) {
+            return;
+        }
+        PreviewBufferPool pool = mActivity.mCameraDevice.getPreviewBufferPool();
+        pool.start(mActivity.mCameraDevice, mParameters);
+        if (mPreRollRecorder == null) mPreRollRecorder = new PreRollRecorder(mPreRollListener);
+        if (!mPreRollRecorder.start(pool, mParameters, mProfile, Util.getVideoPreRollTime(),
+                Util.getVideoPreRollMemoryLimit())) {
+            pool.stop();
+            return;
+        }
+        startSoftwareEffects();
+    }
+
+    private void stopPreRoll() {
+        if (mPreRollRecorder == null || !mPreRollRecorder.isStarted()) return;
+        stopSoftwareEffects();
+        mPreRollRecorder.stop();
+        mActivity.mCameraDevice.getPreviewBufferPool().stop();
+    }
+
+    // The effect runs on every frame the pre-roll recorder encodes, so what
+    // is shown is what is recorded.
+    private void startSoftwareEffects() {
+        if (!softwareEffectsActive()) return;
+        if (mSoftwareEffects == null) {
+            mSoftwareEffects = new SoftwareEffects(mActivity, mSoftwareEffectsListener);
+        }
+        Size size = mParameters.getPreviewSize();
+        mSoftwareEffects.setPreviewSize(size.width, size.height);
+        mSoftwareEffects.setRotation(getRecordingRotation());
+        setSoftwareEffect();
+        mSoftwareEffectsRunning = true;
+        mPreRollRecorder.setFrameFilter(mSoftwareEffects);
+    }
+
+    private void stopSoftwareEffects() {
+        if (!mSoftwareEffectsRunning) return;
+        mSoftwareEffectsRunning = false;
+        mPreRollRecorder.setFrameFilter(null);
+        stopFaceDetection();
+        setBackdropperLocks(false);
+        mBgLearningMessageFrame.setVisibility(View.GONE);
+        mEffectPreview.setVisibility(View.GONE);
+        mEffectPreview.setImageBitmap(null);
+    }
+
+    private void setSoftwareEffect() {
+        Object parameter = mEffectParameter;
+        if (mEffectType == EffectsRecorder.EFFECT_BACKDROPPER) {
+            if (EFFECT_BG_FROM_GALLERY.equals(mEffectParameter)) {
+                parameter = mEffectUriFromGallery;
+            }
+            // The background is learned again, with the exposure free.
+            setBackdropperLocks(false);
+            mBgLearningMessageFrame.setVisibility(View.VISIBLE);
+        } else {
+            setBackdropperLocks(false);
+            mBgLearningMessageFrame.setVisibility(View.GONE);
+        }
+        mSoftwareEffects.setEffect(mEffectType, parameter);
+        if (mEffectType == EffectsRecorder.EFFECT_GOOFY_FACE) {
+            startFaceDetection();
+        } else {
+            stopFaceDetection();
+        }
+    }
+
+    private final SoftwareEffects.Listener mSoftwareEffectsListener =
+            new SoftwareEffects.Listener() {
+        @Override
+        public void onEffectFrame(Bitmap frame) {
+            if (mSoftwareEffectsRunning) showEffectFrame(frame);
+        }
+
+        @Override
+        public void onLearningDone() {
+            if (!mSoftwareEffectsRunning) return;
+            mBgLearningMessageFrame.setVisibility(View.GONE);
+            // Like EffectsRecorder, the learned background is kept valid by
+            // locking the exposure and the white balance.
+            setBackdropperLocks(true);
+        }
+    };
+
+    // The frames are in the orientation of the sensor, like the faces of the
+    // driver, so they are mapped to the view the same way.
+    private void showEffectFrame(Bitmap frame) {
+        CameraInfo info = CameraHolder.instance().getCameraInfo()[mCameraId];
+        Util.prepareMatrix(mEffectMatrix, info.facing == CameraInfo.CAMERA_FACING_FRONT,
+                Util.getDisplayOrientation(mDisplayRotation, mCameraId),
+                mEffectPreview.getWidth(), mEffectPreview.getHeight());
+        mEffectMatrix.preTranslate(-1000, -1000);
+        mEffectMatrix.preScale(2000f / frame.getWidth(), 2000f / frame.getHeight());
+        mEffectPreview.setImageMatrix(mEffectMatrix);
+        mEffectPreview.setImageBitmap(frame);
+        mEffectPreview.setVisibility(View.VISIBLE);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void setBackdropperLocks(boolean lock) {
+        if (mBackdropperLocked == lock || mActivity.mCameraDevice == null
+                || !Util.isAutoExposureLockSupported(mParameters)
+                || !Util.isAutoWhiteBalanceLockSupported(mParameters)) {
+            return;
+        }
+        mBackdropperLocked = lock;
+        mParameters.setAutoExposureLock(lock);
+        mParameters.setAutoWhiteBalanceLock(lock);
+        mActivity.mCameraDevice.setParameters(mParameters);
+    }
+
+    // The goofy faces of the software effects follow the faces found by the
+    // driver.
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void startFaceDetection() {
+        if (mFaceDetectionStarted || mParameters.getMaxNumDetectedFaces() == 0) return;
+        // Workaround for a buggy camera library
+        if (Util.noFaceDetectOnFrontCamera() && (CameraHolder.instance().getCameraInfo()
+                [mCameraId].facing == CameraInfo.CAMERA_FACING_FRONT)) {
+            return;
+        }
+        mFaceDetectionStarted = true;
+        mActivity.mCameraDevice.setFaceDetectionListener(mFaceDetectionListener);
+        mActivity.mCameraDevice.startFaceDetection();
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void stopFaceDetection() {
+        if (!mFaceDetectionStarted) return;
+        mFaceDetectionStarted = false;
+        mActivity.mCameraDevice.setFaceDetectionListener(null);
+        mActivity.mCameraDevice.stopFaceDetection();
+        if (mSoftwareEffects != null) mSoftwareEffects.setFaces(null);
+    }
+
+    private final FaceDetectionListener mFaceDetectionListener = new FaceDetectionListener() {
+        @Override
+        public void onFaceDetection(Face[] faces, android.hardware.Camera camera) {
+            if (mSoftwareEffects != null) mSoftwareEffects.setFaces(faces);
+        }
+    };
+
+    // The limits of a pre-roll recording are handled like the ones of the
+    // recorder.
+    private final PreRollRecorder.Listener mPreRollListener = new PreRollRecorder.Listener() {
+        @Override
+        public void onLimitReached(int what) {
+            if (mPreRollRecording) onInfo(null, what, 0);
+        }
+    };
+
+    private final TimeLapseCapture.Listener mTimeLapseListener = new TimeLapseCapture.Listener() {
+        @Override
+        public void onLimitReached(int what) {
+            if (mTimeLapseCapture != null) onInfo(null, what, 0);
+        }
+    };
+
+    private boolean startPreRollRecording() {
+        // The encoder always writes MP4, whatever the profile says.
+        generateVideoFilename(MediaRecorder.OutputFormat.MPEG_4);
+        mRecordingRotation = getRecordingRotation();
+        if (!mPreRollRecorder.startRecording(new File(mVideoFilename), mRecordingRotation,
+                getMaxFileSize(0), getMaxDuration())) {
+            mVideoFilename = null;
+            return false;
+        }
+        mPreRollRecording = true;
+        return true;
+    }
+
+    private boolean startTimeLapseCapture() {
+        // The encoder always writes MP4, whatever the profile says.
+        generateVideoFilename(MediaRecorder.OutputFormat.MPEG_4);
+        mTimeLapseCapture = new TimeLapseCapture(mActivity.mCameraDevice, mParameters,
+                mTimeBetweenTimeLapseFrameCaptureMs, new File(mVideoFilename + ".frames"),
+                mTimeLapseListener);
+        // The video is not split in segments, and is encoded next to the
+        // frames.
+        long maxFileSize = mActivity.getStorageSpace() - Storage.LOW_STORAGE_THRESHOLD;
+        int encodedFrameSize = mProfile.videoBitRate / 8 / mProfile.videoFrameRate;
+        if (!mTimeLapseCapture.start(maxFileSize, getMaxDuration(), encodedFrameSize)) {
+            mTimeLapseCapture = null;
+            mVideoFilename = null;
+            return false;
+        }
+        mRecordingRotation = getRecordingRotation();
+        mSegmentLimited = false;
+        return true;
+    }
+
     private void startVideoRecording() {
         Log.v(TAG, "startVideoRecording");
         mActivity.setSwipingEnabled(false);
@@ -1625,7 +2082,29 @@ public class VideoModule implements CameraModule,
         }
 
         mCurrentVideoUri = null;
-        if (effectsActive()) {
+        // The recorder of the last recording must release the camera first.
+        if (mStoppingRequest != null) mVideoFinalizer.waitForRelease(mStoppingRequest);
+        // The camera is unlocked for the recorder below.
+        stopThumbnailFrame();
+        if (mThumbnailFrame != null && SystemClock.uptimeMillis() - mThumbnailFrameTime
+                > THUMBNAIL_FRAME_MAX_AGE) {
+            mThumbnailFrame = null;
+        }
+        boolean preRoll = usePreRoll() && mPreRollRecorder != null
+                && mPreRollRecorder.isStarted();
+        // The recorder and the time lapse capture need the preview callback.
+        if (!preRoll) stopPreRoll();
+        if (preRoll) {
+            if (!startPreRollRecording()) {
+                Log.e(TAG, "Fail to start pre-roll recording");
+                return;
+            }
+        } else if (useSparseTimeLapse()) {
+            if (!startTimeLapseCapture()) {
+                Log.e(TAG, "Fail to start time lapse capture");
+                return;
+            }
+        } else if (effectsActive()) {
             initializeEffectsRecording();
             if (mEffectsRecorder == null) {
                 Log.e(TAG, "Fail to initialize effect recorder");
@@ -1641,7 +2120,9 @@ public class VideoModule implements CameraModule,
 
         pauseAudioPlayback();
 
-        if (effectsActive()) {
+        if (mTimeLapseCapture != null || mPreRollRecording) {
+            // Already taking frames.
+        } else if (effectsActive()) {
             try {
                 mEffectsRecorder.startRecording();
             } catch (RuntimeException e) {
@@ -1674,6 +2155,9 @@ public class VideoModule implements CameraModule,
         mMediaRecorderRecording = true;
         mActivity.getOrientationManager().lockOrientation();
         mRecordingStartTime = SystemClock.uptimeMillis();
+        mSegmentStartTime = mRecordingStartTime;
+        mSegmentCount = 1;
+        startHealthMonitor();
         showRecordingUI(true);
 
         updateRecordingTime();
@@ -1710,14 +2194,17 @@ public class VideoModule implements CameraModule,
         }
     }
 
-    private void showAlert() {
-        Bitmap bitmap = null;
-        if (mVideoFileDescriptor != null) {
-            bitmap = Thumbnail.createVideoThumbnailBitmap(mVideoFileDescriptor.getFileDescriptor(),
-                    mPreviewFrameLayout.getWidth());
-        } else if (mCurrentVideoFilename != null) {
-            bitmap = Thumbnail.createVideoThumbnailBitmap(mCurrentVideoFilename,
-                    mPreviewFrameLayout.getWidth());
+    // Shows the review UI with the thumbnail made by the finalizer, or makes
+    // one if there is none.
+    private void showAlert(Bitmap bitmap) {
+        if (bitmap == null) {
+            if (mVideoFileDescriptor != null) {
+                bitmap = Thumbnail.createVideoThumbnailBitmap(
+                        mVideoFileDescriptor.getFileDescriptor(), mPreviewFrameLayout.getWidth());
+            } else if (mCurrentVideoFilename != null) {
+                bitmap = Thumbnail.createVideoThumbnailBitmap(mCurrentVideoFilename,
+                        mPreviewFrameLayout.getWidth());
+            }
         }
         if (bitmap != null) {
             // MetadataRetriever already rotates the thumbnail. We should rotate
@@ -1763,30 +2250,50 @@ public class VideoModule implements CameraModule,
         mActivity.showSwitcher();
 
         boolean fail = false;
+        VideoFinalizer.Request request = null;
         if (mMediaRecorderRecording) {
-            boolean shouldAddToMediaStoreNow = false;
-
-            try {
-                if (effectsActive()) {
+            if (effectsActive()) {
+                try {
                     // This is asynchronous, so we can't add to media store now because thumbnail
                     // may not be ready. In such case addVideoToMediaStore is called later
                     // through a callback from the MediaEncoderFilter to EffectsRecorder,
                     // and then to the VideoModule.
                     mEffectsRecorder.stopRecording();
-                } else {
-                    mMediaRecorder.setOnErrorListener(null);
-                    mMediaRecorder.setOnInfoListener(null);
-                    mMediaRecorder.stop();
-                    shouldAddToMediaStoreNow = true;
+                    mCurrentVideoFilename = mVideoFilename;
+                    Log.v(TAG, "stopVideoRecording: Setting current video filename: "
+                            + mCurrentVideoFilename);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "stop fail",  e);
+                    if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
+                    fail = true;
                 }
-                mCurrentVideoFilename = mVideoFilename;
-                Log.v(TAG, "stopVideoRecording: Setting current video filename: "
-                        + mCurrentVideoFilename);
-            } catch (RuntimeException e) {
-                Log.e(TAG, "stop fail",  e);
-                if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
-                fail = true;
-            }
+            } else if (mRolloverRequest != null) {
+                // Stopped between two segments, the last one is the result.
+                request = mRolloverRequest;
+                mRolloverRequest = null;
+                mFinalizingRequest = request;
+            } else if (mMediaRecorder != null) {
+                // MediaRecorder.stop() may take seconds on long clips, so
+                // the recorder is stopped and the video is added to the
+                // media store by the finalizer.
+                request = createFinalizeRequest();
+                mVideoFinalizer.addRequest(request);
+                mStoppingRequest = request;
+                mFinalizingRequest = request;
+            } else if (mPreRollRecording) {
+                request = createPreRollRequest();
+                mVideoFinalizer.addRequest(request);
+                mStoppingRequest = request;
+                mFinalizingRequest = request;
+            } else if (mTimeLapseCapture != null) {
+                // The frames are encoded by the finalizer.
+                mTimeLapseCapture.stop();
+                request = createTimeLapseRequest();
+                mVideoFinalizer.addRequest(request);
+                mStoppingRequest = request;
+                mFinalizingRequest = request;
+            }
+            stopHealthMonitor();
             mMediaRecorderRecording = false;
             mActivity.getOrientationManager().unlockOrientation();
 
@@ -1814,10 +2321,11 @@ public class VideoModule implements CameraModule,
             // reflect the device orientation as video recording is stopped.
             setOrientationIndicator(0, true);
             keepScreenOnAwhile();
-            if (shouldAddToMediaStoreNow) {
-                if (addVideoToMediaStore()) fail = true;
-            }
         }
+        // The finalizer releases the recorder it was handed, and the camera
+        // is locked again in onRecorderReleased().
+        if (request != null) return fail;
+
         // always release media recorder if no effects running
         if (!effectsActive()) {
             releaseMediaRecorder();
@@ -1839,6 +2347,201 @@ public class VideoModule implements CameraModule,
         return fail;
     }
 
+    // Hands the recorder and the current video over to a new request.
+    private VideoFinalizer.Request createFinalizeRequest() {
+        mMediaRecorder.setOnErrorListener(null);
+        mMediaRecorder.setOnInfoListener(null);
+
+        VideoFinalizer.Request r = new VideoFinalizer.Request();
+        r.recorder = mMediaRecorder;
+        r.cameraUnlocked = true;
+        r.path = mVideoFilename;
+        mMediaRecorder = null;
+        mVideoFilename = null;
+        if (mVideoFileDescriptor != null) {
+            r.fd = mVideoFileDescriptor.getFileDescriptor();
+        } else {
+            long duration = SystemClock.uptimeMillis() - mSegmentStartTime;
+            if (duration > 0) {
+                if (mCaptureTimeLapse) {
+                    duration = getTimeLapseVideoLength(duration);
+                }
+                mCurrentVideoValues.put(Video.Media.DURATION, duration);
+            } else {
+                Log.w(TAG, "Video duration <= 0 : " + duration);
+            }
+            // The insert was requested when the recording started, so this
+            // does not wait for long. It must be done before the next
+            // recording asks the namer for a new uri.
+            r.uri = mVideoNamer.getUri();
+            r.values = mCurrentVideoValues;
+            mActivity.addSecureAlbumItemIfNeeded(true, r.uri);
+        }
+        mCurrentVideoValues = null;
+        if (mIsVideoCaptureIntent && !mQuickCapture) {
+            r.thumbnailWidth = mPreviewFrameLayout.getWidth();
+            r.previewFrame = mThumbnailFrame;
+            r.previewWidth = mThumbnailFrameWidth;
+            r.previewHeight = mThumbnailFrameHeight;
+            r.previewRotation = mRecordingRotation;
+        }
+        mThumbnailFrame = null;
+        return r;
+    }
+
+    // Finishes the file of the pre-roll recorder, which keeps encoding for
+    // the next recording, and hands it over to a new request.
+    private VideoFinalizer.Request createPreRollRequest() {
+        mPreRollRecording = false;
+        VideoFinalizer.Request r = new VideoFinalizer.Request();
+        // Writing the movie header of a long recording takes a while, so
+        // the file is finished by the finalizer.
+        r.preRoll = mPreRollRecorder.stopRecording();
+        r.path = mVideoFilename;
+        if (r.preRoll == null) {
+            deleteVideoFile(mVideoFilename);
+            r.failed = true;
+        }
+        r.uri = mVideoNamer.getUri();
+        r.values = mCurrentVideoValues;
+        mActivity.addSecureAlbumItemIfNeeded(true, r.uri);
+        mVideoFilename = null;
+        mCurrentVideoValues = null;
+        mThumbnailFrame = null;
+        return r;
+    }
+
+    // Hands the frames of the time lapse capture over to a new request.
+    private VideoFinalizer.Request createTimeLapseRequest() {
+        VideoFinalizer.Request r = new VideoFinalizer.Request();
+        r.timeLapse = new TimeLapseEncoder(mTimeLapseCapture.getFramesFile(),
+                mProfile.videoFrameWidth, mProfile.videoFrameHeight,
+                mProfile.videoFrameRate, mProfile.videoBitRate, mRecordingRotation);
+        r.path = mVideoFilename;
+        mCurrentVideoValues.put(Video.Media.DURATION,
+                (long) mTimeLapseCapture.getFrameCount() * 1000 / mProfile.videoFrameRate);
+        r.uri = mVideoNamer.getUri();
+        r.values = mCurrentVideoValues;
+        mActivity.addSecureAlbumItemIfNeeded(true, r.uri);
+        mTimeLapseCapture = null;
+        mVideoFilename = null;
+        mCurrentVideoValues = null;
+        mThumbnailFrame = null;
+        return r;
+    }
+
+    // Continues the recording in a new file. camera1 has no way to switch
+    // the output file of a running recorder, and only one recorder can use
+    // the camera, so the frames between stopping the old recorder and
+    // starting the new one are lost. The old segment is added to the media
+    // store by the finalizer, and the next one is started in
+    // onRecorderReleased() once the old recorder has let go of the camera.
+    private void rolloverSegment() {
+        mRolloverStartTime = SystemClock.uptimeMillis();
+        mActivity.updateStorageSpaceAndHint();
+        if (mPreRollRecording) {
+            rolloverPreRollSegment();
+            return;
+        }
+        VideoFinalizer.Request request = createFinalizeRequest();
+        mVideoFinalizer.addRequest(request);
+        mStoppingRequest = request;
+        mRolloverRequest = request;
+    }
+
+    private void startNextSegment() {
+        long released = SystemClock.uptimeMillis();
+        if (mActivity.getStorageSpace() > Storage.LOW_STORAGE_THRESHOLD) {
+            initializeRecorder();
+        }
+        if (mMediaRecorder != null) {
+            try {
+                mMediaRecorder.start();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not start media recorder. ", e);
+                releaseMediaRecorder();
+            }
+        }
+        if (mMediaRecorder == null) {
+            // Ends the recording with the segments saved so far.
+            stopVideoRecording();
+            return;
+        }
+        mSegmentStartTime = SystemClock.uptimeMillis();
+        mSegmentCount++;
+        Log.v(TAG, "Rolled over to segment " + mSegmentCount + ": gap "
+                + (mSegmentStartTime - mRolloverStartTime) + "ms, stop "
+                + (released - mRolloverStartTime) + "ms");
+    }
+
+    // The pre-roll recorder keeps the samples after the limit in memory, so
+    // the next segment starts where the last one ended, without a gap.
+    private void rolloverPreRollSegment() {
+        mVideoFinalizer.addRequest(createPreRollRequest());
+        if (mActivity.getStorageSpace() <= Storage.LOW_STORAGE_THRESHOLD
+                || !startPreRollRecording()) {
+            // Ends the recording with the segments saved so far.
+            stopVideoRecording();
+            return;
+        }
+        mSegmentStartTime = SystemClock.uptimeMillis();
+        mSegmentCount++;
+        Log.v(TAG, "Rolled over to pre-roll segment " + mSegmentCount + " in "
+                + (mSegmentStartTime - mRolloverStartTime) + "ms");
+    }
+
+    @Override
+    public void onRecorderReleased(VideoFinalizer.Request r) {
+        if (r == mStoppingRequest) mStoppingRequest = null;
+        // The camera goes straight to the recorder of the next segment. A
+        // recording stopped or paused meanwhile took the request over.
+        if (r == mRolloverRequest) {
+            mRolloverRequest = null;
+            startNextSegment();
+            return;
+        }
+        if (mPaused || mActivity.mCameraDevice == null) return;
+        // A time lapse capture or a pre-roll recording never handed the
+        // camera over.
+        if (!r.cameraUnlocked) {
+            if (!mIsVideoCaptureIntent && !mHandler.hasMessages(ENABLE_SHUTTER_BUTTON)) {
+                mShutterButton.setEnabled(true);
+            }
+            return;
+        }
+
+        mActivity.mCameraDevice.lock();
+        if (ApiHelper.HAS_SURFACE_TEXTURE &&
+            !ApiHelper.HAS_SURFACE_TEXTURE_RECORDING) {
+            stopPreview();
+            // Switch back to use SurfaceTexture for preview.
+            ((CameraScreenNail) mActivity.mCameraScreenNail).setOneTimeOnFrameDrawnListener(
+                    mFrameDrawnListener);
+            startPreview();
+        }
+        // Update the parameters here because the parameters might have been altered
+        // by MediaRecorder.
+        mParameters = mActivity.mCameraDevice.getParameters();
+        startPreRoll();
+        if (!mIsVideoCaptureIntent && !mHandler.hasMessages(ENABLE_SHUTTER_BUTTON)) {
+            mShutterButton.setEnabled(true);
+        }
+    }
+
+    @Override
+    public void onVideoFinalized(VideoFinalizer.Request r) {
+        if (r != mFinalizingRequest) return;
+        mFinalizingRequest = null;
+        mCurrentVideoUri = r.uri;
+        mCurrentVideoFilename = r.path;
+        Log.v(TAG, "Current video URI: " + mCurrentVideoUri);
+        if (r.thumbnail != null) mThumbnailLatency = r.getThumbnailTime();
+        if (mDisplayResult) {
+            mDisplayResult = false;
+            showRecordingResult(r.failed, r.thumbnail);
+        }
+    }
+
     private void resetScreenOn() {
         mHandler.removeMessages(CLEAR_SCREEN_DELAY);
         mActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -2125,16 +2828,16 @@ public class VideoModule implements CameraModule,
             checkQualityAndStartPreview();
         } else if (effectMsg == EffectsRecorder.EFFECT_MSG_RECORDING_DONE) {
             // This follows the codepath from onStopVideoRecording.
-            if (mEffectsDisplayResult && !addVideoToMediaStore()) {
+            if (mDisplayResult && !addVideoToMediaStore()) {
                 if (mIsVideoCaptureIntent) {
                     if (mQuickCapture) {
                         doReturnToCaller(true);
                     } else {
-                        showAlert();
+                        showAlert(null);
                     }
                 }
             }
-            mEffectsDisplayResult = false;
+            mDisplayResult = false;
             // In onPause, these were not called if the effects were active. We
             // had to wait till the effects recording is complete to do this.
             if (mPaused) {
@@ -2250,6 +2953,7 @@ public class VideoModule implements CameraModule,
         mPreviewFrameLayout = (PreviewFrameLayout) mRootView.findViewById(R.id.frame);
         mPreviewFrameLayout.setOnLayoutChangeListener(mActivity);
         mReviewImage = (ImageView) mRootView.findViewById(R.id.review_image);
+        mEffectPreview = (ImageView) mRootView.findViewById(R.id.effect_preview);
 
         mShutterButton = mActivity.getShutterButton();
         mShutterButton.setImageResource(R.drawable.btn_new_shutter_video);
@@ -2345,8 +3049,16 @@ public class VideoModule implements CameraModule,
     public void onRestorePreferencesClicked() {
     }
 
+    // Whether the effects run in the filter framework, see EffectsRecorder.
     private boolean effectsActive() {
-        return (mEffectType != EffectsRecorder.EFFECT_NONE);
+        return (mEffectType != EffectsRecorder.EFFECT_NONE) && !softwareEffectsActive();
+    }
+
+    // Effects the filter framework cannot run are done on the CPU, see
+    // startSoftwareEffects().
+    private boolean softwareEffectsActive() {
+        return (mEffectType != EffectsRecorder.EFFECT_NONE)
+                && !EffectsRecorder.isEffectSupported(mEffectType);
     }
 
     @Override
@@ -2463,6 +3175,7 @@ public class VideoModule implements CameraModule,
     private boolean updateEffectSelection() {
         int previousEffectType = mEffectType;
         Object previousEffectParameter = mEffectParameter;
+        boolean previousSoftware = softwareEffectsActive();
         mEffectType = CameraSettings.readEffectType(mPreferences);
         mEffectParameter = CameraSettings.readEffectParameter(mPreferences);
 
@@ -2474,6 +3187,12 @@ public class VideoModule implements CameraModule,
                 CameraSettings.KEY_VIDEO_EFFECT, "none"));
 
         if (mEffectType == EffectsRecorder.EFFECT_NONE) {
+            if (previousSoftware) {
+                // The software effects stop with the preview.
+                stopPreview();
+                checkQualityAndStartPreview();
+                return true;
+            }
             // Stop effects and return to normal preview
             mEffectsRecorder.stopPreview();
             mPreviewing = false;
@@ -2493,6 +3212,17 @@ public class VideoModule implements CameraModule,
             // Stop regular preview and start effects.
             stopPreview();
             checkQualityAndStartPreview();
+        } else if (previousSoftware != softwareEffectsActive()) {
+            // Switch between the filter framework and the software effects.
+            if (previousSoftware) {
+                stopPreview();
+            } else {
+                mEffectsRecorder.release();
+                mEffectsRecorder = null;
+            }
+            checkQualityAndStartPreview();
+        } else if (previousSoftware) {
+            if (mSoftwareEffectsRunning) setSoftwareEffect();
         } else {
             // Switch currently running effect
             mEffectsRecorder.setEffect(mEffectType, mEffectParameter);
@@ -2616,8 +3346,8 @@ public class VideoModule implements CameraModule,
             return;
         }
 
-        if (mPaused || mSnapshotInProgress || effectsActive()
-                || !Util.isVideoSnapshotSupported(mParameters)) {
+        if (mPaused || mSnapshotInProgress || effectsActive() || mTimeLapseCapture != null
+                || mPreRollRecording || !Util.isVideoSnapshotSupported(mParameters)) {
             return;
         }
 
@@ -2629,6 +3359,13 @@ public class VideoModule implements CameraModule,
             return;
         }
 
+        // Skip the snapshot rather than block the main thread while the
+        // saver catches up.
+        if (mImageSaver == null || !mImageSaver.hasRoomFor(mLastSnapshotSize, null)) {
+            Log.w(TAG, "Video snapshot skipped, saver is busy");
+            return;
+        }
+
         // Set rotation and gps data.
         int rotation = Util.getJpegRotation(mCameraId, mOrientation);
         mParameters.setRotation(rotation);
@@ -2716,16 +3453,25 @@ public class VideoModule implements CameraModule,
             mSnapshotInProgress = false;
             showVideoSnapshotUI(false);
             storeImage(jpegData, mLocation);
+            mVideoSnapshotsTaken++;
         }
     }
 
+    // The file write and the media store insert are done by the saver.
     private void storeImage(final byte[] data, Location loc) {
         long dateTaken = System.currentTimeMillis();
         String title = Util.createJpegName(dateTaken);
         int orientation = Exif.getOrientation(data);
         Size s = mParameters.getPictureSize();
-        Uri uri = Storage.getStorage().addImage(mContentResolver, title, dateTaken, loc, orientation, data,
-                s.width, s.height);
+        mLastSnapshotSize = data.length;
+        if (mImageSaver != null) {
+            mImageSaver.addImage(data, null, title, dateTaken, loc, s.width, s.height,
+                    orientation);
+            return;
+        }
+        // The module was paused meanwhile.
+        Uri uri = Storage.getStorage().addImage(mContentResolver, title, dateTaken, loc,
+                orientation, data, s.width, s.height);
         if (uri != null) {
             Util.broadcastNewPicture(mActivity, uri);
         }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Listens to the microphone for the trigger word, spotted on the device by
+ * a {@link KeywordSpotter}.
+ *
+ * <p>The word is learned the first time: the user says it a few times and
+ * the templates are kept in the files directory. {@link #relearn()} learns
+ * it again, for when it was learned badly. The audio is read in 20ms
+ * blocks, so the shutter is fired within a few frames of the end of the
+ * word. With verbose logging on, the audio is also written to a WAV file
+ * in the cache directory, to be replayed on a desktop JVM.
+ */
+public class VoiceShutter implements KeywordSpotter.Listener {
+    private static final String TAG = "CAM_VoiceShutter";
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int READ_SAMPLES = SAMPLE_RATE / 50;
+    private static final int ENROLL_UTTERANCES = 3;
+    private static final String TEMPLATES_FILE = "voice_shutter.templates";
+    private static final String TRACE_FILE = "voice_shutter.wav";
+    // The longest audio kept for the trace.
+    private static final int TRACE_SAMPLES = SAMPLE_RATE * 60;
+
+    public interface Listener {
+        // Both are called on the main thread.
+        public void onVoiceShutter();
+        public void onEnrollment(int done, int total);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public VoiceShutter(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public synchronized void start(Listener listener) {
+        if (mThread != null) return;
+        mListener = listener;
+        mRunning = true;
+        mThread = new Thread("Voice Shutter") {
+            @Override
+            public void run() {
+                listen();
+            }
+        };
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mRunning = false;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mListener = null;
+    }
+
+    public synchronized boolean isStarted() {
+        return mThread != null;
+    }
+
+    // Forgets the trigger word and starts learning it again, if started.
+    public synchronized void relearn() {
+        Listener listener = mListener;
+        stop();
+        new File(mContext.getFilesDir(), TEMPLATES_FILE).delete();
+        if (listener != null) start(listener);
+    }
+
+    @Override
+    public void onKeyword(int template, final float distance) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "Trigger word, distance " + distance);
+                Listener listener = mListener;
+                if (listener != null) listener.onVoiceShutter();
+            }
+        });
+    }
+
+    @Override
+    public void onEnrollment(final int done, final int total) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (listener != null) listener.onEnrollment(done, total);
+            }
+        });
+    }
+
+    private void listen() {
+        KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE);
+        spotter.setListener(this);
+        KeywordSpotter.Templates templates = loadTemplates();
+        if (templates != null) {
+            spotter.setTemplates(templates);
+        } else {
+            spotter.startEnrollment(ENROLL_UTTERANCES);
+            onEnrollment(0, ENROLL_UTTERANCES);
+        }
+
+        int minSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioRecord record;
+        try {
+            record = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minSize, READ_SAMPLES * 2 * 4));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Cannot create the audio record", e);
+            return;
+        }
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "Cannot open the microphone");
+            record.release();
+            return;
+        }
+
+        short[] trace = Log.isLoggable(TAG, Log.VERBOSE) ? new short[TRACE_SAMPLES] : null;
+        int traced = 0;
+        short[] buffer = new short[READ_SAMPLES];
+        try {
+            record.startRecording();
+            while (mRunning) {
+                int read = record.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    Log.e(TAG, "Audio read failed: " + read);
+                    break;
+                }
+                boolean enrolling = spotter.isEnrolling();
+                spotter.process(buffer, 0, read);
+                if (enrolling && !spotter.isEnrolling()) {
+                    saveTemplates(spotter.getTemplates());
+                }
+                if (trace != null && traced < trace.length) {
+                    int n = Math.min(read, trace.length - traced);
+                    System.arraycopy(buffer, 0, trace, traced, n);
+                    traced += n;
+                }
+            }
+        } finally {
+            record.stop();
+            record.release();
+        }
+        if (trace != null) writeTrace(trace, traced);
+    }
+
+    private KeywordSpotter.Templates loadTemplates() {
+        File file = new File(mContext.getFilesDir(), TEMPLATES_FILE);
+        if (!file.exists()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return KeywordSpotter.Templates.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the trigger word, learning it again", e);
+            return null;
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+
+    private void saveTemplates(KeywordSpotter.Templates templates) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(mContext.getFilesDir(), TEMPLATES_FILE));
+            templates.write(out);
+            Log.v(TAG, "Learned the trigger word, threshold " + templates.threshold);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save the trigger word", e);
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+
+    private void writeTrace(short[] samples, int length) {
+        File dir = mContext.getExternalCacheDir();
+        if (dir == null) return;
+        File file = new File(dir, TRACE_FILE);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            WavFile.write(out, SAMPLE_RATE, samples, length);
+            Log.v(TAG, "Audio written to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 16 bit PCM audio in a WAV file, recorded on a device to be replayed into
+ * a {@link KeywordSpotter} later. Stereo files are mixed down to mono.
+ */
+public class WavFile {
+    private static final int FORMAT_PCM = 1;
+
+    public final int sampleRate;
+    public final short[] samples;
+
+    public WavFile(int sampleRate, short[] samples) {
+        this.sampleRate = sampleRate;
+        this.samples = samples;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        write(out, sampleRate, samples, samples.length);
+    }
+
+    public static void write(OutputStream out, int sampleRate, short[] samples, int length)
+            throws IOException {
+        byte[] data = new byte[44 + length * 2];
+        int p = 0;
+        p = putTag(data, p, "RIFF");
+        p = putInt(data, p, data.length - 8);
+        p = putTag(data, p, "WAVE");
+        p = putTag(data, p, "fmt ");
+        p = putInt(data, p, 16);
+        p = putShort(data, p, FORMAT_PCM);
+        p = putShort(data, p, 1);
+        p = putInt(data, p, sampleRate);
+        p = putInt(data, p, sampleRate * 2);
+        p = putShort(data, p, 2);
+        p = putShort(data, p, 16);
+        p = putTag(data, p, "data");
+        p = putInt(data, p, length * 2);
+        for (int i = 0; i < length; i++) {
+            p = putShort(data, p, samples[i]);
+        }
+        out.write(data);
+        out.flush();
+    }
+
+    public static WavFile read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (!"RIFF".equals(readTag(data))) throw new IOException("Not a RIFF file");
+        readInt(data);
+        if (!"WAVE".equals(readTag(data))) throw new IOException("Not a WAV file");
+
+        int channels = 0;
+        int sampleRate = 0;
+        while (true) {
+            String tag;
+            try {
+                tag = readTag(data);
+            } catch (EOFException e) {
+                throw new IOException("No audio data");
+            }
+            int size = readInt(data);
+            if (tag.equals("fmt ")) {
+                int format = readShort(data);
+                channels = readShort(data);
+                sampleRate = readInt(data);
+                readInt(data);
+                readShort(data);
+                int bits = readShort(data);
+                if (format != FORMAT_PCM || bits != 16 || channels < 1 || channels > 2) {
+                    throw new IOException("Only 16 bit mono or stereo PCM is supported");
+                }
+                data.skipBytes(size - 16);
+            } else if (tag.equals("data")) {
+                if (channels == 0) throw new IOException("Audio data before the format");
+                short[] samples = new short[size / 2 / channels];
+                for (int i = 0; i < samples.length; i++) {
+                    int sum = 0;
+                    for (int c = 0; c < channels; c++) sum += readShort(data);
+                    samples[i] = (short) (sum / channels);
+                }
+                return new WavFile(sampleRate, samples);
+            } else {
+                data.skipBytes(size + (size & 1));
+            }
+        }
+    }
+
+    private static int putTag(byte[] data, int p, String tag) {
+        for (int i = 0; i < 4; i++) data[p++] = (byte) tag.charAt(i);
+        return p;
+    }
+
+    private static int putInt(byte[] data, int p, int value) {
+        p = putShort(data, p, value);
+        return putShort(data, p, value >> 16);
+    }
+
+    private static int putShort(byte[] data, int p, int value) {
+        data[p++] = (byte) value;
+        data[p++] = (byte) (value >> 8);
+        return p;
+    }
+
+    private static String readTag(DataInputStream data) throws IOException {
+        byte[] tag = new byte[4];
+        data.readFully(tag);
+        return new String(tag, "US-ASCII");
+    }
+
+    // WAV files are little endian.
+    private static int readInt(DataInputStream data) throws IOException {
+        return Integer.reverseBytes(data.readInt());
+    }
+
+    private static short readShort(DataInputStream data) throws IOException {
+        return Short.reverseBytes(data.readShort());
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.effects;
+
+/**
+ * Replaces the background of the frames, like the backdropper effect.
+ *
+ * <p>The first frames are used to learn the background: the mean and the
+ * spread of every luma pixel and the mean of every chroma pair. After
+ * that, every 2x2 block whose pixels are all close to the model is
+ * background and is replaced by the same block of the substitute frame;
+ * the other blocks are kept. The model of the background blocks slowly
+ * follows the frames, so that it survives small changes of the light.
+ */
+public class BackgroundSubstitution implements FrameStage {
+    public interface Listener {
+        // Runs in the pipeline thread.
+        public void onLearningDone();
+    }
+
+    public static final int DEFAULT_LEARNING_FRAMES = 40;
+
+    // Fixed point bits of the model.
+    private static final int SHIFT = 4;
+    // Smallest luma distance from the mean that counts as foreground.
+    private static final int MIN_THRESHOLD = 12 << SHIFT;
+    // Luma spreads from the mean that count as foreground.
+    private static final int SPREADS = 3;
+    private static final int CHROMA_THRESHOLD = 12 << SHIFT;
+    // How fast the model follows the background, as a shift.
+    private static final int ADAPT_SHIFT = 5;
+    private static final byte GREY = (byte) 128;
+
+    private final int mLearningFrames;
+    private Listener mListener;
+
+    private int mWidth;
+    private int mHeight;
+    // Frames learned so far.
+    private int mLearned;
+    private boolean mLearning;
+    private boolean mFinishLearning;
+    private boolean mNotifyLearningDone;
+    private volatile boolean mRelearn;
+
+    // Sums of the learned frames, per luma pixel and per chroma byte.
+    private int[] mSum;
+    private int[] mSumSquares;
+    // The model, per luma pixel and per chroma byte, in fixed point.
+    private int[] mMean;
+    private int[] mThreshold;
+
+    private volatile byte[] mBackground;
+    // The substitute frame of the current frame, or null for grey.
+    private byte[] mFrameBackground;
+
+    public BackgroundSubstitution(int learningFrames) {
+        mLearningFrames = Math.max(1, learningFrames);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the NV21 frame shown instead of the background. It must have the
+     * size of the processed frames, or else a flat grey is shown.
+     */
+    public void setBackground(byte[] background) {
+        mBackground = background;
+    }
+
+    // Forgets the background and learns it again from the next frames.
+    public void relearn() {
+        mRelearn = true;
+    }
+
+    public boolean isLearning() {
+        return mRelearn || mLearned < mLearningFrames;
+    }
+
+    @Override
+    public void prepare(byte[] in, int width, int height) {
+        if (mNotifyLearningDone) {
+            mNotifyLearningDone = false;
+            if (mListener != null) mListener.onLearningDone();
+        }
+        if (mRelearn || width != mWidth || height != mHeight) {
+            mRelearn = false;
+            mWidth = width;
+            mHeight = height;
+            mLearned = 0;
+            int size = width * height * 3 / 2;
+            mSum = new int[size];
+            mSumSquares = new int[width * height];
+            mMean = new int[size];
+            mThreshold = new int[width * height];
+        }
+
+        mLearning = mLearned < mLearningFrames;
+        if (mLearning) {
+            mLearned++;
+            mFinishLearning = (mLearned == mLearningFrames);
+            mNotifyLearningDone = mFinishLearning;
+        } else {
+            mSum = null;
+            mSumSquares = null;
+            byte[] background = mBackground;
+            mFrameBackground = (background != null && background.length == mMean.length)
+                    ? background : null;
+        }
+    }
+
+    @Override
+    public void processBand(byte[] in, byte[] out, int width, int height,
+            int top, int bottom) {
+        if (mLearning) {
+            learnBand(in, out, width, height, top, bottom);
+        } else {
+            substituteBand(in, out, width, height, top, bottom);
+        }
+    }
+
+    private void learnBand(byte[] in, byte[] out, int width, int height,
+            int top, int bottom) {
+        int[] sum = mSum;
+        int[] sumSquares = mSumSquares;
+        int lumaStart = top * width;
+        int lumaEnd = bottom * width;
+        int chromaStart = width * height + top / 2 * width;
+        int chromaEnd = width * height + bottom / 2 * width;
+        System.arraycopy(in, lumaStart, out, lumaStart, lumaEnd - lumaStart);
+        System.arraycopy(in, chromaStart, out, chromaStart, chromaEnd - chromaStart);
+
+        for (int i = lumaStart; i < lumaEnd; i++) {
+            int y = in[i] & 0xff;
+            sum[i] += y;
+            sumSquares[i] += y * y;
+        }
+        for (int i = chromaStart; i < chromaEnd; i++) {
+            sum[i] += in[i] & 0xff;
+        }
+        if (!mFinishLearning) return;
+
+        int n = mLearned;
+        int[] mean = mMean;
+        int[] threshold = mThreshold;
+        for (int i = lumaStart; i < lumaEnd; i++) {
+            int m = sum[i] / n;
+            int variance = Math.max(0, sumSquares[i] / n - m * m);
+            mean[i] = (sum[i] << SHIFT) / n;
+            threshold[i] = Math.max(MIN_THRESHOLD,
+                    (int) (SPREADS * Math.sqrt(variance)) << SHIFT);
+        }
+        for (int i = chromaStart; i < chromaEnd; i++) {
+            mean[i] = (sum[i] << SHIFT) / n;
+        }
+    }
+
+    private void substituteBand(byte[] in, byte[] out, int width, int height,
+            int top, int bottom) {
+        int[] mean = mMean;
+        int[] threshold = mThreshold;
+        byte[] background = mFrameBackground;
+        int frameSize = width * height;
+
+        for (int row = top; row < bottom; row += 2) {
+            int y0 = row * width;
+            int y1 = y0 + width;
+            int c = frameSize + row / 2 * width;
+            for (int x = 0; x < width; x += 2, y0 += 2, y1 += 2, c += 2) {
+                int a = (in[y0] & 0xff) << SHIFT;
+                int b = (in[y0 + 1] & 0xff) << SHIFT;
+                int d = (in[y1] & 0xff) << SHIFT;
+                int e = (in[y1 + 1] & 0xff) << SHIFT;
+                int v = (in[c] & 0xff) << SHIFT;
+                int u = (in[c + 1] & 0xff) << SHIFT;
+                boolean foreground =
+                        Math.abs(a - mean[y0]) > threshold[y0]
+                        || Math.abs(b - mean[y0 + 1]) > threshold[y0 + 1]
+                        || Math.abs(d - mean[y1]) > threshold[y1]
+                        || Math.abs(e - mean[y1 + 1]) > threshold[y1 + 1]
+                        || Math.abs(v - mean[c]) > CHROMA_THRESHOLD
+                        || Math.abs(u - mean[c + 1]) > CHROMA_THRESHOLD;
+
+                if (foreground) {
+                    out[y0] = in[y0];
+                    out[y0 + 1] = in[y0 + 1];
+                    out[y1] = in[y1];
+                    out[y1 + 1] = in[y1 + 1];
+                    out[c] = in[c];
+                    out[c + 1] = in[c + 1];
+                    continue;
+                }
+
+                if (background != null) {
+                    out[y0] = background[y0];
+                    out[y0 + 1] = background[y0 + 1];
+                    out[y1] = background[y1];
+                    out[y1 + 1] = background[y1 + 1];
+                    out[c] = background[c];
+                    out[c + 1] = background[c + 1];
+                } else {
+                    out[y0] = GREY;
+                    out[y0 + 1] = GREY;
+                    out[y1] = GREY;
+                    out[y1 + 1] = GREY;
+                    out[c] = GREY;
+                    out[c + 1] = GREY;
+                }
+                mean[y0] += (a - mean[y0]) >> ADAPT_SHIFT;
+                mean[y0 + 1] += (b - mean[y0 + 1]) >> ADAPT_SHIFT;
+                mean[y1] += (d - mean[y1]) >> ADAPT_SHIFT;
+                mean[y1 + 1] += (e - mean[y1 + 1]) >> ADAPT_SHIFT;
+                mean[c] += (v - mean[c]) >> ADAPT_SHIFT;
+                mean[c + 1] += (u - mean[c + 1]) >> ADAPT_SHIFT;
+            }
+        }
+    }
+}
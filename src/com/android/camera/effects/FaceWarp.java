@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.effects;
+
+/**
+ * Warps regions of the faces in the frames, like the goofy face effects.
+ *
+ * <p>Every effect places one or two elliptic lenses in each face. Inside a
+ * lens a pixel at the relative distance {@code t} from the center is taken
+ * from {@code 1 - strength * (1 - t)^2} times its offset, so a positive
+ * strength magnifies, a negative one shrinks, and the edge of the lens does
+ * not move. Luma is sampled bilinearly and chroma from the nearest pair.
+ *
+ * <p>The faces are given in frame pixels. The positions of the lenses
+ * within a face assume the face is upright once the frame is rotated
+ * clockwise by the rotation given to {@link #setRotation}.
+ */
+public class FaceWarp implements FrameStage {
+    // The same values as the goofy face parameters of EffectsRecorder.
+    public static final int SQUEEZE = 0;
+    public static final int BIG_EYES = 1;
+    public static final int BIG_MOUTH = 2;
+    public static final int SMALL_MOUTH = 3;
+    public static final int BIG_NOSE = 4;
+    public static final int SMALL_EYES = 5;
+
+    public static final int MAX_FACES = 8;
+    private static final int MAX_LENSES = MAX_FACES * 2;
+
+    private int mMode = SQUEEZE;
+    private int mRotation;
+    // Left, top, right and bottom of every face.
+    private final int[] mFaces = new int[MAX_FACES * 4];
+    private int mFaceCount;
+
+    // The lenses of the current frame.
+    private final float[] mLensX = new float[MAX_LENSES];
+    private final float[] mLensY = new float[MAX_LENSES];
+    private final float[] mLensRadiusX = new float[MAX_LENSES];
+    private final float[] mLensRadiusY = new float[MAX_LENSES];
+    private final float[] mLensStrengthX = new float[MAX_LENSES];
+    private final float[] mLensStrengthY = new float[MAX_LENSES];
+    private int mLensCount;
+
+    public synchronized void setMode(int mode) {
+        mMode = mode;
+    }
+
+    // The rotation of the frames for display, in degrees.
+    public synchronized void setRotation(int degrees) {
+        mRotation = ((degrees % 360) + 360) % 360;
+    }
+
+    /**
+     * Sets the faces of the next frames, as {@code count} quadruples of
+     * left, top, right and bottom. Faces beyond {@link #MAX_FACES} are
+     * ignored.
+     */
+    public synchronized void setFaces(int[] faces, int count) {
+        mFaceCount = Math.min(count, MAX_FACES);
+        System.arraycopy(faces, 0, mFaces, 0, mFaceCount * 4);
+    }
+
+    @Override
+    public synchronized void prepare(byte[] in, int width, int height) {
+        mLensCount = 0;
+        for (int i = 0; i < mFaceCount; i++) {
+            int left = mFaces[i * 4];
+            int top = mFaces[i * 4 + 1];
+            int right = mFaces[i * 4 + 2];
+            int bottom = mFaces[i * 4 + 3];
+            if (right <= left || bottom <= top) continue;
+            switch (mMode) {
+                case SQUEEZE:
+                    addLens(left, top, right, bottom, 0.5f, 0.5f, 0.75f, 0.75f, -0.6f, 0f);
+                    break;
+                case BIG_EYES:
+                case SMALL_EYES:
+                    float eyes = (mMode == BIG_EYES) ? 0.5f : -0.5f;
+                    addLens(left, top, right, bottom, 0.3f, 0.4f, 0.18f, 0.18f, eyes, eyes);
+                    addLens(left, top, right, bottom, 0.7f, 0.4f, 0.18f, 0.18f, eyes, eyes);
+                    break;
+                case BIG_MOUTH:
+                case SMALL_MOUTH:
+                    float mouth = (mMode == BIG_MOUTH) ? 0.5f : -0.5f;
+                    addLens(left, top, right, bottom, 0.5f, 0.78f, 0.3f, 0.18f, mouth, mouth);
+                    break;
+                case BIG_NOSE:
+                    addLens(left, top, right, bottom, 0.5f, 0.58f, 0.2f, 0.2f, 0.6f, 0.6f);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Adds a lens at (u, v) of the upright face, with radii and strengths
+    // along the upright axes.
+    private void addLens(int left, int top, int right, int bottom, float u, float v,
+            float radiusU, float radiusV, float strengthU, float strengthV) {
+        int width = right - left;
+        int height = bottom - top;
+        float x, y;
+        int i = mLensCount++;
+        switch (mRotation) {
+            case 90:
+                x = v;
+                y = 1 - u;
+                break;
+            case 180:
+                x = 1 - u;
+                y = 1 - v;
+                break;
+            case 270:
+                x = 1 - v;
+                y = u;
+                break;
+            default:
+                x = u;
+                y = v;
+                break;
+        }
+        mLensX[i] = left + x * width;
+        mLensY[i] = top + y * height;
+        if (mRotation == 90 || mRotation == 270) {
+            mLensRadiusX[i] = radiusV * width;
+            mLensRadiusY[i] = radiusU * height;
+            mLensStrengthX[i] = strengthV;
+            mLensStrengthY[i] = strengthU;
+        } else {
+            mLensRadiusX[i] = radiusU * width;
+            mLensRadiusY[i] = radiusV * height;
+            mLensStrengthX[i] = strengthU;
+            mLensStrengthY[i] = strengthV;
+        }
+    }
+
+    @Override
+    public void processBand(byte[] in, byte[] out, int width, int height,
+            int top, int bottom) {
+        int frameSize = width * height;
+        System.arraycopy(in, top * width, out, top * width, (bottom - top) * width);
+        System.arraycopy(in, frameSize + top / 2 * width, out, frameSize + top / 2 * width,
+                (bottom - top) / 2 * width);
+
+        for (int i = 0; i < mLensCount; i++) {
+            warpLuma(in, out, width, height, top, bottom, i);
+            warpChroma(in, out, width, height, top / 2, bottom / 2, i);
+        }
+    }
+
+    private void warpLuma(byte[] in, byte[] out, int width, int height,
+            int top, int bottom, int lens) {
+        float cx = mLensX[lens];
+        float cy = mLensY[lens];
+        float rx = mLensRadiusX[lens];
+        float ry = mLensRadiusY[lens];
+        float ax = mLensStrengthX[lens];
+        float ay = mLensStrengthY[lens];
+        float irx2 = 1 / (rx * rx);
+        float iry2 = 1 / (ry * ry);
+        int x0 = Math.max(0, (int) (cx - rx));
+        int x1 = Math.min(width, (int) (cx + rx) + 1);
+        int y0 = Math.max(top, (int) (cy - ry));
+        int y1 = Math.min(bottom, (int) (cy + ry) + 1);
+        float maxX = width - 1;
+        float maxY = height - 1;
+
+        for (int y = y0; y < y1; y++) {
+            float dy = y - cy;
+            float ty2 = dy * dy * iry2;
+            if (ty2 >= 1) continue;
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                float dx = x - cx;
+                float t2 = dx * dx * irx2 + ty2;
+                if (t2 >= 1) continue;
+                float s = 1 - (float) Math.sqrt(t2);
+                s *= s;
+                float sx = Math.min(maxX, Math.max(0, cx + dx * (1 - ax * s)));
+                float sy = Math.min(maxY, Math.max(0, cy + dy * (1 - ay * s)));
+                int ix = (int) sx;
+                int iy = (int) sy;
+                float fx = sx - ix;
+                float fy = sy - iy;
+                int p = iy * width + ix;
+                int nx = (ix < width - 1) ? 1 : 0;
+                int ny = (iy < height - 1) ? width : 0;
+                float top0 = (in[p] & 0xff) + fx * ((in[p + nx] & 0xff) - (in[p] & 0xff));
+                float bottom0 = (in[p + ny] & 0xff)
+                        + fx * ((in[p + ny + nx] & 0xff) - (in[p + ny] & 0xff));
+                out[row + x] = (byte) (top0 + fy * (bottom0 - top0) + 0.5f);
+            }
+        }
+    }
+
+    // Rows are chroma rows here. Every chroma pair is warped with the offset
+    // of its top left luma pixel.
+    private void warpChroma(byte[] in, byte[] out, int width, int height,
+            int top, int bottom, int lens) {
+        float cx = mLensX[lens];
+        float cy = mLensY[lens];
+        float rx = mLensRadiusX[lens];
+        float ry = mLensRadiusY[lens];
+        float ax = mLensStrengthX[lens];
+        float ay = mLensStrengthY[lens];
+        float irx2 = 1 / (rx * rx);
+        float iry2 = 1 / (ry * ry);
+        int x0 = Math.max(0, (int) (cx - rx) / 2);
+        int x1 = Math.min(width / 2, (int) (cx + rx) / 2 + 1);
+        int y0 = Math.max(top, (int) (cy - ry) / 2);
+        int y1 = Math.min(bottom, (int) (cy + ry) / 2 + 1);
+        int frameSize = width * height;
+        int maxX = width / 2 - 1;
+        int maxY = height / 2 - 1;
+
+        for (int y = y0; y < y1; y++) {
+            float dy = y * 2 - cy;
+            float ty2 = dy * dy * iry2;
+            if (ty2 >= 1) continue;
+            int row = frameSize + y * width;
+            for (int x = x0; x < x1; x++) {
+                float dx = x * 2 - cx;
+                float t2 = dx * dx * irx2 + ty2;
+                if (t2 >= 1) continue;
+                float s = 1 - (float) Math.sqrt(t2);
+                s *= s;
+                int sx = (int) ((cx + dx * (1 - ax * s)) * 0.5f + 0.5f);
+                int sy = (int) ((cy + dy * (1 - ay * s)) * 0.5f + 0.5f);
+                sx = Math.min(maxX, Math.max(0, sx));
+                sy = Math.min(maxY, Math.max(0, sy));
+                int p = frameSize + sy * width + sx * 2;
+                out[row + x * 2] = in[p];
+                out[row + x * 2 + 1] = in[p + 1];
+            }
+        }
+    }
+}
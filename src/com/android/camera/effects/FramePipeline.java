@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.effects;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs NV21 frames through a list of {@link FrameStage}s on the CPU.
+ *
+ * <p>Every stage splits the frame into one band per thread. The calling
+ * thread processes the last band itself and waits for the others, so a
+ * pipeline with one thread does not start any thread at all. The stages
+ * write into two buffers owned by the pipeline, which are allocated once
+ * per frame size.
+ *
+ * <p>This class only uses plain Java so that the stages can be run and
+ * tested on a desktop JVM with recorded frames.
+ */
+public class FramePipeline {
+    private final ArrayList<FrameStage> mStages = new ArrayList<FrameStage>();
+    // Time spent in each stage, in ns.
+    private long[] mStageTime = new long[0];
+    private int mFrames;
+
+    private final int mBands;
+    private final ExecutorService mExecutor;
+    private final BandTask[] mTasks;
+    private byte[] mBuffer0;
+    private byte[] mBuffer1;
+
+    // Bands still being processed by the executor, guarded by mTasks.
+    private int mPending;
+    private RuntimeException mError;
+
+    private class BandTask implements Runnable {
+        FrameStage stage;
+        byte[] in;
+        byte[] out;
+        int width;
+        int height;
+        int top;
+        int bottom;
+
+        @Override
+        public void run() {
+            RuntimeException error = null;
+            try {
+                stage.processBand(in, out, width, height, top, bottom);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (mTasks) {
+                if (error != null) mError = error;
+                if (--mPending == 0) mTasks.notifyAll();
+            }
+        }
+    }
+
+    public FramePipeline(int threads) {
+        mBands = Math.max(1, threads);
+        mTasks = new BandTask[mBands - 1];
+        for (int i = 0; i < mTasks.length; i++) {
+            mTasks[i] = new BandTask();
+        }
+        if (mBands > 1) {
+            mExecutor = Executors.newFixedThreadPool(mBands - 1, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FramePipeline-" + (++mCount));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    // One band per available core.
+    public static int getDefaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public synchronized void addStage(FrameStage stage) {
+        mStages.add(stage);
+        mStageTime = new long[mStages.size()];
+        mFrames = 0;
+    }
+
+    public synchronized void clearStages() {
+        mStages.clear();
+        mStageTime = new long[0];
+        mFrames = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mStages.isEmpty();
+    }
+
+    /**
+     * Runs the frame through all stages and returns the result. The input
+     * frame is not modified. The result is the input itself if there are no
+     * stages, or else a buffer of the pipeline, which stays valid until the
+     * next call.
+     */
+    public synchronized byte[] process(byte[] frame, int width, int height) {
+        if (mStages.isEmpty()) return frame;
+        int size = width * height * 3 / 2;
+        if (mBuffer0 == null || mBuffer0.length != size) {
+            mBuffer0 = new byte[size];
+            mBuffer1 = new byte[size];
+        }
+
+        byte[] in = frame;
+        byte[] out = mBuffer0;
+        for (int i = 0, n = mStages.size(); i < n; i++) {
+            long start = System.nanoTime();
+            FrameStage stage = mStages.get(i);
+            stage.prepare(in, width, height);
+            processBands(stage, in, out, width, height);
+            mStageTime[i] += System.nanoTime() - start;
+
+            in = out;
+            out = (out == mBuffer0) ? mBuffer1 : mBuffer0;
+        }
+        mFrames++;
+        return in;
+    }
+
+    private void processBands(FrameStage stage, byte[] in, byte[] out,
+            int width, int height) {
+        // Bands start on even rows so that they own whole chroma rows.
+        int rows = ((height + mBands - 1) / mBands + 1) & ~1;
+        int top = 0;
+        synchronized (mTasks) {
+            mPending = 0;
+            mError = null;
+        }
+        for (int i = 0; i < mTasks.length && top + rows < height; i++) {
+            BandTask task = mTasks[i];
+            task.stage = stage;
+            task.in = in;
+            task.out = out;
+            task.width = width;
+            task.height = height;
+            task.top = top;
+            task.bottom = top + rows;
+            synchronized (mTasks) {
+                mPending++;
+            }
+            mExecutor.execute(task);
+            top += rows;
+        }
+        stage.processBand(in, out, width, height, top, height);
+
+        synchronized (mTasks) {
+            while (mPending > 0) {
+                try {
+                    mTasks.wait();
+                } catch (InterruptedException e) {
+                    // ignore.
+                }
+            }
+            if (mError != null) throw mError;
+        }
+    }
+
+    /**
+     * Returns a one line summary of the time spent per frame in each stage.
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("frames ").append(mFrames).append(" bands ").append(mBands);
+        for (int i = 0; i < mStages.size(); i++) {
+            long average = (mFrames == 0) ? 0 : mStageTime[i] / mFrames / 1000;
+            sb.append(' ').append(mStages.get(i).getClass().getSimpleName())
+                    .append(' ').append(average).append("us");
+        }
+        return sb.toString();
+    }
+
+    public void release() {
+        if (mExecutor != null) mExecutor.shutdown();
+    }
+}
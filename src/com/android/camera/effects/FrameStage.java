@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.effects;
+
+/**
+ * One stage of a {@link FramePipeline}. A stage reads an NV21 frame and
+ * writes the processed frame to another buffer of the same size.
+ *
+ * <p>The frame is processed in horizontal bands, which may run on several
+ * threads at the same time. A band covers the luma rows
+ * {@code [top, bottom)} and the chroma rows {@code [top / 2, bottom / 2)};
+ * {@code top} and {@code bottom} are always even. A stage must write every
+ * byte of its bands and nothing outside them.
+ */
+public interface FrameStage {
+    // Called once per frame, before any band of the frame is processed.
+    public void prepare(byte[] in, int width, int height);
+
+    // May be called concurrently for different bands of the same frame.
+    public void processBand(byte[] in, byte[] out, int width, int height,
+            int top, int bottom);
+}
@@ -25,14 +25,14 @@ import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.hardware.Camera.Face;
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CameraScreenNail;
+import com.android.camera.FaceTracker;
 import com.android.camera.R;
 import com.android.camera.Util;
 import com.android.gallery3d.common.ApiHelper;
@@ -51,11 +51,23 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     private boolean mPause;
     private Matrix mMatrix = new Matrix();
     private RectF mRect = new RectF();
-    // As face detection can be flaky, we add a layer of filtering on top of it
-    // to avoid rapid changes in state (eg, flickering between has faces and
-    // not having faces)
-    private Face[] mFaces;
-    private Face[] mPendingFaces;
+    // What mMatrix was prepared for, so it is only computed again when one
+    // of these changes.
+    private boolean mMatrixValid;
+    private int mMatrixDisplayOrientation;
+    private int mMatrixOrientation;
+    private boolean mMatrixMirror;
+    private int mMatrixWidth, mMatrixHeight;
+    private int mMatrixRenderWidth, mMatrixRenderHeight;
+    // As face detection can be flaky, the faces are tracked from one
+    // detection to the next. This smooths the rects, predicts them between
+    // detections and hides the faces which only flicker in or out.
+    private final FaceTracker mTracker = new FaceTracker();
+    // Reused for every detection and every frame.
+    private int[] mFaceIds = new int[0];
+    private int[] mScores = new int[0];
+    private float[] mRects = new float[0];
+    private float[] mPoints = new float[0];
     private int mColor;
     private final int mFocusingColor;
     private final int mFocusedColor;
@@ -63,22 +75,6 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     private Paint mPaint;
     private volatile boolean mBlocked;
 
-    private static final int MSG_SWITCH_FACES = 1;
-    private static final int SWITCH_DELAY = 70;
-    private boolean mStateSwitchPending = false;
-    private Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-            case MSG_SWITCH_FACES:
-                mStateSwitchPending = false;
-                mFaces = mPendingFaces;
-                invalidate();
-                break;
-            }
-        }
-    };
-
     public FaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
         Resources res = getResources();
@@ -95,25 +91,28 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     public void setFaces(Face[] faces) {
         if (LOGV) Log.v(TAG, "Num of faces=" + faces.length);
         if (mPause) return;
-        if (mFaces != null) {
-            if ((faces.length > 0 && mFaces.length == 0)
-                    || (faces.length == 0 && mFaces.length > 0)) {
-                mPendingFaces = faces;
-                if (!mStateSwitchPending) {
-                    mStateSwitchPending = true;
-                    mHandler.sendEmptyMessageDelayed(MSG_SWITCH_FACES, SWITCH_DELAY);
-                }
-                return;
-            }
+        int count = faces.length;
+        if (mScores.length < count) {
+            mFaceIds = new int[count];
+            mScores = new int[count];
+            mRects = new float[4 * count];
         }
-        if (mStateSwitchPending) {
-            mStateSwitchPending = false;
-            mHandler.removeMessages(MSG_SWITCH_FACES);
+        for (int i = 0; i < count; i++) {
+            mFaceIds[i] = faces[i].id;
+            mScores[i] = faces[i].score;
+            mRects[4 * i] = faces[i].rect.left;
+            mRects[4 * i + 1] = faces[i].rect.top;
+            mRects[4 * i + 2] = faces[i].rect.right;
+            mRects[4 * i + 3] = faces[i].rect.bottom;
         }
-        mFaces = faces;
+        mTracker.update(SystemClock.uptimeMillis(), count, mFaceIds, mScores, mRects);
         invalidate();
     }
 
+    public FaceTracker getFaceTracker() {
+        return mTracker;
+    }
+
     public void setDisplayOrientation(int orientation) {
         mDisplayOrientation = orientation;
         if (LOGV) Log.v(TAG, "mDisplayOrientation=" + orientation);
@@ -131,7 +130,7 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
     }
 
     public boolean faceExists() {
-        return (mFaces != null && mFaces.length > 0);
+        return mTracker.hasFaces();
     }
 
     @Override
@@ -159,7 +158,7 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
         // Face indicator is displayed during preview. Do not clear the
         // drawable.
         mColor = mFocusingColor;
-        mFaces = null;
+        mTracker.clear();
         invalidate();
     }
 
@@ -175,42 +174,71 @@ public class FaceView extends View implements FocusIndicator, Rotatable {
         mBlocked = block;
     }
 
+    // Maps the driver coordinates to the view, rotated by mOrientation.
+    private void prepareMatrix() {
+        final CameraScreenNail sn = ((CameraActivity) getContext()).getCameraScreenNail();
+        int rw = sn.getUncroppedRenderWidth();
+        int rh = sn.getUncroppedRenderHeight();
+        if (mMatrixValid && mMatrixDisplayOrientation == mDisplayOrientation
+                && mMatrixOrientation == mOrientation && mMatrixMirror == mMirror
+                && mMatrixWidth == getWidth() && mMatrixHeight == getHeight()
+                && mMatrixRenderWidth == rw && mMatrixRenderHeight == rh) {
+            return;
+        }
+        mMatrixValid = true;
+        mMatrixDisplayOrientation = mDisplayOrientation;
+        mMatrixOrientation = mOrientation;
+        mMatrixMirror = mMirror;
+        mMatrixWidth = getWidth();
+        mMatrixHeight = getHeight();
+        mMatrixRenderWidth = rw;
+        mMatrixRenderHeight = rh;
+
+        if (((rh > rw) && ((mDisplayOrientation == 0) || (mDisplayOrientation == 180)))
+                || ((rw > rh) && ((mDisplayOrientation == 90) || (mDisplayOrientation == 270)))) {
+            int temp = rw;
+            rw = rh;
+            rh = temp;
+        }
+        Util.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
+        mMatrix.postRotate(mOrientation); // postRotate is clockwise
+        mMatrix.postTranslate((getWidth() - rw) / 2, (getHeight() - rh) / 2);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
-        if (!mBlocked && (mFaces != null) && (mFaces.length > 0)) {
-            final CameraScreenNail sn = ((CameraActivity) getContext()).getCameraScreenNail();
-            int rw = sn.getUncroppedRenderWidth();
-            int rh = sn.getUncroppedRenderHeight();
-            // Prepare the matrix.
-            if (((rh > rw) && ((mDisplayOrientation == 0) || (mDisplayOrientation == 180)))
-                    || ((rw > rh) && ((mDisplayOrientation == 90) || (mDisplayOrientation == 270)))) {
-                int temp = rw;
-                rw = rh;
-                rh = temp;
+        if (!mBlocked && mTracker.hasFaces()) {
+            prepareMatrix();
+            long now = SystemClock.uptimeMillis();
+            if (mPoints.length < 4 * mTracker.getTrackCount()) {
+                mPoints = new float[4 * mTracker.getTrackCount()];
+            }
+            // Transform the corners of all the faces at once.
+            int count = 0;
+            for (int i = 0; i < mTracker.getTrackCount(); i++) {
+                FaceTracker.Track track = mTracker.getTrack(i);
+                if (!track.isConfirmed()) continue;
+                track.predict(now, mPoints, 4 * count);
+                count++;
             }
-            Util.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
-            int dx = (getWidth() - rw) / 2;
-            int dy = (getHeight() - rh) / 2;
+            mMatrix.mapPoints(mPoints, 0, mPoints, 0, 2 * count);
 
-            // Focus indicator is directional. Rotate the matrix and the canvas
-            // so it looks correctly in all orientations.
+            // Focus indicator is directional. Rotate the canvas so it looks
+            // correctly in all orientations.
             canvas.save();
-            mMatrix.postRotate(mOrientation); // postRotate is clockwise
             canvas.rotate(-mOrientation); // rotate is counter-clockwise (for canvas)
-            for (int i = 0; i < mFaces.length; i++) {
-                // Filter out false positives.
-                if (mFaces[i].score < 50) continue;
-
-                // Transform the coordinates.
-                mRect.set(mFaces[i].rect);
-                if (LOGV) Util.dumpRect(mRect, "Original rect");
-                mMatrix.mapRect(mRect);
+            mPaint.setColor(mColor);
+            for (int i = 0; i < count; i++) {
+                float x0 = mPoints[4 * i], y0 = mPoints[4 * i + 1];
+                float x1 = mPoints[4 * i + 2], y1 = mPoints[4 * i + 3];
+                mRect.set(Math.min(x0, x1), Math.min(y0, y1),
+                        Math.max(x0, x1), Math.max(y0, y1));
                 if (LOGV) Util.dumpRect(mRect, "Transformed rect");
-                mPaint.setColor(mColor);
-                mRect.offset(dx, dy);
                 canvas.drawOval(mRect, mPaint);
             }
             canvas.restore();
+            // Follow the predicted faces until the next detection.
+            if (mTracker.isMoving(now)) invalidate();
         }
         super.onDraw(canvas);
     }
@@ -18,6 +18,7 @@ package com.android.camera.ui;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.view.MotionEvent;
 
 public abstract class OverlayRenderer implements RenderOverlay.Renderer {
@@ -29,6 +30,9 @@ public abstract class OverlayRenderer implements RenderOverlay.Renderer {
 
     protected boolean mVisible;
 
+    // The area drawn in the last frame, kept by the overlay.
+    final Rect mDrawnBounds = new Rect();
+
     public void setVisible(boolean vis) {
         mVisible = vis;
         update();
@@ -57,6 +61,26 @@ public abstract class OverlayRenderer implements RenderOverlay.Renderer {
         }
     }
 
+    /**
+     * Sets bounds to the area onDraw() draws in, relative to the overlay,
+     * and returns whether it draws at all. Subclasses which know where they
+     * draw override this so that only that area is redrawn.
+     */
+    public boolean getBounds(Rect bounds) {
+        if (!mVisible) return false;
+        bounds.set(0, 0, getWidth(), getHeight());
+        return true;
+    }
+
+    /**
+     * Returns the uptime in ms when the renderer has to be drawn again
+     * without calling update(), 0 while it animates, or -1 if it only
+     * changes when update() is called.
+     */
+    public long getNextFrameTime() {
+        return -1;
+    }
+
     @Override
     public void setOverlay(RenderOverlay overlay) {
         mOverlay = overlay;
@@ -20,12 +20,14 @@ import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Handler;
 import android.os.Message;
@@ -75,6 +77,8 @@ public class PieRenderer extends OverlayRenderer
     private Point mCenter;
     private int mRadius;
     private int mRadiusInc;
+    // The distance from the center the items are drawn within.
+    private int mPieRadius;
 
     // the detection if touch is inside a slice is offset
     // inbounds by this amount to allow the selection to show before the
@@ -115,10 +119,28 @@ public class PieRenderer extends OverlayRenderer
     private int mTouchSlopSquared;
     private Point mDown;
     private boolean mOpening;
+    // The fades running, if any.
     private LinearAnimation mXFade;
     private LinearAnimation mFadeIn;
+    private LinearAnimation mXFadeAnimation;
+    private LinearAnimation mFadeInAnimation;
+    private AnimatorListenerAdapter mFadeOutListener;
     private volatile boolean mFocusCancelled;
 
+    // Reused while tracking touches.
+    private PointF mPolar = new PointF();
+
+    // The slice outlines laid out so far, around the origin.
+    private List<Slice> mSlices = new ArrayList<Slice>();
+    private RectF mSliceOuter = new RectF();
+    private RectF mSliceInner = new RectF();
+
+    // The base menu drawn when the pie opens, drawn in one go while it
+    // fades. The bitmap is kept for the next time.
+    private Bitmap mLayer;
+    private Canvas mLayerCanvas;
+    private Paint mLayerPaint;
+
     private Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
             switch(msg.what) {
@@ -184,6 +206,49 @@ public class PieRenderer extends OverlayRenderer
         mTouchSlopSquared = ViewConfiguration.get(ctx).getScaledTouchSlop();
         mTouchSlopSquared = mTouchSlopSquared * mTouchSlopSquared;
         mDown = new Point();
+        mLayerPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        mFadeInAnimation = new LinearAnimation(0, 1);
+        mFadeInAnimation.setDuration(PIE_FADE_IN_DURATION);
+        mFadeInAnimation.setAnimationListener(new AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+            }
+
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                mFadeIn = null;
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+            }
+        });
+        mXFadeAnimation = new LinearAnimation(1, 0);
+        mXFadeAnimation.setDuration(PIE_XFADE_DURATION);
+        mXFadeAnimation.setAnimationListener(new AnimationListener() {
+            @Override
+            public void onAnimationStart(Animation animation) {
+            }
+
+            @Override
+            public void onAnimationEnd(Animation animation) {
+                mXFade = null;
+            }
+
+            @Override
+            public void onAnimationRepeat(Animation animation) {
+            }
+        });
+        mFadeOutListener = new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                deselect();
+                show(false);
+                mOverlay.setAlpha(1);
+                super.onAnimationEnd(animation);
+            }
+        };
     }
 
     public boolean showsItems() {
@@ -232,10 +297,11 @@ public class PieRenderer extends OverlayRenderer
             // ensure clean state
             mCurrentItem = null;
             mOpenItem = null;
-            for (PieItem item : mItems) {
-                item.setSelected(false);
+            for (int i = 0; i < mItems.size(); i++) {
+                mItems.get(i).setSelected(false);
             }
             layoutPie();
+            renderLayer();
             fadeIn();
         } else {
             mState = STATE_IDLE;
@@ -249,26 +315,29 @@ public class PieRenderer extends OverlayRenderer
     }
 
     private void fadeIn() {
-        mFadeIn = new LinearAnimation(0, 1);
-        mFadeIn.setDuration(PIE_FADE_IN_DURATION);
-        mFadeIn.setAnimationListener(new AnimationListener() {
-            @Override
-            public void onAnimationStart(Animation animation) {
-            }
-
-            @Override
-            public void onAnimationEnd(Animation animation) {
-                mFadeIn = null;
-            }
-
-            @Override
-            public void onAnimationRepeat(Animation animation) {
-            }
-        });
+        mFadeIn = mFadeInAnimation;
+        mFadeIn.reset();
         mFadeIn.startNow();
         mOverlay.startAnimation(mFadeIn);
     }
 
+    private void renderLayer() {
+        int size = 2 * mPieRadius;
+        if (size <= 0) return;
+        if (mLayer == null || mLayer.getWidth() < size) {
+            if (mLayer != null) mLayer.recycle();
+            mLayer = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            mLayerCanvas = new Canvas(mLayer);
+        }
+        mLayer.eraseColor(Color.TRANSPARENT);
+        int state = mLayerCanvas.save();
+        mLayerCanvas.translate(mPieRadius - mCenter.x, mPieRadius - mCenter.y);
+        for (int i = 0; i < mItems.size(); i++) {
+            drawItem(mLayerCanvas, mItems.get(i), 1);
+        }
+        mLayerCanvas.restoreToCount(state);
+    }
+
     public void setCenter(int x, int y) {
         mCenter.x = x;
         mCenter.y = y;
@@ -281,6 +350,7 @@ public class PieRenderer extends OverlayRenderer
         int inner = mRadius + rgap;
         int outer = mRadius + mRadiusInc - rgap;
         int gap = 1;
+        mPieRadius = 0;
         layoutItems(mItems, (float) (Math.PI / 2), inner, outer, gap);
     }
 
@@ -292,15 +362,15 @@ public class PieRenderer extends OverlayRenderer
         // check if we have custom geometry
         // first item we find triggers custom sweep for all
         // this allows us to re-use the path
-        for (PieItem item : items) {
-            if (item.getCenter() >= 0) {
-                sweep = item.getSweep();
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getCenter() >= 0) {
+                sweep = items.get(i).getSweep();
                 break;
             }
         }
-        Path path = makeSlice(getDegrees(0) - gap, getDegrees(sweep) + gap,
-                outer, inner, mCenter);
-        for (PieItem item : items) {
+        Path path = getSlice(getDegrees(0) - gap, getDegrees(sweep) + gap, outer, inner);
+        for (int i = 0; i < items.size(); i++) {
+            PieItem item = items.get(i);
             // shared between items
             item.setPath(path);
             if (item.getCenter() >= 0) {
@@ -308,6 +378,7 @@ public class PieRenderer extends OverlayRenderer
             }
             int w = item.getIntrinsicWidth();
             int h = item.getIntrinsicHeight();
+            mPieRadius = Math.max(mPieRadius, outer + Math.max(w, h));
             // move views to outer border
             int r = inner + (outer - inner) * 2 / 3;
             int x = (int) (r * Math.cos(angle));
@@ -324,16 +395,30 @@ public class PieRenderer extends OverlayRenderer
         }
     }
 
-    private Path makeSlice(float start, float end, int outer, int inner, Point center) {
-        RectF bb =
-                new RectF(center.x - outer, center.y - outer, center.x + outer,
-                        center.y + outer);
-        RectF bbi =
-                new RectF(center.x - inner, center.y - inner, center.x + inner,
-                        center.y + inner);
+    private Path getSlice(float start, float end, int outer, int inner) {
+        for (int i = 0; i < mSlices.size(); i++) {
+            Slice slice = mSlices.get(i);
+            if (slice.start == start && slice.end == end
+                    && slice.outer == outer && slice.inner == inner) {
+                return slice.path;
+            }
+        }
+        Slice slice = new Slice();
+        slice.start = start;
+        slice.end = end;
+        slice.outer = outer;
+        slice.inner = inner;
+        slice.path = makeSlice(start, end, outer, inner);
+        mSlices.add(slice);
+        return slice.path;
+    }
+
+    private Path makeSlice(float start, float end, int outer, int inner) {
+        mSliceOuter.set(-outer, -outer, outer, outer);
+        mSliceInner.set(-inner, -inner, inner, inner);
         Path path = new Path();
-        path.arcTo(bb, start, end - start, true);
-        path.arcTo(bbi, end, start - end);
+        path.arcTo(mSliceOuter, start, end - start, true);
+        path.arcTo(mSliceInner, end, start - end);
         path.close();
         return path;
     }
@@ -348,22 +433,42 @@ public class PieRenderer extends OverlayRenderer
     }
 
     private void startFadeOut() {
+        // The clicked item may have changed its icon.
+        update();
         if (ApiHelper.HAS_VIEW_PROPERTY_ANIMATOR) {
-            mOverlay.animate().alpha(0).setListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    deselect();
-                    show(false);
-                    mOverlay.setAlpha(1);
-                    super.onAnimationEnd(animation);
-                }
-            }).setDuration(PIE_SELECT_FADE_DURATION);
+            mOverlay.animate().alpha(0).setListener(mFadeOutListener)
+                    .setDuration(PIE_SELECT_FADE_DURATION);
         } else {
             deselect();
             show(false);
         }
     }
 
+    @Override
+    public boolean getBounds(Rect bounds) {
+        if (!mVisible) return false;
+        bounds.setEmpty();
+        if (!mBlockFocus) {
+            int r = mCircleSize + mOuterStroke;
+            bounds.set(mFocusX - r, mFocusY - r, mFocusX + r, mFocusY + r);
+        }
+        if (mState == STATE_PIE) {
+            bounds.union(mCenter.x - mPieRadius, mCenter.y - mPieRadius,
+                    mCenter.x + mPieRadius, mCenter.y + mPieRadius);
+        }
+        if (bounds.isEmpty()) return false;
+        // Leave room for the antialiasing.
+        bounds.inset(-2, -2);
+        return true;
+    }
+
+    @Override
+    public long getNextFrameTime() {
+        boolean animating = (mFadeIn != null) || (mXFade != null)
+                || (mAnimation.hasStarted() && !mAnimation.hasEnded());
+        return animating ? 0 : -1;
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         float alpha = 1;
@@ -383,14 +488,24 @@ public class PieRenderer extends OverlayRenderer
             return;
         }
         if ((mOpenItem == null) || (mXFade != null)) {
-            // draw base menu
-            for (PieItem item : mItems) {
-                drawItem(canvas, item, alpha);
+            // draw base menu, from the layer while it fades unless an item
+            // is selected
+            if ((mFadeIn != null || mXFade != null) && (mLayer != null)
+                    && (mState == STATE_PIE)
+                    && (mCurrentItem == null || mCurrentItem == mOpenItem)) {
+                mLayerPaint.setAlpha((int) (alpha * 255));
+                canvas.drawBitmap(mLayer, mCenter.x - mPieRadius, mCenter.y - mPieRadius,
+                        mLayerPaint);
+            } else {
+                for (int i = 0; i < mItems.size(); i++) {
+                    drawItem(canvas, mItems.get(i), alpha);
+                }
             }
         }
         if (mOpenItem != null) {
-            for (PieItem inner : mOpenItem.getItems()) {
-                drawItem(canvas, inner, (mXFade != null) ? (1 - 0.5f * alpha) : 1);
+            List<PieItem> items = mOpenItem.getItems();
+            for (int i = 0; i < items.size(); i++) {
+                drawItem(canvas, items.get(i), (mXFade != null) ? (1 - 0.5f * alpha) : 1);
             }
         }
         canvas.restoreToCount(state);
@@ -403,7 +518,8 @@ public class PieRenderer extends OverlayRenderer
                     Paint p = mSelectedPaint;
                     int state = canvas.save();
                     float r = getDegrees(item.getStartAngle());
-                    canvas.rotate(r, mCenter.x, mCenter.y);
+                    canvas.translate(mCenter.x, mCenter.y);
+                    canvas.rotate(r);
                     canvas.drawPath(item.getPath(), p);
                     canvas.restoreToCount(state);
                 }
@@ -467,6 +583,7 @@ public class PieRenderer extends OverlayRenderer
             if (polar.y < mRadius) {
                 if (mOpenItem != null) {
                     mOpenItem = null;
+                    update();
                 } else {
                     deselect();
                 }
@@ -510,6 +627,7 @@ public class PieRenderer extends OverlayRenderer
         } else {
             mCurrentItem = null;
         }
+        update();
     }
 
     private void deselect() {
@@ -520,6 +638,7 @@ public class PieRenderer extends OverlayRenderer
             mOpenItem = null;
         }
         mCurrentItem = null;
+        update();
     }
 
     private void openCurrentItem() {
@@ -527,29 +646,15 @@ public class PieRenderer extends OverlayRenderer
             mCurrentItem.setSelected(false);
             mOpenItem = mCurrentItem;
             mOpening = true;
-            mXFade = new LinearAnimation(1, 0);
-            mXFade.setDuration(PIE_XFADE_DURATION);
-            mXFade.setAnimationListener(new AnimationListener() {
-                @Override
-                public void onAnimationStart(Animation animation) {
-                }
-
-                @Override
-                public void onAnimationEnd(Animation animation) {
-                    mXFade = null;
-                }
-
-                @Override
-                public void onAnimationRepeat(Animation animation) {
-                }
-            });
+            mXFade = mXFadeAnimation;
+            mXFade.reset();
             mXFade.startNow();
             mOverlay.startAnimation(mXFade);
         }
     }
 
     private PointF getPolar(float x, float y, boolean useOffset) {
-        PointF res = new PointF();
+        PointF res = mPolar;
         // get angle and radius from x/y
         res.x = (float) Math.PI / 2;
         x = x - mCenter.x;
@@ -572,7 +677,8 @@ public class PieRenderer extends OverlayRenderer
     private PieItem findItem(PointF polar) {
         // find the matching item:
         List<PieItem> items = (mOpenItem != null) ? mOpenItem.getItems() : mItems;
-        for (PieItem item : items) {
+        for (int i = 0; i < items.size(); i++) {
+            PieItem item = items.get(i);
             if (inside(polar, item)) {
                 return item;
             }
@@ -599,6 +705,7 @@ public class PieRenderer extends OverlayRenderer
         if (blocked) {
             clear();
         }
+        update();
     }
 
     public void setFocus(int x, int y) {
@@ -637,6 +744,7 @@ public class PieRenderer extends OverlayRenderer
         if (isVisible() && mState == STATE_PIE) {
             setCenter(mCenterX, mCenterY);
             layoutPie();
+            renderLayer();
         }
     }
 
@@ -645,6 +753,7 @@ public class PieRenderer extends OverlayRenderer
                 cx + mCircleSize, cy + mCircleSize);
         mDial.set(cx - mCircleSize + mInnerOffset, cy - mCircleSize + mInnerOffset,
                 cx + mCircleSize - mInnerOffset, cy + mCircleSize - mInnerOffset);
+        update();
     }
 
     public void drawFocus(Canvas canvas) {
@@ -780,6 +889,14 @@ public class PieRenderer extends OverlayRenderer
         }
     }
 
+    private static class Slice {
+        float start;
+        float end;
+        int outer;
+        int inner;
+        Path path;
+    }
+
     private class ScaleAnimation extends Animation {
         private float mFrom = 1f;
         private float mTo = 1f;
@@ -816,6 +933,12 @@ public class PieRenderer extends OverlayRenderer
             return mValue;
         }
 
+        @Override
+        public void reset() {
+            super.reset();
+            mValue = mFrom;
+        }
+
         @Override
         protected void applyTransformation(float interpolatedTime, Transformation t) {
             mValue = (mFrom + (mTo - mFrom) * interpolatedTime);
@@ -18,6 +18,8 @@ package com.android.camera.ui;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
@@ -26,6 +28,12 @@ import android.widget.FrameLayout;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Draws the renderers over the preview. Only the area a renderer drew in
+ * the last frame and the one it draws in next are invalidated when it is
+ * updated, and the overlay is only drawn again by itself while a renderer
+ * animates or when one asks for a frame later.
+ */
 public class RenderOverlay extends FrameLayout {
 
     private static final String TAG = "CAM_Overlay";
@@ -47,6 +55,22 @@ public class RenderOverlay extends FrameLayout {
     private List<Renderer> mTouchClients;
     private int[] mPosition = new int[2];
 
+    private final Rect mDirty = new Rect();
+    private final Rect mBounds = new Rect();
+    private boolean mDirtyRegions = true;
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    // Draw statistics, for testing.
+    private int mDrawCount;
+    private long mDrawTimeNs;
+    private long mMaxDrawTimeNs;
+    private long mDrawnArea;
+
     public RenderOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
         mRenderView = new RenderView(context);
@@ -73,6 +97,11 @@ public class RenderOverlay extends FrameLayout {
     public void remove(Renderer renderer) {
         mClients.remove(renderer);
         renderer.setOverlay(null);
+        Rect drawn = ((OverlayRenderer) renderer).mDrawnBounds;
+        if (!drawn.isEmpty()) {
+            mRenderView.invalidate(drawn);
+            drawn.setEmpty();
+        }
     }
 
     public int getClientSize() {
@@ -104,9 +133,55 @@ public class RenderOverlay extends FrameLayout {
     }
 
     public void update() {
+        if (!mDirtyRegions) {
+            mRenderView.invalidate();
+            return;
+        }
+        mDirty.setEmpty();
+        for (Renderer client : mClients) {
+            OverlayRenderer renderer = (OverlayRenderer) client;
+            mDirty.union(renderer.mDrawnBounds);
+            if (renderer.getBounds(mBounds)) {
+                mDirty.union(mBounds);
+            }
+        }
+        if (!mDirty.isEmpty()) {
+            mRenderView.invalidate(mDirty);
+        }
+    }
+
+    // For testing. When disabled, the whole overlay is drawn on every
+    // frame while a renderer is visible.
+    public void setDirtyRegionsEnabled(boolean enabled) {
+        mDirtyRegions = enabled;
         mRenderView.invalidate();
     }
 
+    // For testing.
+    public void resetDrawStats() {
+        mDrawCount = 0;
+        mDrawTimeNs = 0;
+        mMaxDrawTimeNs = 0;
+        mDrawnArea = 0;
+    }
+
+    public int getDrawCount() {
+        return mDrawCount;
+    }
+
+    public long getDrawTimeNs() {
+        return mDrawTimeNs;
+    }
+
+    public long getMaxDrawTimeNs() {
+        return mMaxDrawTimeNs;
+    }
+
+    // The pixels drawn, as the sum of the clip areas of the draws.
+    public long getDrawnArea() {
+        return mDrawnArea;
+    }
+
     private class RenderView extends View {
 
         private Renderer mTouchTarget;
@@ -147,15 +222,36 @@ public class RenderOverlay extends FrameLayout {
 
         @Override
         public void draw(Canvas canvas) {
+            long start = System.nanoTime();
             super.draw(canvas);
             if (mClients == null) return;
-            boolean redraw = false;
-            for (Renderer renderer : mClients) {
+            long next = -1;
+            for (Renderer client : mClients) {
+                OverlayRenderer renderer = (OverlayRenderer) client;
                 renderer.draw(canvas);
-                redraw = redraw || ((OverlayRenderer) renderer).isVisible();
+                if (!renderer.getBounds(renderer.mDrawnBounds)) {
+                    renderer.mDrawnBounds.setEmpty();
+                }
+                if (!renderer.isVisible()) continue;
+                long time = mDirtyRegions ? renderer.getNextFrameTime() : 0;
+                if (time >= 0 && (next < 0 || time < next)) {
+                    next = time;
+                }
             }
-            if (redraw) {
-                invalidate();
+
+            long elapsed = System.nanoTime() - start;
+            mDrawCount++;
+            mDrawTimeNs += elapsed;
+            mMaxDrawTimeNs = Math.max(mMaxDrawTimeNs, elapsed);
+            if (canvas.getClipBounds(mBounds)) {
+                mDrawnArea += (long) mBounds.width() * mBounds.height();
+            }
+
+            removeCallbacks(mUpdate);
+            if (next == 0) {
+                update();
+            } else if (next > 0) {
+                postDelayed(mUpdate, Math.max(next - SystemClock.uptimeMillis(), 0));
             }
         }
     }
@@ -82,12 +82,14 @@ public class ZoomRenderer extends OverlayRenderer
 
     public void setZoom(int index) {
         mCircleSize = (int) (mMinCircle + index * (mMaxCircle - mMinCircle) / (mMaxZoom - mMinZoom));
+        update();
     }
 
     public void setZoomValue(int value) {
         value = value / 10;
         mZoomSig = value / 10;
         mZoomFraction = value % 10;
+        update();
     }
 
     public void setOnZoomChangeListener(OnZoomChangedListener listener) {
@@ -107,6 +109,15 @@ public class ZoomRenderer extends OverlayRenderer
         return mDetector.isInProgress();
     }
 
+    @Override
+    public boolean getBounds(Rect bounds) {
+        if (!mVisible) return false;
+        // The outer ring, the line to its left and the zoom circle.
+        int r = (int) Math.max(mMaxCircle, mCircleSize) + mOuterStroke + 6;
+        bounds.set(mCenterX - r, mCenterY - r, mCenterX + r, mCenterY + r);
+        return true;
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         mPaint.setStrokeWidth(mInnerStroke);
@@ -131,6 +142,7 @@ public class ZoomRenderer extends OverlayRenderer
         circle = Math.min(mMaxCircle, circle);
         if (mListener != null && (int) circle != mCircleSize) {
             mCircleSize = (int) circle;
+            update();
             int zoom = mMinZoom + (int) ((mCircleSize - mMinCircle) * (mMaxZoom - mMinZoom) / (mMaxCircle - mMinCircle));
             mListener.onZoomValueChanged(zoom);
         }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.CameraSettings;
+import com.android.camera.ComboPreferences;
+import com.android.camera.EffectsRecorder;
+
+import android.content.Intent;
+import android.provider.MediaStore;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Junit / Instrumentation test case for the cost of the filter framework
+ * calls EffectsRecorder makes on every orientation update, with the filters
+ * looked up every time and with the cached filters, and for the latency of
+ * switching to an effect whose graph is loaded and one whose graph is not.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.EffectsUpdateLatency \
+ *    -w com.google.android.camera.tests/android.test.InstrumentationTestRunner
+ */
+public class EffectsUpdateLatency extends ActivityInstrumentationTestCase2<CameraActivity> {
+    private static final String TAG = "EffectsUpdateLatency";
+    private static final String EFFECT = "goofy_face/squeeze";
+    private static final int NUMBER_OF_UPDATES = 1000;
+    private static final long WAIT_FOR_EFFECTS = 5000;
+    private static final String BACKGROUND = "file:///system/media/video/AndroidInSpace.480p.mp4";
+
+    private TestUtil testUtil = new TestUtil();
+    private String mOldEffect;
+
+    public EffectsUpdateLatency() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Intent intent = new Intent(MediaStore.INTENT_ACTION_VIDEO_CAMERA);
+        setActivityIntent(intent);
+        ComboPreferences prefs = ComboPreferences.get(getActivity());
+        mOldEffect = prefs.getString(CameraSettings.KEY_VIDEO_EFFECT, "none");
+        prefs.edit().putString(CameraSettings.KEY_VIDEO_EFFECT, EFFECT).commit();
+        // Restart with the effect selected.
+        getActivity().finish();
+        setActivity(null);
+        getActivity();
+        testUtil.prepareOutputFile();
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ComboPreferences.get(getActivity()).edit()
+                .putString(CameraSettings.KEY_VIDEO_EFFECT, mOldEffect).commit();
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    // Returns the mean time of an orientation update in microseconds.
+    private double measureUpdates(final EffectsRecorder recorder, final boolean cached) {
+        final long[] elapsed = new long[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.setFilterCacheEnabled(cached);
+                long start = System.nanoTime();
+                for (int i = 0; i < NUMBER_OF_UPDATES; i++) {
+                    recorder.setOrientationHint((i % 4) * 90);
+                }
+                elapsed[0] = System.nanoTime() - start;
+                recorder.setOrientationHint(0);
+                recorder.setFilterCacheEnabled(true);
+            }
+        });
+        return elapsed[0] / 1000.0 / NUMBER_OF_UPDATES;
+    }
+
+    @LargeTest
+    public void testOrientationUpdates() throws Exception {
+        Thread.sleep(WAIT_FOR_EFFECTS);
+        EffectsRecorder recorder = getActivity().getEffectsRecorder();
+        assertNotNull("effects not available", recorder);
+
+        // Warm up both paths before measuring.
+        measureUpdates(recorder, false);
+        measureUpdates(recorder, true);
+        double lookup = measureUpdates(recorder, false);
+        double cached = measureUpdates(recorder, true);
+
+        Log.v(TAG, "lookup " + lookup + "us, cached " + cached + "us");
+        testUtil.mOut.write("Effects orientation update - filter lookup: " + lookup + "us\n");
+        testUtil.mOut.write("Effects orientation update - cached filters: " + cached + "us\n");
+        testUtil.mOut.flush();
+    }
+
+    // Switches to the effect and returns the switch latency in ms.
+    private long switchEffect(final EffectsRecorder recorder, final int effect,
+            final Object parameter) throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recorder.setEffect(effect, parameter);
+            }
+        });
+        long latency = -1;
+        long end = SystemClock.uptimeMillis() + WAIT_FOR_EFFECTS;
+        long start = recorder.getLastEffectSwitchLatency();
+        while (SystemClock.uptimeMillis() < end) {
+            Thread.sleep(100);
+            latency = recorder.getLastEffectSwitchLatency();
+            if (latency != start) break;
+        }
+        // Let the new effect settle before the next switch.
+        Thread.sleep(WAIT_FOR_EFFECTS);
+        return latency;
+    }
+
+    @LargeTest
+    public void testEffectSwitch() throws Exception {
+        Thread.sleep(WAIT_FOR_EFFECTS);
+        EffectsRecorder recorder = getActivity().getEffectsRecorder();
+        assertNotNull("effects not available", recorder);
+
+        Integer squeeze = EffectsRecorder.EFFECT_GF_SQUEEZE;
+        long cold = switchEffect(recorder, EffectsRecorder.EFFECT_BACKDROPPER, BACKGROUND);
+        long warmGoofy = switchEffect(recorder, EffectsRecorder.EFFECT_GOOFY_FACE, squeeze);
+        long warmBackdropper = switchEffect(recorder, EffectsRecorder.EFFECT_BACKDROPPER,
+                BACKGROUND);
+        switchEffect(recorder, EffectsRecorder.EFFECT_GOOFY_FACE, squeeze);
+
+        Log.v(TAG, "switch cold " + cold + "ms, warm " + warmGoofy + "ms, "
+                + warmBackdropper + "ms");
+        testUtil.mOut.write("Effects switch - graph loaded: " + cold + "ms\n");
+        testUtil.mOut.write("Effects switch - graph reused (goofy face): " + warmGoofy + "ms\n");
+        testUtil.mOut.write("Effects switch - graph reused (backdropper): "
+                + warmBackdropper + "ms\n");
+        testUtil.mOut.flush();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.R;
+import com.android.camera.ui.RenderOverlay;
+
+import android.content.Intent;
+import android.provider.MediaStore;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Junit / Instrumentation test case for the frames the render overlay draws
+ * over the preview while the pie menu is open, with the whole overlay drawn
+ * on every frame and with only the dirty regions drawn.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.OverlayDrawing \
+ *    -w com.google.android.camera.tests/android.test.InstrumentationTestRunner
+ */
+public class OverlayDrawing extends ActivityInstrumentationTestCase2<CameraActivity> {
+    private static final String TAG = "OverlayDrawing";
+    private static final long WAIT_FOR_PREVIEW = 3000;
+    // Longer than the pie fade in.
+    private static final long WAIT_FOR_PIE = 500;
+    private static final long MEASURE_TIME = 5000;
+
+    private TestUtil testUtil = new TestUtil();
+
+    public OverlayDrawing() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Intent intent = new Intent(MediaStore.INTENT_ACTION_STILL_IMAGE_CAMERA);
+        setActivityIntent(intent);
+        getActivity();
+        testUtil.prepareOutputFile();
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    private void clickMenu() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                getActivity().findViewById(R.id.menu).performClick();
+            }
+        });
+    }
+
+    // Returns the frames drawn, the draw time in us and the pixels drawn,
+    // per second.
+    private double[] measure(final RenderOverlay overlay, final boolean dirtyRegions)
+            throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                overlay.setDirtyRegionsEnabled(dirtyRegions);
+            }
+        });
+        clickMenu();
+        Thread.sleep(WAIT_FOR_PIE);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                overlay.resetDrawStats();
+            }
+        });
+        Thread.sleep(MEASURE_TIME);
+        final double[] result = new double[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                double seconds = MEASURE_TIME / 1000.0;
+                result[0] = overlay.getDrawCount() / seconds;
+                result[1] = overlay.getDrawTimeNs() / 1000.0 / seconds;
+                result[2] = overlay.getDrawnArea() / seconds;
+                overlay.setDirtyRegionsEnabled(true);
+            }
+        });
+        // Close the pie again.
+        clickMenu();
+        Thread.sleep(WAIT_FOR_PIE);
+        return result;
+    }
+
+    private void report(String name, double[] result) throws Exception {
+        Log.v(TAG, name + ": " + result[0] + " frames/s, " + result[1] + "us/s, "
+                + result[2] + " pixels/s");
+        testUtil.mOut.write("Overlay with pie open - " + name + ": "
+                + String.format("%.1f frames/s, %.0fus/s drawing, %.0f pixels/s\n",
+                result[0], result[1], result[2]));
+    }
+
+    @LargeTest
+    public void testPieOpen() throws Exception {
+        Thread.sleep(WAIT_FOR_PREVIEW);
+        View view = getActivity().findViewById(R.id.render_overlay);
+        assertNotNull("render overlay not found", view);
+        RenderOverlay overlay = (RenderOverlay) view;
+
+        // Warm up both paths before measuring.
+        measure(overlay, false);
+        measure(overlay, true);
+        double[] full = measure(overlay, false);
+        double[] dirty = measure(overlay, true);
+
+        report("full redraws", full);
+        report("dirty regions", dirty);
+        testUtil.mOut.flush();
+        // The pie does not change after it has faded in.
+        assertTrue(dirty[0] < full[0]);
+    }
+}
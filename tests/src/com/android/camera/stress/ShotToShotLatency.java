@@ -23,6 +23,8 @@ import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
 import android.view.KeyEvent;
 import com.android.camera.CameraActivity;
+import com.android.camera.CameraSettings;
+import com.android.camera.ComboPreferences;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FilenameFilter;
@@ -37,6 +39,9 @@ public class ShotToShotLatency extends ActivityInstrumentationTestCase2<CameraAc
     private String TAG = "ShotToShotLatency";
     private static final int TOTAL_NUMBER_OF_SNAPSHOTS = 250;
     private static final long SNAPSHOT_WAIT = 1000;
+    private static final int TOTAL_NUMBER_OF_BURSTS = 10;
+    private static final long BURST_HOLD_TIME = 5000;
+    private static final long BURST_SAVE_WAIT = 5000;
     private static final String CAMERA_TEST_OUTPUT_FILE =
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
     private static final String CAMERA_IMAGE_DIRECTORY =
@@ -140,4 +145,60 @@ public class ShotToShotLatency extends ActivityInstrumentationTestCase2<CameraAc
             }
         }
     }
+
+    @LargeTest
+    public void testContinuousBurst() {
+        ArrayList<Double> shotsPerSecond = new ArrayList<Double>();
+
+        Log.v(TAG, "start testContinuousBurst test");
+        Instrumentation inst = getInstrumentation();
+        ComboPreferences prefs = ComboPreferences.get(getActivity());
+        String oldBurstMode = prefs.getString(CameraSettings.KEY_BURST_MODE, "1");
+        prefs.edit().putString(CameraSettings.KEY_BURST_MODE, "0").apply();
+
+        // Hold the shutter and count the pictures taken
+        for (int i = 0; i < TOTAL_NUMBER_OF_BURSTS; i++) {
+            inst.sendKeySync(new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_DPAD_CENTER));
+            sleep(BURST_HOLD_TIME);
+            inst.sendKeySync(new KeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_DPAD_CENTER));
+            sleep(BURST_SAVE_WAIT);
+            CameraActivity c = getActivity();
+            int shots = c.getBurstShotsTaken();
+            long duration = c.getBurstDuration();
+            Log.v(TAG, "Burst " + i + ": " + shots + " shots in " + duration + "ms");
+            if (shots > 1 && duration > 0) {
+                shotsPerSecond.add((shots - 1) * 1000.0 / duration);
+            }
+        }
+        prefs.edit().putString(CameraSettings.KEY_BURST_MODE, oldBurstMode).apply();
+
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        for (double rate : shotsPerSecond) {
+            mean += rate;
+            min = Math.min(min, rate);
+        }
+        if (!shotsPerSecond.isEmpty()) mean /= shotsPerSecond.size();
+
+        // Report statistics
+        File outFile = new File(CAMERA_TEST_OUTPUT_FILE);
+        BufferedWriter output = null;
+        try {
+            output = new BufferedWriter(new FileWriter(outFile, true));
+            output.write("Continuous burst - bursts measured: " + shotsPerSecond.size() + "\n");
+            output.write("Continuous burst - mean shots per second: " + mean + "\n");
+            output.write("Continuous burst - lowest shots per second: " + min + "\n");
+            cleanupLatencyImages();
+        } catch (IOException e) {
+            Log.e(TAG, "testContinuousBurst IOException writing to log " + e.toString());
+        } finally {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing file: " + e.toString());
+            }
+        }
+    }
 }
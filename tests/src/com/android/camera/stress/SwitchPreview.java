@@ -17,6 +17,7 @@
 package com.android.camera.stress;
 
 import com.android.camera.CameraActivity;
+import com.android.camera.CameraHolder;
 
 import android.app.Instrumentation;
 import android.content.Intent;
@@ -42,6 +43,7 @@ import java.io.FileWriter;
 public class SwitchPreview extends ActivityInstrumentationTestCase2 <CameraActivity>{
     private String TAG = "SwitchPreview";
     private static final int TOTAL_NUMBER_OF_SWITCHING = 200;
+    private static final int TOTAL_NUMBER_OF_CAMERA_SWITCHING = 50;
     private static final long WAIT_FOR_PREVIEW = 4000;
 
     private static final String CAMERA_TEST_OUTPUT_FILE =
@@ -114,4 +116,49 @@ public class SwitchPreview extends ActivityInstrumentationTestCase2 <CameraActiv
             Log.v(TAG, "Got exception", e);
         }
     }
+
+    @LargeTest
+    public void testSwitchCamera() {
+        // Switching between the back and the front camera in photo mode
+        final CameraHolder holder = CameraHolder.instance();
+        if (holder.getBackCameraId() == -1 || holder.getFrontCameraId() == -1) {
+            Log.v(TAG, "Skip switch camera test, only one camera available");
+            return;
+        }
+        Instrumentation inst = getInstrumentation();
+        long totalLatency = 0;
+        long maxLatency = 0;
+        int count = 0;
+        try {
+            mOut.write("Camera Switch Camera:\n");
+            mOut.write("No of loops :" + TOTAL_NUMBER_OF_CAMERA_SWITCHING + "\n");
+            mOut.write("loop: ");
+            for (int i = 0; i < TOTAL_NUMBER_OF_CAMERA_SWITCHING; i++) {
+                Thread.sleep(WAIT_FOR_PREVIEW);
+                final int cameraId = (i % 2 == 0)
+                        ? holder.getFrontCameraId() : holder.getBackCameraId();
+                inst.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        getActivity().switchToCamera(cameraId);
+                    }
+                });
+                Thread.sleep(WAIT_FOR_PREVIEW);
+                long latency = getActivity().getSwitchCameraLatency();
+                if (latency > 0) {
+                    totalLatency += latency;
+                    maxLatency = Math.max(maxLatency, latency);
+                    count++;
+                }
+                mOut.write(" ," + i);
+                mOut.flush();
+            }
+            if (count > 0) {
+                mOut.write("\nSwitch camera latency - mean: " + (totalLatency / count) + "\n");
+                mOut.write("Switch camera latency - max: " + maxLatency + "\n");
+            }
+        } catch (Exception e) {
+            Log.v(TAG, "Got exception", e);
+        }
+    }
 }
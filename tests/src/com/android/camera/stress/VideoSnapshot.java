@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraActivity;
+
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.database.Cursor;
+import android.media.CamcorderProfile;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Video.VideoColumns;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.KeyEvent;
+
+/**
+ * Junit / Instrumentation test case for taking snapshots while recording.
+ *
+ * Records a clip without and a clip with snapshots, and reports the UI
+ * frames which missed a vsync and the video frames missing in each clip.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.VideoSnapshot \
+ *    -w com.google.android.camera.tests/android.test.InstrumentationTestRunner
+ */
+public class VideoSnapshot extends ActivityInstrumentationTestCase2<CameraActivity> {
+    private static final String TAG = "VideoSnapshot";
+    private static final int NUMBER_OF_SNAPSHOTS = 10;
+    private static final long SNAPSHOT_INTERVAL = 1500;
+    private static final long WAIT_FOR_PREVIEW = 3000;
+    private static final long WAIT_FOR_SAVE = 3000;
+    private static final long VSYNC_PERIOD_NS = 1000000000L / 60;
+
+    private TestUtil testUtil = new TestUtil();
+
+    // Counts the UI frames later than one vsync, see startJankCounter().
+    private long mLastFrameTimeNs;
+    private int mFrames;
+    private int mJankyFrames;
+    private int mMissedVsyncs;
+    private boolean mCounting;
+
+    private final Choreographer.FrameCallback mFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mCounting) return;
+            if (mLastFrameTimeNs != 0) {
+                long missed = (frameTimeNanos - mLastFrameTimeNs
+                        + VSYNC_PERIOD_NS / 2) / VSYNC_PERIOD_NS - 1;
+                if (missed > 0) {
+                    mJankyFrames++;
+                    mMissedVsyncs += missed;
+                }
+            }
+            mFrames++;
+            mLastFrameTimeNs = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    public VideoSnapshot() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Intent intent = new Intent(MediaStore.INTENT_ACTION_VIDEO_CAMERA);
+        setActivityIntent(intent);
+        getActivity();
+        testUtil.prepareOutputFile();
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    private void startJankCounter() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mLastFrameTimeNs = 0;
+                mFrames = 0;
+                mJankyFrames = 0;
+                mMissedVsyncs = 0;
+                mCounting = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            }
+        });
+    }
+
+    private void stopJankCounter() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCounting = false;
+                Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            }
+        });
+    }
+
+    // Records one clip and writes its statistics.
+    private void recordClip(String name, int snapshots) throws Exception {
+        Instrumentation inst = getInstrumentation();
+        Thread.sleep(WAIT_FOR_PREVIEW);
+        int snapshotsBefore = getActivity().getVideoSnapshotsTaken();
+
+        inst.sendCharacterSync(KeyEvent.KEYCODE_CAMERA);
+        startJankCounter();
+        for (int i = 0; i < NUMBER_OF_SNAPSHOTS; i++) {
+            Thread.sleep(SNAPSHOT_INTERVAL);
+            if (i < snapshots) {
+                inst.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        getActivity().takeVideoSnapshot();
+                    }
+                });
+            }
+        }
+        Thread.sleep(SNAPSHOT_INTERVAL);
+        stopJankCounter();
+        inst.sendCharacterSync(KeyEvent.KEYCODE_CAMERA);
+        Thread.sleep(WAIT_FOR_SAVE);
+
+        int taken = getActivity().getVideoSnapshotsTaken() - snapshotsBefore;
+        testUtil.mOut.write(name + " - snapshots: " + taken + "\n");
+        testUtil.mOut.write(name + " - UI frames: " + mFrames + ", late: " + mJankyFrames
+                + ", missed vsyncs: " + mMissedVsyncs + "\n");
+        writeVideoFrameDrops(name);
+        testUtil.mOut.flush();
+    }
+
+    // Compares the frames in the last recorded clip with the frames the
+    // profile frame rate gives for its duration.
+    private void writeVideoFrameDrops(String name) throws Exception {
+        Cursor cursor = getActivity().getContentResolver().query(
+                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+                new String[] {VideoColumns.DATA, VideoColumns.DURATION},
+                null, null, VideoColumns.DATE_TAKEN + " DESC");
+        if (cursor == null) return;
+        String path;
+        long duration;
+        try {
+            if (!cursor.moveToFirst()) return;
+            path = cursor.getString(0);
+            duration = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        MediaExtractor extractor = new MediaExtractor();
+        int frames = 0;
+        try {
+            extractor.setDataSource(path);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    break;
+                }
+            }
+            while (extractor.getSampleTime() >= 0) {
+                frames++;
+                extractor.advance();
+            }
+        } finally {
+            extractor.release();
+        }
+
+        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+        long expected = duration * profile.videoFrameRate / 1000;
+        Log.v(TAG, path + ": " + frames + " frames, " + expected + " expected");
+        testUtil.mOut.write(name + " - video frames: " + frames + ", expected: " + expected
+                + ", dropped: " + Math.max(0, expected - frames) + "\n");
+    }
+
+    @LargeTest
+    public void testSnapshotDuringRecording() throws Exception {
+        testUtil.mOut.write("Video snapshot during recording:\n");
+        recordClip("Without snapshots", 0);
+        recordClip("With snapshots", NUMBER_OF_SNAPSHOTS);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.R;
+import com.android.camera.Thumbnail;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Video.VideoColumns;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Junit / Instrumentation test case for the latency of the review thumbnail
+ * of the video capture intent.
+ *
+ * The thumbnail made from the preview frame grabbed when the recording
+ * starts is compared with decoding the recorded video, for a 1 minute and
+ * a 10 minute clip.
+ *
+ * Running the test:
+ *
+ * adb shell am instrument \
+ *    -e class com.android.camera.stress.VideoThumbnail \
+ *    -w com.google.android.camera.tests/android.test.InstrumentationTestRunner
+ */
+public class VideoThumbnail extends ActivityInstrumentationTestCase2<CameraActivity> {
+    private static final String TAG = "VideoThumbnail";
+    private static final long WAIT_FOR_PREVIEW = 3000;
+    private static final long SHUTTER_PRESS_TIME = 200;
+    private static final long WAIT_FOR_THUMBNAIL = 60000;
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final long TEN_MINUTES = 10 * ONE_MINUTE;
+
+    private TestUtil testUtil = new TestUtil();
+
+    public VideoThumbnail() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Intent intent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
+        setActivityIntent(intent);
+        getActivity();
+        testUtil.prepareOutputFile();
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        testUtil.closeOutputFile();
+        super.tearDown();
+    }
+
+    // Presses and releases the shutter button like a touch does.
+    private void clickShutter() throws Exception {
+        final View shutter = getActivity().findViewById(R.id.shutter_button);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                shutter.setPressed(true);
+            }
+        });
+        Thread.sleep(SHUTTER_PRESS_TIME);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                shutter.performClick();
+                shutter.setPressed(false);
+            }
+        });
+    }
+
+    private String getLastVideoPath() {
+        Cursor cursor = getActivity().getContentResolver().query(
+                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+                new String[] {VideoColumns.DATA}, null, null,
+                VideoColumns.DATE_TAKEN + " DESC");
+        if (cursor == null) return null;
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void measureThumbnail(String name, long duration) throws Exception {
+        Thread.sleep(WAIT_FOR_PREVIEW);
+        clickShutter();
+        Thread.sleep(duration);
+        clickShutter();
+
+        long latency = -1;
+        long end = SystemClock.uptimeMillis() + WAIT_FOR_THUMBNAIL;
+        while (SystemClock.uptimeMillis() < end) {
+            latency = getActivity().getVideoThumbnailLatency();
+            if (latency >= 0) break;
+            Thread.sleep(100);
+        }
+
+        // Compare with decoding the video, which is the fallback.
+        long decodeLatency = -1;
+        String path = getLastVideoPath();
+        if (path != null) {
+            int width = getActivity().findViewById(R.id.review_image).getWidth();
+            long start = SystemClock.uptimeMillis();
+            Thumbnail.createVideoThumbnailBitmap(path, width);
+            decodeLatency = SystemClock.uptimeMillis() - start;
+        }
+
+        Log.v(TAG, name + ": preview frame " + latency + "ms, decode " + decodeLatency + "ms");
+        testUtil.mOut.write(name + " - thumbnail from preview frame: " + latency + "ms\n");
+        testUtil.mOut.write(name + " - thumbnail from video: " + decodeLatency + "ms\n");
+        testUtil.mOut.flush();
+        assertTrue("no thumbnail", latency >= 0);
+    }
+
+    @LargeTest
+    public void testThumbnailOneMinute() throws Exception {
+        measureThumbnail("Video thumbnail 1 minute", ONE_MINUTE);
+    }
+
+    @LargeTest
+    public void testThumbnailTenMinutes() throws Exception {
+        measureThumbnail("Video thumbnail 10 minutes", TEN_MINUTES);
+    }
+}
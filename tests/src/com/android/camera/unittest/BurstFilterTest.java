@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.BurstFilter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class BurstFilterTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private final ArrayList<Object> mKept = new ArrayList<Object>();
+    private final ArrayList<Object> mDropped = new ArrayList<Object>();
+    // Keeps and drops in the order they came, as "+name" and "-name".
+    private final ArrayList<String> mOrder = new ArrayList<String>();
+
+    private final BurstFilter mFilter = new BurstFilter(new BurstFilter.Listener() {
+        @Override
+        public void onKeep(Object picture) {
+            mKept.add(picture);
+            mOrder.add("+" + picture);
+        }
+
+        @Override
+        public void onDrop(Object picture) {
+            mDropped.add(picture);
+            mOrder.add("-" + picture);
+        }
+    });
+
+    // Squares of the given size, shifted by dx, blurred by the given radius
+    // and brightened.
+    private static byte[] picture(int squares, int dx, int blur, int brightness,
+            Random random) {
+        byte[] sharp = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int level = ((((x + dx) / squares) + (y / squares)) & 1) == 0 ? 50 : 190;
+                level += brightness + random.nextInt(3);
+                sharp[y * WIDTH + x] = (byte) Math.max(0, Math.min(level, 255));
+            }
+        }
+        if (blur == 0) return sharp;
+        byte[] blurred = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0, count = 0;
+                for (int xx = Math.max(0, x - blur); xx <= Math.min(WIDTH - 1, x + blur); xx++) {
+                    sum += sharp[y * WIDTH + xx] & 0xff;
+                    count++;
+                }
+                blurred[y * WIDTH + x] = (byte) (sum / count);
+            }
+        }
+        return blurred;
+    }
+
+    private void add(String name, byte[] luma) {
+        mFilter.add(name, luma, WIDTH, HEIGHT);
+    }
+
+    public void testFirstPictureWaitsForNext() {
+        add("a", picture(40, 0, 0, 0, new Random(1)));
+        assertEquals(0, mOrder.size());
+        mFilter.flush();
+        assertEquals("[+a]", mOrder.toString());
+        // Nothing left to flush.
+        mFilter.flush();
+        assertEquals(1, mOrder.size());
+    }
+
+    public void testDifferentPicturesAreKept() {
+        Random random = new Random(2);
+        add("a", picture(40, 0, 0, 0, random));
+        add("b", picture(40, 40, 0, 0, random));
+        add("c", picture(16, 0, 0, 0, random));
+        mFilter.flush();
+        assertEquals("[+a, +b, +c]", mOrder.toString());
+        assertEquals(3, mFilter.getKeptCount());
+        assertEquals(0, mFilter.getDroppedCount());
+    }
+
+    public void testSharpestDuplicateIsKept() {
+        Random random = new Random(3);
+        add("blurred", picture(40, 0, 3, 0, random));
+        add("sharp", picture(40, 0, 0, 0, random));
+        add("shaken", picture(40, 0, 2, 0, random));
+        mFilter.flush();
+        assertEquals("[-blurred, -shaken, +sharp]", mOrder.toString());
+    }
+
+    public void testBrightnessChangeIsDuplicate() {
+        Random random = new Random(4);
+        add("a", picture(40, 0, 0, 0, random));
+        add("b", picture(40, 0, 1, 15, random));
+        mFilter.flush();
+        assertEquals(1, mKept.size());
+        assertEquals("a", mKept.get(0));
+        assertEquals("b", mDropped.get(0));
+    }
+
+    public void testRunsEndOnChange() {
+        Random random = new Random(5);
+        add("a1", picture(40, 0, 1, 0, random));
+        add("a2", picture(40, 0, 0, 0, random));
+        add("b1", picture(40, 40, 0, 0, random));
+        add("b2", picture(40, 40, 2, 0, random));
+        mFilter.flush();
+        assertEquals("[-a1, +a2, -b2, +b1]", mOrder.toString());
+        assertTrue(mFilter.getLastDifference() < BurstFilter.DUPLICATE_DIFF);
+    }
+
+    public void testSmallerPictureStartsRun() {
+        Random random = new Random(6);
+        add("a", picture(40, 0, 0, 0, random));
+        mFilter.add("b", new byte[160 * 120], 160, 120);
+        mFilter.flush();
+        assertEquals("[+a, +b]", mOrder.toString());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ContrastFocus;
+import com.android.camera.PgmFile;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class ContrastFocusTest extends TestCase {
+    private static final String TAG = "ContrastFocusTest";
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int MEASURES = 200;
+
+    // A checkerboard with some noise, blurred by the given radius.
+    private static byte[] frame(int blur, int brightness, Random random) {
+        byte[] sharp = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int level = (((x / 8) + (y / 8)) & 1) == 0 ? 40 : 200;
+                level = level * brightness / 100 + random.nextInt(3);
+                sharp[y * WIDTH + x] = (byte) Math.min(level, 255);
+            }
+        }
+        if (blur == 0) return sharp;
+        byte[] blurred = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0, count = 0;
+                for (int dy = -blur; dy <= blur; dy++) {
+                    int yy = y + dy;
+                    if (yy < 0 || yy >= HEIGHT) continue;
+                    for (int dx = -blur; dx <= blur; dx++) {
+                        int xx = x + dx;
+                        if (xx < 0 || xx >= WIDTH) continue;
+                        sum += sharp[yy * WIDTH + xx] & 0xff;
+                        count++;
+                    }
+                }
+                blurred[y * WIDTH + x] = (byte) (sum / count);
+            }
+        }
+        return blurred;
+    }
+
+    // Records the frames as FocusAssist does, and reads them back.
+    private static ArrayList<PgmFile> record(int[] blurs) throws Exception {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int blur : blurs) {
+            PgmFile.write(out, frame(blur, 100, random), WIDTH, 0, 0, WIDTH, HEIGHT);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        ArrayList<PgmFile> frames = new ArrayList<PgmFile>();
+        PgmFile pgm;
+        while ((pgm = PgmFile.read(in)) != null) frames.add(pgm);
+        return frames;
+    }
+
+    // Replays the frames and returns the index of the frame which changed
+    // the state, or -1.
+    private static int replay(ContrastFocus focus, ArrayList<PgmFile> frames) {
+        focus.start();
+        for (int i = 0; i < frames.size(); i++) {
+            PgmFile pgm = frames.get(i);
+            float sharpness = focus.measure(pgm.pixels, pgm.width, pgm.height);
+            if (focus.onSharpness(sharpness) != ContrastFocus.STATE_SEARCHING) return i;
+        }
+        return -1;
+    }
+
+    public void testPgmRoundTrip() throws Exception {
+        ArrayList<PgmFile> frames = record(new int[] {0, 3});
+        assertEquals(2, frames.size());
+        assertEquals(WIDTH, frames.get(0).width);
+        assertEquals(HEIGHT, frames.get(0).height);
+        assertEquals(WIDTH * HEIGHT, frames.get(1).pixels.length);
+    }
+
+    public void testSharperFramesMeasureHigher() {
+        ContrastFocus focus = new ContrastFocus();
+        Random random = new Random(2);
+        float last = Float.MAX_VALUE;
+        for (int blur = 0; blur <= 6; blur += 2) {
+            float sharpness = focus.measure(frame(blur, 100, random), WIDTH, HEIGHT);
+            assertTrue("blur " + blur, sharpness < last);
+            last = sharpness;
+        }
+    }
+
+    public void testExposureDoesNotChangeSharpness() {
+        ContrastFocus focus = new ContrastFocus();
+        float normal = focus.measure(frame(1, 100, new Random(3)), WIDTH, HEIGHT);
+        float dark = focus.measure(frame(1, 60, new Random(3)), WIDTH, HEIGHT);
+        assertEquals(normal, dark, normal * 0.1f);
+    }
+
+    public void testAreaIsMeasured() {
+        ContrastFocus focus = new ContrastFocus();
+        byte[] flat = new byte[WIDTH * HEIGHT];
+        byte[] sharp = frame(0, 100, new Random(4));
+        // Only the left half of the frame is sharp.
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(sharp, y * WIDTH, flat, y * WIDTH, WIDTH / 2);
+        }
+        focus.setArea(-1000, -1000, -100, 1000);
+        assertTrue(focus.measure(flat, WIDTH, HEIGHT) > 0.01f);
+        focus.setArea(100, -1000, 1000, 1000);
+        assertEquals(0f, focus.measure(flat, WIDTH, HEIGHT), 0.001f);
+    }
+
+    public void testSettlesAtPeak() throws Exception {
+        ArrayList<PgmFile> frames = record(new int[] {6, 5, 4, 3, 2, 1, 0, 0, 0, 0, 0, 0});
+        ContrastFocus focus = new ContrastFocus();
+        int index = replay(focus, frames);
+        assertEquals(ContrastFocus.STATE_SETTLED, focus.getState());
+        assertTrue("settled at " + index, index >= 8 && index <= 10);
+        assertEquals(1f, focus.getLevel(), 0.05f);
+    }
+
+    public void testDoesNotSettleWithoutChange() throws Exception {
+        ArrayList<PgmFile> frames = record(new int[] {2, 2, 2, 2, 2, 2, 2, 2});
+        ContrastFocus focus = new ContrastFocus();
+        assertEquals(-1, replay(focus, frames));
+        assertEquals(ContrastFocus.STATE_SEARCHING, focus.getState());
+    }
+
+    public void testDetectsHunting() throws Exception {
+        ArrayList<PgmFile> frames = record(new int[] {5, 1, 5, 1, 5, 1, 5, 1, 5, 1, 5, 1});
+        ContrastFocus focus = new ContrastFocus();
+        assertTrue(replay(focus, frames) >= 0);
+        assertEquals(ContrastFocus.STATE_HUNTING, focus.getState());
+    }
+
+    public void testRestartForgetsRun() throws Exception {
+        ContrastFocus focus = new ContrastFocus();
+        replay(focus, record(new int[] {5, 1, 5, 1, 5, 1, 5, 1, 5, 1, 5, 1}));
+        assertEquals(ContrastFocus.STATE_HUNTING, focus.getState());
+        replay(focus, record(new int[] {6, 4, 2, 0, 0, 0, 0}));
+        assertEquals(ContrastFocus.STATE_SETTLED, focus.getState());
+    }
+
+    // Not a pass or fail test, the time per frame is logged to compare
+    // changes of the measure.
+    public void testMeasureTime() throws Exception {
+        ArrayList<PgmFile> frames = record(new int[] {4, 2, 0});
+        ContrastFocus focus = new ContrastFocus();
+        focus.setArea(-250, -250, 250, 250);
+        float total = 0;
+        // Warm up.
+        for (int i = 0; i < MEASURES; i++) {
+            PgmFile pgm = frames.get(i % frames.size());
+            total += focus.measure(pgm.pixels, pgm.width, pgm.height);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURES; i++) {
+            PgmFile pgm = frames.get(i % frames.size());
+            total += focus.measure(pgm.pixels, pgm.width, pgm.height);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(total > 0);
+        Log.v(TAG, "measure " + (elapsed / 1000 / MEASURES) + "us per frame");
+    }
+}
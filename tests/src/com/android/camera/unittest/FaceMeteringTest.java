@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.FaceMetering;
+import com.android.camera.FaceTracker;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class FaceMeteringTest extends TestCase {
+    private static final long INTERVAL = 100;
+    private static final long START = 5000;
+
+    // Stands in for the camera, keeping the last areas it was given.
+    private static class FakeCamera implements FaceMetering.Driver {
+        int calls;
+        int focusCount;
+        int meteringCount;
+        int[] focus = new int[0];
+        int[] metering = new int[0];
+
+        @Override
+        public void setFaceAreas(int focusCount, int[] focusAreas,
+                int meteringCount, int[] meteringAreas) {
+            calls++;
+            this.focusCount = focusCount;
+            this.meteringCount = meteringCount;
+            focus = new int[5 * focusCount];
+            metering = new int[5 * meteringCount];
+            System.arraycopy(focusAreas, 0, focus, 0, focus.length);
+            System.arraycopy(meteringAreas, 0, metering, 0, metering.length);
+        }
+    }
+
+    private final int[] mIds = { -1, -1 };
+    private final int[] mScores = { 100, 100 };
+    private final float[] mRects = new float[8];
+    private FaceTracker mTracker;
+    private FakeCamera mCamera;
+    private FaceMetering mMetering;
+    private long mTime;
+
+    @Override
+    protected void setUp() {
+        mTracker = new FaceTracker();
+        mCamera = new FakeCamera();
+        mMetering = new FaceMetering(mCamera, 1, 2);
+        mTime = START;
+    }
+
+    private static void setFace(float[] rects, int i, float x, float y, float size) {
+        rects[4 * i] = x - size / 2;
+        rects[4 * i + 1] = y - size / 2;
+        rects[4 * i + 2] = x + size / 2;
+        rects[4 * i + 3] = y + size / 2;
+    }
+
+    // The next detection of one face.
+    private void detect(float x, float y, float size) {
+        setFace(mRects, 0, x, y, size);
+        mTracker.update(mTime, 1, mIds, mScores, mRects);
+        mTime += INTERVAL;
+    }
+
+    public void testStillFace() {
+        detect(100, -200, 400);
+        // A single detection is not a confirmed face yet.
+        assertFalse(mMetering.meter(mTime, mTracker));
+        for (int i = 0; i < 5; i++) detect(100, -200, 400);
+        assertTrue(mMetering.meter(mTime, mTracker));
+        assertEquals(1, mCamera.calls);
+        assertEquals(1, mCamera.focusCount);
+        assertEquals(-100, mCamera.focus[0]);
+        assertEquals(-400, mCamera.focus[1]);
+        assertEquals(300, mCamera.focus[2]);
+        assertEquals(0, mCamera.focus[3]);
+        assertEquals(FaceMetering.MAX_WEIGHT, mCamera.focus[4]);
+        // Metering is on a larger area around the face.
+        assertEquals(1, mCamera.meteringCount);
+        assertEquals(-200, mCamera.metering[0]);
+        assertEquals(-500, mCamera.metering[1]);
+        assertEquals(400, mCamera.metering[2]);
+        assertEquals(100, mCamera.metering[3]);
+    }
+
+    public void testMovingFace() {
+        // The driver follows the face, so it keeps its track.
+        mIds[0] = 1;
+        for (int i = 0; i < 20; i++) detect(-800 + 40 * i, 0, 300);
+        // The areas are where the face is when they are set, not where it
+        // was last detected.
+        assertTrue(mMetering.meter(mTime, mTracker));
+        int center = (mCamera.focus[0] + mCamera.focus[2]) / 2;
+        int last = -800 + 40 * 19;
+        assertTrue("center " + center, center > last);
+        assertEquals(last + 40, center, 20);
+    }
+
+    public void testWeights() {
+        // A large face in the center and a small one in a corner.
+        mIds[0] = 1;
+        mIds[1] = 2;
+        for (int i = 0; i < 5; i++) {
+            setFace(mRects, 0, 900, 900, 200);
+            setFace(mRects, 1, 0, 0, 500);
+            mTracker.update(mTime, 2, mIds, mScores, mRects);
+            mTime += INTERVAL;
+        }
+        assertTrue(mMetering.meter(mTime, mTracker));
+        // A single focus area, on the large face.
+        assertEquals(1, mCamera.focusCount);
+        assertEquals(-250, mCamera.focus[0]);
+        assertEquals(FaceMetering.MAX_WEIGHT, mCamera.focus[4]);
+        assertEquals(2, mCamera.meteringCount);
+        assertEquals(FaceMetering.MAX_WEIGHT, mCamera.metering[4]);
+        int weight = mCamera.metering[9];
+        assertTrue("weight " + weight, weight > 0 && weight < 200);
+        // The small face is clamped to the frame.
+        assertEquals(1000, mCamera.metering[7]);
+    }
+
+    public void testFacesLost() {
+        for (int i = 0; i < 5; i++) detect(0, 0, 300);
+        for (int i = 0; i < 10; i++) {
+            mTracker.update(mTime, 0, mIds, mScores, mRects);
+            mTime += INTERVAL;
+        }
+        assertFalse(mMetering.meter(mTime, mTracker));
+        assertEquals(0, mCamera.calls);
+    }
+
+    public void testUnsupported() {
+        mMetering = new FaceMetering(mCamera, 0, 0);
+        for (int i = 0; i < 5; i++) detect(0, 0, 300);
+        assertFalse(mMetering.meter(mTime, mTracker));
+        assertEquals(0, mCamera.calls);
+    }
+}
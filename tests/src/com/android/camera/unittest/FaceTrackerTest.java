@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.FaceTrace;
+import com.android.camera.FaceTracker;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+@SmallTest
+public class FaceTrackerTest extends TestCase {
+    // Drivers report faces at about 10 fps.
+    private static final long INTERVAL = 100;
+    private static final long START = 5000;
+    private static final int SIZE = 300;
+    // How far the face moves per ms, and the noise of the detections.
+    private static final float SPEED = 0.5f;
+    private static final int NOISE = 15;
+
+    private final int[] mIds = new int[2];
+    private final int[] mScores = new int[2];
+    private final float[] mRects = new float[8];
+
+    private float centerAt(long time) {
+        return -600 + SPEED * (time - START);
+    }
+
+    // A face moving to the right, detected with noisy edges.
+    private FaceTrace movingFace(int faceId, int detections) {
+        FaceTrace trace = new FaceTrace();
+        Random random = new Random(1);
+        for (int i = 0; i < detections; i++) {
+            long time = START + i * INTERVAL;
+            float x = centerAt(time);
+            mIds[0] = faceId;
+            mScores[0] = 100;
+            mRects[0] = x - SIZE / 2 + random.nextInt(2 * NOISE + 1) - NOISE;
+            mRects[1] = -SIZE / 2 + random.nextInt(2 * NOISE + 1) - NOISE;
+            mRects[2] = x + SIZE / 2 + random.nextInt(2 * NOISE + 1) - NOISE;
+            mRects[3] = SIZE / 2 + random.nextInt(2 * NOISE + 1) - NOISE;
+            trace.add(time, 1, mIds, mScores, mRects);
+        }
+        return trace;
+    }
+
+    private void detect(FaceTracker tracker, long time, int faceId, int score,
+            float x, float y) {
+        mIds[0] = faceId;
+        mScores[0] = score;
+        mRects[0] = x - SIZE / 2;
+        mRects[1] = y - SIZE / 2;
+        mRects[2] = x + SIZE / 2;
+        mRects[3] = y + SIZE / 2;
+        tracker.update(time, 1, mIds, mScores, mRects);
+    }
+
+    public void testTraceRoundTrip() throws Exception {
+        FaceTrace trace = movingFace(3, 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.write(out);
+        String text = "# Recorded on a device\n\n" + out.toString();
+        FaceTrace read = FaceTrace.read(new ByteArrayInputStream(text.getBytes()));
+        assertEquals(trace.size(), read.size());
+        float[] a = new float[4], b = new float[4];
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(trace.getTime(i), read.getTime(i));
+            assertEquals(1, read.getFaceCount(i));
+            trace.getRect(i, 0, a);
+            read.getRect(i, 0, b);
+            for (int j = 0; j < 4; j++) assertEquals(a[j], b[j]);
+        }
+    }
+
+    public void testBadTrace() throws Exception {
+        try {
+            FaceTrace.read(new ByteArrayInputStream("100 1 0 100 1 2 3\n".getBytes()));
+            fail("a face with a missing field was read");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testSmoothing() {
+        FaceTrace trace = movingFace(-1, 60);
+        FaceTracker tracker = new FaceTracker();
+        float[] raw = new float[4];
+        float[] smoothed = new float[4];
+        double rawError = 0, smoothedError = 0;
+        int n = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            long time = trace.getTime(i);
+            trace.getRect(i, 0, raw);
+            mIds[0] = -1;
+            mScores[0] = 100;
+            System.arraycopy(raw, 0, mRects, 0, 4);
+            tracker.update(time, 1, mIds, mScores, mRects);
+            assertEquals(1, tracker.getTrackCount());
+            // Give the filter time to find the velocity.
+            if (i < 20) continue;
+            tracker.getTrack(0).predict(time, smoothed, 0);
+            float x = centerAt(time);
+            float[] truth = { x - SIZE / 2, -SIZE / 2, x + SIZE / 2, SIZE / 2 };
+            for (int j = 0; j < 4; j++) {
+                rawError += (raw[j] - truth[j]) * (raw[j] - truth[j]);
+                smoothedError += (smoothed[j] - truth[j]) * (smoothed[j] - truth[j]);
+            }
+            n += 4;
+        }
+        rawError = Math.sqrt(rawError / n);
+        smoothedError = Math.sqrt(smoothedError / n);
+        assertTrue("smoothed " + smoothedError + " raw " + rawError,
+                smoothedError < 0.8 * rawError);
+    }
+
+    public void testPrediction() {
+        FaceTracker tracker = new FaceTracker();
+        movingFace(7, 30).replay(tracker);
+        FaceTracker.Track track = tracker.getTrack(0);
+        long last = START + 29 * INTERVAL;
+        assertTrue(tracker.isMoving(last + INTERVAL / 2));
+        // Halfway to the next detection the face has moved on.
+        float[] rect = new float[4];
+        long time = last + INTERVAL / 2;
+        track.predict(time, rect, 0);
+        assertEquals(centerAt(time), (rect[0] + rect[2]) / 2, 2 * NOISE);
+        assertEquals(0, (rect[1] + rect[3]) / 2, 2 * NOISE);
+        // But it is not extrapolated forever.
+        float[] later = new float[4];
+        track.predict(last + 10 * INTERVAL, later, 0);
+        track.predict(last + 20 * INTERVAL, rect, 0);
+        assertEquals(later[0], rect[0]);
+        assertFalse(tracker.isMoving(last + 10 * INTERVAL));
+    }
+
+    public void testConfirmedOnSecondDetection() {
+        FaceTracker tracker = new FaceTracker();
+        detect(tracker, START, -1, 100, 0, 0);
+        assertEquals(1, tracker.getTrackCount());
+        assertFalse(tracker.hasFaces());
+        detect(tracker, START + INTERVAL, -1, 100, 10, 0);
+        assertTrue(tracker.hasFaces());
+    }
+
+    public void testFlickerIsHidden() {
+        FaceTracker tracker = new FaceTracker();
+        // Seen once, then gone.
+        detect(tracker, START, -1, 100, 0, 0);
+        tracker.update(START + INTERVAL, 0, mIds, mScores, mRects);
+        assertEquals(0, tracker.getTrackCount());
+        assertFalse(tracker.hasFaces());
+    }
+
+    public void testAssociationWithoutIds() {
+        FaceTracker tracker = new FaceTracker();
+        long time = START;
+        detect(tracker, time, -1, 100, 0, 0);
+        int id = tracker.getTrack(0).id;
+        // Moving less than the size of the face per detection.
+        for (int i = 1; i < 20; i++) {
+            detect(tracker, time += INTERVAL, -1, 100, 30 * i, 0);
+            assertEquals(1, tracker.getTrackCount());
+            assertEquals(id, tracker.getTrack(0).id);
+        }
+        // A face appearing elsewhere is a new track.
+        detect(tracker, time += INTERVAL, -1, 100, -700, 0);
+        assertEquals(2, tracker.getTrackCount());
+        assertTrue(tracker.getTrack(1).id != id);
+    }
+
+    public void testAssociationByFaceId() {
+        FaceTracker tracker = new FaceTracker();
+        detect(tracker, START, 4, 100, 0, 0);
+        int id = tracker.getTrack(0).id;
+        // The driver follows the face even when it jumps.
+        detect(tracker, START + INTERVAL, 4, 100, 500, 500);
+        assertEquals(1, tracker.getTrackCount());
+        assertEquals(id, tracker.getTrack(0).id);
+        // Another id at the same place is another face.
+        detect(tracker, START + 2 * INTERVAL, 5, 100, 500, 500);
+        assertEquals(2, tracker.getTrackCount());
+    }
+
+    public void testLostAfterMisses() {
+        FaceTracker tracker = new FaceTracker();
+        long time = START;
+        detect(tracker, time, -1, 100, 0, 0);
+        detect(tracker, time += INTERVAL, -1, 100, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            tracker.update(time += INTERVAL, 0, mIds, mScores, mRects);
+            assertTrue(tracker.hasFaces());
+        }
+        tracker.update(time += INTERVAL, 0, mIds, mScores, mRects);
+        assertFalse(tracker.hasFaces());
+        assertEquals(0, tracker.getTrackCount());
+    }
+
+    public void testLowScoreIgnored() {
+        FaceTracker tracker = new FaceTracker();
+        detect(tracker, START, -1, FaceTracker.MIN_SCORE - 1, 0, 0);
+        detect(tracker, START + INTERVAL, -1, FaceTracker.MIN_SCORE - 1, 0, 0);
+        assertEquals(0, tracker.getTrackCount());
+        assertFalse(tracker.hasFaces());
+    }
+}
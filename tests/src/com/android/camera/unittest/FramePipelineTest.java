@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.effects.BackgroundSubstitution;
+import com.android.camera.effects.FaceWarp;
+import com.android.camera.effects.FramePipeline;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class FramePipelineTest extends TestCase {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    // A frame of the background with some sensor noise.
+    private static byte[] backgroundFrame(Random random) {
+        byte[] frame = new byte[FRAME_SIZE];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame[y * WIDTH + x] = (byte) (40 + x + random.nextInt(3));
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < FRAME_SIZE; i++) {
+            frame[i] = (byte) (120 + random.nextInt(3));
+        }
+        return frame;
+    }
+
+    private static byte[] randomFrame(Random random) {
+        byte[] frame = new byte[FRAME_SIZE];
+        random.nextBytes(frame);
+        return frame;
+    }
+
+    public void testNoStagesReturnsInput() {
+        FramePipeline pipeline = new FramePipeline(1);
+        byte[] frame = randomFrame(new Random(1));
+        assertSame(frame, pipeline.process(frame, WIDTH, HEIGHT));
+        pipeline.release();
+    }
+
+    public void testWarpWithoutFacesCopies() {
+        FramePipeline pipeline = new FramePipeline(1);
+        pipeline.addStage(new FaceWarp());
+        byte[] frame = randomFrame(new Random(2));
+        byte[] copy = frame.clone();
+        assertTrue(Arrays.equals(copy, pipeline.process(frame, WIDTH, HEIGHT)));
+        assertTrue(Arrays.equals(copy, frame));
+        pipeline.release();
+    }
+
+    public void testWarpOnlyChangesFace() {
+        FaceWarp warp = new FaceWarp();
+        warp.setMode(FaceWarp.BIG_NOSE);
+        warp.setFaces(new int[] {16, 8, 48, 40}, 1);
+        FramePipeline pipeline = new FramePipeline(1);
+        pipeline.addStage(warp);
+        byte[] frame = randomFrame(new Random(3));
+        byte[] result = pipeline.process(frame, WIDTH, HEIGHT);
+        assertFalse(Arrays.equals(frame, result));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (x >= 16 && x < 48 && y >= 8 && y < 40) continue;
+                assertEquals(frame[y * WIDTH + x], result[y * WIDTH + x]);
+            }
+        }
+        pipeline.release();
+    }
+
+    public void testBandsMatchSingleThread() {
+        FaceWarp warp = new FaceWarp();
+        warp.setMode(FaceWarp.BIG_EYES);
+        warp.setFaces(new int[] {4, 2, 40, 38, 30, 20, 62, 46}, 2);
+        FramePipeline single = new FramePipeline(1);
+        FramePipeline parallel = new FramePipeline(4);
+        single.addStage(warp);
+        parallel.addStage(warp);
+        Random random = new Random(4);
+        for (int i = 0; i < 5; i++) {
+            byte[] frame = randomFrame(random);
+            byte[] expected = single.process(frame, WIDTH, HEIGHT).clone();
+            assertTrue(Arrays.equals(expected, parallel.process(frame, WIDTH, HEIGHT)));
+        }
+        single.release();
+        parallel.release();
+    }
+
+    public void testBackgroundIsReplaced() {
+        final boolean[] learned = new boolean[1];
+        BackgroundSubstitution backdropper = new BackgroundSubstitution(10);
+        backdropper.setListener(new BackgroundSubstitution.Listener() {
+            @Override
+            public void onLearningDone() {
+                learned[0] = true;
+            }
+        });
+        byte[] substitute = new byte[FRAME_SIZE];
+        Arrays.fill(substitute, (byte) 200);
+        backdropper.setBackground(substitute);
+        FramePipeline pipeline = new FramePipeline(3);
+        pipeline.addStage(backdropper);
+
+        // Learning passes the frames through.
+        Random random = new Random(5);
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = backgroundFrame(random);
+            assertTrue(Arrays.equals(frame, pipeline.process(frame, WIDTH, HEIGHT)));
+        }
+        assertFalse(backdropper.isLearning());
+
+        // A dark square in front of the background is kept, the rest is
+        // replaced.
+        byte[] frame = backgroundFrame(random);
+        for (int y = 10; y < 30; y++) {
+            for (int x = 20; x < 40; x++) {
+                frame[y * WIDTH + x] = 0;
+            }
+        }
+        byte[] result = pipeline.process(frame, WIDTH, HEIGHT);
+        assertTrue(learned[0]);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean inside = x >= 20 && x < 40 && y >= 10 && y < 30;
+                byte expected = inside ? 0 : (byte) 200;
+                assertEquals("pixel " + x + "," + y, expected, result[y * WIDTH + x]);
+            }
+        }
+        pipeline.release();
+    }
+}
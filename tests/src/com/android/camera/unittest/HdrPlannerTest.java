@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.HdrPlanner;
+import com.android.camera.SceneStats;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+@SmallTest
+public class HdrPlannerTest extends TestCase {
+    // A common range: -2 to +2 stops in thirds.
+    private static final int MIN = -6;
+    private static final int MAX = 6;
+    private static final float STEP = 1 / 3f;
+
+    // A histogram with the given fractions black, white and mid gray.
+    private static float[] histogram(float dark, float bright) {
+        float[] histogram = new float[SceneStats.HISTOGRAM_BINS];
+        histogram[0] = dark;
+        histogram[SceneStats.HISTOGRAM_BINS - 1] = bright;
+        histogram[SceneStats.HISTOGRAM_BINS / 2] = 1 - dark - bright;
+        return histogram;
+    }
+
+    private static void assertPlan(int[] expected, int[] plan) {
+        assertTrue("plan " + Arrays.toString(plan), Arrays.equals(expected, plan));
+    }
+
+    private static void assertAscending(int[] plan, int min, int max) {
+        for (int i = 1; i < plan.length; i++) {
+            assertTrue("plan " + Arrays.toString(plan), plan[i - 1] < plan[i]);
+        }
+        for (int index : plan) {
+            assertTrue(index >= min && index <= max);
+        }
+    }
+
+    public void testLowDynamicRangeSkipsHdr() {
+        assertPlan(new int[] {0}, HdrPlanner.plan(histogram(0, 0), MIN, MAX, STEP));
+        assertPlan(new int[] {0}, HdrPlanner.plan(histogram(0.01f, 0.02f), MIN, MAX, STEP));
+    }
+
+    public void testHighlightsOnly() {
+        int[] plan = HdrPlanner.plan(histogram(0, 0.05f), MIN, MAX, STEP);
+        assertEquals(2, plan.length);
+        assertTrue(plan[0] < 0);
+        assertEquals(0, plan[1]);
+    }
+
+    public void testShadowsOnly() {
+        int[] plan = HdrPlanner.plan(histogram(0.05f, 0), MIN, MAX, STEP);
+        assertEquals(2, plan.length);
+        assertEquals(0, plan[0]);
+        assertTrue(plan[1] > 0);
+    }
+
+    public void testBothEnds() {
+        int[] plan = HdrPlanner.plan(histogram(0.05f, 0.05f), MIN, MAX, STEP);
+        assertEquals(3, plan.length);
+        assertEquals(-plan[0], plan[2]);
+        assertEquals(0, plan[1]);
+    }
+
+    public void testMoreClippingNeedsMoreStops() {
+        int[] little = HdrPlanner.plan(histogram(0, 0.05f), MIN, MAX, STEP);
+        int[] much = HdrPlanner.plan(histogram(0, 0.15f), MIN, MAX, STEP);
+        assertTrue(much[0] < little[0]);
+    }
+
+    public void testAtMostFiveBrackets() {
+        int[] plan = HdrPlanner.plan(histogram(0.4f, 0.4f), -12, 12, STEP);
+        assertEquals(HdrPlanner.MAX_BRACKETS, plan.length);
+        assertAscending(plan, -12, 12);
+        // Three stops each way, in steps of a third.
+        assertEquals(-9, plan[0]);
+        assertEquals(-plan[1], plan[3]);
+        assertEquals(9, plan[4]);
+    }
+
+    public void testClampedToRange() {
+        int[] plan = HdrPlanner.plan(histogram(0.4f, 0.4f), MIN, MAX, STEP);
+        assertAscending(plan, MIN, MAX);
+        assertEquals(MIN, plan[0]);
+        assertEquals(MAX, plan[plan.length - 1]);
+    }
+
+    public void testNoCompensation() {
+        assertPlan(new int[] {0}, HdrPlanner.plan(histogram(0.4f, 0.4f), 0, 0, 0));
+    }
+
+    public void testDefaultPlan() {
+        assertPlan(new int[] {MIN, 0, MAX}, HdrPlanner.defaultPlan(MIN, MAX));
+        assertPlan(new int[] {0}, HdrPlanner.defaultPlan(0, 0));
+    }
+}
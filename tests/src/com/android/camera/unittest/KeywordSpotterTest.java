@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.KeywordSpotter;
+import com.android.camera.WavFile;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class KeywordSpotterTest extends TestCase {
+    private static final int SAMPLE_RATE = 16000;
+    // The size of the reads from the microphone, 20ms.
+    private static final int CHUNK = SAMPLE_RATE / 50;
+
+    // Words made of vowels, as their first two formants in Hz.
+    private static final float[][] KEYWORD = { { 700, 1200 }, { 300, 2300 }, { 350, 800 } };
+    private static final float[][] OTHER_WORD = { { 350, 800 }, { 500, 1700 }, { 700, 1200 } };
+
+    private static class Recorder implements KeywordSpotter.Listener {
+        final ArrayList<Long> keywords = new ArrayList<Long>();
+        int enrolled;
+        KeywordSpotter spotter;
+
+        @Override
+        public void onKeyword(int template, float distance) {
+            keywords.add(spotter.getFrameCount());
+        }
+
+        @Override
+        public void onEnrollment(int done, int total) {
+            enrolled = done;
+        }
+    }
+
+    // Builds a recording out of words and pauses.
+    private static class Script {
+        final Random random;
+        final ArrayList<short[]> parts = new ArrayList<short[]>();
+        int length;
+
+        Script(long seed) {
+            random = new Random(seed);
+        }
+
+        Script pause(int ms) {
+            short[] samples = new short[SAMPLE_RATE * ms / 1000];
+            add(samples);
+            return this;
+        }
+
+        // Returns the sample after the word.
+        int word(float[][] vowels, float rate, float pitch, float level) {
+            add(synthesize(vowels, rate, pitch, level));
+            return length;
+        }
+
+        private void add(short[] samples) {
+            for (int i = 0; i < samples.length; i++) {
+                int noise = (int) (random.nextGaussian() * 60);
+                samples[i] = (short) Math.max(-32768, Math.min(32767, samples[i] + noise));
+            }
+            parts.add(samples);
+            length += samples.length;
+        }
+
+        // Goes through a WAV file, as a recording would.
+        WavFile toWav() throws Exception {
+            short[] all = new short[length];
+            int p = 0;
+            for (short[] part : parts) {
+                System.arraycopy(part, 0, all, p, part.length);
+                p += part.length;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new WavFile(SAMPLE_RATE, all).write(out);
+            return WavFile.read(new ByteArrayInputStream(out.toByteArray()));
+        }
+    }
+
+    // A voiced sound moving through the vowels, 150ms each at rate 1.
+    private static short[] synthesize(float[][] vowels, float rate, float pitch, float level) {
+        int perVowel = (int) (SAMPLE_RATE * 0.15f / rate);
+        int length = perVowel * vowels.length;
+        short[] samples = new short[length];
+        double phase = 0;
+        for (int n = 0; n < length; n++) {
+            // Glide between the vowels.
+            float position = Math.max(0, (float) n / perVowel - 0.5f);
+            int v = Math.min((int) position, vowels.length - 1);
+            int next = Math.min(v + 1, vowels.length - 1);
+            float mix = Math.min(position - v, 1);
+            float f1 = vowels[v][0] + (vowels[next][0] - vowels[v][0]) * mix;
+            float f2 = vowels[v][1] + (vowels[next][1] - vowels[v][1]) * mix;
+
+            float f0 = pitch * (1 - 0.15f * n / length);
+            phase += 2 * Math.PI * f0 / SAMPLE_RATE;
+            double sum = 0;
+            for (int h = 1; h * f0 < SAMPLE_RATE / 2 && h * f0 < 5000; h++) {
+                float f = h * f0;
+                double gain = Math.exp(-sq((f - f1) / 90)) + 0.7 * Math.exp(-sq((f - f2) / 120))
+                        + 0.02;
+                sum += gain * Math.sin(h * phase);
+            }
+            // Fade in and out.
+            double envelope = Math.min(1, Math.min(n, length - n) / (SAMPLE_RATE * 0.02));
+            samples[n] = (short) (sum * envelope * level * 3000);
+        }
+        return samples;
+    }
+
+    private static double sq(double x) {
+        return x * x;
+    }
+
+    private static void replay(WavFile wav, KeywordSpotter spotter) {
+        for (int i = 0; i < wav.samples.length; i += CHUNK) {
+            spotter.process(wav.samples, i, Math.min(CHUNK, wav.samples.length - i));
+        }
+    }
+
+    private static KeywordSpotter enroll(Recorder recorder) throws Exception {
+        Script script = new Script(1);
+        script.pause(500);
+        script.word(KEYWORD, 1.0f, 120, 1.0f);
+        script.pause(600);
+        script.word(KEYWORD, 0.85f, 130, 0.6f);
+        script.pause(600);
+        script.word(KEYWORD, 1.15f, 115, 1.4f);
+        script.pause(600);
+
+        KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE);
+        recorder.spotter = spotter;
+        spotter.setListener(recorder);
+        spotter.startEnrollment(3);
+        replay(script.toWav(), spotter);
+        return spotter;
+    }
+
+    public void testEnrollment() throws Exception {
+        Recorder recorder = new Recorder();
+        KeywordSpotter spotter = enroll(recorder);
+        assertEquals(3, recorder.enrolled);
+        assertFalse(spotter.isEnrolling());
+        assertEquals(3, spotter.getTemplates().frames.length);
+        assertTrue(spotter.getTemplates().threshold > 0);
+        assertTrue(recorder.keywords.isEmpty());
+    }
+
+    public void testSpotsKeywordQuickly() throws Exception {
+        Recorder recorder = new Recorder();
+        KeywordSpotter spotter = enroll(recorder);
+        long start = spotter.getFrameCount();
+
+        Script script = new Script(2);
+        script.pause(1000);
+        script.word(OTHER_WORD, 1.0f, 125, 1.0f);
+        script.pause(1000);
+        int end = script.word(KEYWORD, 0.95f, 140, 0.8f);
+        script.pause(1000);
+        replay(script.toWav(), spotter);
+
+        assertEquals(1, recorder.keywords.size());
+        long endFrame = start + end / (SAMPLE_RATE / 100);
+        long delay = (recorder.keywords.get(0) - endFrame) * 10;
+        // Reported within 200ms of the end of the word, once its last vowel
+        // has been heard.
+        assertTrue("delay " + delay, delay >= -150 && delay <= 200);
+    }
+
+    public void testIgnoresOtherWords() throws Exception {
+        Recorder recorder = new Recorder();
+        KeywordSpotter spotter = enroll(recorder);
+
+        Script script = new Script(3);
+        for (int i = 0; i < 5; i++) {
+            script.pause(700);
+            script.word(OTHER_WORD, 0.8f + 0.1f * i, 110 + 10 * i, 1.0f);
+        }
+        script.pause(3000);
+        replay(script.toWav(), spotter);
+        assertTrue(recorder.keywords.isEmpty());
+    }
+
+    public void testEnrollmentSkipsNoiseAndLongSounds() throws Exception {
+        Script script = new Script(4);
+        script.pause(2000);
+        // A click, then a sound longer than a word.
+        script.word(new float[][] { { 500, 1500 } }, 5f, 120, 1.0f);
+        script.pause(600);
+        script.word(new float[][] { { 500, 1500 }, { 500, 1500 }, { 500, 1500 },
+                { 500, 1500 }, { 500, 1500 }, { 500, 1500 }, { 500, 1500 },
+                { 500, 1500 }, { 500, 1500 }, { 500, 1500 }, { 500, 1500 } },
+                1.0f, 120, 1.0f);
+        script.pause(600);
+
+        Recorder recorder = new Recorder();
+        KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE);
+        recorder.spotter = spotter;
+        spotter.setListener(recorder);
+        spotter.startEnrollment(1);
+        replay(script.toWav(), spotter);
+        assertEquals(0, recorder.enrolled);
+        assertTrue(spotter.isEnrolling());
+    }
+
+    public void testTemplatesRoundTrip() throws Exception {
+        KeywordSpotter spotter = enroll(new Recorder());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spotter.getTemplates().write(out);
+        KeywordSpotter.Templates read = KeywordSpotter.Templates.read(
+                new ByteArrayInputStream(out.toByteArray()));
+        KeywordSpotter.Templates written = spotter.getTemplates();
+        assertEquals(written.threshold, read.threshold);
+        assertEquals(written.frames.length, read.frames.length);
+        for (int t = 0; t < read.frames.length; t++) {
+            assertEquals(written.frames[t].length, read.frames[t].length);
+            for (int i = 0; i < read.frames[t].length; i++) {
+                for (int c = 0; c < read.frames[t][i].length; c++) {
+                    assertEquals(written.frames[t][i][c], read.frames[t][i][c]);
+                }
+            }
+        }
+    }
+}
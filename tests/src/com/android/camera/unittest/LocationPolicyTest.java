@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.LocationPolicy;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class LocationPolicyTest extends TestCase {
+    private static final int GPS = LocationPolicy.GPS;
+    private static final int NETWORK = LocationPolicy.NETWORK;
+    private static final double LATITUDE = 48.85;
+    private static final double LONGITUDE = 2.35;
+    // About one meter north, in degrees of latitude.
+    private static final double METER = 1 / 111195.0;
+
+    private final LocationPolicy mPolicy = new LocationPolicy();
+
+    // Plays GPS fixes every second from the given time, each the given
+    // number of meters north of the previous one. Returns how many times
+    // the interval changed.
+    private int playGps(long time, int count, double step, float accuracy, float speed) {
+        int changes = 0;
+        for (int i = 0; i < count; i++) {
+            if (mPolicy.onFix(GPS, time + i * 1000, LATITUDE + i * step * METER,
+                    LONGITUDE, accuracy, speed)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    public void testStartsFast() {
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+        assertEquals(-1, mPolicy.select(0));
+    }
+
+    public void testStillSlowsDown() {
+        // The first fix is a move, then still fixes with some jitter.
+        assertEquals(0, playGps(0, LocationPolicy.STILL_FIXES, 2, 8, 0));
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+        assertTrue(mPolicy.onFix(GPS, 5000, LATITUDE + 3 * METER, LONGITUDE, 8, 0));
+        assertEquals(LocationPolicy.SLOW_INTERVAL, mPolicy.getInterval());
+        // More still fixes change nothing.
+        assertFalse(mPolicy.onFix(GPS, 15000, LATITUDE, LONGITUDE, 8, 0));
+    }
+
+    public void testMovingStaysFast() {
+        // Walking, 20m between fixes.
+        assertEquals(0, playGps(0, 10, 20, 8, 0));
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+        // Driving slowly, reported by the speed only.
+        assertEquals(0, playGps(10000, 10, 0, 8, 5));
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+    }
+
+    public void testMoveSpeedsUp() {
+        playGps(0, LocationPolicy.STILL_FIXES + 1, 0, 8, 0);
+        assertEquals(LocationPolicy.SLOW_INTERVAL, mPolicy.getInterval());
+        assertTrue(mPolicy.onFix(GPS, 20000, LATITUDE + 50 * METER, LONGITUDE, 8, 0));
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+    }
+
+    public void testInaccurateJitterIsStill() {
+        // 40m jumps are within a 50m accuracy.
+        playGps(0, LocationPolicy.STILL_FIXES + 1, 40, 50, 0);
+        assertEquals(LocationPolicy.SLOW_INTERVAL, mPolicy.getInterval());
+    }
+
+    public void testNetworkDoesNotChangeInterval() {
+        for (int i = 0; i < 10; i++) {
+            assertFalse(mPolicy.onFix(NETWORK, i * 1000, LATITUDE, LONGITUDE, 30, 0));
+        }
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+    }
+
+    public void testResetInterval() {
+        playGps(0, LocationPolicy.STILL_FIXES + 1, 0, 8, 0);
+        assertTrue(mPolicy.resetInterval());
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+        assertFalse(mPolicy.resetInterval());
+        // The still fixes are counted again.
+        assertFalse(mPolicy.onFix(GPS, 10000, LATITUDE, LONGITUDE, 8, 0));
+    }
+
+    public void testAccurateFixWins() {
+        mPolicy.onFix(NETWORK, 0, LATITUDE, LONGITUDE, 40, 0);
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 0);
+        assertEquals(GPS, mPolicy.select(0));
+        // A fix without accuracy is the worst.
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 0, 0);
+        assertEquals(NETWORK, mPolicy.select(0));
+    }
+
+    public void testRecentFixWins() {
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 0);
+        mPolicy.onFix(NETWORK, 60000, LATITUDE, LONGITUDE, 40, 0);
+        // The GPS fix could be 10 + 1.5 * 60 = 100m off.
+        assertEquals(NETWORK, mPolicy.select(60000));
+        assertEquals(100f, mPolicy.getError(GPS, 60000), 0.01f);
+        // Shortly after the GPS fix, it still wins.
+        assertEquals(GPS, mPolicy.select(10000));
+    }
+
+    public void testFastFixAgesFaster() {
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 20);
+        mPolicy.onFix(NETWORK, 0, LATITUDE, LONGITUDE, 40, 0);
+        assertEquals(GPS, mPolicy.select(1000));
+        // 10 + 20 * 2 = 50m against 40 + 1.5 * 2 = 43m.
+        assertEquals(NETWORK, mPolicy.select(2000));
+    }
+
+    public void testOldFixesExpire() {
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 0);
+        assertEquals(GPS, mPolicy.select(LocationPolicy.MAX_AGE));
+        assertEquals(-1, mPolicy.select(LocationPolicy.MAX_AGE + 1));
+    }
+
+    public void testLostProvider() {
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 0);
+        mPolicy.onFix(NETWORK, 0, LATITUDE, LONGITUDE, 40, 0);
+        mPolicy.onProviderLost(GPS);
+        assertEquals(NETWORK, mPolicy.select(0));
+        mPolicy.onProviderLost(NETWORK);
+        assertEquals(-1, mPolicy.select(0));
+    }
+
+    public void testLostGpsSpeedsUp() {
+        playGps(0, LocationPolicy.STILL_FIXES + 1, 0, 8, 0);
+        mPolicy.onProviderLost(GPS);
+        // The next fix is taken as a move.
+        assertTrue(mPolicy.onFix(GPS, 20000, LATITUDE, LONGITUDE, 8, 0));
+        assertEquals(LocationPolicy.FAST_INTERVAL, mPolicy.getInterval());
+    }
+
+    public void testSequenceFollowsFixes() {
+        int gps = mPolicy.getSequence(GPS);
+        int network = mPolicy.getSequence(NETWORK);
+        mPolicy.onFix(GPS, 0, LATITUDE, LONGITUDE, 10, 0);
+        assertTrue(gps != mPolicy.getSequence(GPS));
+        assertEquals(network, mPolicy.getSequence(NETWORK));
+        gps = mPolicy.getSequence(GPS);
+        mPolicy.select(1000);
+        assertEquals(gps, mPolicy.getSequence(GPS));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.R;
+import com.android.camera.ui.PieItem;
+import com.android.camera.ui.PieRenderer;
+import com.android.camera.ui.RenderOverlay;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.MotionEvent;
+import android.view.View;
+
+@SmallTest
+public class PieRendererTest extends InstrumentationTestCase {
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+    private static final int ITEMS = 5;
+    private static final int SUB_ITEMS = 3;
+
+    private PieRenderer mPie;
+    private PieItem[] mItems;
+    private Canvas mCanvas;
+    private MotionEvent mEvent;
+    // Where the items are, from the center.
+    private int mItemRadius;
+
+    private void createPie() {
+        Context context = getInstrumentation().getTargetContext();
+        Resources res = context.getResources();
+        RenderOverlay overlay = new RenderOverlay(context, null);
+        mPie = new PieRenderer(context);
+        overlay.addRenderer(mPie);
+        mItems = new PieItem[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            mItems[i] = new PieItem(res.getDrawable(R.drawable.ic_settings_holo_light), 0);
+            mItems[i].setEnabled(true);
+            mPie.addItem(mItems[i]);
+        }
+        for (int i = 0; i < SUB_ITEMS; i++) {
+            PieItem sub = new PieItem(res.getDrawable(R.drawable.ic_switch_camera), 0);
+            sub.setEnabled(true);
+            mItems[0].addItem(sub);
+        }
+        overlay.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        overlay.layout(0, 0, WIDTH, HEIGHT);
+        mCanvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        mItemRadius = res.getDimensionPixelSize(R.dimen.pie_radius_start)
+                + res.getDimensionPixelSize(R.dimen.pie_radius_increment) / 2;
+        long now = SystemClock.uptimeMillis();
+        mEvent = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, WIDTH / 2, HEIGHT / 2, 0);
+    }
+
+    private void touch(int action, float x, float y) {
+        mEvent.setAction(action);
+        mEvent.setLocation(x, y);
+        mPie.onTouchEvent(mEvent);
+        mPie.draw(mCanvas);
+    }
+
+    // Drags the finger over all the items and back, drawing every step.
+    private void sweep() {
+        float cx = WIDTH / 2, cy = HEIGHT / 2;
+        for (int angle = 20; angle <= 160; angle += 5) {
+            double a = Math.toRadians(angle);
+            touch(MotionEvent.ACTION_MOVE, cx + (float) (mItemRadius * Math.cos(a)),
+                    cy - (float) (mItemRadius * Math.sin(a)));
+        }
+        for (int angle = 160; angle >= 20; angle -= 5) {
+            double a = Math.toRadians(angle);
+            touch(MotionEvent.ACTION_MOVE, cx + (float) (mItemRadius * Math.cos(a)),
+                    cy - (float) (mItemRadius * Math.sin(a)));
+        }
+    }
+
+    @UiThreadTest
+    public void testInteractionDoesNotAllocate() {
+        createPie();
+        mPie.showInCenter();
+        mPie.draw(mCanvas);
+        touch(MotionEvent.ACTION_DOWN, WIDTH / 2, HEIGHT / 2 - mItemRadius);
+        // The first pass goes through the paths taken once.
+        sweep();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        sweep();
+        int count = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        assertEquals("objects allocated", 0, count);
+    }
+
+    @UiThreadTest
+    public void testSlicesAreCached() {
+        createPie();
+        mPie.showInCenter();
+        assertNotNull(mItems[0].getPath());
+        // All the items of a menu share their slice.
+        for (int i = 1; i < ITEMS; i++) {
+            assertSame(mItems[0].getPath(), mItems[i].getPath());
+        }
+        Object slice = mItems[0].getPath();
+        Object subSlice = mItems[0].getItems().get(0).getPath();
+        assertNotSame(slice, subSlice);
+
+        // Open again somewhere else.
+        mPie.hide();
+        touch(MotionEvent.ACTION_DOWN, WIDTH / 3, HEIGHT / 3);
+        assertTrue(mPie.isVisible());
+        assertSame(slice, mItems[0].getPath());
+        assertSame(subSlice, mItems[0].getItems().get(0).getPath());
+    }
+}
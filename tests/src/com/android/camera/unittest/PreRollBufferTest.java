@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.PreRollBuffer;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+public class PreRollBufferTest extends TestCase {
+    private static final long FRAME_US = 33333;
+    // A sync sample every 30 frames.
+    private static final int GROUP = 30;
+
+    private static class Sample {
+        byte[] data;
+        boolean sync;
+        long timeUs;
+    }
+
+    private static class CollectingSink implements PreRollBuffer.Sink {
+        final ArrayList<Sample> samples = new ArrayList<Sample>();
+
+        @Override
+        public void writeSample(byte[] data, int offset, int length, boolean sync,
+                long timeUs) {
+            Sample s = new Sample();
+            s.data = new byte[length];
+            System.arraycopy(data, offset, s.data, 0, length);
+            s.sync = sync;
+            s.timeUs = timeUs;
+            samples.add(s);
+        }
+    }
+
+    // Adds frames with random sizes and contents and returns them.
+    private static ArrayList<Sample> addFrames(PreRollBuffer buffer, Random random,
+            int first, int count, int maxSize) {
+        ArrayList<Sample> added = new ArrayList<Sample>();
+        for (int n = first; n < first + count; n++) {
+            Sample s = new Sample();
+            s.sync = (n % GROUP) == 0;
+            s.data = new byte[(s.sync ? maxSize : maxSize / 4) - random.nextInt(maxSize / 8)];
+            random.nextBytes(s.data);
+            s.timeUs = n * FRAME_US;
+            buffer.add(s.data, 0, s.data.length, s.sync, s.timeUs);
+            added.add(s);
+        }
+        return added;
+    }
+
+    // Checks that the drained samples are the newest added ones.
+    private static void assertTail(ArrayList<Sample> added, ArrayList<Sample> drained) {
+        int start = added.size() - drained.size();
+        for (int i = 0; i < drained.size(); i++) {
+            Sample expected = added.get(start + i);
+            Sample actual = drained.get(i);
+            assertEquals(expected.timeUs, actual.timeUs);
+            assertEquals(expected.sync, actual.sync);
+            assertEquals(expected.data.length, actual.data.length);
+            for (int j = 0; j < actual.data.length; j++) {
+                assertEquals(expected.data[j], actual.data[j]);
+            }
+        }
+    }
+
+    public void testKeepsDuration() throws Exception {
+        // Plenty of memory, two seconds.
+        PreRollBuffer buffer = new PreRollBuffer(1 << 20, 2000000);
+        ArrayList<Sample> added = addFrames(buffer, new Random(1), 0, 300, 1000);
+        // Whole groups are dropped while two seconds are left without them.
+        assertTrue(buffer.getDurationUs() >= 2000000);
+        assertTrue(buffer.getDurationUs() < 2000000 + GROUP * FRAME_US);
+
+        CollectingSink sink = new CollectingSink();
+        buffer.drainTo(sink, 0);
+        assertTrue(sink.samples.get(0).sync);
+        assertTail(added, sink.samples);
+        assertEquals(0, buffer.getSampleCount());
+        assertEquals(0, buffer.getUsed());
+    }
+
+    public void testKeepsMemoryLimit() throws Exception {
+        // Room for about two groups, wrapping around many times.
+        int capacity = 2 * (1000 + 29 * 250);
+        PreRollBuffer buffer = new PreRollBuffer(capacity, 10000000);
+        ArrayList<Sample> added = addFrames(buffer, new Random(2), 0, 1000, 1000);
+        assertTrue(buffer.getPeakUsed() <= capacity);
+        assertTrue(buffer.getSampleCount() >= GROUP);
+        assertTrue(buffer.getDroppedSamples() > 0);
+
+        CollectingSink sink = new CollectingSink();
+        buffer.drainTo(sink, 0);
+        assertTrue(sink.samples.get(0).sync);
+        assertTail(added, sink.samples);
+    }
+
+    public void testStartsWithSyncSample() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(1 << 16, 1000000);
+        byte[] data = new byte[100];
+        buffer.add(data, 0, data.length, false, 0);
+        buffer.add(data, 0, data.length, false, FRAME_US);
+        assertEquals(0, buffer.getSampleCount());
+        assertEquals(2, buffer.getDroppedSamples());
+        buffer.add(data, 0, data.length, true, 2 * FRAME_US);
+        buffer.add(data, 0, data.length, false, 3 * FRAME_US);
+        assertEquals(2, buffer.getSampleCount());
+        assertEquals(2 * FRAME_US, buffer.getFirstTime());
+    }
+
+    public void testDrainSkipsEarlySamples() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(1 << 16, 10000000);
+        byte[] data = new byte[10];
+        for (int i = 0; i < 10; i++) {
+            buffer.add(data, 0, data.length, true, i * 1000);
+        }
+        CollectingSink sink = new CollectingSink();
+        buffer.drainTo(sink, 4500);
+        assertEquals(5, sink.samples.size());
+        assertEquals(5000, sink.samples.get(0).timeUs);
+    }
+
+    public void testSampleLargerThanBuffer() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(100, 1000000);
+        byte[] data = new byte[60];
+        buffer.add(data, 0, data.length, true, 0);
+        buffer.add(new byte[200], 0, 200, true, FRAME_US);
+        assertEquals(0, buffer.getSampleCount());
+        // The buffer starts over with the next sync sample.
+        buffer.add(data, 0, data.length, true, 2 * FRAME_US);
+        buffer.add(data, 0, data.length, true, 3 * FRAME_US);
+        assertEquals(1, buffer.getSampleCount());
+        assertEquals(3 * FRAME_US, buffer.getFirstTime());
+    }
+}
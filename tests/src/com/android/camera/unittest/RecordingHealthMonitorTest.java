@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.RecordingHealthMonitor;
+import com.android.camera.TimestampTrace;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+@SmallTest
+public class RecordingHealthMonitorTest extends TestCase {
+    private static final long INTERVAL = 1000000000L / 30;
+    private static final long START = 123456789000L;
+
+    public void testSteadyRate() {
+        RecordingHealthMonitor monitor = new RecordingHealthMonitor(30);
+        for (int i = 0; i <= 300; i++) {
+            monitor.onFrame(START + i * INTERVAL);
+        }
+        RecordingHealthMonitor.Report r = monitor.getReport();
+        assertEquals(301, r.frames);
+        assertEquals(9999, r.durationMs, 1);
+        assertEquals(30f, r.effectiveFps, 0.01f);
+        assertEquals(33.33f, r.meanIntervalMs, 0.01f);
+        assertEquals(0f, r.jitterMs, 0.01f);
+        assertEquals(0, r.droppedFrames);
+        assertEquals(300, r.gaps[0]);
+    }
+
+    public void testGaps() {
+        RecordingHealthMonitor monitor = new RecordingHealthMonitor(30);
+        long t = START;
+        monitor.onFrame(t);
+        // 10 on time, then 1, 2 and 5 frames missing.
+        for (int i = 0; i < 10; i++) monitor.onFrame(t += INTERVAL);
+        monitor.onFrame(t += 2 * INTERVAL);
+        monitor.onFrame(t += 3 * INTERVAL);
+        monitor.onFrame(t += 6 * INTERVAL);
+        RecordingHealthMonitor.Report r = monitor.getReport();
+        assertEquals(14, r.frames);
+        assertEquals(8, r.droppedFrames);
+        assertEquals(10, r.gaps[0]);
+        assertEquals(1, r.gaps[1]);
+        assertEquals(1, r.gaps[2]);
+        assertEquals(1, r.gaps[3]);
+        assertEquals(6 * INTERVAL / 1000000f, r.maxIntervalMs, 0.01f);
+        assertEquals(13 * 1000f / (21 * INTERVAL / 1000000f), r.effectiveFps, 0.01f);
+        assertTrue(r.jitterMs > 0);
+    }
+
+    public void testJitterIsNotDropping() {
+        RecordingHealthMonitor monitor = new RecordingHealthMonitor(30);
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            // Up to 5ms late, never a whole frame.
+            monitor.onFrame(START + i * INTERVAL + random.nextInt(5000000));
+        }
+        RecordingHealthMonitor.Report r = monitor.getReport();
+        assertEquals(0, r.droppedFrames);
+        assertEquals(99, r.gaps[0]);
+        assertTrue(r.jitterMs > 0.5f && r.jitterMs < 5f);
+    }
+
+    public void testListenerGetsReport() {
+        final RecordingHealthMonitor.Report[] reported = new RecordingHealthMonitor.Report[1];
+        RecordingHealthMonitor monitor = new RecordingHealthMonitor(24);
+        monitor.setListener(new RecordingHealthMonitor.Listener() {
+            @Override
+            public void onRecordingHealth(RecordingHealthMonitor.Report report) {
+                reported[0] = report;
+            }
+        });
+        monitor.onFrame(START);
+        RecordingHealthMonitor.Report r = monitor.stop();
+        assertSame(r, reported[0]);
+        assertEquals(1, r.frames);
+        assertEquals(0f, r.effectiveFps);
+        assertNotNull(r.dump());
+    }
+
+    public void testTraceReplay() throws Exception {
+        RecordingHealthMonitor monitor = new RecordingHealthMonitor(30);
+        monitor.setTrace(new TimestampTrace());
+        Random random = new Random(2);
+        long t = START;
+        for (int i = 0; i < 200; i++) {
+            t += INTERVAL * (random.nextInt(10) == 0 ? 2 : 1) + random.nextInt(2000000);
+            monitor.onFrame(t);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        monitor.getTrace().write(out);
+        TimestampTrace trace = TimestampTrace.read(
+                new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(200, trace.size());
+
+        RecordingHealthMonitor replayed = new RecordingHealthMonitor(30);
+        trace.replay(replayed);
+        assertEquals(monitor.getReport().dump(), replayed.getReport().dump());
+    }
+}
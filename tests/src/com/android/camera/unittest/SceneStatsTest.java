@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.SceneStats;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class SceneStatsTest extends TestCase {
+    private static final String TAG = "SceneStatsTest";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ANALYSES = 100;
+    // Common preview sizes, for the time per frame.
+    private static final int[][] PREVIEW_SIZES = {
+        {320, 240}, {640, 480}, {1280, 720}, {1920, 1080},
+    };
+
+    // A smooth pattern shifted by (dx, dy) pixels, in a frame of the NV21
+    // size so the chroma planes are there too.
+    private static byte[] frame(int width, int height, int dx, int dy, int brightness,
+            Random random) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double u = (x - dx) * 2 * Math.PI / 97;
+                double v = (y - dy) * 2 * Math.PI / 71;
+                int luma = (int) (128 + 60 * Math.sin(u) * Math.cos(v) + 30 * Math.sin(u + 2 * v))
+                        + brightness + random.nextInt(3);
+                frame[y * width + x] = (byte) Math.max(0, Math.min(luma, 255));
+            }
+        }
+        return frame;
+    }
+
+    private static byte[] flat(int luma) {
+        byte[] frame = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < frame.length; i++) frame[i] = (byte) luma;
+        return frame;
+    }
+
+    public void testHistogramAddsUp() {
+        SceneStats stats = new SceneStats();
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, new Random(1)), WIDTH, HEIGHT);
+        float[] histogram = new float[SceneStats.HISTOGRAM_BINS];
+        stats.getHistogram(histogram);
+        float sum = 0;
+        for (float f : histogram) sum += f;
+        assertEquals(1f, sum, 0.001f);
+        assertEquals(128f, stats.getMeanLuma(), 8f);
+    }
+
+    public void testPercentiles() {
+        SceneStats stats = new SceneStats();
+        byte[] frame = flat(40);
+        // The right half is bright.
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = WIDTH / 2; x < WIDTH; x++) frame[y * WIDTH + x] = (byte) 200;
+        }
+        stats.analyze(frame, WIDTH, HEIGHT);
+        assertEquals(40, stats.getLumaPercentile(0.25f), 4);
+        assertEquals(200, stats.getLumaPercentile(0.75f), 4);
+        assertEquals(0f, stats.getDarkClip(), 0.001f);
+        assertEquals(0f, stats.getBrightClip(), 0.001f);
+    }
+
+    public void testClipping() {
+        SceneStats stats = new SceneStats();
+        byte[] frame = flat(128);
+        // A quarter is black and a quarter is white.
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) frame[y * WIDTH + x] = 0;
+            for (int x = WIDTH / 2; x < WIDTH; x++) frame[y * WIDTH + x] = (byte) 255;
+        }
+        stats.analyze(frame, WIDTH, HEIGHT);
+        assertEquals(0.25f, stats.getDarkClip(), 0.02f);
+        assertEquals(0.25f, stats.getBrightClip(), 0.02f);
+    }
+
+    public void testHistogramRolls() {
+        SceneStats stats = new SceneStats();
+        stats.analyze(flat(40), WIDTH, HEIGHT);
+        stats.analyze(flat(200), WIDTH, HEIGHT);
+        // The first frame still counts after one bright frame.
+        assertTrue(stats.getLumaPercentile(0.5f) < 100);
+        for (int i = 0; i < 20; i++) stats.analyze(flat(200), WIDTH, HEIGHT);
+        assertEquals(200, stats.getLumaPercentile(0.5f), 4);
+    }
+
+    public void testGlobalMotion() {
+        SceneStats stats = new SceneStats();
+        Random random = new Random(2);
+        int step = WIDTH / SceneStats.THUMB_SIZE;
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        stats.analyze(frame(WIDTH, HEIGHT, 2 * step, -step, 0, random), WIDTH, HEIGHT);
+        assertEquals(2 * step, stats.getMotionX());
+        assertEquals(-step, stats.getMotionY());
+        assertTrue(stats.getLocalMotion() < 4);
+        assertFalse(stats.isStable());
+    }
+
+    public void testStableScene() {
+        SceneStats stats = new SceneStats();
+        Random random = new Random(3);
+        for (int i = 0; i < 3; i++) {
+            stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        }
+        assertFalse(stats.isStable());
+        for (int i = 0; i < 3; i++) {
+            stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        }
+        assertTrue(stats.isStable());
+        assertEquals(0, stats.getMotionX());
+        assertEquals(0, stats.getMotionY());
+
+        // A change of exposure is not motion, but the scene is not stable.
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 20, random), WIDTH, HEIGHT);
+        assertEquals(0, stats.getMotionX());
+        assertTrue(stats.getLocalMotion() < 4);
+        assertFalse(stats.isStable());
+    }
+
+    public void testLocalMotion() {
+        SceneStats stats = new SceneStats();
+        Random random = new Random(4);
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        byte[] frame = frame(WIDTH, HEIGHT, 0, 0, 0, random);
+        // Something dark crosses the middle.
+        for (int y = HEIGHT / 4; y < HEIGHT * 3 / 4; y++) {
+            for (int x = WIDTH / 4; x < WIDTH * 3 / 4; x++) frame[y * WIDTH + x] = 10;
+        }
+        stats.analyze(frame, WIDTH, HEIGHT);
+        assertTrue(stats.getLocalMotion() > 10);
+        assertFalse(stats.isStable());
+    }
+
+    public void testResetOnSizeChange() {
+        SceneStats stats = new SceneStats();
+        Random random = new Random(5);
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        stats.analyze(frame(WIDTH, HEIGHT, 0, 0, 0, random), WIDTH, HEIGHT);
+        assertEquals(2, stats.getFrames());
+        stats.analyze(frame(320, 240, 0, 0, 0, random), 320, 240);
+        assertEquals(1, stats.getFrames());
+        assertEquals(0, stats.getMotionX());
+    }
+
+    // Not a pass or fail test, the time per frame is logged for each
+    // preview size to compare changes of the analysis.
+    public void testAnalyzeTime() {
+        Random random = new Random(6);
+        for (int[] size : PREVIEW_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[][] frames = {
+                frame(width, height, 0, 0, 0, random),
+                frame(width, height, 20, 10, 0, random),
+            };
+            SceneStats stats = new SceneStats();
+            // Warm up.
+            for (int i = 0; i < ANALYSES; i++) stats.analyze(frames[i & 1], width, height);
+            long start = System.nanoTime();
+            for (int i = 0; i < ANALYSES; i++) stats.analyze(frames[i & 1], width, height);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(2 * ANALYSES, stats.getFrames());
+            Log.v(TAG, width + "x" + height + " analyze "
+                    + (elapsed / 1000 / ANALYSES) + "us per frame");
+        }
+    }
+}